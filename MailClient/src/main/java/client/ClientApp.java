@@ -19,10 +19,12 @@ import java.io.IOException;
  */
 public class ClientApp extends Application {
 
+    private ClientModel model;
+
     @Override
     public void start(Stage stage) throws IOException {
         // Creiamo il Model
-        ClientModel model = new ClientModel();
+        model = new ClientModel();
 
         // Creiamo il regista
         ViewFactory viewFactory = new ViewFactory(model);
@@ -32,6 +34,14 @@ public class ClientApp extends Application {
 
     }
 
+    @Override
+    public void stop() {
+        // Chiude la sessione con il server
+        if (model != null) {
+            model.close();
+        }
+    }
+
     public static void main(String[] args) {
         launch();
     }
@@ -1,26 +1,124 @@
 package client.connection;
 
 import common.Email;
+import common.EmailCodec;
+import common.Protocollo;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.UUID;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 /**
  * Gestione della comunicazione di rete tra Client e Server.
  * <p>
- * Implementa un protocollo basato su Socket non persistenti:
- * per ogni operazione viene aperta una nuova connessione, eseguita la richiesta
- * e chiuso il socket.
+ * Se il server lo consente viene aperta una sessione persistente (comando
+ * {@code SESSION}): tutte le operazioni usano la stessa connessione, senza pagare a
+ * ogni aggiornamento l'apertura del socket e lo scambio delle intestazioni degli stream.
+ * Prima di ogni comando lo stream viene azzerato ({@code reset}), come richiesto dal server.
+ * <p>
+ * All'apertura della sessione viene negoziato il {@link Protocollo protocollo binario}:
+ * se il server lo accetta i comandi viaggiano come frame binari, con buffer riutilizzati
+ * per tutta la sessione; altrimenti si prosegue con la serializzazione Java. Un server
+ * che non risponde alla negoziazione non viene più interrogato.
+ * <p>
+ * Con la versione 3 del protocollo la casella si scarica come sole buste
+ * ({@link #listEmails}) e il testo di ogni messaggio viene richiesto quando serve
+ * ({@link #fetchBody}); con i server precedenti si ricevono i messaggi completi.
+ * Con la versione 4 le buste si scaricano a pagine ({@link #pageEmails}); con la 5 gli
+ * aggiornamenti si ricevono come modifiche numerate della casella ({@link #sync}),
+ * comprese le cancellazioni fatte da altri client. Dalla versione 7 il client può chiedere
+ * che le risposte più grandi arrivino compresse ({@code mail.client.compressione}).
+ * <p>
+ * Se la sessione viene rifiutata (server vecchio o troppe sessioni aperte) si usa il
+ * protocollo originale, con Socket non persistenti: per ogni operazione viene aperta
+ * una nuova connessione, eseguita la richiesta e chiuso il socket. Una nuova sessione
+ * viene tentata dopo {@link #RIPROVA_SESSIONE_MS}.
+ * <p>
+ * I metodi sono sincronizzati: l'aggiornamento automatico e le azioni dell'utente
+ * condividono la stessa connessione.
  */
 public class ServerConnection {
 
+    /**
+     * Una pagina di buste, dalla più recente.
+     *
+     * @param ultima true se la casella non contiene altri messaggi dopo questa pagina.
+     */
+    public record Pagina(List<Email> emails, boolean ultima) { }
+
+    /**
+     * Modifiche della casella restituite da {@link #sync}.
+     *
+     * @param tipo           {@link Protocollo#SYNC_DELTA}, {@link Protocollo#SYNC_PRESENTI}
+     *                       o {@link Protocollo#SYNC_RICARICA}.
+     * @param aggiunte       Buste dei messaggi arrivati, in ordine di arrivo.
+     * @param identificativi Messaggi cancellati (SYNC_DELTA) o presenti (SYNC_PRESENTI).
+     */
+    public record Modifiche(long epoca, long sequenza, byte tipo, List<Email> aggiunte, List<UUID> identificativi) { }
+
     // Indirizzo del Server
     private static final String SERVER_IP = "127.0.0.1";
     private static final int SERVER_PORT = 8189;
 
+    // Sessione persistente attiva (disattivabile con -Dmail.client.sessione=false)
+    private static final boolean SESSIONE_ATTIVA =
+            Boolean.parseBoolean(System.getProperty("mail.client.sessione", "true"));
+
+    // Dopo questo tempo senza comandi la sessione viene riaperta (il server la chiude dopo 60 s)
+    private static final long INATTIVITA_MAX_MS = 30_000;
+    private static final long RIPROVA_SESSIONE_MS = 60_000;
+
+    // Versione massima del protocollo (1 per usare solo la serializzazione Java)
+    private static final byte PROTOCOLLO_MAX =
+            Byte.parseByte(System.getProperty("mail.client.protocollo", String.valueOf(Protocollo.VERSIONE_OPZIONI)));
+
+    // Compressione delle risposte, per i collegamenti lenti (-Dmail.client.compressione=true)
+    private static final boolean COMPRESSIONE =
+            Boolean.parseBoolean(System.getProperty("mail.client.compressione", "false"));
+
+    // Un server senza negoziazione attende altri byte invece di rispondere
+    private static final int ATTESA_NEGOZIAZIONE_MS = 2000;
+
+    private Socket socket;
+    private ObjectOutputStream out;
+    private ObjectInputStream in;
+    private long ultimoUso;
+    private long prossimoTentativo;
+
+    // Sessione con il protocollo binario
+    private boolean binario;
+    // Il server della sessione supporta LIST e FETCH_BODY
+    private boolean buste;
+    // Il server della sessione supporta PAGE
+    private boolean pagine;
+    // Il server della sessione supporta SYNC
+    private boolean sincronizzazione;
+    // Il server della sessione risponde a LIST con i record del suo log
+    private boolean record;
+    private boolean negoziazioneNonSupportata;
+    private DataInputStream ingresso;
+    private OutputStream uscita;
+    private ByteBuffer bufferRichiesta;
+    private ByteBuffer bufferRisposta;
+    // Flusso delle risposte compresse della sessione (null se la compressione non è attiva)
+    private Inflater inflater;
+    private ByteBuffer bufferEspanso;
+
     /**
      * Effettua il login al server e scarica l'intera casella di posta iniziale.
      *
@@ -31,21 +129,105 @@ public class ServerConnection {
      */
     @SuppressWarnings("unchecked")
     public List<Email> login(String emailUtente) throws IOException, ClassNotFoundException {
-        try (Socket socket = new Socket(SERVER_IP, SERVER_PORT);
-             ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-             ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
+        // Comando e parametro; la risposta è OK seguito dai dati
+        Object[] risposta = esegui(2, true, "LOGIN", emailUtente);
 
-            out.writeObject("LOGIN");       // Comando
-            out.writeObject(emailUtente);   // Parametro
+        if ("OK".equals(risposta[0])) {
+            return (List<Email>) risposta[1];
+        } else {
+            // Se il server lancia errore, lo rilanciamo qui
+            throw new IOException((String) risposta[0]);
+        }
+    }
 
-            String response = (String) in.readObject();
+    /**
+     * Scarica la casella di posta come sole buste (senza il testo dei messaggi),
+     * se il server lo supporta; altrimenti come {@link #login}, con i messaggi completi.
+     *
+     * @return Le email della casella: il testo è null se va richiesto con {@link #fetchBody}.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized List<Email> listEmails(String emailUtente) throws IOException, ClassNotFoundException {
+        preparaSessione();
+        if (!buste) {
+            return login(emailUtente);
+        }
+        Object[] risposta = esegui(2, true, "LIST", emailUtente);
 
-            if ("OK".equals(response)) {
-                return (List<Email>) in.readObject();
-            } else {
-                // Se il server lancia errore, lo rilanciamo qui
-                throw new IOException(response);
-            }
+        if ("OK".equals(risposta[0])) {
+            return (List<Email>) risposta[1];
+        } else {
+            throw new IOException((String) risposta[0]);
+        }
+    }
+
+    /**
+     * Scarica una pagina di buste, dalla più recente in ordine di arrivo.
+     * Se il server non supporta le pagine, la prima pagina contiene l'intera casella
+     * (in ordine inverso di arrivo, come le pagine) ed è anche l'ultima.
+     *
+     * @param prima Ultima busta della pagina precedente (null per la prima pagina).
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized Pagina pageEmails(String emailUtente, Email prima, int quante)
+            throws IOException, ClassNotFoundException {
+        preparaSessione();
+        if (!pagine) {
+            if (prima != null) return new Pagina(List.of(), true);
+            List<Email> tutte = new ArrayList<>(listEmails(emailUtente));
+            Collections.reverse(tutte);
+            return new Pagina(tutte, true);
+        }
+        Object[] risposta = esegui(2, true, "PAGE", emailUtente, prima == null ? null : prima.getId(), quante);
+
+        if ("OK".equals(risposta[0])) {
+            List<Email> emails = (List<Email>) risposta[1];
+            // Senza il flag del server (versioni precedenti) una pagina incompleta è l'ultima
+            Boolean altre = risposta.length > 2 ? (Boolean) risposta[2] : null;
+            return new Pagina(emails, altre != null ? !altre : emails.size() < quante);
+        } else {
+            throw new IOException((String) risposta[0]);
+        }
+    }
+
+    /**
+     * Richiede le modifiche della casella successive alla sequenza indicata; se non ce
+     * ne sono il server risponde all'arrivo della prossima modifica o dopo {@code attesaMs}.
+     *
+     * @param epoca Epoca restituita dalla sincronizzazione precedente (0 alla prima).
+     * @param sequenza Sequenza restituita dalla sincronizzazione precedente.
+     * @return Le modifiche, oppure null se il server non supporta SYNC.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized Modifiche sync(String emailUtente, long epoca, long sequenza, long attesaMs)
+            throws IOException, ClassNotFoundException {
+        preparaSessione();
+        if (!sincronizzazione) {
+            return null;
+        }
+        Object[] risposta = esegui(6, true, "SYNC", emailUtente, epoca, sequenza, attesaMs);
+
+        if ("OK".equals(risposta[0])) {
+            return new Modifiche((Long) risposta[1], (Long) risposta[2], (Byte) risposta[3],
+                    (List<Email>) risposta[4], (List<UUID>) risposta[5]);
+        } else {
+            throw new IOException((String) risposta[0]);
+        }
+    }
+
+    /**
+     * Scarica il testo di un messaggio ricevuto come sola busta.
+     *
+     * @return Il testo del messaggio.
+     * IOException Se il messaggio non esiste più o per errori di rete.
+     */
+    public String fetchBody(String emailUtente, UUID id) throws IOException, ClassNotFoundException {
+        Object[] risposta = esegui(2, true, "FETCH_BODY", emailUtente, id);
+
+        if ("OK".equals(risposta[0])) {
+            return (String) risposta[1];
+        } else {
+            throw new IOException((String) risposta[0]);
         }
     }
 
@@ -61,21 +243,32 @@ public class ServerConnection {
      */
     @SuppressWarnings("unchecked")
     public List<Email> getUpdates(String email, LocalDateTime lastUpdate) throws IOException, ClassNotFoundException {
-        try (Socket socket = new Socket(SERVER_IP, SERVER_PORT);
-             ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-             ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
+        // lastUpdate: data dell'ultimo aggiornamento
+        Object[] risposta = esegui(2, true, "REFRESH", email, lastUpdate);
 
-            out.writeObject("REFRESH");
-            out.writeObject(email);
-            out.writeObject(lastUpdate); // Data dell'ultimo aggiornamento
+        if ("OK".equals(risposta[0])) {
+            return (List<Email>) risposta[1];
+        } else {
+            throw new IOException((String) risposta[0]);
+        }
+    }
 
-            String response = (String) in.readObject();
+    /**
+     * Come {@link #getUpdates}, ma il server risponde solo quando arriva posta nuova
+     * (o subito, se ce n'è già) oppure dopo {@code attesaMs} millisecondi.
+     *
+     * @return I messaggi arrivati dopo {@code lastUpdate}, vuota se l'attesa è scaduta.
+     * IOException In caso di errori di rete o risposta negativa del server
+     * (EOFException se il server non supporta il comando).
+     */
+    @SuppressWarnings("unchecked")
+    public List<Email> watch(String email, LocalDateTime lastUpdate, long attesaMs) throws IOException, ClassNotFoundException {
+        Object[] risposta = esegui(2, true, "WATCH", email, lastUpdate, attesaMs);
 
-            if ("OK".equals(response)) {
-                return (List<Email>) in.readObject();
-            } else {
-                throw new IOException(response);
-            }
+        if ("OK".equals(risposta[0])) {
+            return (List<Email>) risposta[1];
+        } else {
+            throw new IOException((String) risposta[0]);
         }
     }
 
@@ -87,17 +280,11 @@ public class ServerConnection {
      * ClassNotFoundException In caso di errori di protocollo.
      */
     public void sendEmail(Email email) throws IOException, ClassNotFoundException {
-        try (Socket socket = new Socket(SERVER_IP, SERVER_PORT);
-             ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-             ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
-
-            out.writeObject("SEND");
-            out.writeObject(email);
+        // Non ripetibile: se la connessione cade non sappiamo se il server l'ha consegnata
+        Object[] risposta = esegui(1, false, "SEND", email);
 
-            String response = (String) in.readObject();
-            if (!"OK".equals(response)) {
-                throw new IOException(response);
-            }
+        if (!"OK".equals(risposta[0])) {
+            throw new IOException((String) risposta[0]);
         }
     }
 
@@ -110,18 +297,388 @@ public class ServerConnection {
      * ClassNotFoundException In caso di errori di protocollo.
      */
     public void deleteEmail(String emailUtente, Email emailDaCancellare) throws IOException, ClassNotFoundException {
+        Object[] risposta = esegui(1, true, "DELETE", emailUtente, emailDaCancellare);
+
+        if (!"OK".equals(risposta[0])) {
+            throw new IOException("Errore cancellazione: " + risposta[0]);
+        }
+    }
+
+    /**
+     * Chiude la sessione persistente, se aperta.
+     */
+    public synchronized void close() {
+        if (socket == null) return;
+        try {
+            if (binario) {
+                bufferRichiesta = frame(bufferRichiesta, "QUIT");
+                uscita.write(bufferRichiesta.array(), 0, bufferRichiesta.limit());
+                uscita.flush();
+            } else {
+                out.reset();
+                out.writeObject("QUIT");
+                out.flush();
+            }
+        } catch (IOException e) {
+            // connessione già chiusa dal server
+        }
+        chiudiSessione();
+    }
+
+    // --- METODI DI SUPPORTO ---
+
+    /**
+     * Invia un comando e legge la risposta: il primo oggetto e, se è "OK", i successivi.
+     *
+     * @param quanteRisposte Numero di oggetti della risposta in caso di successo.
+     * @param ripetibile true se il comando può essere rinviato su una nuova connessione
+     *                   quando quella della sessione risulta chiusa.
+     */
+    private synchronized Object[] esegui(int quanteRisposte, boolean ripetibile, Object... comando)
+            throws IOException, ClassNotFoundException {
+        preparaSessione();
+
+        if (socket != null) {
+            try {
+                return scambiaSessione(quanteRisposte, comando);
+            } catch (IOException e) {
+                chiudiSessione();
+                if (!ripetibile) throw e;
+                apriSessione();
+                if (socket != null) {
+                    return scambiaSessione(quanteRisposte, comando);
+                }
+            }
+        }
+
+        // Connessione singola
         try (Socket socket = new Socket(SERVER_IP, SERVER_PORT);
-             ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+             ObjectOutputStream out = apriUscita(socket);
              ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
+            return scambia(out, in, quanteRisposte, comando);
+        }
+    }
+
+    /**
+     * Riapre la sessione se non è attiva o se è rimasta inattiva troppo a lungo.
+     */
+    private void preparaSessione() {
+        if (socket != null && System.currentTimeMillis() - ultimoUso > INATTIVITA_MAX_MS) {
+            // Probabilmente il server ha già chiuso la sessione per inattività
+            chiudiSessione();
+        }
+        if (socket == null) {
+            apriSessione();
+        }
+    }
+
+    private Object[] scambiaSessione(int quanteRisposte, Object... comando)
+            throws IOException, ClassNotFoundException {
+        return binario ? scambiaBinario(comando) : scambia(out, in, quanteRisposte, comando);
+    }
+
+    /**
+     * Invia il comando come frame binario e traduce la risposta nella stessa forma
+     * della serializzazione: "OK" seguito dalla lista di email, oppure il messaggio di errore.
+     */
+    private Object[] scambiaBinario(Object... comando) throws IOException {
+        try {
+            bufferRichiesta = frame(Protocollo.conserva(bufferRichiesta), comando);
+            uscita.write(bufferRichiesta.array(), 0, bufferRichiesta.limit());
+            uscita.flush();
+
+            int lunghezza = Protocollo.verificaLunghezza(ingresso.readInt(), Protocollo.MAX_RISPOSTA);
+            bufferRisposta = Protocollo.spazio(Protocollo.conserva(bufferRisposta), lunghezza);
+            ingresso.readFully(bufferRisposta.array(), 0, lunghezza);
+            bufferRisposta.limit(lunghezza);
+            ByteBuffer dati = bufferRisposta.get(0) == Protocollo.COMPRESSO ? espandi(bufferRisposta) : bufferRisposta;
 
-            out.writeObject("DELETE");
-            out.writeObject(emailUtente);
-            out.writeObject(emailDaCancellare);
+            Object[] risposta;
+            if (dati.get() == Protocollo.OK) {
+                risposta = "OPTIONS".equals(comando[0])
+                        ? new Object[] { "OK", dati.get() }
+                        : "FETCH_BODY".equals(comando[0])
+                        ? new Object[] { "OK", EmailCodec.leggiStringa(dati) }
+                        : "SYNC".equals(comando[0])
+                        ? new Object[] { "OK", dati.getLong(), EmailCodec.leggiVarLong(dati),
+                                dati.get(), Protocollo.leggiEmails(dati),
+                                Protocollo.leggiIdentificativi(dati) }
+                        : record && "LIST".equals(comando[0])
+                        ? new Object[] { "OK", Protocollo.leggiRecord(dati) }
+                        : "PAGE".equals(comando[0])
+                        ? new Object[] { "OK", Protocollo.leggiEmails(dati),
+                                dati.hasRemaining() ? dati.get() != 0 : null }
+                        : dati.hasRemaining()
+                        ? new Object[] { "OK", Protocollo.leggiEmails(dati) }
+                        : new Object[] { "OK" };
+            } else {
+                risposta = new Object[] { EmailCodec.leggiStringa(dati) };
+            }
+            ultimoUso = System.currentTimeMillis();
+            return risposta;
+        } catch (IllegalArgumentException | BufferUnderflowException e) {
+            throw new IOException("Risposta del server non valida: " + e.getMessage(), e);
+        }
+    }
 
-            String response = (String) in.readObject();
-            if (!"OK".equals(response)) {
-                throw new IOException("Errore cancellazione: " + response);
+    /**
+     * Decomprime un frame {@link Protocollo#COMPRESSO}, continuando il flusso Deflate
+     * della sessione.
+     *
+     * @return La risposta originale ({@code [stato][payload]}), valida fino alla successiva.
+     * @throws IllegalArgumentException Se i dati compressi non sono validi.
+     */
+    private ByteBuffer espandi(ByteBuffer frame) {
+        if (inflater == null) {
+            throw new IllegalArgumentException("Risposta compressa non richiesta");
+        }
+        frame.get();
+        int lunghezza = Protocollo.verificaLunghezza((int) Math.min(Integer.MAX_VALUE, EmailCodec.leggiVarLong(frame)),
+                Protocollo.MAX_RISPOSTA);
+        bufferEspanso = Protocollo.spazio(Protocollo.conserva(bufferEspanso), lunghezza);
+        bufferEspanso.limit(lunghezza);
+        inflater.setInput(frame);
+        try {
+            while (bufferEspanso.hasRemaining()) {
+                if (inflater.inflate(bufferEspanso) == 0 && (inflater.needsInput() || inflater.finished())) {
+                    throw new IllegalArgumentException("Risposta compressa troncata");
+                }
             }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Risposta compressa non valida", e);
+        }
+        return bufferEspanso.flip();
+    }
+
+    /**
+     * Chiede al server di comprimere le risposte della sessione.
+     */
+    private void richiediCompressione() throws IOException {
+        Object[] risposta = scambiaBinario("OPTIONS", Protocollo.OPZIONE_COMPRESSIONE);
+        if (!"OK".equals(risposta[0])) {
+            throw new IOException((String) risposta[0]);
+        }
+        // Il flusso compresso inizia con la prima risposta grande dopo OPZIONI
+        if (((Byte) risposta[1] & Protocollo.OPZIONE_COMPRESSIONE) != 0) {
+            inflater = new Inflater(true);
+        }
+    }
+
+    /**
+     * Codifica il comando (nome e parametri, come per la serializzazione) in un frame.
+     */
+    private static ByteBuffer frame(ByteBuffer buffer, Object... comando) {
+        switch ((String) comando[0]) {
+            case "LOGIN", "LIST" -> {
+                String utente = (String) comando[1];
+                buffer = Protocollo.spazio(buffer, Protocollo.INTESTAZIONE_FRAME + EmailCodec.dimensioneStringa(utente));
+                Protocollo.apriFrame(buffer, "LIST".equals(comando[0]) ? Protocollo.LIST : Protocollo.LOGIN);
+                EmailCodec.scriviStringa(buffer, utente);
+            }
+            case "REFRESH", "WATCH" -> {
+                String utente = (String) comando[1];
+                LocalDateTime data = (LocalDateTime) comando[2];
+                boolean watch = "WATCH".equals(comando[0]);
+                long attesaMs = watch ? (Long) comando[3] : 0;
+                buffer = Protocollo.spazio(buffer, Protocollo.INTESTAZIONE_FRAME + EmailCodec.dimensioneStringa(utente)
+                        + Protocollo.dimensioneData(data) + (watch ? EmailCodec.dimensioneVarLong(attesaMs) : 0));
+                Protocollo.apriFrame(buffer, watch ? Protocollo.WATCH : Protocollo.REFRESH);
+                EmailCodec.scriviStringa(buffer, utente);
+                Protocollo.scriviData(buffer, data);
+                if (watch) {
+                    EmailCodec.scriviVarLong(buffer, attesaMs);
+                }
+            }
+            case "SEND" -> {
+                Email email = (Email) comando[1];
+                buffer = Protocollo.spazio(buffer, Protocollo.INTESTAZIONE_FRAME + EmailCodec.dimensione(email, true));
+                Protocollo.apriFrame(buffer, Protocollo.SEND);
+                EmailCodec.codifica(email, true, buffer);
+            }
+            case "DELETE" -> {
+                String utente = (String) comando[1];
+                Email email = (Email) comando[2];
+                buffer = Protocollo.spazio(buffer, Protocollo.INTESTAZIONE_FRAME + EmailCodec.dimensioneStringa(utente) + 16);
+                Protocollo.apriFrame(buffer, Protocollo.DELETE);
+                EmailCodec.scriviStringa(buffer, utente);
+                buffer.putLong(email.getId().getMostSignificantBits());
+                buffer.putLong(email.getId().getLeastSignificantBits());
+            }
+            case "FETCH_BODY" -> {
+                String utente = (String) comando[1];
+                UUID id = (UUID) comando[2];
+                buffer = Protocollo.spazio(buffer, Protocollo.INTESTAZIONE_FRAME + EmailCodec.dimensioneStringa(utente) + 16);
+                Protocollo.apriFrame(buffer, Protocollo.FETCH_BODY);
+                EmailCodec.scriviStringa(buffer, utente);
+                buffer.putLong(id.getMostSignificantBits());
+                buffer.putLong(id.getLeastSignificantBits());
+            }
+            case "PAGE" -> {
+                String utente = (String) comando[1];
+                UUID prima = (UUID) comando[2];
+                int quante = (Integer) comando[3];
+                buffer = Protocollo.spazio(buffer, Protocollo.INTESTAZIONE_FRAME + EmailCodec.dimensioneStringa(utente)
+                        + 17 + EmailCodec.dimensioneVarLong(quante));
+                Protocollo.apriFrame(buffer, Protocollo.PAGE);
+                EmailCodec.scriviStringa(buffer, utente);
+                if (prima == null) {
+                    buffer.put((byte) 0);
+                } else {
+                    buffer.put((byte) 1);
+                    buffer.putLong(prima.getMostSignificantBits());
+                    buffer.putLong(prima.getLeastSignificantBits());
+                }
+                EmailCodec.scriviVarLong(buffer, quante);
+            }
+            case "SYNC" -> {
+                String utente = (String) comando[1];
+                long epoca = (Long) comando[2];
+                long sequenza = (Long) comando[3];
+                long attesaMs = (Long) comando[4];
+                buffer = Protocollo.spazio(buffer, Protocollo.INTESTAZIONE_FRAME + EmailCodec.dimensioneStringa(utente)
+                        + 8 + EmailCodec.dimensioneVarLong(sequenza) + EmailCodec.dimensioneVarLong(attesaMs));
+                Protocollo.apriFrame(buffer, Protocollo.SYNC);
+                EmailCodec.scriviStringa(buffer, utente);
+                buffer.putLong(epoca);
+                EmailCodec.scriviVarLong(buffer, sequenza);
+                EmailCodec.scriviVarLong(buffer, attesaMs);
+            }
+            case "OPTIONS" -> {
+                buffer = Protocollo.spazio(buffer, Protocollo.INTESTAZIONE_FRAME + 1);
+                Protocollo.apriFrame(buffer, Protocollo.OPZIONI);
+                buffer.put((Byte) comando[1]);
+            }
+            case "QUIT" -> {
+                buffer = Protocollo.spazio(buffer, Protocollo.INTESTAZIONE_FRAME);
+                Protocollo.apriFrame(buffer, Protocollo.QUIT);
+            }
+            default -> throw new IllegalArgumentException("Comando sconosciuto: " + comando[0]);
+        }
+        return Protocollo.chiudiFrame(buffer);
+    }
+
+    private Object[] scambia(ObjectOutputStream out, ObjectInputStream in, int quanteRisposte, Object... comando)
+            throws IOException, ClassNotFoundException {
+        out.reset();
+        for (Object parte : comando) {
+            out.writeObject(parte);
+        }
+        out.flush();
+
+        Object[] risposta = new Object[quanteRisposte];
+        risposta[0] = in.readObject();
+        if ("OK".equals(risposta[0])) {
+            for (int i = 1; i < quanteRisposte; i++) {
+                risposta[i] = in.readObject();
+            }
+        }
+        ultimoUso = System.currentTimeMillis();
+        return risposta;
+    }
+
+    /**
+     * Prova ad aprire una sessione; se non ci riesce resta in modalità a connessioni singole.
+     */
+    private void apriSessione() {
+        if (!SESSIONE_ATTIVA || System.currentTimeMillis() < prossimoTentativo) return;
+        try {
+            socket = new Socket(SERVER_IP, SERVER_PORT);
+            ingresso = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            uscita = new BufferedOutputStream(socket.getOutputStream());
+
+            if (PROTOCOLLO_MAX >= Protocollo.VERSIONE_BINARIA && !negoziazioneNonSupportata) {
+                byte versione = negozia();
+                if (versione >= Protocollo.VERSIONE_BINARIA) {
+                    binario = true;
+                    buste = versione >= Protocollo.VERSIONE_BUSTE;
+                    pagine = versione >= Protocollo.VERSIONE_PAGINE;
+                    sincronizzazione = versione >= Protocollo.VERSIONE_SYNC;
+                    record = versione >= Protocollo.VERSIONE_RECORD;
+                    if (COMPRESSIONE && versione >= Protocollo.VERSIONE_OPZIONI) {
+                        richiediCompressione();
+                    }
+                    ultimoUso = System.currentTimeMillis();
+                    return;
+                }
+                if (versione == Protocollo.VERSIONE_RIFIUTATA) {
+                    // Troppe sessioni aperte: si usano connessioni singole fino al prossimo tentativo
+                    chiudiSessione();
+                    prossimoTentativo = System.currentTimeMillis() + RIPROVA_SESSIONE_MS;
+                    return;
+                }
+                // Versione 1: si prosegue con la serializzazione sulla stessa connessione
+            }
+
+            out = new ObjectOutputStream(uscita);
+            out.flush();
+            in = new ObjectInputStream(ingresso);
+            out.writeObject("SESSION");
+            out.flush();
+
+            Object risposta = in.readObject();
+            if ("OK".equals(risposta)) {
+                ultimoUso = System.currentTimeMillis();
+                return;
+            }
+            // Sessione rifiutata dal server (es. troppe sessioni aperte)
+        } catch (IOException | ClassNotFoundException e) {
+            // Server non raggiungibile o senza supporto alle sessioni
+        }
+        chiudiSessione();
+        prossimoTentativo = System.currentTimeMillis() + RIPROVA_SESSIONE_MS;
+    }
+
+    /**
+     * Negozia la versione del protocollo. Se il server non risponde alla negoziazione
+     * la connessione viene riaperta per la serializzazione Java.
+     */
+    private byte negozia() throws IOException {
+        uscita.write(new byte[] { (byte) (Protocollo.MAGIC >> 8), (byte) Protocollo.MAGIC, PROTOCOLLO_MAX });
+        uscita.flush();
+        socket.setSoTimeout(ATTESA_NEGOZIAZIONE_MS);
+        try {
+            if (ingresso.readShort() == Protocollo.MAGIC) {
+                byte versione = ingresso.readByte();
+                socket.setSoTimeout(0);
+                return versione;
+            }
+        } catch (SocketTimeoutException | EOFException e) {
+            // server senza negoziazione
+        }
+        negoziazioneNonSupportata = true;
+        chiudiSessione();
+        socket = new Socket(SERVER_IP, SERVER_PORT);
+        ingresso = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        uscita = new BufferedOutputStream(socket.getOutputStream());
+        return Protocollo.VERSIONE_SERIALIZZAZIONE;
+    }
+
+    /**
+     * Stream in uscita bufferizzato, così ogni comando parte in un solo segmento TCP.
+     * L'intestazione viene inviata subito: il server la attende prima di rispondere.
+     */
+    private static ObjectOutputStream apriUscita(Socket socket) throws IOException {
+        ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        out.flush();
+        return out;
+    }
+
+    private void chiudiSessione() {
+        if (socket != null) {
+            try { socket.close(); } catch (IOException e) { }
         }
+        socket = null;
+        out = null;
+        in = null;
+        ingresso = null;
+        uscita = null;
+        binario = false;
+        buste = false;
+        pagine = false;
+        sincronizzazione = false;
+        record = false;
+        if (inflater != null) inflater.end();
+        inflater = null;
+        bufferEspanso = null;
     }
 }
\ No newline at end of file
@@ -1,6 +1,8 @@
 package client.controller;
 
 import client.model.ClientModel;
+import client.model.ClientModel.Aggiornamento;
+import client.model.ClientModel.Paginazione;
 import client.view.ViewFactory;
 import common.Email;
 import javafx.application.Platform;
@@ -50,7 +52,10 @@ public class InboxController {
     private ViewFactory viewFactory;
 
     //Servizio di aggiornamento automatico
-    private ScheduledService<List<Email>> emailUpdateService;
+    private ScheduledService<Aggiornamento> emailUpdateService;
+
+    // Caricamento in background delle pagine successive alla prima
+    private Task<Void> caricamentoPagine;
 
     /**
      * Inizializza il controller collegando il Model e configurando la TableView.
@@ -78,6 +83,9 @@ public class InboxController {
             }
         });
 
+        // La prima pagina è già in tabella: il resto della casella arriva in background
+        caricaAltrePagine(model.getPaginazione());
+
         // AVVIO L'AGGIORNAMENTO AUTOMATICO
         startAutomaticUpdates();
     }
@@ -90,49 +98,51 @@ public class InboxController {
      * per non bloccare l'interfaccia grafica.
      * <p>
      * <b>Scalabilità:</b>Non scarica l'intera inbox ad ogni ciclo,
-     * ma richiede solo i messaggi arrivati dopo l'ultimo aggiornamento noto.
+     * ma richiede solo le modifiche successive all'ultimo aggiornamento noto
+     * (messaggi arrivati e cancellati, anche da altri client).
+     * Ogni ciclo resta in attesa sul server (SYNC o WATCH) finché la casella non cambia,
+     * quindi il ciclo successivo parte subito.
      */
     private void startAutomaticUpdates() {
-        emailUpdateService = new ScheduledService<List<Email>>() {
+        emailUpdateService = new ScheduledService<Aggiornamento>() {
             @Override
-            protected Task<List<Email>> createTask() {
-                return new Task<List<Email>>() {
+            protected Task<Aggiornamento> createTask() {
+                return new Task<Aggiornamento>() {
                     @Override
-                    protected List<Email> call() throws Exception {
+                    protected Aggiornamento call() throws Exception {
                         // Eseguito in un thread background
-                        return model.getNewEmailsFromServer();
+                        return model.getModificheDalServer();
                     }
                 };
             }
         };
 
-        // Polling ogni 5 secondi
-        emailUpdateService.setPeriod(Duration.seconds(5));
+        // Il ciclo attende sul server: basta una breve pausa tra una richiesta e l'altra
+        emailUpdateService.setPeriod(Duration.millis(100));
+        // Server non raggiungibile: nuovo tentativo dopo 5, 10, ... fino a 30 secondi
+        emailUpdateService.setBackoffStrategy(service ->
+                Duration.seconds(Math.min(30, 5 * service.getCurrentFailureCount())));
 
         // Callback in caso di SUCCESSO (eseguita nel JavaFX Thread)
         emailUpdateService.setOnSucceeded(event -> {
-            List<Email> nuoviMessaggi = emailUpdateService.getValue();
+            Aggiornamento aggiornamento = emailUpdateService.getValue();
 
             // Feedback visuale connessione
             statusLabel.setText("Connesso - Aggiornato");
             statusLabel.setStyle("-fx-text-fill: green;");
 
-            // Aggiornamento Lista (Solo se ci sono novità)
-            if (nuoviMessaggi != null && !nuoviMessaggi.isEmpty()) {
-
-                // Se è il primo avvio (lista vuota), riempiamo tutto
-                if (model.getInbox().isEmpty()) {
-                    model.getInbox().setAll(nuoviMessaggi);
-                } else {
-                    // Altrimenti aggiungiamo in coda solo le nuove mail
-                    model.getInbox().addAll(nuoviMessaggi);
+            if (aggiornamento == null) return;
 
-                    // Ordinamento per data decrescente
-                    model.getInbox().sort((e1, e2) -> e2.getDataSpedizione().compareTo(e1.getDataSpedizione()));
+            // Al primo avvio (lista vuota) non si notifica nulla
+            boolean primoAvvio = model.getInbox().isEmpty();
+            int nuoviMessaggi = model.applica(aggiornamento);
 
-                    // Notifica utente
-                    showNotification("Nuova mail ricevuta!", "Hai " + nuoviMessaggi.size() + " nuovi messaggi.");
-                }
+            if (aggiornamento.ricaricata()) {
+                // Casella ricaricata dal server: le altre pagine arrivano in background
+                caricaAltrePagine(aggiornamento.paginazione());
+            } else if (nuoviMessaggi > 0 && !primoAvvio) {
+                // Notifica utente
+                showNotification("Nuova mail ricevuta!", "Hai " + nuoviMessaggi + " nuovi messaggi.");
             }
         });
 
@@ -145,6 +155,39 @@ public class InboxController {
         emailUpdateService.start();
     }
 
+    /**
+     * Scarica in background le pagine successive alla prima, aggiungendole alla
+     * tabella man mano che arrivano. Un caricamento precedente (es. prima che la
+     * casella venisse ricaricata) viene annullato: usa la sua paginazione, e le
+     * pagine che scarica ancora non arrivano più alla tabella.
+     */
+    private void caricaAltrePagine(Paginazione paginazione) {
+        if (caricamentoPagine != null) caricamentoPagine.cancel();
+        if (paginazione == null || paginazione.isCompleta()) return;
+
+        Task<Void> caricamento = new Task<>() {
+            @Override
+            protected Void call() throws Exception {
+                while (!isCancelled() && !paginazione.isCompleta()) {
+                    List<Email> pagina = model.caricaPaginaSuccessiva(paginazione);
+                    Platform.runLater(() -> {
+                        if (!isCancelled()) model.getInbox().addAll(pagina);
+                    });
+                }
+                return null;
+            }
+        };
+        caricamentoPagine = caricamento;
+        caricamento.setOnFailed(event -> {
+            statusLabel.setText("Casella caricata in parte");
+            statusLabel.setStyle("-fx-text-fill: orange;");
+        });
+
+        Thread thread = new Thread(caricamento, "caricamento-pagine");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
     /**
      * Mostra una notifica a schermo (Alert) in modo Thread-Safe.
      */
@@ -158,11 +201,40 @@ public class InboxController {
         });
     }
 
+    /**
+     * Mostra il messaggio selezionato. Se la lista contiene solo la busta, il testo
+     * viene scaricato in background e mostrato se il messaggio è ancora selezionato.
+     */
     private void showEmailDetails(Email email) {
         selectedSubjectLabel.setText(email.getOggetto());
         selectedSenderLabel.setText("Da: " + email.getMittente());
         selectedDateLabel.setText("Data: " + email.getDataFormattata());
-        emailContentArea.setText(email.getTesto());
+
+        if (email.getTesto() != null) {
+            emailContentArea.setText(email.getTesto());
+        } else {
+            emailContentArea.setText("Caricamento del messaggio...");
+            Task<String> caricamento = new Task<>() {
+                @Override
+                protected String call() throws Exception {
+                    return model.getTesto(email);
+                }
+            };
+            caricamento.setOnSucceeded(event -> {
+                if (email.equals(emailTable.getSelectionModel().getSelectedItem())) {
+                    emailContentArea.setText(caricamento.getValue());
+                }
+            });
+            caricamento.setOnFailed(event -> {
+                if (email.equals(emailTable.getSelectionModel().getSelectedItem())) {
+                    emailContentArea.setText("Impossibile scaricare il messaggio: "
+                            + caricamento.getException().getMessage());
+                }
+            });
+            Thread thread = new Thread(caricamento, "caricamento-messaggio");
+            thread.setDaemon(true);
+            thread.start();
+        }
 
         replyBtn.setDisable(false);
         replyAllBtn.setDisable(false);
@@ -255,18 +327,46 @@ public class InboxController {
 
     /**
      * Inoltra il messaggio a nuovi destinatari.
-     * Include il testo originale nel corpo del messaggio.
+     * Include il testo originale nel corpo del messaggio; se non è ancora stato
+     * scaricato, viene caricato in background prima di aprire la finestra.
      */
     @FXML
     protected void onForwardAction() {
         Email selected = emailTable.getSelectionModel().getSelectedItem();
-        if (selected != null) {
-            String testoInoltrato = "\n\n--- Messaggio Inoltrato ---\n" + selected.getTesto();
+        if (selected == null) return;
+        if (selected.getTesto() != null) {
+            inoltra(selected, selected.getTesto());
+            return;
+        }
 
-            String oggetto = selected.getOggetto();
-            String nuovoOggetto = oggetto.startsWith("Fwd:") ? oggetto : "Fwd: " + oggetto;
+        forwardBtn.setDisable(true);
+        Task<String> caricamento = new Task<>() {
+            @Override
+            protected String call() throws Exception {
+                // Di solito già in cache: il messaggio è stato aperto selezionandolo
+                return model.getTesto(selected);
+            }
+        };
+        caricamento.setOnSucceeded(event -> {
+            forwardBtn.setDisable(false);
+            inoltra(selected, caricamento.getValue());
+        });
+        caricamento.setOnFailed(event -> {
+            forwardBtn.setDisable(false);
+            statusLabel.setText("Impossibile inoltrare: " + caricamento.getException().getMessage());
+            statusLabel.setStyle("-fx-text-fill: red;");
+        });
+        Thread thread = new Thread(caricamento, "caricamento-inoltro");
+        thread.setDaemon(true);
+        thread.start();
+    }
 
-            viewFactory.showWriteMailWindow("", nuovoOggetto, testoInoltrato);
-        }
+    private void inoltra(Email email, String testo) {
+        String testoInoltrato = "\n\n--- Messaggio Inoltrato ---\n" + testo;
+
+        String oggetto = email.getOggetto();
+        String nuovoOggetto = oggetto.startsWith("Fwd:") ? oggetto : "Fwd: " + oggetto;
+
+        viewFactory.showWriteMailWindow("", nuovoOggetto, testoInoltrato);
     }
 }
\ No newline at end of file
@@ -1,22 +1,88 @@
 package client.model;
 
 import client.connection.ServerConnection;
+import client.connection.ServerConnection.Modifiche;
+import client.connection.ServerConnection.Pagina;
 import common.Email;
+import common.Protocollo;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 
 /**
  * Classe Model del pattern MVC lato Client.
  * <p>
  * Mantiene lo stato (utente corrente, lista email) e gestisce la logica di business,
  * inclusa la sincronizzazione intelligente con il server.
+ * <p>
+ * La lista contiene solo le buste dei messaggi (mittente, oggetto, data, dimensione):
+ * il testo viene scaricato quando il messaggio viene aperto ({@link #getTesto}) e
+ * tenuto in una piccola cache LRU, così la memoria non cresce con la dimensione
+ * complessiva dei messaggi.
+ * <p>
+ * Al login viene scaricata solo la prima pagina di buste (le più recenti), che
+ * viene mostrata subito; le pagine successive vengono richieste in background con
+ * {@link #caricaPaginaSuccessiva(Paginazione)} e aggiunte in coda alla lista. Ogni
+ * caricamento della prima pagina ha la sua {@link Paginazione}: il caricamento in
+ * background di una lista già sostituita non sposta quella della lista nuova.
+ * <p>
+ * Con i server che supportano SYNC gli aggiornamenti seguono la sequenza delle
+ * modifiche della casella invece delle date di spedizione: arrivano tutti i messaggi,
+ * anche con date uguali o fuori ordine, e le cancellazioni fatte da altri client.
  */
 public class ClientModel {
 
+    /**
+     * Modifiche da applicare alla lista con {@link #applica}.
+     *
+     * @param nuove     Buste dei messaggi arrivati, in ordine di arrivo.
+     * @param rimosse   Messaggi cancellati.
+     * @param presenti  Se non è null, tutti i messaggi presenti sul server: gli altri
+     *                  vanno tolti dalla lista.
+     * @param paginazione Se non è null, {@code nuove} è la prima pagina di una casella
+     *                  ricaricata, che sostituisce l'intera lista; le pagine successive
+     *                  si scaricano da questa paginazione.
+     */
+    public record Aggiornamento(List<Email> nuove, Set<UUID> rimosse, Set<UUID> presenti, Paginazione paginazione) {
+
+        public boolean ricaricata() {
+            return paginazione != null;
+        }
+    }
+
+    /**
+     * Punto di arrivo nello scaricamento delle pagine di una lista, da usare in un
+     * solo thread alla volta.
+     */
+    public static final class Paginazione {
+
+        // Ultima busta scaricata (la meno recente): la pagina successiva parte da qui
+        private Email ultimaCaricata;
+        private volatile boolean completa;
+
+        private Paginazione(Pagina prima) {
+            List<Email> emails = prima.emails();
+            this.ultimaCaricata = emails.isEmpty() ? null : emails.get(emails.size() - 1);
+            this.completa = prima.ultima();
+        }
+
+        public boolean isCompleta() {
+            return completa;
+        }
+    }
+
     private String currentUser;
 
     // Qualsiasi modifica si riflette automaticamente sulla GUI
@@ -24,29 +90,92 @@ public class ClientModel {
 
     private final ServerConnection connection;
 
+    // Connessione dedicata alle attese (WATCH), per non bloccare invio e cancellazione
+    private final ServerConnection attesa;
+
+    // Durata massima di un'attesa sul server e intervallo del polling di riserva
+    private static final long ATTESA_MS = 25_000;
+    private static final long POLLING_MS = 5_000;
+
+    // Se il server non supporta WATCH si torna al polling fino a questo istante
+    private long pollingFinoA = 0;
+
     // Mantiene traccia dell'ultimo messaggio ricevuto
     private LocalDateTime ultimoAggiornamento = null;
 
+    // Ultima modifica della casella ricevuta con SYNC (epoca 0: server senza SYNC)
+    private long epoca = 0;
+    private long sequenza = 0;
+
+    // Buste per pagina (non oltre il limite del server, mail.pagina.max)
+    private static final int PAGINA = 100;
+
+    // Paginazione dell'ultima prima pagina scaricata
+    private volatile Paginazione paginazione;
+
+    // Numero massimo di testi tenuti in memoria
+    private static final int CORPI_IN_CACHE = 32;
+
+    // Testi scaricati di recente, dal meno al più recentemente usato
+    private final Map<UUID, String> corpi = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<UUID, String> piuVecchio) {
+            return size() > CORPI_IN_CACHE;
+        }
+    };
+
     public ClientModel() {
         this.inbox = FXCollections.observableArrayList();
         this.connection = new ServerConnection();
+        this.attesa = new ServerConnection();
     }
 
     // --- AZIONI PRINCIPALI ---
 
     /**
-     * Effettua il primo login scaricando l'intera casella di posta.
+     * Effettua il primo login scaricando la prima pagina della casella di posta.
      * Inizializza il timestamp per i futuri aggiornamenti.
      */
     public void login(String email) throws IOException, ClassNotFoundException {
-        List<Email> scaricate = connection.login(email);
+        iniziaSincronizzazione(email);
+        Pagina prima = connection.pageEmails(email, null, PAGINA);
         this.currentUser = email;
-        this.inbox.setAll(scaricate);
+        this.inbox.setAll(prima.emails());
+        iniziaPaginazione(prima);
+    }
 
-        // Aggiorniamo il timestamp all'ultima mail ricevuta
-        if (!scaricate.isEmpty()) {
-            ultimoAggiornamento = scaricate.get(scaricate.size() - 1).getDataSpedizione();
+    /**
+     * Scarica la pagina successiva della casella, da chiamare in un thread in background
+     * finché {@link Paginazione#isCompleta()} è false. Le buste restituite vanno
+     * aggiunte in coda a {@link #getInbox()} nel JavaFX Application Thread.
+     */
+    public List<Email> caricaPaginaSuccessiva(Paginazione paginazione) throws IOException, ClassNotFoundException {
+        if (paginazione.completa) return List.of();
+        Pagina pagina = connection.pageEmails(currentUser, paginazione.ultimaCaricata, PAGINA);
+        if (!pagina.emails().isEmpty()) {
+            paginazione.ultimaCaricata = pagina.emails().get(pagina.emails().size() - 1);
         }
+        paginazione.completa = pagina.ultima();
+        return pagina.emails();
+    }
+
+    /**
+     * @return La paginazione della lista scaricata al login o dall'ultimo {@link #refresh()}.
+     */
+    public Paginazione getPaginazione() {
+        return paginazione;
+    }
+
+    private Paginazione iniziaPaginazione(Pagina prima) {
+        List<Email> emails = prima.emails();
+        Paginazione nuova = new Paginazione(prima);
+        paginazione = nuova;
+
+        // Aggiorniamo il timestamp all'ultima mail ricevuta (la prima della pagina)
+        if (!emails.isEmpty()) {
+            ultimoAggiornamento = emails.get(0).getDataSpedizione();
+        }
+        return nuova;
     }
 
     public void sendEmail(Email email) throws IOException, ClassNotFoundException {
@@ -56,30 +185,169 @@ public class ClientModel {
     public void deleteEmail(Email email) throws IOException, ClassNotFoundException {
         connection.deleteEmail(currentUser, email);
         inbox.remove(email);
+        synchronized (corpi) {
+            corpi.remove(email.getId());
+        }
     }
 
     /**
-     * Aggiornamento completo manuale
+     * Restituisce il testo del messaggio, scaricandolo dal server se la lista contiene
+     * solo la busta. Da chiamare fuori dal JavaFX Application Thread.
+     */
+    public String getTesto(Email email) throws IOException, ClassNotFoundException {
+        if (email.getTesto() != null) {
+            return email.getTesto();
+        }
+        synchronized (corpi) {
+            String testo = corpi.get(email.getId());
+            if (testo != null) return testo;
+        }
+        String testo = connection.fetchBody(currentUser, email.getId());
+        synchronized (corpi) {
+            corpi.put(email.getId(), testo);
+        }
+        return testo;
+    }
+
+    /**
+     * Tiene in cache il testo dei messaggi appena arrivati (è probabile che vengano
+     * aperti subito) e ne restituisce le buste, da aggiungere alla lista.
+     */
+    private List<Email> soloBuste(List<Email> emails) {
+        List<Email> buste = new ArrayList<>(emails.size());
+        synchronized (corpi) {
+            for (Email email : emails) {
+                if (email.getTesto() != null) {
+                    corpi.put(email.getId(), email.getTesto());
+                }
+                buste.add(email.busta());
+            }
+        }
+        return buste;
+    }
+
+    /**
+     * Aggiornamento completo manuale: ricarica la prima pagina, le successive
+     * si scaricano con {@link #caricaPaginaSuccessiva(Paginazione)}.
      */
     public void refresh() throws IOException, ClassNotFoundException {
         if (currentUser != null) {
-            List<Email> scaricate = connection.login(currentUser);
-            this.inbox.setAll(scaricate);
-            if (!scaricate.isEmpty()) {
-                ultimoAggiornamento = scaricate.get(scaricate.size() - 1).getDataSpedizione();
+            iniziaSincronizzazione(currentUser);
+            Pagina prima = connection.pageEmails(currentUser, null, PAGINA);
+            this.inbox.setAll(prima.emails());
+            iniziaPaginazione(prima);
+        }
+    }
+
+    /**
+     * Chiede al server epoca e sequenza correnti della casella, prima di scaricarne la
+     * prima pagina: le modifiche successive arriveranno con SYNC (i messaggi già nella
+     * pagina vengono ignorati da {@link #applica}).
+     */
+    private void iniziaSincronizzazione(String utente) throws IOException, ClassNotFoundException {
+        Modifiche attuali = connection.sync(utente, 0, 0, 0);
+        epoca = attuali == null ? 0 : attuali.epoca();
+        sequenza = attuali == null ? 0 : attuali.sequenza();
+    }
+
+    /**
+     * Viene chiamato ciclicamente dal Controller, in un thread in background.
+     * Invece di scaricare tutto, invia al server l'ultima modifica nota (SYNC) e riceve
+     * solo i messaggi arrivati e gli identificativi di quelli cancellati.
+     * <p>
+     * Il server risponde appena la casella cambia (o dopo {@link #ATTESA_MS} senza
+     * novità). Se la sequenza non è più valida (es. indice del server ricostruito)
+     * la casella viene ricaricata dalla prima pagina.
+     * <p>
+     * Con un server senza SYNC si usano le date: WATCH, o il polling ogni
+     * {@link #POLLING_MS} se anche WATCH non è supportato.
+     */
+    public Aggiornamento getModificheDalServer() throws IOException, ClassNotFoundException {
+        if (epoca != 0) {
+            Modifiche modifiche = attesa.sync(currentUser, epoca, sequenza, ATTESA_MS);
+            if (modifiche != null) {
+                return aggiornamento(modifiche);
+            }
+            // Il server non supporta più SYNC (es. riavviato con una versione precedente)
+            epoca = 0;
+        }
+        return new Aggiornamento(getNewEmailsFromServer(), Set.of(), null, null);
+    }
+
+    private Aggiornamento aggiornamento(Modifiche modifiche) throws IOException, ClassNotFoundException {
+        epoca = modifiche.epoca();
+        sequenza = modifiche.sequenza();
+
+        switch (modifiche.tipo()) {
+            case Protocollo.SYNC_DELTA:
+                return new Aggiornamento(soloBuste(modifiche.aggiunte()),
+                        new HashSet<>(modifiche.identificativi()), null, null);
+            case Protocollo.SYNC_PRESENTI:
+                // Le cancellazioni più vecchie sono state compattate: resta l'elenco dei presenti
+                return new Aggiornamento(soloBuste(modifiche.aggiunte()), Set.of(),
+                        new HashSet<>(modifiche.identificativi()), null);
+            default:
+                // Numerazione cambiata: la casella si ricarica, ripartendo dalla sequenza ricevuta
+                Pagina prima = connection.pageEmails(currentUser, null, PAGINA);
+                return new Aggiornamento(prima.emails(), Set.of(), null, iniziaPaginazione(prima));
+        }
+    }
+
+    /**
+     * Applica un aggiornamento alla lista, da chiamare nel JavaFX Application Thread.
+     * I messaggi arrivati vanno in cima (i più recenti per primi); quelli già in lista
+     * (es. arrivati mentre si scaricava la prima pagina) vengono ignorati.
+     *
+     * @return Il numero di messaggi aggiunti.
+     */
+    public int applica(Aggiornamento aggiornamento) {
+        if (aggiornamento.ricaricata()) {
+            inbox.setAll(aggiornamento.nuove());
+            return 0;
+        }
+
+        Set<UUID> rimosse = aggiornamento.rimosse();
+        Set<UUID> presenti = aggiornamento.presenti();
+        Set<UUID> inLista = new HashSet<>();
+        Set<Email> daRimuovere = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Email email : inbox) {
+            if (rimosse.contains(email.getId()) || (presenti != null && !presenti.contains(email.getId()))) {
+                daRimuovere.add(email);
+            } else {
+                inLista.add(email.getId());
+            }
+        }
+        if (!daRimuovere.isEmpty()) {
+            inbox.removeAll(daRimuovere);
+            synchronized (corpi) {
+                for (Email email : daRimuovere) {
+                    corpi.remove(email.getId());
+                }
             }
         }
+
+        List<Email> nuove = new ArrayList<>();
+        for (Email email : aggiornamento.nuove()) {
+            if (inLista.add(email.getId())) nuove.add(email);
+        }
+        Collections.reverse(nuove);
+        inbox.addAll(0, nuove);
+        return nuove.size();
     }
 
     /**
-     * Viene chiamato periodicamente dal Controller.
+     * Aggiornamento basato sulle date, per i server senza SYNC.
      * Invece di scaricare tutto, invia al server la data dell'ultimo aggiornamento
      * e riceve solo i messaggi nuovi.
+     * <p>
+     * Con WATCH il server risponde appena arriva posta nuova (o dopo {@link #ATTESA_MS}
+     * senza novità); con un server che non lo supporta si attende {@link #POLLING_MS}
+     * e si chiede un normale aggiornamento.
      */
-    public List<Email> getNewEmailsFromServer() throws IOException, ClassNotFoundException {
+    private List<Email> getNewEmailsFromServer() throws IOException, ClassNotFoundException {
         // Se non abbiamo ancora fatto login o non abbiamo dati, facciamo un fetch completo
         if (ultimoAggiornamento == null) {
-            List<Email> tutte = connection.login(currentUser);
+            List<Email> tutte = connection.listEmails(currentUser);
             if (!tutte.isEmpty()) {
                 ultimoAggiornamento = tutte.get(tutte.size() - 1).getDataSpedizione();
             }
@@ -87,14 +355,39 @@ public class ClientModel {
         }
 
         // Altrimenti chiediamo solo le novità
-        List<Email> nuove = connection.getUpdates(currentUser, ultimoAggiornamento);
+        List<Email> nuove = null;
+        if (System.currentTimeMillis() >= pollingFinoA) {
+            try {
+                nuove = attesa.watch(currentUser, ultimoAggiornamento, ATTESA_MS);
+            } catch (EOFException e) {
+                // Server senza WATCH: polling per un minuto, poi si riprova
+                pollingFinoA = System.currentTimeMillis() + 60_000;
+            }
+        }
+        if (nuove == null) {
+            try {
+                Thread.sleep(POLLING_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return List.of();
+            }
+            nuove = connection.getUpdates(currentUser, ultimoAggiornamento);
+        }
 
         if (!nuove.isEmpty()) {
             // Aggiorniamo il timestamp all'ultima delle nuove mail
             ultimoAggiornamento = nuove.get(nuove.size() - 1).getDataSpedizione();
         }
 
-        return nuove;
+        return soloBuste(nuove);
+    }
+
+    /**
+     * Chiude la connessione con il server alla chiusura dell'applicazione.
+     */
+    public void close() {
+        connection.close();
+        attesa.close();
     }
 
     // --- GETTERS ---
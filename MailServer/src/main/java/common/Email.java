@@ -27,6 +27,9 @@ public class Email implements Serializable {
     private final String testo;
     private final LocalDateTime dataSpedizione;
 
+    // Lunghezza del testo in caratteri, nota anche per la sola busta (-1 se sconosciuta)
+    private final int dimensione;
+
     /**
      * Costruisce una nuova Email.
      * Assegna automaticamente un ID univoco e il timestamp di creazione.
@@ -38,6 +41,47 @@ public class Email implements Serializable {
         this.oggetto = oggetto;
         this.testo = testo;
         this.dataSpedizione = LocalDateTime.now();
+        this.dimensione = testo == null ? -1 : testo.length();
+    }
+
+    /**
+     * Ricostruisce una Email esistente a partire da tutti i suoi campi
+     * (es. quando viene letta da un archivio o da un formato binario).
+     */
+    public Email(UUID id, String mittente, List<String> destinatari, String oggetto,
+                 String testo, LocalDateTime dataSpedizione) {
+        this(id, mittente, destinatari, oggetto, testo, dataSpedizione, testo == null ? -1 : testo.length());
+    }
+
+    /**
+     * Come il costruttore precedente, indicando la dimensione del testo
+     * (usato per le buste, che non contengono il testo).
+     */
+    public Email(UUID id, String mittente, List<String> destinatari, String oggetto,
+                 String testo, LocalDateTime dataSpedizione, int dimensione) {
+        this.id = id;
+        this.mittente = mittente;
+        this.destinatari = destinatari;
+        this.oggetto = oggetto;
+        this.testo = testo;
+        this.dataSpedizione = dataSpedizione;
+        this.dimensione = dimensione;
+    }
+
+    /**
+     * Restituisce una copia della stessa email con un corpo diverso
+     * (es. la sola "busta" senza testo, o la busta completata con il testo).
+     */
+    public Email conTesto(String nuovoTesto) {
+        return new Email(id, mittente, destinatari, oggetto, nuovoTesto, dataSpedizione);
+    }
+
+    /**
+     * Restituisce la sola busta dell'email: tutti i campi tranne il testo,
+     * di cui viene conservata la dimensione.
+     */
+    public Email busta() {
+        return testo == null ? this : new Email(id, mittente, destinatari, oggetto, null, dataSpedizione, getDimensione());
     }
 
     // --- GETTERS ---
@@ -49,6 +93,15 @@ public class Email implements Serializable {
     public String getTesto() { return testo; }
     public LocalDateTime getDataSpedizione() { return dataSpedizione; }
 
+    /**
+     * @return La lunghezza del testo in caratteri, anche se il testo non è stato caricato
+     * (-1 se sconosciuta, es. buste salvate prima che venisse registrata).
+     */
+    public int getDimensione() {
+        // Le email serializzate da versioni precedenti non hanno il campo
+        return testo != null ? testo.length() : dimensione;
+    }
+
     // --- Metodi di Utilità per la UI ---
 
     /**
@@ -0,0 +1,286 @@
+package common;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Formato binario compatto e versionato per {@link Email}.
+ * <p>
+ * Sostituisce la serializzazione Java (che ripete descrittori di classe e nomi dei
+ * campi in ogni messaggio) con un layout a schema fisso:
+ * <pre>
+ * [versione byte][flags byte]
+ * [id msb long][id lsb long]
+ * [dataSpedizione varlong]          microsecondi da epoch (UTC)
+ * [mittente str]
+ * [numero destinatari varint][destinatario str ...]
+ * [oggetto str]
+ * [testo str]                       solo se flags contiene FLAG_TESTO
+ * [dimensione varint]               solo se flags contiene FLAG_DIMENSIONE (buste)
+ * </pre>
+ * Le stringhe ({@code str}) sono codificate come {@code varint(lunghezza + 1)} seguito dai
+ * byte UTF-8; lunghezza 0 nel prefisso indica {@code null}.
+ * <p>
+ * La codifica scrive direttamente nel ByteBuffer del chiamante, senza array intermedi;
+ * {@link #dimensione(Email, boolean)} calcola in anticipo i byte necessari.
+ */
+public final class EmailCodec {
+
+    public static final byte VERSIONE = 1;
+
+    // Il messaggio contiene anche il testo (altrimenti è solo la "busta")
+    public static final int FLAG_TESTO = 1;
+
+    // La busta riporta la lunghezza del testo, per mostrarla senza caricarlo
+    public static final int FLAG_DIMENSIONE = 2;
+
+    private EmailCodec() { }
+
+    // --- CODIFICA ---
+
+    /**
+     * Numero esatto di byte prodotti da {@link #codifica(Email, boolean, ByteBuffer)}.
+     */
+    public static int dimensione(Email email, boolean conTesto) {
+        int n = 2 + 16 + dimensioneVarLong(toMicros(email.getDataSpedizione()));
+        n += dimensioneStringa(email.getMittente());
+        List<String> destinatari = email.getDestinatari();
+        int quanti = destinatari == null ? 0 : destinatari.size();
+        n += dimensioneVarLong(quanti);
+        for (int i = 0; i < quanti; i++) {
+            n += dimensioneStringa(destinatari.get(i));
+        }
+        n += dimensioneStringa(email.getOggetto());
+        if (conTesto) {
+            n += dimensioneStringa(email.getTesto());
+        } else if (email.getDimensione() >= 0) {
+            n += dimensioneVarLong(email.getDimensione());
+        }
+        return n;
+    }
+
+    /**
+     * Scrive il messaggio nel buffer a partire dalla sua posizione corrente.
+     *
+     * @param conTesto false per scrivere solo la busta (senza il corpo).
+     * @throws java.nio.BufferOverflowException Se il buffer non ha spazio sufficiente.
+     */
+    public static void codifica(Email email, boolean conTesto, ByteBuffer dest) {
+        dest.put(VERSIONE);
+        boolean conDimensione = !conTesto && email.getDimensione() >= 0;
+        dest.put((byte) (conTesto ? FLAG_TESTO : conDimensione ? FLAG_DIMENSIONE : 0));
+        dest.putLong(email.getId().getMostSignificantBits());
+        dest.putLong(email.getId().getLeastSignificantBits());
+        scriviVarLong(dest, toMicros(email.getDataSpedizione()));
+        scriviStringa(dest, email.getMittente());
+
+        List<String> destinatari = email.getDestinatari();
+        int quanti = destinatari == null ? 0 : destinatari.size();
+        scriviVarLong(dest, quanti);
+        for (int i = 0; i < quanti; i++) {
+            scriviStringa(dest, destinatari.get(i));
+        }
+
+        scriviStringa(dest, email.getOggetto());
+        if (conTesto) {
+            scriviStringa(dest, email.getTesto());
+        } else if (conDimensione) {
+            scriviVarLong(dest, email.getDimensione());
+        }
+    }
+
+    /**
+     * Codifica il messaggio in un nuovo array della dimensione esatta.
+     */
+    public static byte[] codifica(Email email, boolean conTesto) {
+        ByteBuffer buffer = ByteBuffer.allocate(dimensione(email, conTesto));
+        codifica(email, conTesto, buffer);
+        return buffer.array();
+    }
+
+    // --- DECODIFICA ---
+
+    /**
+     * Legge un messaggio dal buffer, avanzandone la posizione.
+     * Se il record contiene solo la busta, il testo risulta {@code null}
+     * (e la dimensione, se registrata, è disponibile con {@link Email#getDimensione()}).
+     *
+     * @throws IllegalArgumentException Se la versione non è supportata o i dati sono corrotti.
+     */
+    public static Email decodifica(ByteBuffer src) {
+        try {
+            byte versione = src.get();
+            if (versione != VERSIONE) {
+                throw new IllegalArgumentException("Versione del formato Email non supportata: " + versione);
+            }
+            int flags = src.get();
+            UUID id = new UUID(src.getLong(), src.getLong());
+            LocalDateTime data = fromMicros(leggiVarLong(src));
+            String mittente = leggiStringa(src);
+
+            int quanti = (int) leggiVarLong(src);
+            if (quanti < 0 || quanti > src.remaining()) {
+                throw new IllegalArgumentException("Numero di destinatari non valido: " + quanti);
+            }
+            List<String> destinatari = new ArrayList<>(quanti);
+            for (int i = 0; i < quanti; i++) {
+                destinatari.add(leggiStringa(src));
+            }
+
+            String oggetto = leggiStringa(src);
+            if ((flags & FLAG_TESTO) != 0) {
+                return new Email(id, mittente, destinatari, oggetto, leggiStringa(src), data);
+            }
+            int dimensione = (flags & FLAG_DIMENSIONE) != 0 ? (int) leggiVarLong(src) : -1;
+            return new Email(id, mittente, destinatari, oggetto, null, data, dimensione);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Record Email troncato", e);
+        }
+    }
+
+    // --- DATE ---
+
+    /**
+     * Riporta la data alla precisione del formato (microsecondi).
+     * Il server normalizza i messaggi in ingresso, così la data in memoria coincide
+     * sempre con quella salvata su disco.
+     */
+    public static Email normalizza(Email email) {
+        LocalDateTime data = email.getDataSpedizione();
+        if (data == null || data.getNano() % 1000 == 0) {
+            return email;
+        }
+        return new Email(email.getId(), email.getMittente(), email.getDestinatari(),
+                email.getOggetto(), email.getTesto(), data.truncatedTo(ChronoUnit.MICROS));
+    }
+
+    public static long toMicros(LocalDateTime data) {
+        return data.toEpochSecond(ZoneOffset.UTC) * 1_000_000L + data.getNano() / 1000;
+    }
+
+    public static LocalDateTime fromMicros(long micros) {
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(micros, 1_000_000L),
+                (int) Math.floorMod(micros, 1_000_000L) * 1000, ZoneOffset.UTC);
+    }
+
+    // --- VARINT (7 bit per byte, il bit alto indica che segue un altro byte) ---
+
+    public static void scriviVarLong(ByteBuffer dest, long valore) {
+        while ((valore & ~0x7FL) != 0) {
+            dest.put((byte) ((valore & 0x7F) | 0x80));
+            valore >>>= 7;
+        }
+        dest.put((byte) valore);
+    }
+
+    public static long leggiVarLong(ByteBuffer src) {
+        long valore = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = src.get();
+            valore |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return valore;
+            }
+        }
+        throw new IllegalArgumentException("Varint troppo lungo");
+    }
+
+    public static int dimensioneVarLong(long valore) {
+        int n = 1;
+        while ((valore & ~0x7FL) != 0) {
+            valore >>>= 7;
+            n++;
+        }
+        return n;
+    }
+
+    // --- STRINGHE UTF-8 ---
+
+    /**
+     * Scrive una stringa (anche null) codificandola in UTF-8 direttamente nel buffer.
+     */
+    public static void scriviStringa(ByteBuffer dest, String s) {
+        if (s == null) {
+            dest.put((byte) 0);
+            return;
+        }
+        scriviVarLong(dest, lunghezzaUtf8(s) + 1L);
+
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                dest.put((byte) c);
+            } else if (c < 0x800) {
+                dest.put((byte) (0xC0 | (c >> 6)));
+                dest.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                dest.put((byte) (0xF0 | (cp >> 18)));
+                dest.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                dest.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                dest.put((byte) (0x80 | (cp & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                dest.put((byte) '?'); // surrogato isolato: stesso comportamento di String.getBytes
+            } else {
+                dest.put((byte) (0xE0 | (c >> 12)));
+                dest.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                dest.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    public static String leggiStringa(ByteBuffer src) {
+        long prefisso = leggiVarLong(src);
+        if (prefisso == 0) {
+            return null;
+        }
+        int lunghezza = (int) (prefisso - 1);
+        if (lunghezza < 0 || lunghezza > src.remaining()) {
+            throw new IllegalArgumentException("Lunghezza stringa non valida: " + lunghezza);
+        }
+
+        String s;
+        if (src.hasArray()) {
+            s = new String(src.array(), src.arrayOffset() + src.position(), lunghezza, StandardCharsets.UTF_8);
+            src.position(src.position() + lunghezza);
+        } else {
+            byte[] bytes = new byte[lunghezza];
+            src.get(bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return s;
+    }
+
+    public static int dimensioneStringa(String s) {
+        if (s == null) return 1;
+        int lunghezza = lunghezzaUtf8(s);
+        return dimensioneVarLong(lunghezza + 1L) + lunghezza;
+    }
+
+    private static int lunghezzaUtf8(String s) {
+        int n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                n += 1;
+            } else if (c < 0x800) {
+                n += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                n += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                n += 1;
+            } else {
+                n += 3;
+            }
+        }
+        return n;
+    }
+}
@@ -0,0 +1,304 @@
+package common;
+
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * Protocollo binario tra client e server (versioni da 2 a 7).
+ * <p>
+ * All'apertura della connessione il client invia {@code [MAGIC short][versione massima byte]}
+ * e il server risponde {@code [MAGIC short][versione scelta byte]}:
+ * <ul>
+ * <li>{@link #VERSIONE_BINARIA}: la connessione prosegue con i frame descritti sotto;</li>
+ * <li>{@link #VERSIONE_BUSTE}: come la 2, e il server supporta anche LIST e FETCH_BODY;</li>
+ * <li>{@link #VERSIONE_PAGINE}: come la 3, e il server supporta anche PAGE;</li>
+ * <li>{@link #VERSIONE_SYNC}: come la 4, e il server supporta anche SYNC;</li>
+ * <li>{@link #VERSIONE_RECORD}: come la 5, ma la risposta a LIST contiene le buste nel
+ *     formato dei record del log del server, che le invia senza decodificarle;</li>
+ * <li>{@link #VERSIONE_OPZIONI}: come la 6, e il server supporta anche OPZIONI;</li>
+ * <li>{@link #VERSIONE_SERIALIZZAZIONE}: la connessione prosegue con la serializzazione
+ *     Java (ObjectOutputStream), come un client che non esegue la negoziazione;</li>
+ * <li>{@link #VERSIONE_RIFIUTATA}: troppe connessioni persistenti, il server chiude.</li>
+ * </ul>
+ * Un client che non negozia inizia direttamente con l'intestazione della serializzazione
+ * Java ({@code 0xACED}), che non può essere confusa con {@link #MAGIC}.
+ * <p>
+ * Ogni frame è {@code [lunghezza int][tipo byte][payload]}, dove la lunghezza comprende
+ * il tipo. Nelle richieste il tipo è il codice operativo, nelle risposte lo stato:
+ * <pre>
+ * LOGIN    utente str                                  -> OK numero varint, email ...
+ * REFRESH  utente str, data                            -> OK numero varint, email ...
+ * WATCH    utente str, data, attesa ms varlong         -> OK numero varint, email ...
+ * SEND     email (con testo)                           -> OK
+ * DELETE   utente str, id msb long, id lsb long        -> OK
+ * LIST     utente str                                  -> OK numero varint, busta ...
+ *                                                         (dalla versione 6: OK numero varint, record ...)
+ * FETCH_BODY utente str, id msb long, id lsb long      -> OK testo str
+ * PAGE     utente str, 0 | 1 id msb long id lsb long,
+ *          numero varint                               -> OK numero varint, busta ..., altre byte
+ * SYNC     utente str, epoca long, sequenza varlong,
+ *          attesa ms varlong                           -> OK epoca long, sequenza varlong, tipo byte,
+ *                                                         numero varint, busta ...,
+ *                                                         numero varint, id msb long id lsb long ...
+ * OPZIONI  opzioni richieste byte                      -> OK opzioni accettate byte
+ * QUIT                                                 (nessuna risposta, il server chiude)
+ * ERRORE   messaggio str
+ * RIPROVA  messaggio str, attesa ms varlong            (es. troppi invii: ripetere il comando più tardi)
+ * COMPRESSO lunghezza originale varint, dati Deflate   (vedi sotto)
+ * </pre>
+ * Stringhe, email e varint usano la codifica di {@link EmailCodec}; una data è un
+ * varlong con i microsecondi da epoch + 1 (0 indica {@code null}). Un record è
+ * {@code [lunghezza int][crc32 int][tipo byte][busta]}, con la lunghezza che comprende il
+ * tipo e il CRC32 calcolato su tipo e busta ({@link #leggiRecord}).
+ * <p>
+ * Il byte finale di PAGE vale 1 se la casella contiene altre buste, meno recenti,
+ * dopo la pagina. I server precedenti non lo inviano: in quel caso la pagina è
+ * l'ultima se contiene meno buste di quelle richieste.
+ * <p>
+ * SYNC restituisce le modifiche della casella successive alla sequenza indicata (che
+ * appartiene a un'epoca della numerazione, 0 se sconosciuta), attendendo come WATCH se
+ * non ce ne sono. Il tipo della risposta dice come interpretare gli identificativi:
+ * {@link #SYNC_DELTA} messaggi cancellati, {@link #SYNC_PRESENTI} tutti i messaggi
+ * presenti, {@link #SYNC_RICARICA} nessuno (la sequenza non è valida: il client deve
+ * ricaricare la casella e ripartire dall'epoca e dalla sequenza restituite).
+ * <p>
+ * OPZIONI, inviato all'inizio della sessione, attiva funzionalità facoltative della
+ * connessione. Con {@link #OPZIONE_COMPRESSIONE} il server può rispondere con un frame
+ * {@link #COMPRESSO}: i dati Deflate (raw, senza intestazione zlib) contengono
+ * {@code [tipo][payload]} della risposta originale. I frame compressi di una connessione
+ * formano un unico flusso Deflate, chiuso da un sync flush alla fine di ogni frame: il
+ * client deve decomprimerli tutti, in ordine, con lo stesso Inflater. Le risposte brevi
+ * restano in chiaro.
+ * <p>
+ * I metodi scrivono e leggono direttamente su ByteBuffer, che il chiamante può
+ * riutilizzare tra un frame e l'altro ({@link #spazio}).
+ */
+public final class Protocollo {
+
+    public static final short MAGIC = 0x4D50; // "MP"
+
+    public static final byte VERSIONE_RIFIUTATA = 0;
+    public static final byte VERSIONE_SERIALIZZAZIONE = 1;
+    public static final byte VERSIONE_BINARIA = 2;
+    public static final byte VERSIONE_BUSTE = 3;
+    public static final byte VERSIONE_PAGINE = 4;
+    public static final byte VERSIONE_SYNC = 5;
+    public static final byte VERSIONE_RECORD = 6;
+    public static final byte VERSIONE_OPZIONI = 7;
+
+    // --- CODICI OPERATIVI ---
+    public static final byte LOGIN = 1;
+    public static final byte REFRESH = 2;
+    public static final byte SEND = 3;
+    public static final byte DELETE = 4;
+    public static final byte WATCH = 5;
+    public static final byte QUIT = 6;
+    public static final byte LIST = 7;
+    public static final byte FETCH_BODY = 8;
+    public static final byte PAGE = 9;
+    public static final byte SYNC = 10;
+    public static final byte OPZIONI = 11;
+
+    // --- STATI DELLA RISPOSTA ---
+    public static final byte OK = 0;
+    public static final byte ERRORE = 1;
+    public static final byte COMPRESSO = 2;
+    public static final byte RIPROVA = 3;
+
+    // --- OPZIONI DELLA CONNESSIONE (bit) ---
+    public static final byte OPZIONE_COMPRESSIONE = 1;
+
+    // --- TIPI DI RISPOSTA A SYNC ---
+    public static final byte SYNC_DELTA = 0;
+    public static final byte SYNC_PRESENTI = 1;
+    public static final byte SYNC_RICARICA = 2;
+
+    // --- TIPO DEI RECORD NELLA RISPOSTA A LIST (versione 6) ---
+    public static final byte RECORD_BUSTA = 2;
+
+    // lunghezza (4) + tipo (1)
+    public static final int INTESTAZIONE_FRAME = 5;
+
+    // Limite di sicurezza alla dimensione di un frame di richiesta
+    public static final int MAX_FRAME = 16 * 1024 * 1024;
+
+    // Le risposte (es. LOGIN di una casella molto grande) hanno come limite solo quello di un array
+    public static final int MAX_RISPOSTA = Integer.MAX_VALUE - 8;
+
+    // Oltre questa capacità un buffer non viene conservato per il frame successivo
+    public static final int BUFFER_CONSERVATO = 1024 * 1024;
+
+    private Protocollo() { }
+
+    // --- FRAME ---
+
+    /**
+     * Restituisce un buffer vuoto con almeno {@code necessari} byte di capacità:
+     * lo stesso buffer se basta, altrimenti uno nuovo più grande.
+     */
+    public static ByteBuffer spazio(ByteBuffer buffer, int necessari) {
+        if (buffer == null || buffer.capacity() < necessari) {
+            long capacita = buffer == null ? 512 : buffer.capacity();
+            while (capacita < necessari) capacita *= 2;
+            return ByteBuffer.allocate((int) Math.min(capacita, MAX_RISPOSTA));
+        }
+        return buffer.clear();
+    }
+
+    /**
+     * Restituisce il buffer se può essere conservato per il frame successivo, altrimenti
+     * null: un singolo frame molto grande non resta in memoria per tutta la connessione.
+     */
+    public static ByteBuffer conserva(ByteBuffer buffer) {
+        return buffer != null && buffer.capacity() <= BUFFER_CONSERVATO ? buffer : null;
+    }
+
+    /**
+     * Scrive l'intestazione di un frame; la lunghezza viene completata da {@link #chiudiFrame}.
+     */
+    public static void apriFrame(ByteBuffer dest, byte tipo) {
+        dest.putInt(0).put(tipo);
+    }
+
+    /**
+     * Completa la lunghezza del frame iniziato alla posizione 0 e prepara il buffer alla lettura.
+     */
+    public static ByteBuffer chiudiFrame(ByteBuffer dest) {
+        dest.putInt(0, dest.position() - 4);
+        return dest.flip();
+    }
+
+    /**
+     * Controlla la lunghezza letta dall'intestazione di un frame di richiesta.
+     *
+     * @throws IllegalArgumentException Se la lunghezza non è valida.
+     */
+    public static int verificaLunghezza(int lunghezza) {
+        return verificaLunghezza(lunghezza, MAX_FRAME);
+    }
+
+    /**
+     * Controlla la lunghezza letta dall'intestazione di un frame.
+     *
+     * @param massimo Lunghezza massima ammessa ({@link #MAX_FRAME} o {@link #MAX_RISPOSTA}).
+     * @throws IllegalArgumentException Se la lunghezza non è valida.
+     */
+    public static int verificaLunghezza(int lunghezza, int massimo) {
+        if (lunghezza < 1 || lunghezza > massimo) {
+            throw new IllegalArgumentException("Lunghezza del frame non valida: " + lunghezza);
+        }
+        return lunghezza;
+    }
+
+    // --- DATE ---
+
+    public static void scriviData(ByteBuffer dest, LocalDateTime data) {
+        EmailCodec.scriviVarLong(dest, data == null ? 0 : EmailCodec.toMicros(data) + 1);
+    }
+
+    public static LocalDateTime leggiData(ByteBuffer src) {
+        long valore = EmailCodec.leggiVarLong(src);
+        return valore == 0 ? null : EmailCodec.fromMicros(valore - 1);
+    }
+
+    public static int dimensioneData(LocalDateTime data) {
+        return EmailCodec.dimensioneVarLong(data == null ? 0 : EmailCodec.toMicros(data) + 1);
+    }
+
+    // --- LISTE DI EMAIL ---
+
+    public static int dimensioneEmails(List<Email> emails) {
+        int n = EmailCodec.dimensioneVarLong(emails.size());
+        for (Email email : emails) {
+            n += EmailCodec.dimensione(email, email.getTesto() != null);
+        }
+        return n;
+    }
+
+    public static void scriviEmails(ByteBuffer dest, List<Email> emails) {
+        EmailCodec.scriviVarLong(dest, emails.size());
+        for (Email email : emails) {
+            EmailCodec.codifica(email, email.getTesto() != null, dest);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException Se i dati sono corrotti.
+     */
+    public static List<Email> leggiEmails(ByteBuffer src) {
+        long quante = EmailCodec.leggiVarLong(src);
+        if (quante < 0 || quante > src.remaining()) {
+            throw new IllegalArgumentException("Numero di email non valido: " + quante);
+        }
+        List<Email> emails = new ArrayList<>((int) quante);
+        for (int i = 0; i < quante; i++) {
+            emails.add(EmailCodec.decodifica(src));
+        }
+        return emails;
+    }
+
+    /**
+     * Legge una lista di buste nel formato dei record ({@link #VERSIONE_RECORD}).
+     *
+     * @throws IllegalArgumentException Se i dati sono corrotti.
+     */
+    public static List<Email> leggiRecord(ByteBuffer src) {
+        long quanti = EmailCodec.leggiVarLong(src);
+        if (quanti < 0 || quanti > src.remaining() / 9) {
+            throw new IllegalArgumentException("Numero di record non valido: " + quanti);
+        }
+        List<Email> emails = new ArrayList<>((int) quanti);
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < quanti; i++) {
+            int lunghezza = src.getInt();
+            int checksum = src.getInt();
+            if (lunghezza < 2 || lunghezza > src.remaining()) {
+                throw new IllegalArgumentException("Lunghezza del record non valida: " + lunghezza);
+            }
+            ByteBuffer record = src.slice(src.position(), lunghezza);
+            crc.reset();
+            crc.update(record.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                throw new IllegalArgumentException("CRC del record non valido");
+            }
+            if (record.get() != RECORD_BUSTA) {
+                throw new IllegalArgumentException("Tipo di record non valido");
+            }
+            emails.add(EmailCodec.decodifica(record));
+            src.position(src.position() + lunghezza);
+        }
+        return emails;
+    }
+
+    // --- LISTE DI IDENTIFICATIVI ---
+
+    public static int dimensioneIdentificativi(List<UUID> ids) {
+        return EmailCodec.dimensioneVarLong(ids.size()) + 16 * ids.size();
+    }
+
+    public static void scriviIdentificativi(ByteBuffer dest, List<UUID> ids) {
+        EmailCodec.scriviVarLong(dest, ids.size());
+        for (UUID id : ids) {
+            dest.putLong(id.getMostSignificantBits()).putLong(id.getLeastSignificantBits());
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException Se i dati sono corrotti.
+     */
+    public static List<UUID> leggiIdentificativi(ByteBuffer src) {
+        long quanti = EmailCodec.leggiVarLong(src);
+        if (quanti < 0 || quanti > src.remaining() / 16) {
+            throw new IllegalArgumentException("Numero di identificativi non valido: " + quanti);
+        }
+        List<UUID> ids = new ArrayList<>((int) quanti);
+        for (int i = 0; i < quanti; i++) {
+            ids.add(new UUID(src.getLong(), src.getLong()));
+        }
+        return ids;
+    }
+}
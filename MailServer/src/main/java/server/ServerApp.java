@@ -4,20 +4,25 @@ import javafx.application.Application;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Scene;
 import javafx.stage.Stage;
+import server.controller.RegistroGrafico;
 import server.controller.ServerController;
+import server.model.RegistroServer;
 import server.model.ServerModel;
 
 import java.io.IOException;
 
 /**
- * Classe di avvio del Mail Server.
+ * Classe di avvio del Mail Server con il pannello di amministrazione.
+ * <p>
+ * Il server non dipende dall'interfaccia grafica (senza si avvia con {@link ServerMain}):
+ * il pannello riceve i messaggi attraverso un {@link RegistroGrafico} collegato al server.
  * <p>
  * Configura l'architettura MVC lato server:
  * <ol>
  * <li>Inizializza la GUI (JavaFX).</li>
  * <li>Istanzia il Model (gestione dati e persistenza).</li>
  * <li>Collega il Model al Controller.</li>
- * <li>Gestisce la chiusura dei thread e dei socket allo spegnimento.</li>
+ * <li>Allo spegnimento attende i comandi in corso e chiude l'archivio ({@link ServerModel#stopServer()}).</li>
  * </ol>
  */
 public class ServerApp extends Application {
@@ -38,11 +43,12 @@ public class ServerApp extends Application {
         //Recupera il Controller creato da JavaFX
         ServerController controller = fxmlLoader.getController();
 
-        //Crea il Model
-        this.model = new ServerModel();
+        //Crea il Model: i messaggi vanno al registro configurato e al pannello
+        RegistroGrafico registro = new RegistroGrafico();
+        this.model = new ServerModel(RegistroServer.daConfigurazione(), registro);
 
         // Passa il Model al Controller
-        controller.setModel(model);
+        controller.setModel(model, registro);
 
         // Impostazioni della finestra
         stage.setTitle("Mail Server - Admin Panel");
@@ -50,16 +56,23 @@ public class ServerApp extends Application {
 
         // Gestione chiusura
         stage.setOnCloseRequest(event -> {
-            // Spegniamo il server (chiude socket e salva file se necessario)
-            model.stopServer();
-            // Forza la chiusura di tutti i thread
-            System.exit(0);
+            // Lo spegnimento attende i comandi in corso: la finestra si chiude subito,
+            // il server in un thread separato per non bloccare l'interfaccia
+            event.consume();
+            registro.ferma();
+            stage.hide();
+            new Thread(() -> {
+                model.stopServer();
+                // Forza la chiusura di tutti i thread
+                System.exit(0);
+            }, "chiusura").start();
         });
 
         stage.show();
     }
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
+        ServerConfig.inizializza(args);
         launch();
     }
 }
\ No newline at end of file
@@ -0,0 +1,68 @@
+package server;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+/**
+ * Parametri di configurazione del server.
+ * <p>
+ * Ogni parametro ha un valore predefinito che può essere sovrascritto da un file di
+ * configurazione ({@link #inizializza}) e, con la precedenza, da una proprietà di
+ * sistema all'avvio (es. {@code -Dmail.cache.maxBytes=67108864}).
+ */
+public final class ServerConfig {
+
+    // File letto all'avvio se non ne viene indicato un altro
+    public static final String FILE_PREDEFINITO = "server.properties";
+
+    private static volatile Properties file = new Properties();
+
+    private ServerConfig() { }
+
+    /**
+     * Carica il file di configurazione (formato {@link Properties}), da chiamare all'avvio
+     * prima di creare il server: alcuni parametri vengono letti una sola volta.
+     * Il file è il primo argomento, oppure {@code -Dmail.config}, oppure
+     * {@value #FILE_PREDEFINITO} nella cartella corrente se esiste.
+     *
+     * @throws IOException Se il file indicato esplicitamente non si può leggere.
+     */
+    public static void inizializza(String[] args) throws IOException {
+        String indicato = args.length > 0 ? args[0] : System.getProperty("mail.config");
+        Path percorso = Paths.get(indicato != null ? indicato : FILE_PREDEFINITO);
+        if (indicato == null && !Files.exists(percorso)) return;
+
+        Properties letto = new Properties();
+        try (Reader in = Files.newBufferedReader(percorso, StandardCharsets.UTF_8)) {
+            letto.load(in);
+        }
+        file = letto;
+        System.out.println("Configurazione letta da " + percorso.toAbsolutePath() + " (" + letto.size() + " parametri).");
+    }
+
+    public static String getString(String chiave, String predefinito) {
+        String valore = System.getProperty(chiave);
+        if (valore == null || valore.isBlank()) valore = file.getProperty(chiave);
+        return (valore == null || valore.isBlank()) ? predefinito : valore.trim();
+    }
+
+    public static long getLong(String chiave, long predefinito) {
+        String valore = getString(chiave, null);
+        if (valore == null) return predefinito;
+        try {
+            return Long.parseLong(valore);
+        } catch (NumberFormatException e) {
+            System.err.println("Valore non valido per " + chiave + ": " + valore + " (uso " + predefinito + ")");
+            return predefinito;
+        }
+    }
+
+    public static int getInt(String chiave, int predefinito) {
+        return (int) getLong(chiave, predefinito);
+    }
+}
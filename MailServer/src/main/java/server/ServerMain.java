@@ -0,0 +1,27 @@
+package server;
+
+import server.model.ServerModel;
+
+import java.io.IOException;
+
+/**
+ * Avvio del Mail Server senza interfaccia grafica (es. su un host senza display).
+ * <p>
+ * Non carica nessuna classe JavaFX: legge la configurazione ({@link ServerConfig#inizializza}),
+ * avvia il server e attende lo spegnimento, che avviene con SIGTERM (o Ctrl+C) attraverso
+ * l'hook della JVM registrato dal server.
+ * <pre>
+ * java -cp mail-server.jar server.ServerMain [file di configurazione]
+ * </pre>
+ * Il pannello di amministrazione resta disponibile con {@link ServerApp}.
+ */
+public final class ServerMain {
+
+    private ServerMain() { }
+
+    public static void main(String[] args) throws IOException {
+        ServerConfig.inizializza(args);
+        ServerModel model = new ServerModel();
+        model.attendiArresto();
+    }
+}
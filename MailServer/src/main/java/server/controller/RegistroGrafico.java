@@ -0,0 +1,144 @@
+package server.controller;
+
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.util.Duration;
+import server.ServerConfig;
+import server.model.RegistroServer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Registro che mostra i messaggi del server nel pannello di amministrazione.
+ * <p>
+ * I messaggi arrivano dai thread di rete, che non devono attendere il Thread di JavaFX:
+ * {@link #scrivi} li mette in un buffer circolare a capacità fissa senza lock, e un timer
+ * di JavaFX lo svuota a blocchi aggiungendo alla lista tutte le righe arrivate in una sola
+ * volta (un solo aggiornamento della vista per blocco, non uno per messaggio).
+ * <p>
+ * Se i messaggi arrivano più in fretta di quanto il pannello li legga, i più vecchi vengono
+ * sovrascritti e al loro posto compare una riga con il numero di eventi persi. Anche la
+ * lista mostrata ha un massimo di righe: oltre si scartano le più vecchie.
+ * <pre>
+ * mail.log.buffer       (predefinito 4096, arrotondato alla potenza di 2)
+ * mail.log.righe        (predefinito 10000)
+ * mail.log.intervalloMs (predefinito 100)
+ * </pre>
+ */
+public class RegistroGrafico implements RegistroServer {
+
+    private final AtomicReferenceArray<Voce> buffer;
+    private final int maschera;
+    private final int maxRighe;
+
+    // Numero di messaggi scritti: il prossimo prende la posizione scritti & maschera
+    private final AtomicLong scritti = new AtomicLong();
+
+    // Letti dal Thread di JavaFX (solo lui lo usa)
+    private long letti;
+    private long persi;
+
+    // Lista osservabile per i log, modificata solo nel Thread di JavaFX
+    private final ObservableList<String> righe = FXCollections.observableArrayList();
+
+    private final Timeline timer;
+
+    /**
+     * Messaggio con il suo numero d'ordine: chi legge riconosce una posizione non
+     * ancora scritta o già sovrascritta da un giro successivo.
+     */
+    private record Voce(long numero, String messaggio) { }
+
+    public RegistroGrafico() {
+        int capacita = Integer.highestOneBit(Math.max(16, ServerConfig.getInt("mail.log.buffer", 4096)) - 1) << 1;
+        this.buffer = new AtomicReferenceArray<>(capacita);
+        this.maschera = capacita - 1;
+        this.maxRighe = Math.max(1, ServerConfig.getInt("mail.log.righe", 10_000));
+        this.timer = new Timeline(new KeyFrame(
+                Duration.millis(Math.max(10, ServerConfig.getInt("mail.log.intervalloMs", 100))),
+                e -> svuota()));
+        this.timer.setCycleCount(Timeline.INDEFINITE);
+    }
+
+    @Override
+    public void scrivi(String messaggio) {
+        long numero = scritti.getAndIncrement();
+        buffer.set((int) (numero & maschera), new Voce(numero, messaggio));
+    }
+
+    /**
+     * Avvia lo svuotamento periodico del buffer nella lista. Va chiamato nel Thread di JavaFX.
+     */
+    public void avvia() {
+        timer.play();
+    }
+
+    public void ferma() {
+        timer.stop();
+    }
+
+    /**
+     * Sposta nella lista le righe arrivate dall'ultimo svuotamento (Thread di JavaFX).
+     */
+    private void svuota() {
+        long fine = scritti.get();
+        if (letti == fine) return;
+
+        long capacita = maschera + 1L;
+        if (fine - letti > capacita) {
+            // Il buffer ha fatto un giro intero: i più vecchi sono stati sovrascritti
+            persi += fine - capacita - letti;
+            letti = fine - capacita;
+        }
+
+        List<String> blocco = new ArrayList<>((int) (fine - letti) + 1);
+        while (letti < fine) {
+            Voce voce = buffer.get((int) (letti & maschera));
+            if (voce == null || voce.numero() < letti) {
+                // Posizione prenotata ma non ancora scritta: la riprendo al prossimo giro
+                break;
+            }
+            if (voce.numero() > letti) {
+                // Sovrascritta mentre svuotavo
+                persi++;
+                letti++;
+                continue;
+            }
+            if (persi > 0) {
+                blocco.add("[LOG] " + persi + " eventi persi (pannello troppo lento)");
+                persi = 0;
+            }
+            blocco.add(voce.messaggio());
+            letti++;
+        }
+        if (blocco.isEmpty()) return;
+
+        int eccesso = righe.size() + blocco.size() - maxRighe;
+        if (eccesso <= 0) {
+            righe.addAll(blocco);
+        } else {
+            // Le righe scartate in testa e quelle nuove in coda vanno in un'unica modifica:
+            // con due la vista si aggiornerebbe due volte per blocco
+            List<String> tenute = new ArrayList<>(maxRighe);
+            if (eccesso < righe.size()) tenute.addAll(righe.subList(eccesso, righe.size()));
+            tenute.addAll(blocco.subList(Math.max(0, eccesso - righe.size()), blocco.size()));
+            righe.setAll(tenute);
+        }
+    }
+
+    /**
+     * @return Numero di messaggi ricevuti dall'avvio (anche quelli non più in lista).
+     */
+    public long totali() {
+        return scritti.get();
+    }
+
+    public ObservableList<String> getRighe() {
+        return righe;
+    }
+}
@@ -1,10 +1,10 @@
 package server.controller;
 
-import javafx.application.Platform;
 import javafx.fxml.FXML;
 import javafx.scene.control.Label;
 import javafx.scene.control.ListView;
 import javafx.collections.ListChangeListener;
+import javafx.collections.ObservableList;
 import server.model.ServerModel;
 
 /**
@@ -20,7 +20,12 @@ public class ServerController {
     @FXML
     private Label lblCount;
 
+    @FXML
+    private Label lblStato;
+
     private ServerModel model;
+    private RegistroGrafico registro;
+    private ObservableList<String> logs;
 
     /**
      * Inizializza il collegamento tra View e Model.
@@ -28,26 +33,42 @@ public class ServerController {
      * Oltre a collegare la lista:
      * 1. Aggiornamento automatico del contatore eventi.
      * 2. Auto-scroll.
+     * <p>
+     * Il registro aggiunge le righe a blocchi (ogni {@code mail.log.intervalloMs}):
+     * contatore e scroll si aggiornano una volta per blocco.
      *
      * @param model Il modello del server contenente la logica e i dati.
+     * @param registro Il registro collegato al server che riceve i suoi messaggi.
      */
-    public void setModel(ServerModel model) {
+    public void setModel(ServerModel model, RegistroGrafico registro) {
         this.model = model;
+        this.registro = registro;
+        this.logs = registro.getRighe();
+        lblStato.setText("Status: ONLINE (Port " + model.getPorta() + ")");
 
-        // Data Binding: collego la lista grafica direttamente alla ObservableList del model
-        logList.setItems(model.getLogs());
+        // Data Binding: collego la lista grafica direttamente alla ObservableList del registro
+        logList.setItems(logs);
 
-        // Listener per Contatore e Auto-scroll
-        model.getLogs().addListener((ListChangeListener<String>) change -> {
-            Platform.runLater(() -> {
-                lblCount.setText("Eventi totali: " + model.getLogs().size());
+        // Listener per Contatore e Auto-scroll (già nel Thread di JavaFX)
+        logs.addListener((ListChangeListener<String>) change -> {
+            lblCount.setText("Eventi totali: " + registro.totali());
 
-                // Auto-scroll all'ultimo elemento
-                if (!model.getLogs().isEmpty()) {
-                    logList.scrollTo(model.getLogs().size() - 1);
-                }
-            });
+            // Auto-scroll all'ultimo elemento
+            if (!logs.isEmpty()) {
+                logList.scrollTo(logs.size() - 1);
+            }
         });
+        registro.avvia();
+    }
+
+    /**
+     * Riporta nel log i contatori di sistema (es. hit/miss/eviction della cache).
+     */
+    @FXML
+    protected void onStatsClick() {
+        if (model != null) {
+            model.getMetriche().forEach((nome, valore) -> registro.scrivi("[STAT] " + nome + " = " + valore));
+        }
     }
 
     /**
@@ -57,7 +78,7 @@ public class ServerController {
     protected void onClearLogClick() {
         if (model != null) {
             // Cancelliamo i log dalla memoria
-            model.getLogs().clear();
+            logs.clear();
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,75 @@
+package server.model;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client in attesa di nuova posta (comandi WATCH e SYNC).
+ * <p>
+ * Ogni attesa è un CompletableFuture completato alla consegna o alla cancellazione di
+ * un messaggio nella casella: nessun thread resta bloccato per il client in attesa, che occupa solo un
+ * oggetto in questa mappa. Le scadenze sono gestite da
+ * {@link CompletableFuture#completeOnTimeout}, con un unico thread condiviso.
+ */
+class AttesePosta {
+
+    private final Map<String, Set<CompletableFuture<Void>>> attese = new ConcurrentHashMap<>();
+    private final AtomicInteger inAttesa = new AtomicInteger();
+    // Allo spegnimento nessun client deve restare in attesa
+    private volatile boolean chiuse;
+
+    AttesePosta() {
+        ServerMetrics.registraIndicatore("watch.inAttesa", inAttesa::get);
+    }
+
+    /**
+     * Registra un'attesa sulla casella. Va registrata prima di controllare se ci sono
+     * già messaggi nuovi, altrimenti una consegna nel frattempo andrebbe persa.
+     */
+    CompletableFuture<Void> registra(String utente) {
+        CompletableFuture<Void> segnale = new CompletableFuture<>();
+        attese.compute(utente, (u, insieme) -> {
+            if (insieme == null) insieme = new HashSet<>();
+            insieme.add(segnale);
+            return insieme;
+        });
+        inAttesa.incrementAndGet();
+        if (chiuse) segnale.complete(null);
+        // Completata per consegna, scadenza o annullamento
+        segnale.whenComplete((v, e) -> {
+            inAttesa.decrementAndGet();
+            attese.computeIfPresent(utente, (u, insieme) -> {
+                insieme.remove(segnale);
+                return insieme.isEmpty() ? null : insieme;
+            });
+        });
+        return segnale;
+    }
+
+    /**
+     * Risveglia tutte le attese sulla casella.
+     */
+    void notifica(String utente) {
+        Set<CompletableFuture<Void>> insieme = attese.remove(utente);
+        if (insieme == null) return;
+        ServerMetrics.aggiungi("watch.notifiche", insieme.size());
+        for (CompletableFuture<Void> segnale : insieme) {
+            segnale.complete(null);
+        }
+    }
+
+    /**
+     * Risveglia tutte le attese, anche quelle registrate in seguito (arresto del server):
+     * i client ricevono subito la risposta invece di attendere la scadenza.
+     */
+    void chiudi() {
+        chiuse = true;
+        for (String utente : attese.keySet()) {
+            notifica(utente);
+        }
+    }
+}
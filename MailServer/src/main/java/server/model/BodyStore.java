@@ -0,0 +1,253 @@
+package server.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Archivio dei corpi dei messaggi, condivisi tra tutti i destinatari (single-instance storage).
+ * <p>
+ * Il testo di una email viene scritto una sola volta, indipendentemente dal numero
+ * di destinatari, nel file {@code bodies/<xx>/<id>.body}; le caselle contengono solo
+ * la "busta" del messaggio, che fa riferimento al corpo tramite {@link common.Email#getId()}.
+ * <p>
+ * Formato del file:
+ * <pre>
+ * [riferimenti int][testo UTF-8 ...]                                              non compresso
+ * [riferimenti int][0xFF][metodo byte][lunghezza originale int][testo compresso]  compresso
+ * </pre>
+ * Il byte {@code 0xFF} non compare mai in un testo UTF-8, quindi distingue i corpi
+ * compressi da quelli in chiaro (compresi quelli scritti dalle versioni precedenti).
+ * La compressione ({@link CompressoreCorpi}) riguarda solo il testo: la busta resta
+ * in chiaro nel log della casella.
+ * Il contatore dei riferimenti è persistente e viene aggiornato sul posto
+ * (4 byte) a ogni cancellazione: quando arriva a zero il file viene eliminato.
+ * <p>
+ * Le scritture non vengono sincronizzate singolarmente: la durabilità delle consegne
+ * è garantita dal {@link WriteAheadLog}, e i file modificati vengono resi persistenti
+ * tutti insieme da {@link #sincronizza()} durante il checkpoint.
+ */
+class BodyStore {
+
+    private static final String ESTENSIONE = ".body";
+    private static final int N_STRIPE = 64;
+
+    // Marcatore dei corpi compressi (byte non valido in UTF-8)
+    private static final byte COMPRESSO = (byte) 0xFF;
+    private static final int HEADER_COMPRESSO = 4 + 1 + 1 + 4;
+
+    private final Path directory;
+    private final CompressoreCorpi compressore;
+
+    // Serializza gli aggiornamenti del contatore dello stesso corpo
+    private final ReentrantLock[] stripe = new ReentrantLock[N_STRIPE];
+
+    // Corpi scritti o aggiornati dall'ultimo checkpoint
+    private final Set<UUID> daSincronizzare = ConcurrentHashMap.newKeySet();
+
+    BodyStore(Path directory, CompressoreCorpi compressore) throws IOException {
+        this.directory = directory;
+        this.compressore = compressore;
+        Files.createDirectories(directory);
+        for (int i = 0; i < N_STRIPE; i++) {
+            stripe[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Memorizza il corpo di un nuovo messaggio destinato a {@code riferimenti} caselle,
+     * comprimendolo se conviene.
+     * <p>
+     * Un corpo già presente con lo stesso identificativo non viene mai sostituito:
+     * appartiene a un altro messaggio, ancora letto (o trasferito) dalle sue caselle.
+     *
+     * @return I byte occupati dal testo su disco (dopo l'eventuale compressione).
+     * @throws FileAlreadyExistsException Se esiste già un corpo con questo identificativo.
+     */
+    int salva(UUID id, String testo, int riferimenti) throws IOException {
+        return scrivi(id, testo, riferimenti, StandardOpenOption.CREATE_NEW);
+    }
+
+    /**
+     * Riscrive il corpo di una consegna riapplicata dal {@link WriteAheadLog}, con il
+     * numero di caselle che lo contengono davvero. Il file precedente, eventualmente
+     * incompleto, viene sostituito.
+     */
+    int ripristina(UUID id, String testo, int riferimenti) throws IOException {
+        return scrivi(id, testo, riferimenti, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private int scrivi(UUID id, String testo, int riferimenti, StandardOpenOption... apertura) throws IOException {
+        byte[] bytes = testo == null ? new byte[0] : testo.getBytes(StandardCharsets.UTF_8);
+        byte[] compresso = compressore.comprimi(bytes);
+
+        ByteBuffer buffer;
+        if (compresso != null) {
+            buffer = ByteBuffer.allocate(HEADER_COMPRESSO + compresso.length);
+            buffer.putInt(riferimenti)
+                    .put(COMPRESSO)
+                    .put(CompressoreCorpi.METODO_DEFLATE_V1)
+                    .putInt(bytes.length)
+                    .put(compresso)
+                    .flip();
+        } else {
+            buffer = ByteBuffer.allocate(4 + bytes.length);
+            buffer.putInt(riferimenti).put(bytes).flip();
+        }
+        int salvati = buffer.remaining() - 4;
+
+        Path file = percorso(id);
+        Files.createDirectories(file.getParent());
+        Set<StandardOpenOption> opzioni = EnumSet.of(StandardOpenOption.WRITE, apertura);
+        try (FileChannel canale = FileChannel.open(file, opzioni)) {
+            while (buffer.hasRemaining()) {
+                canale.write(buffer);
+            }
+        }
+        daSincronizzare.add(id);
+        ServerMetrics.incrementa("store.corpi.scritti");
+        ServerMetrics.aggiungi("store.corpi.condivisi", riferimenti - 1L);
+        return salvati;
+    }
+
+    /**
+     * @return Il testo del messaggio, oppure null se il corpo non esiste.
+     */
+    String leggi(UUID id) throws IOException {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(percorso(id));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (bytes.length >= HEADER_COMPRESSO && bytes[4] == COMPRESSO) {
+            int lunghezzaOriginale = ByteBuffer.wrap(bytes, 6, 4).getInt();
+            try {
+                byte[] testo = compressore.decomprimi(bytes[5], bytes, HEADER_COMPRESSO,
+                        bytes.length - HEADER_COMPRESSO, lunghezzaOriginale);
+                return new String(testo, StandardCharsets.UTF_8);
+            } catch (DataFormatException e) {
+                throw new IOException("Corpo compresso non valido: " + id, e);
+            }
+        }
+        return new String(bytes, 4, bytes.length - 4, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Prepara l'invio del testo in UTF-8 senza decodificarlo: se il corpo è in chiaro e
+     * grande almeno {@code sogliaFile} byte viene trasferito direttamente dal file,
+     * altrimenti (corpo piccolo o compresso) viene letto in memoria.
+     *
+     * @return Il trasferimento, oppure null se il corpo non esiste.
+     */
+    Trasferimento trasferimento(UUID id, long sogliaFile) throws IOException {
+        FileChannel canale;
+        try {
+            canale = FileChannel.open(percorso(id), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        try {
+            long dimensione = canale.size();
+            ByteBuffer inizio = ByteBuffer.allocate(5);
+            canale.read(inizio, 0);
+            boolean compresso = inizio.position() == 5 && inizio.get(4) == COMPRESSO;
+
+            if (!compresso && dimensione - 4 >= sogliaFile) {
+                Trasferimento trasferimento = Trasferimento.testo(canale);
+                trasferimento.aggiungi(4, dimensione - 4);
+                return trasferimento;
+            }
+            if (!compresso) {
+                ByteBuffer bytes = ByteBuffer.allocate((int) Math.max(0, dimensione - 4));
+                while (bytes.hasRemaining() && canale.read(bytes, 4 + bytes.position()) >= 0) { }
+                canale.close();
+                Trasferimento trasferimento = Trasferimento.testo(null);
+                trasferimento.aggiungi(bytes.flip());
+                return trasferimento;
+            }
+        } catch (IOException | RuntimeException e) {
+            canale.close();
+            throw e;
+        }
+        canale.close();
+
+        // Corpo compresso: va decompresso in memoria
+        String testo = leggi(id);
+        if (testo == null) return null;
+        Trasferimento trasferimento = Trasferimento.testo(null);
+        trasferimento.aggiungi(ByteBuffer.wrap(testo.getBytes(StandardCharsets.UTF_8)));
+        return trasferimento;
+    }
+
+    /**
+     * Rilascia un riferimento al corpo (una casella ha cancellato il messaggio).
+     * Con l'ultimo riferimento il file viene eliminato.
+     */
+    void rilascia(UUID id) throws IOException {
+        ReentrantLock lock = stripe[(id.hashCode() & 0x7fffffff) % N_STRIPE];
+        lock.lock();
+        try {
+            Path file = percorso(id);
+            if (!Files.exists(file)) return;
+
+            try (FileChannel canale = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer contatore = ByteBuffer.allocate(4);
+                canale.read(contatore, 0);
+                int rimasti = contatore.flip().getInt() - 1;
+
+                if (rimasti > 0) {
+                    canale.write(contatore.clear().putInt(rimasti).flip(), 0);
+                    daSincronizzare.add(id);
+                    return;
+                }
+            }
+            Files.deleteIfExists(file);
+            ServerMetrics.incrementa("store.corpi.eliminati");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Elimina il corpo indipendentemente dal contatore (usato dal recupero dopo un crash).
+     */
+    void elimina(UUID id) throws IOException {
+        Files.deleteIfExists(percorso(id));
+        daSincronizzare.remove(id);
+    }
+
+    /**
+     * Rende persistenti (fsync) i corpi scritti o aggiornati dall'ultima chiamata.
+     */
+    void sincronizza() throws IOException {
+        for (UUID id : daSincronizzare) {
+            daSincronizzare.remove(id);
+            try (FileChannel canale = FileChannel.open(percorso(id), StandardOpenOption.WRITE)) {
+                canale.force(false);
+            } catch (NoSuchFileException e) {
+                // Corpo già eliminato da tutte le caselle
+            }
+        }
+    }
+
+    /**
+     * I file sono distribuiti in 256 sottocartelle per non avere directory enormi.
+     */
+    private Path percorso(UUID id) {
+        String nome = id.toString();
+        return directory.resolve(nome.substring(0, 2)).resolve(nome + ESTENSIONE);
+    }
+}
@@ -0,0 +1,157 @@
+package server.model;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compressione dei corpi dei messaggi con Deflate e dizionario predefinito.
+ * <p>
+ * I corpi sono brevi e molto ripetitivi (risposte, inoltri con il testo originale,
+ * saluti): un dizionario con le frasi ricorrenti permette a Deflate di comprimere
+ * bene anche messaggi di poche centinaia di byte, che senza dizionario non
+ * avrebbero abbastanza contesto.
+ * <p>
+ * Il dizionario fa parte del formato su disco: modificarlo richiede un nuovo
+ * {@link #METODO_DEFLATE_V1 metodo}, altrimenti i corpi già scritti non sarebbero
+ * più leggibili. Deflater e Inflater vengono riutilizzati, perché la loro allocazione
+ * (memoria nativa) costa più della compressione di un messaggio breve. Si usa un pool
+ * condiviso e non un ThreadLocal: con i virtual thread (un thread per richiesta) ogni
+ * richiesta allocherebbe un nuovo Deflater, liberato solo dal GC.
+ */
+class CompressoreCorpi {
+
+    // Deflate "raw" con il dizionario DIZIONARIO_V1
+    static final byte METODO_DEFLATE_V1 = 1;
+
+    // Frasi ricorrenti, le più frequenti verso la fine (distanze più corte)
+    private static final byte[] DIZIONARIO_V1 = (
+            "Gentile, in allegato trovi quanto richiesto. Fammi sapere se hai domande. "
+            + "Buona giornata, a presto. Un saluto, Distinti saluti, "
+            + "Ciao, grazie per la risposta. Va bene, ci sentiamo domani. "
+            + "Re: Fwd: Oggetto: Da: A: Data: "
+            + "mario@test.it luigi@test.it peach@test.it spike@test.it "
+            + "Cordiali saluti\n"
+            + "\n\n--- Messaggio Inoltrato ---\n"
+    ).getBytes(StandardCharsets.UTF_8);
+
+    private final boolean attiva;
+    private final int livello;
+    private final int sogliaBytes;
+
+    // Compressori liberi, riutilizzati tra le richieste
+    private final Queue<Deflater> deflaterLiberi = new ConcurrentLinkedQueue<>();
+    private final Queue<Inflater> inflaterLiberi = new ConcurrentLinkedQueue<>();
+
+    // Statistiche per rapporto di compressione e throughput
+    private final LongAdder byteOriginali = new LongAdder();
+    private final LongAdder byteCompressi = new LongAdder();
+    private final LongAdder nanosCompressione = new LongAdder();
+    private final LongAdder byteDecompressi = new LongAdder();
+    private final LongAdder nanosDecompressione = new LongAdder();
+
+    /**
+     * @param sogliaBytes I corpi più corti vengono salvati senza compressione.
+     */
+    CompressoreCorpi(boolean attiva, int livello, int sogliaBytes) {
+        this.attiva = attiva;
+        this.livello = livello;
+        this.sogliaBytes = sogliaBytes;
+
+        ServerMetrics.registraIndicatore("compressione.rapportoPercento", this::rapportoPercento);
+        ServerMetrics.registraIndicatore("compressione.kbPerSec",
+                () -> kbPerSecondo(byteOriginali.sum(), nanosCompressione.sum()));
+        ServerMetrics.registraIndicatore("decompressione.kbPerSec",
+                () -> kbPerSecondo(byteDecompressi.sum(), nanosDecompressione.sum()));
+    }
+
+    /**
+     * @return I byte compressi, oppure null se la compressione è disattivata o non conviene.
+     */
+    byte[] comprimi(byte[] testo) {
+        if (!attiva || testo.length < sogliaBytes) {
+            return null;
+        }
+        long inizio = System.nanoTime();
+        Deflater d = deflaterLiberi.poll();
+        if (d == null) {
+            d = new Deflater(livello, true);
+        }
+
+        byte[] uscita = new byte[testo.length];
+        int scritti = 0;
+        boolean conviene;
+        try {
+            d.setDictionary(DIZIONARIO_V1);
+            d.setInput(testo);
+            d.finish();
+
+            // Se il risultato non sta in meno byte dell'originale non conviene comprimere
+            while (!d.finished() && scritti < uscita.length) {
+                scritti += d.deflate(uscita, scritti, uscita.length - scritti);
+            }
+            conviene = d.finished() && scritti < testo.length;
+        } finally {
+            d.reset();
+            deflaterLiberi.add(d);
+        }
+
+        nanosCompressione.add(System.nanoTime() - inizio);
+        byteOriginali.add(testo.length);
+        byteCompressi.add(conviene ? scritti : testo.length);
+        return conviene ? Arrays.copyOf(uscita, scritti) : null;
+    }
+
+    /**
+     * Decomprime {@code lunghezza} byte di {@code dati} a partire da {@code offset}.
+     *
+     * @param lunghezzaOriginale La dimensione del testo prima della compressione.
+     */
+    byte[] decomprimi(byte metodo, byte[] dati, int offset, int lunghezza, int lunghezzaOriginale)
+            throws DataFormatException {
+        if (metodo != METODO_DEFLATE_V1) {
+            throw new DataFormatException("Metodo di compressione sconosciuto: " + metodo);
+        }
+        long inizio = System.nanoTime();
+        Inflater i = inflaterLiberi.poll();
+        if (i == null) {
+            i = new Inflater(true);
+        }
+
+        byte[] testo = new byte[lunghezzaOriginale];
+        try {
+            i.setDictionary(DIZIONARIO_V1);
+            i.setInput(dati, offset, lunghezza);
+
+            int letti = 0;
+            while (letti < testo.length) {
+                int n = i.inflate(testo, letti, testo.length - letti);
+                if (n == 0 && (i.finished() || i.needsInput())) {
+                    throw new DataFormatException("Corpo compresso troncato");
+                }
+                letti += n;
+            }
+        } finally {
+            i.reset();
+            inflaterLiberi.add(i);
+        }
+
+        nanosDecompressione.add(System.nanoTime() - inizio);
+        byteDecompressi.add(testo.length);
+        return testo;
+    }
+
+    private long rapportoPercento() {
+        long originali = byteOriginali.sum();
+        return originali == 0 ? 100 : byteCompressi.sum() * 100 / originali;
+    }
+
+    private static long kbPerSecondo(long bytes, long nanos) {
+        return nanos == 0 ? 0 : bytes * 1_000_000_000L / nanos / 1024;
+    }
+}
@@ -1,54 +1,236 @@
 package server.model;
 
 import common.Email;
+import common.EmailCodec;
+import common.Protocollo;
+import server.ServerConfig;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BooleanSupplier;
 
 /**
  * Gestore della Persistenza su file system locale.
  * <p>
- * Utilizza ReentrantReadWriteLock per permettere letture parallele (scalabilità)
- * mantenendo la sicurezza esclusiva per le scritture.
+ * Ogni casella è memorizzata in un log append-only ({@link MailboxLog}) in
+ * {@code mail-data/<utente>.log}; i vecchi file {@code .dat} vengono migrati
+ * automaticamente alla prima apertura. Il testo dei messaggi è condiviso tra i
+ * destinatari in un {@link BodyStore} ({@code mail-data/bodies/}). La cartella si
+ * configura con {@code mail.dati}.
+ * Le caselle lette vengono tenute in una {@link MailboxCache} aggiornata in
+ * write-through da salvataggi e cancellazioni.
+ * Le cancellazioni aggiungono solo un tombstone al log: lo spazio viene recuperato
+ * in background dal {@link MailboxCompactor}.
+ * <p>
+ * Le consegne vengono prima registrate nel {@link WriteAheadLog} condiviso, con un
+ * fsync raggruppato per più messaggi; caselle e corpi vengono resi persistenti dal
+ * {@link #checkpoint()} periodico. All'avvio le consegne rimaste nel WAL vengono riapplicate.
+ * <p>
+ * Utilizza un ReentrantReadWriteLock per ogni casella (lock striping) per permettere
+ * letture parallele e scritture parallele su utenti diversi, mantenendo la
+ * sicurezza esclusiva per le scritture sulla stessa casella.
  */
 public class FileManager {
 
-    private static final String DIR_PATH = "mail-data/";
 
-    // Creiamo il gestore dei Lock
-    private final ReadWriteLock rwl = new ReentrantReadWriteLock();
-    private final Lock rLock = rwl.readLock();
-    private final Lock wLock = rwl.writeLock();
+    // Numero di lock (potenza di 2): caselle diverse finiscono quasi sempre su lock diversi
+    private static final int N_STRIPE = 64;
+
+    // Budget predefinito della cache delle caselle decodificate (32 MB)
+    private static final long CACHE_MAX_BYTES = 32L * 1024 * 1024;
+
+    // Oltre questa dimensione del log la casella non viene decodificata per intero (4 MB)
+    private static final long SOGLIA_VISTA_PIGRA = 4L * 1024 * 1024;
+
+    // Da questa dimensione le risposte vengono trasferite dal file al socket (64 KB)
+    private static final long SOGLIA_ZERO_COPY = 64L * 1024;
+
+    // Lock striping: ogni casella usa il ReadWriteLock della propria "striscia",
+    // così le scritture verso utenti diversi procedono in parallelo
+    private final ReadWriteLock[] stripe = new ReadWriteLock[N_STRIPE];
+
+    // Log append-only aperti, uno per casella (aperti alla prima richiesta)
+    private final Map<String, MailboxLog> logs = new ConcurrentHashMap<>();
+
+    // Cache write-through delle caselle già decodificate
+    private final MailboxCache cache;
+
+    // Corpi dei messaggi, memorizzati una sola volta per tutti i destinatari
+    private final BodyStore corpi;
+
+    // Cartella dei dati (mail.dati)
+    private final Path dati;
+
+    // Destinazione dei messaggi dell'archivio (errori, recupero, migrazioni)
+    private final RegistroServer registro;
+
+    private final long sogliaVistaPigra;
+    private final long sogliaZeroCopy;
+
+    // Compattazione in background dei log con troppi messaggi cancellati
+    private final MailboxCompactor compattatore;
+
+    // Registro delle consegne, reso persistente con group commit
+    private final WriteAheadLog wal;
+
+    // Le consegne lo condividono (ReadLock), il checkpoint lo prende in esclusiva
+    // per cambiare segmento del WAL senza consegne a metà
+    private final ReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+
+    // Impostato da chiudi() con il WriteLock del checkpoint: nessuna consegna dopo la chiusura
+    private volatile boolean chiuso;
+
+    // Consegne registrate nel WAL ma non applicate per un errore di scrittura di corpo o buste:
+    // finché non vengono completate, il checkpoint non elimina i segmenti del WAL
+    private final Queue<WriteAheadLog.Consegna> daRiapplicare = new ConcurrentLinkedQueue<>();
 
-    public FileManager() {
-        File directory = new File(DIR_PATH);
+    /**
+     * Apre l'archivio in {@code mail.dati}, recuperando dal WAL le consegne non ancora applicate.
+     *
+     * @param registro Riceve i messaggi dell'archivio (di norma {@link ServerModel#addLog}).
+     */
+    public FileManager(RegistroServer registro) {
+        this.registro = registro;
+        this.cache = new MailboxCache(ServerConfig.getLong("mail.cache.maxBytes", CACHE_MAX_BYTES));
+        this.sogliaVistaPigra = ServerConfig.getLong("mail.mmap.sogliaBytes", SOGLIA_VISTA_PIGRA);
+        this.sogliaZeroCopy = ServerConfig.getLong("mail.zerocopy.sogliaBytes", SOGLIA_ZERO_COPY);
+
+        for (int i = 0; i < N_STRIPE; i++) {
+            stripe[i] = new ReentrantReadWriteLock();
+        }
+
+        this.dati = Paths.get(ServerConfig.getString("mail.dati", "mail-data"));
+        File directory = dati.toFile();
         if (!directory.exists()) {
-            boolean creata = directory.mkdir();
-            if (creata) System.out.println("Cartella 'mail-data' creata correttamente.");
+            boolean creata = directory.mkdirs();
+            if (creata) registro.scrivi("Cartella '" + dati + "' creata correttamente.");
         }
+
+        try {
+            this.corpi = new BodyStore(dati.resolve("bodies"), new CompressoreCorpi(
+                    Boolean.parseBoolean(ServerConfig.getString("mail.corpi.compressione", "true")),
+                    ServerConfig.getInt("mail.corpi.livello", 6),
+                    ServerConfig.getInt("mail.corpi.sogliaBytes", 64)));
+            this.wal = WriteAheadLog.apri(dati.resolve("wal"),
+                    ServerConfig.getString("mail.wal.durabilita", "batch"),
+                    ServerConfig.getLong("mail.wal.batchMs", 5), registro);
+            ripristina();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Impossibile inizializzare l'archivio della posta", e);
+        }
+
+        this.compattatore = new MailboxCompactor(this);
+        compattatore.avvia();
     }
 
     /**
-     * OPERAZIONE DI SCRITTURA (WriteLock)
-     * Deve essere esclusiva: nessun altro può leggere o scrivere mentre salvo.
+     * Consegna un messaggio a tutti i destinatari (single-instance storage).
+     * <p>
+     * La consegna viene prima registrata nel WAL: al ritorno del metodo il messaggio
+     * è persistente secondo la modalità {@code mail.wal.durabilita}.
+     * Il testo viene scritto una sola volta nel {@link BodyStore}, con tanti
+     * riferimenti quanti sono i destinatari; ogni casella riceve solo la busta.
+     * L'identificativo del messaggio viene assegnato qui: quello scelto dal client
+     * potrebbe coincidere con un messaggio già archiviato.
+     * <p>
+     * Se dopo il WAL la scrittura del corpo o di una busta fallisce, la consegna resta
+     * confermata: viene completata dal prossimo {@link #checkpoint()}, che fino ad allora
+     * non elimina il segmento del WAL che la contiene.
+     *
+     * @throws IOException Se la consegna non può essere registrata nel WAL
+     *                     (in questo caso non viene applicata a nessuna casella).
      */
-    public void salvaEmail(String utente, Email email) {
-        wLock.lock(); // CHIUDO IL LUCCHETTO
-        try {
-            List<Email> inbox = caricaEmail(utente);
+    public void salvaEmail(List<String> destinatari, Email email) throws IOException {
+        // Nuovo identificativo (un id ripetuto sostituirebbe il corpo di un altro messaggio);
+        // la data viene portata alla precisione del formato su disco
+        email = EmailCodec.normalizza(new Email(UUID.randomUUID(), email.getMittente(), email.getDestinatari(),
+                email.getOggetto(), email.getTesto(), email.getDataSpedizione()));
 
-            inbox.add(email);
+        Lock cLock = checkpointLock.readLock();
+        cLock.lock();
+        try {
+            if (chiuso) {
+                throw new IOException("Archivio chiuso: server in arresto.");
+            }
+            wal.registra(destinatari, email);
 
-            try (ObjectOutputStream out = new ObjectOutputStream(
-                    new FileOutputStream(DIR_PATH + utente + ".dat"))) {
-                out.writeObject(inbox);
+            boolean completa = true;
+            try {
+                int salvati = corpi.salva(email.getId(), email.getTesto(), destinatari.size());
+                registraCompressione(destinatari, email.getTesto(), salvati);
             } catch (IOException e) {
-                e.printStackTrace();
-                System.err.println("Errore critico salvataggio mail per: " + utente);
+                segnala("Errore critico salvataggio del messaggio " + email.getId(), e);
+                completa = false;
+            }
+
+            // Senza corpo le buste non vengono scritte: le completa il checkpoint insieme al testo
+            for (int i = 0; completa && i < destinatari.size(); i++) {
+                completa = salvaBusta(destinatari.get(i), email);
+            }
+
+            if (!completa) {
+                // La consegna è già confermata dal WAL: il suo segmento resta finché non è applicata
+                daRiapplicare.add(new WriteAheadLog.Consegna(destinatari, email));
+                ServerMetrics.incrementa("wal.consegneSospese");
             }
+        } finally {
+            cLock.unlock();
+        }
+    }
+
+    /**
+     * Statistiche di compressione per casella: ogni destinatario "vede" il corpo per
+     * intero, anche se su disco è condiviso.
+     */
+    private void registraCompressione(List<String> destinatari, String testo, int salvati) {
+        long originali = testo == null ? 0 : testo.getBytes(StandardCharsets.UTF_8).length;
+        for (String destinatario : destinatari) {
+            ServerMetrics.aggiungi("casella." + destinatario + ".corpi.byteOriginali", originali);
+            ServerMetrics.aggiungi("casella." + destinatario + ".corpi.byteSalvati", salvati);
+        }
+    }
+
+    /**
+     * Consegna un messaggio a un singolo destinatario.
+     */
+    public void salvaEmail(String utente, Email email) throws IOException {
+        salvaEmail(List.of(utente), email);
+    }
+
+    /**
+     * OPERAZIONE DI SCRITTURA (WriteLock)
+     * Aggiunge un solo record in coda al log della casella: non rilegge né
+     * riscrive i messaggi già presenti.
+     *
+     * @return false se la busta non è stata scritta.
+     */
+    private boolean salvaBusta(String utente, Email email) {
+        Lock wLock = lockDi(utente).writeLock();
+        wLock.lock(); // CHIUDO IL LUCCHETTO
+        try {
+            creaLog(utente).appendBusta(email);
+            cache.aggiungi(utente, email);
+            return true;
+        } catch (IOException | UncheckedIOException e) {
+            cache.invalida(utente);
+            segnala("Errore critico salvataggio mail per: " + utente, e);
+            return false;
         } finally {
             wLock.unlock(); // APRO IL LUCCHETTO
         }
@@ -57,24 +239,267 @@ public class FileManager {
     /**
      * OPERAZIONE DI LETTURA (ReadLock)
      * Più thread possono entrare qui contemporaneamente.
+     * Il lock è rientrante: il metodo può essere chiamato anche da un thread
+     * che possiede già il WriteLock della stessa casella.
+     *
+     * Le caselle grandi ({@code mail.mmap.sogliaBytes}) non vengono decodificate né
+     * messe in cache: si restituisce una vista che legge ogni messaggio dalla memoria
+     * mappata solo quando viene richiesto, così l'heap dipende dai messaggi usati e
+     * non dalla dimensione della casella.
+     *
+     * @return La casella in sola lettura (servita dalla cache quando possibile).
      */
-    @SuppressWarnings("unchecked")
     public List<Email> caricaEmail(String utente) {
+        Lock rLock = lockDi(utente).readLock();
+        rLock.lock(); // CHIUDO IL LUCCHETTO
+        try {
+            List<Email> inCache = cache.get(utente);
+            if (inCache != null) {
+                return inCache;
+            }
+            MailboxLog log = getLog(utente);
+            if (log == null) return List.of();
+            if (log.dimensione() > sogliaVistaPigra) {
+                ServerMetrics.incrementa("store.vistePigre");
+                return log.vista(corpi);
+            }
+            // Il ReadLock esclude gli scrittori: la cache non può ricevere una versione superata
+            return cache.put(utente, log.leggiTutte(corpi));
+        } catch (IOException | UncheckedIOException e) {
+            segnala("Errore lettura casella di " + utente, e);
+            return new ArrayList<>();
+        } finally {
+            rLock.unlock(); // APRO IL LUCCHETTO
+        }
+    }
+
+    /**
+     * OPERAZIONE DI LETTURA (ReadLock)
+     * Restituisce le sole buste della casella (tutti i campi tranne il testo).
+     * <p>
+     * Dal log si leggono solo i record delle buste, senza accedere ai corpi; le caselle
+     * grandi vengono restituite come vista pigra, come in {@link #caricaEmail}.
+     */
+    public List<Email> caricaBuste(String utente) {
+        Lock rLock = lockDi(utente).readLock();
+        rLock.lock(); // CHIUDO IL LUCCHETTO
+        try {
+            List<Email> inCache = cache.get(utente);
+            if (inCache != null) {
+                List<Email> buste = new ArrayList<>(inCache.size());
+                for (Email email : inCache) {
+                    buste.add(email.busta());
+                }
+                return buste;
+            }
+            MailboxLog log = getLog(utente);
+            if (log == null) return List.of();
+            if (log.dimensione() > sogliaVistaPigra) {
+                ServerMetrics.incrementa("store.vistePigre");
+                return log.vista(null);
+            }
+            return log.leggiTutte(null);
+        } catch (IOException | UncheckedIOException e) {
+            segnala("Errore lettura buste di " + utente, e);
+            return new ArrayList<>();
+        } finally {
+            rLock.unlock(); // APRO IL LUCCHETTO
+        }
+    }
+
+    /**
+     * OPERAZIONE DI LETTURA (ReadLock)
+     * Prepara l'invio delle buste della casella come record del log, senza decodificarle.
+     * Il lock serve solo a fotografare i record presenti: l'invio avviene dopo, dal file
+     * aperto per il trasferimento.
+     */
+    public Trasferimento trasferimentoBuste(String utente) throws IOException {
+        Lock rLock = lockDi(utente).readLock();
+        rLock.lock(); // CHIUDO IL LUCCHETTO
+        try {
+            MailboxLog log = getLog(utente);
+            if (log == null) return Trasferimento.record(null, 0);
+            ServerMetrics.incrementa("store.trasferimenti");
+            return log.buste(sogliaZeroCopy);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            rLock.unlock(); // APRO IL LUCCHETTO
+        }
+    }
+
+    /**
+     * OPERAZIONE DI LETTURA (ReadLock)
+     * Prepara l'invio del testo di un messaggio della casella senza decodificarlo.
+     *
+     * @return Il trasferimento, oppure null se il messaggio non è nella casella.
+     */
+    public Trasferimento trasferimentoCorpo(String utente, UUID id) throws IOException {
+        Lock rLock = lockDi(utente).readLock();
+        rLock.lock(); // CHIUDO IL LUCCHETTO
+        try {
+            MailboxLog log = getLog(utente);
+            if (log == null) return null;
+            if (log.presenteComeBusta(id)) {
+                ServerMetrics.incrementa("store.trasferimenti");
+                return corpi.trasferimento(id, sogliaZeroCopy);
+            }
+            // Messaggio completo nel log (casella migrata): il testo è già nel record
+            Email email = log.leggi(id, corpi);
+            if (email == null) return null;
+            Trasferimento trasferimento = Trasferimento.testo(null);
+            String testo = email.getTesto() == null ? "" : email.getTesto();
+            trasferimento.aggiungi(ByteBuffer.wrap(testo.getBytes(StandardCharsets.UTF_8)));
+            return trasferimento;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            rLock.unlock(); // APRO IL LUCCHETTO
+        }
+    }
+
+    /**
+     * OPERAZIONE DI LETTURA (ReadLock)
+     * Restituisce una pagina di buste, dalla più recente in ordine di arrivo.
+     * Le buste vengono lette direttamente dal log tramite l'indice, senza decodificare
+     * (né mettere in cache) il resto della casella.
+     *
+     * @return La pagina, oppure null se il riferimento {@code prima} non è più valido.
+     * @see MailboxLog#pagina(UUID, int)
+     */
+    public Pagina caricaPagina(String utente, UUID prima, int quante) {
+        Lock rLock = lockDi(utente).readLock();
+        rLock.lock(); // CHIUDO IL LUCCHETTO
+        try {
+            MailboxLog log = getLog(utente);
+            if (log == null) return prima == null ? new Pagina(List.of(), false) : null;
+            return log.pagina(prima, quante);
+        } catch (IOException | UncheckedIOException e) {
+            segnala("Errore lettura pagina di " + utente, e);
+            return new Pagina(new ArrayList<>(), false);
+        } finally {
+            rLock.unlock(); // APRO IL LUCCHETTO
+        }
+    }
+
+    /**
+     * OPERAZIONE DI LETTURA (ReadLock)
+     * Restituisce il testo di un messaggio della casella.
+     *
+     * @return Il testo, oppure null se il messaggio non è nella casella.
+     */
+    public String caricaCorpo(String utente, UUID id) {
+        Lock rLock = lockDi(utente).readLock();
+        rLock.lock(); // CHIUDO IL LUCCHETTO
+        try {
+            List<Email> inCache = cache.get(utente);
+            if (inCache != null) {
+                for (Email email : inCache) {
+                    if (email.getId().equals(id)) return email.getTesto();
+                }
+                return null;
+            }
+            MailboxLog log = getLog(utente);
+            if (log == null) return null;
+            Email email = log.leggi(id, corpi);
+            return email == null ? null : email.getTesto();
+        } catch (IOException | UncheckedIOException e) {
+            segnala("Errore lettura messaggio " + id + " di " + utente, e);
+            return null;
+        } finally {
+            rLock.unlock(); // APRO IL LUCCHETTO
+        }
+    }
+
+    /**
+     * OPERAZIONE DI LETTURA (ReadLock)
+     * Restituisce le modifiche della casella (arrivi e cancellazioni) successive alla
+     * sequenza {@code seq} dell'epoca indicata.
+     */
+    public Modifiche caricaModifiche(String utente, long epoca, long seq) throws IOException {
+        Lock rLock = lockDi(utente).readLock();
+        rLock.lock(); // CHIUDO IL LUCCHETTO
+        try {
+            MailboxLog log = getLog(utente);
+            if (log == null) {
+                // Casella mai creata: nessuna numerazione, il client riparte da zero
+                return new Modifiche(0, 0, Protocollo.SYNC_RICARICA, List.of(), List.of());
+            }
+            return log.modifiche(epoca, seq);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            rLock.unlock(); // APRO IL LUCCHETTO
+        }
+    }
+
+    /**
+     * Indica se la casella è stata modificata dopo la sequenza {@code seq},
+     * consultando solo l'indice.
+     */
+    public boolean ciSonoModificheDopo(String utente, long epoca, long seq) {
+        Lock rLock = lockDi(utente).readLock();
+        rLock.lock(); // CHIUDO IL LUCCHETTO
+        try {
+            MailboxLog log = getLog(utente);
+            return log == null ? epoca != 0 || seq != 0 : log.modificataDopo(epoca, seq);
+        } catch (UncheckedIOException e) {
+            segnala("Errore lettura indice di " + utente, e);
+            return true;
+        } finally {
+            rLock.unlock(); // APRO IL LUCCHETTO
+        }
+    }
+
+    /**
+     * Indica se la casella contiene messaggi con data successiva a {@code istante},
+     * consultando solo l'indice.
+     */
+    public boolean ciSonoEmailDopo(String utente, LocalDateTime istante) {
+        Lock rLock = lockDi(utente).readLock();
         rLock.lock(); // CHIUDO IL LUCCHETTO
         try {
-            File file = new File(DIR_PATH + utente + ".dat");
+            MailboxLog log = getLog(utente);
+            return log != null && log.posizioniDopo(istante).length > 0;
+        } catch (UncheckedIOException e) {
+            segnala("Errore lettura indice di " + utente, e);
+            return false;
+        } finally {
+            rLock.unlock(); // APRO IL LUCCHETTO
+        }
+    }
 
-            if (!file.exists()) {
-                return new ArrayList<>();
+    /**
+     * OPERAZIONE DI LETTURA (ReadLock)
+     * Restituisce solo i messaggi spediti dopo {@code istante}.
+     * <p>
+     * L'indice della casella dice se ci sono novità: se non ce ne sono non si legge
+     * nulla dal disco; altrimenti si leggono soltanto i record nuovi (o si filtrano
+     * direttamente dalla cache, se la casella è già decodificata).
+     */
+    public List<Email> caricaEmailDopo(String utente, LocalDateTime istante) {
+        Lock rLock = lockDi(utente).readLock();
+        rLock.lock(); // CHIUDO IL LUCCHETTO
+        try {
+            MailboxLog log = getLog(utente);
+            int[] posizioni = log == null ? new int[0] : log.posizioniDopo(istante);
+            if (posizioni.length == 0) {
+                return List.of();
             }
 
-            try (ObjectInputStream in = new ObjectInputStream(
-                    new FileInputStream(file))) {
-                return (List<Email>) in.readObject();
-            } catch (IOException | ClassNotFoundException e) {
-                e.printStackTrace();
-                return new ArrayList<>();
+            List<Email> inCache = cache.get(utente);
+            if (inCache != null) {
+                // La cache non contiene i cancellati: le posizioni dell'indice non le corrispondono
+                List<Email> nuove = new ArrayList<>(posizioni.length);
+                for (Email email : inCache) {
+                    if (email.getDataSpedizione().isAfter(istante)) nuove.add(email);
+                }
+                return nuove;
             }
+            return log.leggi(posizioni, corpi);
+        } catch (IOException | UncheckedIOException e) {
+            segnala("Errore lettura casella di " + utente, e);
+            return new ArrayList<>();
         } finally {
             rLock.unlock(); // APRO IL LUCCHETTO
         }
@@ -82,24 +507,363 @@ public class FileManager {
 
     /**
      * OPERAZIONE DI SCRITTURA (WriteLock)
+     * Rimuove il messaggio dalla casella e rilascia il riferimento al suo corpo:
+     * il testo viene eliminato quando l'ultimo destinatario lo cancella.
      */
     public void cancellaEmail(String utente, Email emailDaRimuovere) {
+        Lock wLock = lockDi(utente).writeLock();
+        wLock.lock(); // CHIUDO IL LUCCHETTO
+        try {
+            MailboxLog log = getLog(utente);
+            if (log == null) return;
+            byte tipo = log.rimuovi(emailDaRimuovere.getId());
+
+            if (tipo != 0) {
+                cache.rimuovi(utente, emailDaRimuovere);
+            }
+            if (tipo == MailboxLog.TIPO_BUSTA) {
+                corpi.rilascia(emailDaRimuovere.getId());
+            }
+        } catch (IOException | UncheckedIOException e) {
+            cache.invalida(utente);
+            segnala("Errore cancellazione per " + utente, e);
+        } finally {
+            wLock.unlock(); // APRO IL LUCCHETTO
+        }
+    }
+
+    /**
+     * Compatta il log della casella se lo spazio occupato da messaggi cancellati
+     * supera la soglia.
+     * <p>
+     * Solo la fotografia iniziale (ReadLock) e la sostituzione finale dei file
+     * (WriteLock) avvengono sotto lock: la copia dei record, la parte lenta, procede
+     * senza bloccare né lettori né scrittori.
+     *
+     * @param soglia          Frazione minima di spazio morto (0-1).
+     * @param bytesPerSecondo Limite alla velocità di copia, per non saturare il disco.
+     * @param interrotta      Se vera la copia viene abbandonata (arresto del server).
+     * @return I byte recuperati (0 se la casella non è stata compattata).
+     */
+    long compatta(String utente, double soglia, long bytesPerSecondo, BooleanSupplier interrotta) {
+        MailboxLog log = logs.get(utente);
+        if (log == null) return 0;
+
+        MailboxLog.Compattazione compattazione;
+        Lock rLock = lockDi(utente).readLock();
+        rLock.lock(); // CHIUDO IL LUCCHETTO
+        try {
+            if (log.rapportoSpazioMorto() < soglia) return 0;
+            compattazione = log.preparaCompattazione();
+        } finally {
+            rLock.unlock(); // APRO IL LUCCHETTO
+        }
+
+        try {
+            // I messaggi cancellati della fotografia spariranno dal log: le loro consegne
+            // non devono restare nel WAL, altrimenti un recupero li farebbe ricomparire
+            checkpoint();
+            compattazione.copia(bytesPerSecondo, interrotta);
+        } catch (IOException e) {
+            compattazione.annulla();
+            segnala("Compattazione interrotta per: " + utente, e);
+            return 0;
+        }
+
+        Lock wLock = lockDi(utente).writeLock();
         wLock.lock(); // CHIUDO IL LUCCHETTO
         try {
-            List<Email> inbox = caricaEmail(utente);
+            long recuperati = compattazione.completa();
+            ServerMetrics.incrementa("compattazione.eseguite");
+            ServerMetrics.aggiungi("compattazione.byteRecuperati", recuperati);
+            return recuperati;
+        } catch (IOException e) {
+            compattazione.annulla();
+            // Il log potrebbe essere rimasto chiuso: verrà riaperto (e verificato) alla prossima richiesta
+            logs.remove(utente);
+            cache.invalida(utente);
+            segnala("Errore critico compattazione per: " + utente, e);
+            return 0;
+        } finally {
+            wLock.unlock(); // APRO IL LUCCHETTO
+        }
+    }
+
+    /**
+     * Rende persistenti caselle e corpi ed elimina i segmenti del WAL che li precedono.
+     * <p>
+     * Il WriteLock del checkpoint serve solo a cambiare segmento tra una consegna e
+     * l'altra; gli fsync delle caselle avvengono con il normale ReadLock di ognuna.
+     * <p>
+     * Le consegne rimaste a metà per un errore di scrittura vengono riapplicate prima:
+     * se qualcuna non riesce ancora, i segmenti restano (il recupero all'avvio la
+     * completerà) e il metodo fallisce, così la compattazione non procede.
+     *
+     * @throws IOException Se caselle e corpi non possono essere resi persistenti,
+     *                     o se restano consegne non applicate.
+     */
+    void checkpoint() throws IOException {
+        List<Path> segmenti;
+        Lock cLock = checkpointLock.writeLock();
+        cLock.lock();
+        try {
+            segmenti = wal.ruota();
+        } finally {
+            cLock.unlock();
+        }
+
+        // Le consegne sospese fin qui sono tutte nei segmenti appena chiusi
+        int sospese = daRiapplicare.size();
+        for (int i = 0; i < sospese; i++) {
+            WriteAheadLog.Consegna consegna = daRiapplicare.poll();
+            try {
+                riapplica(consegna);
+                ServerMetrics.incrementa("wal.consegneRiapplicate");
+            } catch (IOException | UncheckedIOException e) {
+                daRiapplicare.add(consegna);
+            }
+        }
+
+        for (String utente : caselleAperte()) {
+            Lock rLock = lockDi(utente).readLock();
+            rLock.lock(); // CHIUDO IL LUCCHETTO
+            try {
+                MailboxLog log = logs.get(utente);
+                if (log != null) log.force();
+            } finally {
+                rLock.unlock(); // APRO IL LUCCHETTO
+            }
+        }
+        corpi.sincronizza();
+
+        if (!daRiapplicare.isEmpty()) {
+            throw new IOException(daRiapplicare.size() + " consegne non ancora applicate: WAL conservato.");
+        }
+        wal.elimina(segmenti);
+        ServerMetrics.incrementa("wal.checkpoint");
+    }
+
+    /**
+     * Chiude l'archivio allo spegnimento del server.
+     * <p>
+     * Ferma la compattazione, attende le consegne in corso (il WriteLock del checkpoint
+     * le esclude) e rifiuta le successive; poi un ultimo checkpoint rende persistenti
+     * caselle e corpi e svuota il WAL, così il riavvio non deve riapplicare nulla.
+     */
+    public void chiudi() throws IOException {
+        compattatore.ferma();
+
+        Lock cLock = checkpointLock.writeLock();
+        cLock.lock();
+        try {
+            chiuso = true;
+        } finally {
+            cLock.unlock();
+        }
+        // Anche se il checkpoint fallisce caselle e WAL vanno chiusi: il WAL conservato
+        // verrà riapplicato al prossimo avvio
+        IOException errore = null;
+        try {
+            checkpoint();
+        } catch (IOException e) {
+            errore = e;
+        }
+
+        for (String utente : caselleAperte()) {
+            Lock wLock = lockDi(utente).writeLock();
+            wLock.lock(); // CHIUDO IL LUCCHETTO
+            try {
+                MailboxLog log = logs.remove(utente);
+                if (log != null) log.close();
+                cache.invalida(utente);
+            } finally {
+                wLock.unlock(); // APRO IL LUCCHETTO
+            }
+        }
+        wal.close();
+        if (errore != null) throw errore;
+    }
 
-            boolean removed = inbox.remove(emailDaRimuovere);
+    /**
+     * Riapplica le consegne rimaste nel WAL dopo un arresto non pulito.
+     */
+    private void ripristina() throws IOException {
+        List<WriteAheadLog.Consegna> consegne = wal.recupera();
+        int riapplicate = 0;
+
+        for (WriteAheadLog.Consegna consegna : consegne) {
+            if (riapplica(consegna)) riapplicate++;
+        }
 
-            if (removed) {
-                try (ObjectOutputStream out = new ObjectOutputStream(
-                        new FileOutputStream(DIR_PATH + utente + ".dat"))) {
-                    out.writeObject(inbox);
-                } catch (IOException e) {
-                    e.printStackTrace();
+        checkpoint();
+        if (!consegne.isEmpty()) {
+            registro.scrivi("Recupero dal WAL: " + consegne.size() + " consegne lette, "
+                    + riapplicate + " riapplicate.");
+        }
+    }
+
+    /**
+     * OPERAZIONE DI SCRITTURA (WriteLock di tutti i destinatari)
+     * Completa una consegna registrata nel WAL.
+     * <p>
+     * È idempotente: una busta viene aggiunta solo alle caselle che non hanno mai
+     * ricevuto il messaggio, e il corpo viene riscritto con un contatore pari alle
+     * caselle che lo contengono ancora. I lock dei destinatari, presi in ordine di
+     * striscia, escludono le cancellazioni mentre i riferimenti vengono contati.
+     *
+     * @return true se almeno una busta è stata aggiunta.
+     */
+    private boolean riapplica(WriteAheadLog.Consegna consegna) throws IOException {
+        Email email = consegna.email();
+        TreeMap<Integer, Lock> lucchetti = new TreeMap<>();
+        for (String destinatario : consegna.destinatari()) {
+            lucchetti.put(indiceStripe(destinatario), stripe[indiceStripe(destinatario)].writeLock());
+        }
+        lucchetti.values().forEach(Lock::lock); // CHIUDO I LUCCHETTI
+        try {
+            int riferimenti = 0;
+            boolean applicata = false;
+
+            for (String destinatario : consegna.destinatari()) {
+                MailboxLog log = creaLog(destinatario);
+                if (!log.contiene(email.getId())) {
+                    log.appendBusta(email);
+                    cache.invalida(destinatario);
+                    applicata = true;
                 }
+                if (log.presente(email.getId())) riferimenti++;
             }
+
+            // Il corpo potrebbe essere incompleto: viene sempre riscritto dal WAL
+            if (riferimenti > 0) {
+                corpi.ripristina(email.getId(), email.getTesto(), riferimenti);
+            } else {
+                corpi.elimina(email.getId());
+            }
+            return applicata;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         } finally {
-            wLock.unlock(); // APRO IL LUCCHETTO
+            lucchetti.descendingMap().values().forEach(Lock::unlock); // APRO I LUCCHETTI
+        }
+    }
+
+    /**
+     * @return Gli utenti le cui caselle sono attualmente aperte.
+     */
+    List<String> caselleAperte() {
+        return new ArrayList<>(logs.keySet());
+    }
+
+    /**
+     * @return La cartella dei dati ({@code mail.dati}).
+     */
+    Path getDati() {
+        return dati;
+    }
+
+    /**
+     * @return Il registro che riceve i messaggi dell'archivio.
+     */
+    RegistroServer getRegistro() {
+        return registro;
+    }
+
+    /**
+     * Restituisce il ReadWriteLock associato alla casella dell'utente.
+     * L'hash viene "mescolato" per distribuire meglio gli indirizzi simili.
+     */
+    private ReadWriteLock lockDi(String utente) {
+        return stripe[indiceStripe(utente)];
+    }
+
+    private static int indiceStripe(String utente) {
+        int h = utente.hashCode();
+        h ^= (h >>> 16);
+        return h & (N_STRIPE - 1);
+    }
+
+    /**
+     * Riporta un errore dell'archivio nel registro del server, con il tipo dell'eccezione.
+     */
+    private void segnala(String messaggio, Exception e) {
+        registro.scrivi(messaggio + " (" + e + ")");
+    }
+
+    // --- GESTIONE DEI FILE ---
+
+    /**
+     * Restituisce il log della casella, aprendolo alla prima richiesta.
+     * Letture e cancellazioni non creano caselle: se la casella non ha mai ricevuto
+     * messaggi non esiste alcun file, e il risultato è null.
+     */
+    private MailboxLog getLog(String utente) {
+        if (!chiuso && !logs.containsKey(utente)
+                && !Files.exists(percorso(utente, ".log")) && !Files.exists(percorso(utente, ".dat"))) {
+            return null;
+        }
+        return creaLog(utente);
+    }
+
+    /**
+     * Restituisce il log della casella, creandolo se non esiste (consegne).
+     */
+    private MailboxLog creaLog(String utente) {
+        if (chiuso) {
+            throw new UncheckedIOException(new IOException("Archivio chiuso: server in arresto."));
+        }
+        return logs.computeIfAbsent(utente, u -> {
+            try {
+                return apriLog(u);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * Apre il log di una casella.
+     * Se esiste solo il vecchio file {@code .dat} (lista serializzata per intero),
+     * i messaggi vengono migrati nel nuovo formato e il vecchio file viene
+     * rinominato in {@code .dat.bak}.
+     */
+    private MailboxLog apriLog(String utente) throws IOException {
+        Path log = percorso(utente, ".log");
+        Path legacy = percorso(utente, ".dat");
+
+        if (!Files.exists(log) && Files.exists(legacy)) {
+            List<Email> vecchie = caricaLegacy(legacy.toFile());
+            MailboxLog.crea(log, vecchie);
+            Files.move(legacy, legacy.resolveSibling(utente + ".dat.bak"),
+                    StandardCopyOption.REPLACE_EXISTING);
+            registro.scrivi("Mailbox " + utente + " migrata nel formato log (" + vecchie.size() + " messaggi).");
+        }
+        return MailboxLog.apri(log, registro);
+    }
+
+    /**
+     * File della casella con l'estensione indicata, sempre direttamente in {@code mail.dati}.
+     *
+     * @throws UncheckedIOException Se il nome della casella porterebbe fuori dalla cartella.
+     */
+    private Path percorso(String utente, String estensione) {
+        Path file = dati.resolve(utente + estensione).normalize();
+        if (!dati.normalize().equals(file.getParent())) {
+            throw new UncheckedIOException(new IOException("Nome di casella non valido: " + utente));
+        }
+        return file;
+    }
+
+    /**
+     * Legge una casella nel vecchio formato (ArrayList serializzato con ObjectOutputStream).
+     */
+    @SuppressWarnings("unchecked")
+    private List<Email> caricaLegacy(File file) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            return (List<Email>) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Formato legacy non valido: " + file, e);
         }
     }
-}
\ No newline at end of file
+}
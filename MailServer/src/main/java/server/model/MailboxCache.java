@@ -0,0 +1,204 @@
+package server.model;
+
+import common.Email;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cache in memoria delle caselle già decodificate, posta davanti a {@link FileManager}.
+ * <p>
+ * Il limite è espresso in byte (stima della dimensione dei messaggi), non in numero
+ * di caselle: quando il budget viene superato si eliminano le caselle usate meno di
+ * recente finché l'occupazione torna sotto la soglia (LRU pesata per dimensione).
+ * <p>
+ * Le liste memorizzate sono immutabili: le modifiche (write-through) sostituiscono
+ * la lista intera, così chi ha già letto una casella non vede mai modifiche a metà.
+ * La coerenza con il disco è garantita dal chiamante, che aggiorna la cache
+ * mentre possiede il lock della casella.
+ */
+class MailboxCache {
+
+    // Costo fisso stimato di un oggetto Email (header, UUID, LocalDateTime, lista)
+    private static final int OVERHEAD_EMAIL = 160;
+    private static final int OVERHEAD_STRINGA = 40;
+
+    private final long maxBytes;
+
+    // accessOrder = true: l'iterazione parte dalla casella usata meno di recente
+    private final LinkedHashMap<String, Voce> voci = new LinkedHashMap<>(16, 0.75f, true);
+    private final ReentrantLock lock = new ReentrantLock();
+    private long bytesUsati;
+
+    private record Voce(List<Email> emails, long peso) { }
+
+    MailboxCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        ServerMetrics.registraIndicatore("cache.bytes", this::getBytesUsati);
+        ServerMetrics.registraIndicatore("cache.caselle", this::getNumeroCaselle);
+    }
+
+    /**
+     * @return La casella in cache (immutabile) oppure null se assente.
+     */
+    List<Email> get(String utente) {
+        lock.lock();
+        try {
+            Voce voce = voci.get(utente);
+            if (voce == null) {
+                ServerMetrics.incrementa("cache.miss");
+                return null;
+            }
+            ServerMetrics.incrementa("cache.hit");
+            return voce.emails();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Inserisce (o sostituisce) una casella letta dal disco.
+     *
+     * @return La copia immutabile effettivamente memorizzata.
+     */
+    List<Email> put(String utente, List<Email> emails) {
+        List<Email> immutabile = List.copyOf(emails);
+        long peso = 0;
+        for (Email email : immutabile) {
+            peso += stimaDimensione(email);
+        }
+
+        lock.lock();
+        try {
+            rimuoviVoce(utente);
+
+            // Una casella più grande dell'intero budget non viene memorizzata
+            if (peso <= maxBytes) {
+                voci.put(utente, new Voce(immutabile, peso));
+                bytesUsati += peso;
+                evictSeNecessario();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return immutabile;
+    }
+
+    /**
+     * Write-through della consegna: aggiunge il messaggio solo se la casella è già in cache.
+     */
+    void aggiungi(String utente, Email email) {
+        lock.lock();
+        try {
+            Voce voce = voci.get(utente);
+            if (voce == null) return;
+
+            Email[] nuove = voce.emails().toArray(new Email[voce.emails().size() + 1]);
+            nuove[nuove.length - 1] = email;
+            long peso = voce.peso() + stimaDimensione(email);
+
+            voci.put(utente, new Voce(List.of(nuove), peso));
+            bytesUsati += peso - voce.peso();
+            evictSeNecessario();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write-through della cancellazione.
+     */
+    void rimuovi(String utente, Email email) {
+        lock.lock();
+        try {
+            Voce voce = voci.get(utente);
+            int posizione = voce == null ? -1 : voce.emails().indexOf(email);
+            if (posizione < 0) return;
+
+            // Come List.remove: si elimina solo la prima occorrenza. Il peso è quello del
+            // messaggio in cache, non della richiesta (il protocollo binario invia solo l'id)
+            List<Email> rimaste = new ArrayList<>(voce.emails());
+            Email rimossa = rimaste.remove(posizione);
+            long peso = voce.peso() - stimaDimensione(rimossa);
+
+            voci.put(utente, new Voce(List.copyOf(rimaste), peso));
+            bytesUsati += peso - voce.peso();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Scarta la casella dalla cache (es. dopo un errore di scrittura).
+     */
+    void invalida(String utente) {
+        lock.lock();
+        try {
+            rimuoviVoce(utente);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getBytesUsati() {
+        lock.lock();
+        try {
+            return bytesUsati;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getNumeroCaselle() {
+        lock.lock();
+        try {
+            return voci.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // --- METODI DI SUPPORTO (chiamati con il lock acquisito) ---
+
+    private void rimuoviVoce(String utente) {
+        Voce vecchia = voci.remove(utente);
+        if (vecchia != null) {
+            bytesUsati -= vecchia.peso();
+        }
+    }
+
+    private void evictSeNecessario() {
+        Iterator<Map.Entry<String, Voce>> it = voci.entrySet().iterator();
+        while (bytesUsati > maxBytes && it.hasNext()) {
+            Voce vittima = it.next().getValue();
+            it.remove();
+            bytesUsati -= vittima.peso();
+            ServerMetrics.incrementa("cache.eviction");
+        }
+    }
+
+    /**
+     * Stima dell'occupazione in memoria di un messaggio.
+     * Con le compact strings il testo latino occupa circa un byte per carattere.
+     */
+    static long stimaDimensione(Email email) {
+        long bytes = OVERHEAD_EMAIL
+                + stimaStringa(email.getMittente())
+                + stimaStringa(email.getOggetto())
+                + stimaStringa(email.getTesto());
+        if (email.getDestinatari() != null) {
+            for (String destinatario : email.getDestinatari()) {
+                bytes += stimaStringa(destinatario);
+            }
+        }
+        return bytes;
+    }
+
+    private static long stimaStringa(String s) {
+        return s == null ? 0 : OVERHEAD_STRINGA + s.length();
+    }
+}
@@ -0,0 +1,85 @@
+package server.model;
+
+import server.ServerConfig;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compattazione periodica in background dei log delle caselle.
+ * <p>
+ * Un singolo thread daemon, a intervalli regolari, esegue il checkpoint del
+ * {@link WriteAheadLog} e compatta le caselle aperte in cui i messaggi cancellati
+ * occupano più della soglia configurata:
+ * <ul>
+ * <li>{@code mail.compattazione.soglia}: percentuale di spazio morto (predefinito 50)</li>
+ * <li>{@code mail.compattazione.bytesPerSec}: velocità massima di copia (predefinito 4 MB/s, 0 = illimitata)</li>
+ * <li>{@code mail.compattazione.intervalloSec}: intervallo tra due controlli (predefinito 30)</li>
+ * </ul>
+ */
+class MailboxCompactor {
+
+    // Attesa massima del controllo in corso allo spegnimento
+    private static final long ATTESA_ARRESTO_SEC = 10;
+
+    private final FileManager fileManager;
+    private final double soglia;
+    private final long bytesPerSecondo;
+    private final long intervalloSec;
+
+    // Arresto cooperativo: un interrupt durante un transferTo chiuderebbe il canale del log
+    private volatile boolean fermato;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "mailbox-compactor");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+
+    MailboxCompactor(FileManager fileManager) {
+        this.fileManager = fileManager;
+        this.soglia = ServerConfig.getInt("mail.compattazione.soglia", 50) / 100.0;
+        this.bytesPerSecondo = ServerConfig.getLong("mail.compattazione.bytesPerSec", 4L * 1024 * 1024);
+        this.intervalloSec = Math.max(1, ServerConfig.getLong("mail.compattazione.intervalloSec", 30));
+    }
+
+    void avvia() {
+        scheduler.scheduleWithFixedDelay(this::controlla, intervalloSec, intervalloSec, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Ferma i controlli periodici e attende la fine di quello in corso: una copia
+     * già avviata viene abbandonata al prossimo intervallo di record.
+     */
+    void ferma() {
+        fermato = true;
+        scheduler.shutdown();
+        try {
+            if (!scheduler.awaitTermination(ATTESA_ARRESTO_SEC, TimeUnit.SECONDS)) {
+                fileManager.getRegistro().scrivi("Compattazione ancora in corso allo spegnimento.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void controlla() {
+        // Un'eccezione non gestita cancellerebbe le esecuzioni successive
+        try {
+            fileManager.checkpoint();
+            for (String utente : fileManager.caselleAperte()) {
+                if (fermato) return;
+                long recuperati = fileManager.compatta(utente, soglia, bytesPerSecondo, () -> fermato);
+                if (recuperati > 0) {
+                    fileManager.getRegistro().scrivi("Casella " + utente + " compattata: recuperati "
+                            + recuperati + " byte.");
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            fileManager.getRegistro().scrivi("Controllo di compattazione non riuscito (" + e + ")");
+        }
+    }
+}
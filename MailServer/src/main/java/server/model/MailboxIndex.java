@@ -0,0 +1,484 @@
+package server.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Indice persistente di una casella, in ordine di arrivo dei messaggi.
+ * <p>
+ * Formato del file ({@code <utente>.idx}):
+ * <pre>
+ * [MAGIC int][VERSIONE int][epoca long][seqScartata long]
+ * [id msb long][id lsb long][data long][dataMax long][offset long][lunghezza int][flags int]
+ * [seqCancellazione long][seqArrivo long]                                   64 byte per messaggio
+ * </pre>
+ * {@code data} è la data di spedizione in nanosecondi (epoch UTC), {@code dataMax} il
+ * massimo delle date fino a quel messaggio incluso: essendo monotona permette di
+ * trovare con una ricerca binaria il primo messaggio che può essere più recente di
+ * un certo istante, anche se le date di spedizione non arrivano in ordine.
+ * {@code offset} e {@code lunghezza} individuano il record nel {@link MailboxLog};
+ * il bit {@link #FLAG_CANCELLATO} dei flags marca i messaggi cancellati, in attesa
+ * che la compattazione ne recuperi lo spazio.
+ * <p>
+ * Ogni modifica della casella (arrivo o cancellazione di un messaggio) riceve un
+ * numero di sequenza crescente: {@code seqArrivo} e {@code seqCancellazione} (0 se il
+ * messaggio è ancora presente) permettono di rispondere a SYNC con le sole modifiche
+ * successive a quelle note al client. La compattazione conserva le sequenze dei
+ * messaggi copiati; di quelli scartati ricorda soltanto la sequenza più alta
+ * ({@code seqScartata}). L'{@code epoca} identifica la numerazione: cambia quando
+ * l'indice viene ricostruito dal log, perché le sequenze già comunicate ai client
+ * non sono più valide.
+ * <p>
+ * L'indice viene tenuto anche in memoria: un REFRESH senza novità costa un
+ * confronto con l'ultimo valore di {@code dataMax}, e la ricerca di un messaggio
+ * per identificativo (DELETE, FETCH_BODY, PAGE) passa da una mappa.
+ */
+class MailboxIndex {
+
+    static final int MAGIC = 0x4D494458; // "MIDX"
+    static final int VERSIONE = 2;
+    static final int HEADER_SIZE = 24;
+    static final int ENTRY_SIZE = 64;
+
+    // Posizione dell'epoca nell'intestazione
+    private static final int OFFSET_EPOCA = 8;
+
+    // Posizione del campo flags all'interno di una voce (seguito da seqCancellazione)
+    private static final int OFFSET_FLAGS = 44;
+
+    static final int FLAG_CANCELLATO = 1;
+
+    private final FileChannel canale;
+
+    // Colonne dell'indice in memoria
+    private long[] msb = new long[16];
+    private long[] lsb = new long[16];
+    private long[] data = new long[16];
+    private long[] dataMax = new long[16];
+    private long[] offset = new long[16];
+    private int[] lunghezza = new int[16];
+    private int[] flags = new int[16];
+    private long[] seqCancellazione = new long[16];
+    private long[] seqArrivo = new long[16];
+    private int size;
+
+    // Ultima voce di ogni messaggio; un identificativo ripetuto (possibile solo nelle
+    // caselle scritte quando gli id li sceglieva il client) fa cercare per scansione
+    private final Map<UUID, Integer> posizioni = new HashMap<>();
+    private boolean idRipetuti;
+
+    // Cancellazioni in ordine di sequenza (posizione della voce e sequenza)
+    private int[] cancellazioni = new int[16];
+    private long[] seqCancellazioni = new long[16];
+    private int numeroCancellazioni;
+
+    private long epoca;
+    private long seqScartata;
+    private long ultimaSequenza;
+
+    private MailboxIndex(FileChannel canale) {
+        this.canale = canale;
+    }
+
+    /**
+     * Apre (o crea) l'indice e ne carica le voci in memoria.
+     * Un'intestazione non valida produce un indice vuoto, che il chiamante ricostruirà dal log.
+     */
+    static MailboxIndex apri(Path path) throws IOException {
+        FileChannel canale = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MailboxIndex indice = new MailboxIndex(canale);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            canale.read(header, 0);
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != VERSIONE) {
+                indice.azzera();
+                return indice;
+            }
+            indice.epoca = header.getLong();
+            indice.seqScartata = header.getLong();
+            indice.ultimaSequenza = indice.seqScartata;
+
+            // Un'eventuale voce scritta a metà in coda viene ignorata
+            int voci = (int) ((canale.size() - HEADER_SIZE) / ENTRY_SIZE);
+            ByteBuffer dati = ByteBuffer.allocate(voci * ENTRY_SIZE);
+            while (dati.hasRemaining() && canale.read(dati, HEADER_SIZE + dati.position()) >= 0) { }
+            dati.flip();
+
+            for (int i = 0; i < voci; i++) {
+                indice.aggiungiInMemoria(dati.getLong(), dati.getLong(), dati.getLong(),
+                        dati.getLong(), dati.getLong(), dati.getInt(), dati.getInt(), dati.getLong(), dati.getLong());
+            }
+            canale.truncate(HEADER_SIZE + (long) voci * ENTRY_SIZE);
+            indice.ordinaCancellazioni();
+            return indice;
+        } catch (IOException | RuntimeException e) {
+            canale.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Svuota l'indice (in memoria e su disco), ad esempio prima di ricostruirlo.
+     * La numerazione delle modifiche riparte con una nuova epoca.
+     */
+    void azzera() throws IOException {
+        size = 0;
+        posizioni.clear();
+        idRipetuti = false;
+        numeroCancellazioni = 0;
+        seqScartata = 0;
+        ultimaSequenza = 0;
+        canale.truncate(0);
+        epoca = nuovaEpoca(0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSIONE).putLong(epoca).putLong(seqScartata).flip();
+        while (header.hasRemaining()) {
+            canale.write(header, header.position());
+        }
+    }
+
+    /**
+     * Cambia l'epoca mantenendo le voci: le sequenze comunicate in precedenza ai
+     * client non vengono più riconosciute (es. dopo aver recuperato dal log modifiche
+     * che l'indice non aveva registrato).
+     */
+    void cambiaEpoca() throws IOException {
+        scriviIntestazione(nuovaEpoca(epoca), seqScartata);
+    }
+
+    /**
+     * Imposta epoca e sequenza scartata (usato dalla compattazione, che prosegue
+     * la numerazione dell'indice originale).
+     */
+    void scriviIntestazione(long nuovaEpoca, long nuovaSeqScartata) throws IOException {
+        epoca = nuovaEpoca;
+        seqScartata = nuovaSeqScartata;
+        ultimaSequenza = Math.max(ultimaSequenza, seqScartata);
+        ByteBuffer valori = ByteBuffer.allocate(16).putLong(epoca).putLong(seqScartata).flip();
+        long posizione = OFFSET_EPOCA;
+        while (valori.hasRemaining()) {
+            posizione += canale.write(valori, posizione);
+        }
+    }
+
+    /**
+     * Registra un nuovo record del log.
+     */
+    void aggiungi(UUID id, LocalDateTime dataSpedizione, long offsetRecord, int lunghezzaRecord) throws IOException {
+        aggiungi(id.getMostSignificantBits(), id.getLeastSignificantBits(), toNanos(dataSpedizione),
+                offsetRecord, lunghezzaRecord, ultimaSequenza + 1);
+    }
+
+    /**
+     * Registra un nuovo record del log a partire dai valori grezzi di un'altra voce
+     * (usato dalla compattazione, che copia le voci in un nuovo indice).
+     */
+    void aggiungi(long m, long l, long nanos, long offsetRecord, int lunghezzaRecord, long seq) throws IOException {
+        long max = size == 0 ? nanos : Math.max(dataMax[size - 1], nanos);
+
+        ByteBuffer voce = ByteBuffer.allocate(ENTRY_SIZE);
+        voce.putLong(m)
+                .putLong(l)
+                .putLong(nanos)
+                .putLong(max)
+                .putLong(offsetRecord)
+                .putInt(lunghezzaRecord)
+                .putInt(0)
+                .putLong(0)
+                .putLong(seq)
+                .flip();
+        long posizione = HEADER_SIZE + (long) size * ENTRY_SIZE;
+        while (voce.hasRemaining()) {
+            posizione += canale.write(voce, posizione);
+        }
+
+        aggiungiInMemoria(m, l, nanos, max, offsetRecord, lunghezzaRecord, 0, 0, seq);
+    }
+
+    /**
+     * Marca come cancellata la voce in posizione {@code i} con una nuova sequenza.
+     */
+    void marcaCancellato(int i) throws IOException {
+        marcaCancellato(i, ultimaSequenza + 1);
+    }
+
+    /**
+     * Marca come cancellata la voce in posizione {@code i}, aggiornando sul posto
+     * i soli 12 byte di flags e sequenza della cancellazione.
+     */
+    void marcaCancellato(int i, long seq) throws IOException {
+        flags[i] |= FLAG_CANCELLATO;
+        seqCancellazione[i] = seq;
+        ultimaSequenza = Math.max(ultimaSequenza, seq);
+        registraCancellazione(i, seq);
+
+        ByteBuffer valore = ByteBuffer.allocate(12).putInt(flags[i]).putLong(seq).flip();
+        long posizione = HEADER_SIZE + (long) i * ENTRY_SIZE + OFFSET_FLAGS;
+        while (valore.hasRemaining()) {
+            posizione += canale.write(valore, posizione);
+        }
+    }
+
+    void force() throws IOException {
+        canale.force(false);
+    }
+
+    void close() throws IOException {
+        canale.close();
+    }
+
+    // --- INTERROGAZIONI ---
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return La posizione della prima occorrenza non cancellata del messaggio, oppure -1.
+     */
+    int cerca(UUID id) {
+        if (!idRipetuti) {
+            int i = posizione(id);
+            return i >= 0 && !cancellato(i) ? i : -1;
+        }
+        long m = id.getMostSignificantBits();
+        long l = id.getLeastSignificantBits();
+        for (int i = 0; i < size; i++) {
+            if (msb[i] == m && lsb[i] == l && !cancellato(i)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return true se il messaggio è stato registrato nella casella, anche se poi cancellato.
+     */
+    boolean contiene(UUID id) {
+        return posizione(id) >= 0;
+    }
+
+    /**
+     * @return La posizione dell'ultima voce del messaggio, anche se cancellata, oppure -1.
+     */
+    int posizione(UUID id) {
+        Integer i = posizioni.get(id);
+        return i == null ? -1 : i;
+    }
+
+    /**
+     * @return La posizione della voce che descrive il record all'offset indicato, oppure -1.
+     */
+    int cercaOffset(long offsetRecord) {
+        int i = Arrays.binarySearch(offset, 0, size, offsetRecord);
+        return i >= 0 ? i : -1;
+    }
+
+    /**
+     * Restituisce le posizioni dei messaggi (non cancellati) spediti dopo {@code istante},
+     * in ordine di arrivo. La ricerca binaria su {@code dataMax} salta tutti i messaggi
+     * sicuramente più vecchi.
+     */
+    int[] posizioniDopo(LocalDateTime istante) {
+        long soglia = toNanos(istante);
+        if (size == 0 || dataMax[size - 1] <= soglia) {
+            return new int[0];
+        }
+
+        // Primo i con dataMax[i] > soglia
+        int basso = 0, alto = size - 1;
+        while (basso < alto) {
+            int medio = (basso + alto) >>> 1;
+            if (dataMax[medio] > soglia) alto = medio;
+            else basso = medio + 1;
+        }
+
+        int[] risultato = new int[size - basso];
+        int k = 0;
+        for (int i = basso; i < size; i++) {
+            if (data[i] > soglia && !cancellato(i)) risultato[k++] = i;
+        }
+        return Arrays.copyOf(risultato, k);
+    }
+
+    /**
+     * Restituisce le posizioni dei messaggi (non cancellati) arrivati dopo la modifica
+     * {@code seq}, in ordine di arrivo. Le sequenze di arrivo crescono con la posizione,
+     * quindi basta una ricerca binaria.
+     */
+    int[] posizioniArrivateDopo(long seq) {
+        int basso = 0, alto = size;
+        while (basso < alto) {
+            int medio = (basso + alto) >>> 1;
+            if (seqArrivo[medio] > seq) alto = medio;
+            else basso = medio + 1;
+        }
+
+        int[] risultato = new int[size - basso];
+        int k = 0;
+        for (int i = basso; i < size; i++) {
+            if (!cancellato(i)) risultato[k++] = i;
+        }
+        return Arrays.copyOf(risultato, k);
+    }
+
+    /**
+     * Restituisce le posizioni dei messaggi cancellati dopo la modifica {@code seq},
+     * nell'ordine delle cancellazioni.
+     */
+    int[] posizioniCancellateDopo(long seq) {
+        int basso = 0, alto = numeroCancellazioni;
+        while (basso < alto) {
+            int medio = (basso + alto) >>> 1;
+            if (seqCancellazioni[medio] > seq) alto = medio;
+            else basso = medio + 1;
+        }
+        return Arrays.copyOfRange(cancellazioni, basso, numeroCancellazioni);
+    }
+
+    boolean cancellato(int i) {
+        return (flags[i] & FLAG_CANCELLATO) != 0;
+    }
+
+    long seqArrivo(int i) {
+        return seqArrivo[i];
+    }
+
+    long seqCancellazione(int i) {
+        return seqCancellazione[i];
+    }
+
+    long epoca() {
+        return epoca;
+    }
+
+    /**
+     * @return La sequenza più alta tra i messaggi eliminati dalla compattazione:
+     * le cancellazioni fino a questo punto non sono più elencabili.
+     */
+    long seqScartata() {
+        return seqScartata;
+    }
+
+    /**
+     * @return La sequenza dell'ultima modifica della casella.
+     */
+    long ultimaSequenza() {
+        return ultimaSequenza;
+    }
+
+    long offset(int i) {
+        return offset[i];
+    }
+
+    int lunghezza(int i) {
+        return lunghezza[i];
+    }
+
+    long msb(int i) {
+        return msb[i];
+    }
+
+    long lsb(int i) {
+        return lsb[i];
+    }
+
+    long dataNanos(int i) {
+        return data[i];
+    }
+
+    /**
+     * @return L'offset del log fino al quale l'indice è aggiornato.
+     */
+    long copertura() {
+        return size == 0 ? MailboxLog.HEADER_SIZE : offset[size - 1] + lunghezza[size - 1];
+    }
+
+    // --- METODI DI SUPPORTO ---
+
+    private void aggiungiInMemoria(long m, long l, long nanos, long max, long off, int len, int f,
+                                   long seqCanc, long seqArr) {
+        if (size == msb.length) {
+            int capacita = size * 2;
+            msb = Arrays.copyOf(msb, capacita);
+            lsb = Arrays.copyOf(lsb, capacita);
+            data = Arrays.copyOf(data, capacita);
+            dataMax = Arrays.copyOf(dataMax, capacita);
+            offset = Arrays.copyOf(offset, capacita);
+            lunghezza = Arrays.copyOf(lunghezza, capacita);
+            flags = Arrays.copyOf(flags, capacita);
+            seqCancellazione = Arrays.copyOf(seqCancellazione, capacita);
+            seqArrivo = Arrays.copyOf(seqArrivo, capacita);
+        }
+        msb[size] = m;
+        lsb[size] = l;
+        data[size] = nanos;
+        dataMax[size] = max;
+        offset[size] = off;
+        lunghezza[size] = len;
+        flags[size] = f;
+        seqCancellazione[size] = seqCanc;
+        seqArrivo[size] = seqArr;
+        if (posizioni.put(new UUID(m, l), size) != null) idRipetuti = true;
+        size++;
+        ultimaSequenza = Math.max(ultimaSequenza, Math.max(seqArr, seqCanc));
+    }
+
+    /**
+     * Inserisce una cancellazione mantenendo l'ordine per sequenza
+     * (di norma in coda: le nuove cancellazioni hanno la sequenza più alta).
+     */
+    private void registraCancellazione(int i, long seq) {
+        if (numeroCancellazioni == cancellazioni.length) {
+            cancellazioni = Arrays.copyOf(cancellazioni, numeroCancellazioni * 2);
+            seqCancellazioni = Arrays.copyOf(seqCancellazioni, numeroCancellazioni * 2);
+        }
+        int k = numeroCancellazioni;
+        while (k > 0 && seqCancellazioni[k - 1] > seq) {
+            cancellazioni[k] = cancellazioni[k - 1];
+            seqCancellazioni[k] = seqCancellazioni[k - 1];
+            k--;
+        }
+        cancellazioni[k] = i;
+        seqCancellazioni[k] = seq;
+        numeroCancellazioni++;
+    }
+
+    /**
+     * Ricostruisce l'elenco delle cancellazioni, ordinato per sequenza, dopo il caricamento.
+     */
+    private void ordinaCancellazioni() {
+        Integer[] ordine = new Integer[size];
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            if (cancellato(i)) ordine[n++] = i;
+        }
+        Arrays.sort(ordine, 0, n, (a, b) -> Long.compare(seqCancellazione[a], seqCancellazione[b]));
+        numeroCancellazioni = 0;
+        for (int k = 0; k < n; k++) {
+            registraCancellazione(ordine[k], seqCancellazione[ordine[k]]);
+        }
+    }
+
+    private static long nuovaEpoca(long precedente) {
+        long nuova;
+        do {
+            nuova = ThreadLocalRandom.current().nextLong();
+        } while (nuova == 0 || nuova == precedente);
+        return nuova;
+    }
+
+    static long toNanos(LocalDateTime data) {
+        return data.toEpochSecond(ZoneOffset.UTC) * 1_000_000_000L + data.getNano();
+    }
+}
@@ -0,0 +1,908 @@
+package server.model;
+
+import common.Email;
+import common.EmailCodec;
+import common.Protocollo;
+import server.ServerConfig;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.UUID;
+import java.util.function.BooleanSupplier;
+import java.util.zip.CRC32;
+
+/**
+ * Log append-only della casella di posta di un singolo utente.
+ * <p>
+ * Formato del file:
+ * <pre>
+ * [MAGIC int][VERSIONE int]                              intestazione
+ * [lunghezza int][crc32 int][tipo byte][payload ...]     un record per messaggio
+ * </pre>
+ * Ogni consegna aggiunge un solo record in coda al file, quindi il costo di
+ * scrittura non dipende più dalla dimensione della casella.
+ * Il CRC32 copre tipo e payload: un record scritto a metà (es. crash durante
+ * l'append) viene riconosciuto all'apertura e la coda del file viene troncata.
+ * <p>
+ * I record {@link #TIPO_EMAIL} contengono il messaggio completo (caselle migrate dal
+ * vecchio formato); i record {@link #TIPO_BUSTA} contengono solo la busta, mentre il
+ * testo è condiviso tra i destinatari nel {@link BodyStore}.
+ * Il payload è codificato con {@link EmailCodec}; i record scritti dalle versioni
+ * precedenti (serializzazione Java, riconoscibile dal magic {@code 0xACED}) restano
+ * leggibili e possono essere convertiti con {@link MigrazioneMailbox}.
+ * <p>
+ * Accanto al log viene mantenuto un {@link MailboxIndex} ({@code <utente>.idx}) che
+ * permette di leggere singoli record senza scorrere l'intero file. L'indice viene
+ * sempre scritto dopo il log: all'apertura le voci mancanti vengono ricostruite.
+ * <p>
+ * La cancellazione non riscrive il file: aggiunge un record {@link #TIPO_CANCELLAZIONE}
+ * (tombstone) e marca la voce nell'indice. Lo spazio occupato dai record cancellati
+ * viene recuperato in background dalla {@link Compattazione}.
+ * <p>
+ * Le letture passano per {@link SegmentiMappati}: il file è mappato in memoria a
+ * segmenti di dimensione fissa, e {@link #vista(BodyStore)} offre l'intera casella
+ * decodificando i messaggi solo quando vengono richiesti.
+ * <p>
+ * La classe non è thread-safe: la sincronizzazione è responsabilità di {@link FileManager}.
+ */
+class MailboxLog {
+
+    static final int MAGIC = 0x4D424F58; // "MBOX"
+    static final int VERSIONE = 1;
+    static final int HEADER_SIZE = 8;
+
+    // lunghezza (4) + crc (4) + tipo (1)
+    static final int FRAME_HEADER_SIZE = 9;
+
+    // Tipi di record
+    static final byte TIPO_EMAIL = 1;
+    static final byte TIPO_BUSTA = 2;
+    static final byte TIPO_CANCELLAZIONE = 3;
+
+    // Payload di un tombstone: id (16) + offset del record cancellato (8)
+    private static final int PAYLOAD_CANCELLAZIONE = 24;
+
+    // Limite di sicurezza: una lunghezza più grande indica un record corrotto
+    private static final int MAX_RECORD = 16 * 1024 * 1024;
+
+    // Dimensione dei segmenti mappati in memoria
+    private static final int DIMENSIONE_SEGMENTO = (int) Math.min(Integer.MAX_VALUE,
+            ServerConfig.getLong("mail.mmap.segmentoBytes", SegmentiMappati.DIMENSIONE_SEGMENTO));
+
+    private final Path path;
+    private final RegistroServer registro;
+    private MailboxIndex indice;
+    private FileChannel canale;
+    private SegmentiMappati mappa;
+
+    // Offset del primo byte dopo l'ultimo record valido
+    private long fine;
+
+    // Byte occupati da record cancellati e tombstone, recuperabili con la compattazione
+    private long byteMorti;
+
+    private MailboxLog(Path path, FileChannel canale, MailboxIndex indice, long fine, RegistroServer registro) {
+        this.path = path;
+        this.registro = registro;
+        this.canale = canale;
+        this.indice = indice;
+        this.fine = fine;
+        this.mappa = new SegmentiMappati(canale, DIMENSIONE_SEGMENTO);
+    }
+
+    /**
+     * Apre (o crea) il log, verifica l'intestazione e scarta un eventuale record
+     * incompleto in coda al file. Infine allinea l'indice al contenuto del log.
+     *
+     * @param registro Riceve gli avvisi sul contenuto del log (es. record scartati).
+     */
+    static MailboxLog apri(Path path, RegistroServer registro) throws IOException {
+        FileChannel canale = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MailboxIndex indice = null;
+        try {
+            if (canale.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSIONE).flip();
+                scriviTutto(canale, header, 0);
+            } else {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                leggiTutto(canale, header, 0);
+                header.flip();
+                if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+                    throw new IOException("Formato mailbox non riconosciuto: " + path);
+                }
+                int versione = header.getInt();
+                if (versione != VERSIONE) {
+                    throw new IOException("Versione mailbox non supportata (" + versione + "): " + path);
+                }
+            }
+
+            indice = MailboxIndex.apri(percorsoIndice(path));
+            MailboxLog log = new MailboxLog(path, canale, indice, canale.size(), registro);
+
+            // Durante la verifica si raccolgono i tombstone, da riapplicare all'indice
+            List<Long> cancellati = new ArrayList<>();
+            long fineValida = log.scansiona(HEADER_SIZE, (offset, tipo, payload) -> {
+                if (tipo == TIPO_CANCELLAZIONE) {
+                    cancellati.add(payload.getLong(16));
+                    log.byteMorti += FRAME_HEADER_SIZE + PAYLOAD_CANCELLAZIONE;
+                }
+            });
+            if (fineValida < canale.size()) {
+                // Coda incompleta lasciata da una scrittura interrotta
+                registro.scrivi("Mailbox " + path.getFileName() + ": scartati "
+                        + (canale.size() - fineValida) + " byte incompleti in coda.");
+                canale.truncate(fineValida);
+                log.mappa = new SegmentiMappati(canale, DIMENSIONE_SEGMENTO);
+            }
+            log.fine = fineValida;
+            log.allineaIndice(cancellati);
+            return log;
+        } catch (IOException | RuntimeException e) {
+            canale.close();
+            if (indice != null) indice.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Crea un nuovo log contenente i messaggi indicati.
+     * Il file viene prima scritto in una copia temporanea e poi sostituito
+     * atomicamente, così un crash non lascia mai un log a metà.
+     */
+    static void crea(Path path, List<Email> emails) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSIONE);
+            for (Email email : emails) {
+                out.write(frame(TIPO_EMAIL, email, true).array());
+            }
+        }
+        Files.deleteIfExists(percorsoIndice(path));
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Aggiunge in coda al log la busta di un messaggio, il cui testo è nel BodyStore
+     * (O(1) rispetto alla dimensione della casella).
+     */
+    void appendBusta(Email email) throws IOException {
+        ByteBuffer frame = frame(TIPO_BUSTA, email, false);
+        long offset = fine;
+        scriviTutto(canale, frame, offset);
+        fine += frame.capacity();
+        indice.aggiungi(email.getId(), email.getDataSpedizione(), offset, frame.capacity());
+    }
+
+    /**
+     * Legge tutti i messaggi presenti nel log (esclusi i cancellati), nell'ordine di arrivo,
+     * completando le buste con il testo preso da {@code corpi}.
+     *
+     * @param corpi null per leggere solo le buste, senza accedere ai corpi.
+     */
+    List<Email> leggiTutte(BodyStore corpi) throws IOException {
+        List<Email> emails = new ArrayList<>();
+        // I record dei messaggi compaiono nel log nello stesso ordine delle voci dell'indice
+        int[] voce = {0};
+        scansiona(HEADER_SIZE, (offset, tipo, payload) -> {
+            if (tipo == TIPO_CANCELLAZIONE) return;
+            int i = voce[0]++;
+            if (i < indice.size() && indice.offset(i) == offset && indice.cancellato(i)) return;
+            emails.add(decodifica(tipo, payload, corpi, registro));
+        });
+        return emails;
+    }
+
+    /**
+     * Posizioni (in ordine di arrivo) dei messaggi spediti dopo {@code istante}.
+     */
+    int[] posizioniDopo(LocalDateTime istante) {
+        return indice.posizioniDopo(istante);
+    }
+
+    /**
+     * Legge solo i record indicati, accedendo direttamente agli offset dell'indice.
+     */
+    List<Email> leggi(int[] posizioni, BodyStore corpi) throws IOException {
+        List<Email> emails = new ArrayList<>(posizioni.length);
+        for (int i : posizioni) {
+            emails.add(leggiRecord(mappa, indice.offset(i), indice.lunghezza(i), corpi, registro));
+        }
+        return emails;
+    }
+
+    /**
+     * Restituisce i messaggi presenti (in ordine di arrivo) senza decodificarli:
+     * ogni messaggio viene letto dalla memoria mappata solo quando si chiama {@code get}.
+     * <p>
+     * La vista è una fotografia: non riflette consegne e cancellazioni successive,
+     * come le liste immutabili della cache. I segmenti che contiene vengono mappati
+     * subito, così resta leggibile anche dopo la compattazione o la chiusura del log.
+     */
+    List<Email> vista(BodyStore corpi) throws IOException {
+        int n = indice.size();
+        long[] offset = new long[n];
+        int[] lunghezza = new int[n];
+        int k = 0;
+        for (int i = 0; i < n; i++) {
+            if (indice.cancellato(i)) continue;
+            offset[k] = indice.offset(i);
+            lunghezza[k] = indice.lunghezza(i);
+            k++;
+        }
+        // Gli offset crescono con l'ordine di arrivo: l'ultimo record chiude l'intervallo
+        mappa.mappaFino(k == 0 ? 0 : offset[k - 1] + lunghezza[k - 1]);
+        return new VistaPigra(mappa, offset, lunghezza, k, corpi, registro);
+    }
+
+    /**
+     * Legge una pagina di buste, dalla più recente alla meno recente in ordine di arrivo.
+     * Si decodificano solo i record della pagina: il costo non dipende dalla dimensione
+     * della casella.
+     *
+     * @param prima   Ultima busta della pagina precedente (null per partire dalla più recente);
+     *                resta un riferimento valido anche se nel frattempo è stata cancellata.
+     * @param quante  Numero massimo di buste.
+     * @return La pagina, oppure null se {@code prima} non è più nel log (casella compattata).
+     */
+    Pagina pagina(UUID prima, int quante) throws IOException {
+        int da = prima == null ? indice.size() : indice.posizione(prima);
+        if (da < 0) return null;
+
+        List<Email> buste = new ArrayList<>(Math.min(quante, da));
+        int i = da - 1;
+        for (; i >= 0 && buste.size() < quante; i--) {
+            if (indice.cancellato(i)) continue;
+            buste.add(leggiRecord(mappa, indice.offset(i), indice.lunghezza(i), null, registro));
+        }
+        // Ci sono altre pagine solo se resta un messaggio non cancellato
+        while (i >= 0 && indice.cancellato(i)) i--;
+        return new Pagina(buste, i >= 0);
+    }
+
+    /**
+     * Prepara l'invio delle buste presenti come record del log, senza decodificarle:
+     * i record {@link #TIPO_BUSTA} vengono trasferiti dal file così come sono, a blocchi
+     * contigui (dopo una compattazione tutta la casella è un unico blocco). Solo i record
+     * in un altro formato (messaggi completi o serializzazione Java) vengono ricodificati.
+     *
+     * @param sogliaFile Sotto questa dimensione del log i record vengono copiati in
+     *                   memoria dalla mappatura, invece di aprire il file.
+     */
+    Trasferimento buste(long sogliaFile) throws IOException {
+        FileChannel copia = fine >= Math.min(sogliaFile, Integer.MAX_VALUE - 8)
+                ? FileChannel.open(path, StandardOpenOption.READ) : null;
+        try {
+            int presenti = 0;
+            for (int i = 0; i < indice.size(); i++) {
+                if (!indice.cancellato(i)) presenti++;
+            }
+            Trasferimento trasferimento = Trasferimento.record(copia, presenti);
+
+            // Senza file: i record originali si copiano in un unico blocco (non più grande del log)
+            ByteBuffer blocco = copia == null ? ByteBuffer.allocate((int) fine) : null;
+            int inizioBlocco = 0;
+
+            for (int i = 0; i < indice.size(); i++) {
+                if (indice.cancellato(i)) continue;
+                long offset = indice.offset(i);
+                int lunghezza = indice.lunghezza(i);
+
+                ByteBuffer inizio = mappa.leggi(offset + 8, 2);
+                if (inizio.get(0) == TIPO_BUSTA && inizio.get(1) == EmailCodec.VERSIONE) {
+                    if (copia != null) trasferimento.aggiungi(offset, lunghezza);
+                    else blocco.put(mappa.leggi(offset, lunghezza));
+                    continue;
+                }
+                ByteBuffer ricodificato = frame(TIPO_BUSTA, leggiRecord(mappa, offset, lunghezza, null, registro), false);
+                if (blocco != null) {
+                    trasferimento.aggiungi(blocco.slice(inizioBlocco, blocco.position() - inizioBlocco));
+                    inizioBlocco = blocco.position();
+                }
+                trasferimento.aggiungi(ricodificato);
+            }
+            if (blocco != null) {
+                trasferimento.aggiungi(blocco.slice(inizioBlocco, blocco.position() - inizioBlocco));
+            }
+            return trasferimento;
+        } catch (IOException | RuntimeException e) {
+            if (copia != null) copia.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Modifiche della casella successive alla sequenza {@code seq} dell'epoca indicata.
+     * Si leggono dal log solo le buste dei messaggi arrivati: le cancellazioni sono
+     * già nell'indice.
+     */
+    Modifiche modifiche(long epoca, long seq) throws IOException {
+        long ultima = indice.ultimaSequenza();
+        if (epoca != indice.epoca() || seq > ultima) {
+            return new Modifiche(indice.epoca(), ultima, Protocollo.SYNC_RICARICA, List.of(), List.of());
+        }
+
+        List<Email> aggiunte = new ArrayList<>();
+        for (int i : indice.posizioniArrivateDopo(seq)) {
+            aggiunte.add(leggiRecord(mappa, indice.offset(i), indice.lunghezza(i), null, registro));
+        }
+
+        List<UUID> identificativi = new ArrayList<>();
+        if (seq < indice.seqScartata()) {
+            // Parte delle cancellazioni è stata eliminata dalla compattazione
+            for (int i = 0; i < indice.size(); i++) {
+                if (!indice.cancellato(i)) identificativi.add(new UUID(indice.msb(i), indice.lsb(i)));
+            }
+            return new Modifiche(indice.epoca(), ultima, Protocollo.SYNC_PRESENTI, aggiunte, identificativi);
+        }
+        for (int i : indice.posizioniCancellateDopo(seq)) {
+            identificativi.add(new UUID(indice.msb(i), indice.lsb(i)));
+        }
+        return new Modifiche(indice.epoca(), ultima, Protocollo.SYNC_DELTA, aggiunte, identificativi);
+    }
+
+    /**
+     * @return true se la casella ha modifiche successive alla sequenza {@code seq}
+     * (o la numerazione è cambiata), consultando solo l'indice.
+     */
+    boolean modificataDopo(long epoca, long seq) {
+        return epoca != indice.epoca() || indice.ultimaSequenza() != seq;
+    }
+
+    /**
+     * Legge un singolo messaggio presente nel log.
+     *
+     * @return Il messaggio completo di testo, oppure null se non è presente.
+     */
+    Email leggi(UUID id, BodyStore corpi) throws IOException {
+        int posizione = indice.cerca(id);
+        if (posizione < 0) return null;
+        return leggiRecord(mappa, indice.offset(posizione), indice.lunghezza(posizione), corpi, registro);
+    }
+
+    /**
+     * @return true se il messaggio è presente come sola busta, con il testo nel BodyStore.
+     */
+    boolean presenteComeBusta(UUID id) throws IOException {
+        int posizione = indice.cerca(id);
+        return posizione >= 0 && mappa.leggi(indice.offset(posizione) + 8, 1).get(0) == TIPO_BUSTA;
+    }
+
+    /**
+     * @return La dimensione del log in byte.
+     */
+    long dimensione() {
+        return fine;
+    }
+
+    /**
+     * Cancella un messaggio aggiungendo un tombstone in coda al log e marcando la
+     * voce nell'indice (O(1): nessun record viene riscritto).
+     *
+     * @return Il tipo del record cancellato, oppure 0 se il messaggio non era presente.
+     */
+    byte rimuovi(UUID id) throws IOException {
+        int posizione = indice.cerca(id);
+        if (posizione < 0) return 0;
+
+        ByteBuffer tipo = ByteBuffer.allocate(1);
+        leggiTutto(canale, tipo, indice.offset(posizione) + 8);
+
+        ByteBuffer tombstone = frameCancellazione(id, indice.offset(posizione));
+        scriviTutto(canale, tombstone, fine);
+        fine += tombstone.capacity();
+        indice.marcaCancellato(posizione);
+
+        byteMorti += indice.lunghezza(posizione) + tombstone.capacity();
+        return tipo.get(0);
+    }
+
+    /**
+     * @return true se il messaggio è stato consegnato alla casella (anche se poi cancellato).
+     */
+    boolean contiene(UUID id) {
+        return indice.contiene(id);
+    }
+
+    /**
+     * @return true se il messaggio è presente e non cancellato.
+     */
+    boolean presente(UUID id) {
+        return indice.cerca(id) >= 0;
+    }
+
+    /**
+     * Rende persistenti (fsync) log e indice.
+     */
+    void force() throws IOException {
+        canale.force(false);
+        indice.force();
+    }
+
+    /**
+     * @return La frazione del log occupata da record cancellati e tombstone.
+     */
+    double rapportoSpazioMorto() {
+        long dati = fine - HEADER_SIZE;
+        return dati <= 0 ? 0 : (double) byteMorti / dati;
+    }
+
+    /**
+     * Prepara la compattazione del log (fase 1, da eseguire con il ReadLock della casella).
+     */
+    Compattazione preparaCompattazione() {
+        return new Compattazione();
+    }
+
+    void close() throws IOException {
+        canale.close();
+        indice.close();
+    }
+
+    // --- COMPATTAZIONE ---
+
+    /**
+     * Riscrittura del log senza i record cancellati, in tre fasi:
+     * <ol>
+     * <li>Costruzione (ReadLock): fotografia delle voci dell'indice e della fine del log.</li>
+     * <li>{@link #copia(long, BooleanSupplier)} (nessun lock): copia dei record vivi in un file temporaneo,
+     *     con velocità limitata. Lettori e scrittori continuano a usare il log corrente.</li>
+     * <li>{@link #completa()} (WriteLock, breve): riporta le cancellazioni e gli arrivi
+     *     avvenuti durante la copia e sostituisce atomicamente log e indice.</li>
+     * </ol>
+     */
+    final class Compattazione {
+
+        private final int voci;
+        private final long[] msbVoci;
+        private final long[] lsbVoci;
+        private final long[] dataVoci;
+        private final long[] offsetVoci;
+        private final int[] lunghezzaVoci;
+        private final boolean[] cancellatoVoci;
+        private final long[] seqArrivoVoci;
+        private final long[] seqCancellazioneVoci;
+
+        private final Path tmpLog = path.resolveSibling(path.getFileName() + ".compact");
+        private final Path tmpIndice = percorsoIndice(path).resolveSibling(percorsoIndice(path).getFileName() + ".compact");
+
+        private FileChannel nuovoLog;
+        private MailboxIndex nuovoIndice;
+
+        // Posizione nel nuovo indice di ogni voce copiata (-1 se scartata)
+        private int[] nuovaPosizione;
+        private long nuovaFine;
+
+        private Compattazione() {
+            voci = indice.size();
+            msbVoci = new long[voci];
+            lsbVoci = new long[voci];
+            dataVoci = new long[voci];
+            offsetVoci = new long[voci];
+            lunghezzaVoci = new int[voci];
+            cancellatoVoci = new boolean[voci];
+            seqArrivoVoci = new long[voci];
+            seqCancellazioneVoci = new long[voci];
+            for (int i = 0; i < voci; i++) {
+                msbVoci[i] = indice.msb(i);
+                lsbVoci[i] = indice.lsb(i);
+                dataVoci[i] = indice.dataNanos(i);
+                offsetVoci[i] = indice.offset(i);
+                lunghezzaVoci[i] = indice.lunghezza(i);
+                cancellatoVoci[i] = indice.cancellato(i);
+                seqArrivoVoci[i] = indice.seqArrivo(i);
+                seqCancellazioneVoci[i] = indice.seqCancellazione(i);
+            }
+        }
+
+        /**
+         * Fase 2: copia i record vivi presenti al momento della fotografia.
+         * Usa solo la fotografia e letture posizionali del log, quindi non richiede lock.
+         * Record contigui vengono copiati con un unico transferTo.
+         *
+         * @param bytesPerSecondo Limite alla velocità di copia (0 = nessun limite).
+         * @param interrotta      Controllata tra un intervallo e l'altro: se vera la copia si
+         *                        ferma. Un interrupt chiuderebbe invece il canale del log.
+         */
+        void copia(long bytesPerSecondo, BooleanSupplier interrotta) throws IOException {
+            Files.deleteIfExists(tmpIndice);
+            nuovoLog = FileChannel.open(tmpLog, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            nuovoIndice = MailboxIndex.apri(tmpIndice);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSIONE).flip();
+            scriviTutto(nuovoLog, header, 0);
+            nuovaFine = HEADER_SIZE;
+
+            nuovaPosizione = new int[voci];
+            long inizio = System.nanoTime();
+            long copiati = 0;
+            int i = 0;
+
+            while (i < voci) {
+                if (interrotta.getAsBoolean()) {
+                    throw new InterruptedIOException("Compattazione interrotta");
+                }
+                if (cancellatoVoci[i]) {
+                    nuovaPosizione[i++] = -1;
+                    continue;
+                }
+                // Estende l'intervallo finché i record vivi sono contigui
+                long da = offsetVoci[i];
+                long a = da;
+                while (i < voci && !cancellatoVoci[i] && offsetVoci[i] == a) {
+                    nuovaPosizione[i] = nuovoIndice.size();
+                    nuovoIndice.aggiungi(msbVoci[i], lsbVoci[i], dataVoci[i],
+                            nuovaFine + (a - da), lunghezzaVoci[i], seqArrivoVoci[i]);
+                    a += lunghezzaVoci[i];
+                    i++;
+                }
+                trasferisci(da, a - da, nuovoLog, nuovaFine);
+                nuovaFine += a - da;
+                copiati += a - da;
+
+                limitaVelocita(copiati, inizio, bytesPerSecondo);
+            }
+            nuovoLog.force(false);
+        }
+
+        /**
+         * Fase 3: allinea la copia alle modifiche avvenute nel frattempo e sostituisce i file.
+         *
+         * @return I byte recuperati.
+         */
+        long completa() throws IOException {
+            long morti = 0;
+
+            // Messaggi cancellati durante la copia: nel nuovo log serve il loro tombstone
+            for (int i = 0; i < voci; i++) {
+                if (!cancellatoVoci[i] && indice.cancellato(i)) {
+                    int k = nuovaPosizione[i];
+                    UUID id = new UUID(msbVoci[i], lsbVoci[i]);
+                    ByteBuffer tombstone = frameCancellazione(id, nuovoIndice.offset(k));
+                    scriviTutto(nuovoLog, tombstone, nuovaFine);
+                    nuovaFine += tombstone.capacity();
+                    nuovoIndice.marcaCancellato(k, indice.seqCancellazione(i));
+                    morti += lunghezzaVoci[i] + tombstone.capacity();
+                }
+            }
+
+            // Messaggi arrivati durante la copia. Quelli già cancellati vengono copiati
+            // con il loro tombstone: potrebbero essere ancora nel WAL, e il recupero dopo
+            // un crash deve sapere che erano stati consegnati.
+            for (int j = voci; j < indice.size(); j++) {
+                int k = nuovoIndice.size();
+                trasferisci(indice.offset(j), indice.lunghezza(j), nuovoLog, nuovaFine);
+                nuovoIndice.aggiungi(indice.msb(j), indice.lsb(j), indice.dataNanos(j), nuovaFine,
+                        indice.lunghezza(j), indice.seqArrivo(j));
+                nuovaFine += indice.lunghezza(j);
+                if (indice.cancellato(j)) {
+                    ByteBuffer tombstone = frameCancellazione(new UUID(indice.msb(j), indice.lsb(j)), nuovoIndice.offset(k));
+                    scriviTutto(nuovoLog, tombstone, nuovaFine);
+                    nuovaFine += tombstone.capacity();
+                    nuovoIndice.marcaCancellato(k, indice.seqCancellazione(j));
+                    morti += indice.lunghezza(j) + tombstone.capacity();
+                }
+            }
+
+            // La numerazione prosegue: delle voci scartate resta solo la sequenza più alta
+            long scartata = indice.seqScartata();
+            for (int i = 0; i < voci; i++) {
+                if (cancellatoVoci[i]) scartata = Math.max(scartata, seqCancellazioneVoci[i]);
+            }
+            nuovoIndice.scriviIntestazione(indice.epoca(), scartata);
+
+            nuovoLog.force(false);
+            nuovoIndice.force();
+            nuovoLog.close();
+            nuovoIndice.close();
+
+            long recuperati = fine - nuovaFine;
+            canale.close();
+            indice.close();
+            Files.move(tmpLog, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(tmpIndice, percorsoIndice(path), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            canale = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            mappa = new SegmentiMappati(canale, DIMENSIONE_SEGMENTO);
+            indice = MailboxIndex.apri(percorsoIndice(path));
+            fine = nuovaFine;
+            byteMorti = morti;
+            return recuperati;
+        }
+
+        /**
+         * Interrompe la compattazione eliminando i file temporanei.
+         */
+        void annulla() {
+            try {
+                if (nuovoLog != null) nuovoLog.close();
+                if (nuovoIndice != null) nuovoIndice.close();
+                Files.deleteIfExists(tmpLog);
+                Files.deleteIfExists(tmpIndice);
+            } catch (IOException e) {
+                registro.scrivi("Impossibile eliminare i file temporanei di " + path.getFileName());
+            }
+        }
+
+        private void limitaVelocita(long copiati, long inizio, long bytesPerSecondo) throws IOException {
+            if (bytesPerSecondo <= 0) return;
+            long atteso = copiati * 1_000_000_000L / bytesPerSecondo;
+            long trascorso = System.nanoTime() - inizio;
+            if (atteso > trascorso) {
+                try {
+                    Thread.sleep((atteso - trascorso) / 1_000_000L);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Compattazione interrotta");
+                }
+            }
+        }
+    }
+
+    // --- FORMATO DEI RECORD ---
+
+    /**
+     * Azione eseguita su ogni record valido durante la scansione del log.
+     */
+    @FunctionalInterface
+    interface VisitatoreRecord {
+        void visita(long offset, byte tipo, ByteBuffer payload) throws IOException;
+    }
+
+    /**
+     * Aggiunge all'indice i record non ancora indicizzati (es. dopo un crash tra la
+     * scrittura del log e quella dell'indice) e riapplica i tombstone. Se l'indice
+     * descrive un log diverso viene ricostruito da zero.
+     *
+     * @param cancellati Offset dei record indicati dai tombstone presenti nel log.
+     */
+    private void allineaIndice(List<Long> cancellati) throws IOException {
+        boolean ricostruito = false;
+        if (indice.copertura() > fine || !ultimaVoceValida()) {
+            indice.azzera();
+            ricostruito = true;
+        }
+        long sequenza = indice.ultimaSequenza();
+        if (indice.copertura() < fine) {
+            scansiona(indice.copertura(), (offset, tipo, payload) -> {
+                if (tipo == TIPO_CANCELLAZIONE) return;
+                int lunghezza = FRAME_HEADER_SIZE + payload.remaining();
+                Email email = deserializza(payload);
+                indice.aggiungi(email.getId(), email.getDataSpedizione(), offset, lunghezza);
+            });
+        }
+
+        // Il tombstone identifica il record per offset: riapplicarlo è idempotente
+        for (long offset : cancellati) {
+            int i = indice.cercaOffset(offset);
+            if (i >= 0 && !indice.cancellato(i)) {
+                indice.marcaCancellato(i);
+            }
+        }
+
+        // Modifiche recuperate dal log: le sequenze non salvate nell'indice potrebbero essere
+        // già state comunicate ai client per modifiche diverse, quindi la numerazione cambia epoca
+        if (!ricostruito && indice.ultimaSequenza() != sequenza) {
+            indice.cambiaEpoca();
+        }
+        for (int i = 0; i < indice.size(); i++) {
+            if (indice.cancellato(i)) byteMorti += indice.lunghezza(i);
+        }
+    }
+
+    /**
+     * Controllo di coerenza: l'ultima voce dell'indice deve descrivere un record del log.
+     */
+    private boolean ultimaVoceValida() throws IOException {
+        int n = indice.size();
+        if (n == 0) return true;
+        ByteBuffer lunghezza = ByteBuffer.allocate(4);
+        leggiTutto(canale, lunghezza, indice.offset(n - 1));
+        return lunghezza.position() == 4 && lunghezza.getInt(0) == indice.lunghezza(n - 1) - FRAME_HEADER_SIZE + 1;
+    }
+
+    /**
+     * Scorre i record validi a partire dall'offset indicato.
+     *
+     * @param visitatore Azione da eseguire su ogni record (può essere null); riceve
+     *                   una vista del payload, senza copie.
+     * @return L'offset successivo all'ultimo record completo e integro.
+     */
+    private long scansiona(long da, VisitatoreRecord visitatore) throws IOException {
+        CRC32 crc = new CRC32();
+        long offset = da;
+
+        while (fine - offset >= FRAME_HEADER_SIZE) {
+            ByteBuffer intestazione = mappa.leggi(offset, 8);
+            int lunghezza = intestazione.getInt(0);
+            int checksum = intestazione.getInt(4);
+
+            // Record troncato o lunghezza non plausibile: fine dei dati validi
+            if (lunghezza < 1 || lunghezza > MAX_RECORD || fine - offset - 8 < lunghezza) {
+                break;
+            }
+
+            ByteBuffer record = mappa.leggi(offset + 8, lunghezza);
+            crc.reset();
+            crc.update(record.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+
+            if (visitatore != null) {
+                visitatore.visita(offset, record.get(0), record.slice(1, lunghezza - 1));
+            }
+            offset += 8 + lunghezza;
+        }
+        return offset;
+    }
+
+    private void trasferisci(long da, long quanti, FileChannel destinazione, long posizione) throws IOException {
+        while (quanti > 0) {
+            long copiati = canale.transferTo(da, quanti, destinazione.position(posizione));
+            da += copiati;
+            posizione += copiati;
+            quanti -= copiati;
+        }
+    }
+
+    private static Email leggiRecord(SegmentiMappati mappa, long offset, int lunghezza, BodyStore corpi,
+                                     RegistroServer registro) throws IOException {
+        // lunghezza e crc già verificati all'apertura
+        ByteBuffer record = mappa.leggi(offset + 8, lunghezza - 8);
+        return decodifica(record.get(0), record.slice(1, lunghezza - FRAME_HEADER_SIZE), corpi, registro);
+    }
+
+    /**
+     * Lista in sola lettura che decodifica i messaggi dalla memoria mappata a ogni accesso.
+     * In memoria restano solo offset e lunghezza dei record (12 byte per messaggio).
+     * <p>
+     * Se serializzata (es. inviata al client) viene sostituita da un'ArrayList.
+     */
+    private static final class VistaPigra extends AbstractList<Email> implements RandomAccess, Serializable {
+
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        private final transient SegmentiMappati mappa;
+        private final transient long[] offset;
+        private final transient int[] lunghezza;
+        private final transient int size;
+        private final transient BodyStore corpi;
+        private final transient RegistroServer registro;
+
+        private VistaPigra(SegmentiMappati mappa, long[] offset, int[] lunghezza, int size, BodyStore corpi,
+                           RegistroServer registro) {
+            this.mappa = mappa;
+            this.offset = offset;
+            this.lunghezza = lunghezza;
+            this.size = size;
+            this.corpi = corpi;
+            this.registro = registro;
+        }
+
+        @Override
+        public Email get(int i) {
+            if (i < 0 || i >= size) {
+                throw new IndexOutOfBoundsException("Indice " + i + " fuori dalla casella (" + size + " messaggi)");
+            }
+            try {
+                return leggiRecord(mappa, offset[i], lunghezza[i], corpi, registro);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Serial
+        private Object writeReplace() {
+            return new ArrayList<>(this);
+        }
+    }
+
+    private static Email decodifica(byte tipo, ByteBuffer payload, BodyStore corpi, RegistroServer registro)
+            throws IOException {
+        Email email = deserializza(payload);
+        if (corpi == null) {
+            // Solo la busta (i record completi vengono privati del testo)
+            return email.busta();
+        }
+        if (tipo == TIPO_BUSTA) {
+            String testo = corpi.leggi(email.getId());
+            if (testo == null) {
+                registro.scrivi("Corpo mancante per il messaggio " + email.getId());
+                testo = "";
+            }
+            email = email.conTesto(testo);
+        }
+        return email;
+    }
+
+    private static Path percorsoIndice(Path log) {
+        String nome = log.getFileName().toString();
+        return log.resolveSibling(nome.substring(0, nome.length() - ".log".length()) + ".idx");
+    }
+
+    /**
+     * Costruisce il record completo (intestazione + payload) in un unico buffer,
+     * codificando il messaggio direttamente al suo interno.
+     */
+    static ByteBuffer frame(byte tipo, Email email, boolean conTesto) {
+        int dimensione = EmailCodec.dimensione(email, conTesto);
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + dimensione);
+        frame.putInt(dimensione + 1).putInt(0).put(tipo);
+        EmailCodec.codifica(email, conTesto, frame);
+
+        CRC32 crc = new CRC32();
+        crc.update(frame.array(), 8, dimensione + 1);
+        frame.putInt(4, (int) crc.getValue());
+        return frame.flip();
+    }
+
+    private static ByteBuffer frameCancellazione(UUID id, long offsetRecord) {
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + PAYLOAD_CANCELLAZIONE);
+        frame.putInt(PAYLOAD_CANCELLAZIONE + 1).putInt(0).put(TIPO_CANCELLAZIONE)
+                .putLong(id.getMostSignificantBits())
+                .putLong(id.getLeastSignificantBits())
+                .putLong(offsetRecord);
+
+        CRC32 crc = new CRC32();
+        crc.update(frame.array(), 8, PAYLOAD_CANCELLAZIONE + 1);
+        frame.putInt(4, (int) crc.getValue());
+        return frame.flip();
+    }
+
+    /**
+     * Decodifica il payload di un record, riconoscendo il formato con cui è stato scritto.
+     */
+    static Email deserializza(ByteBuffer payload) throws IOException {
+        if (payload.remaining() > 1 && payload.get(payload.position()) == (byte) 0xAC) {
+            // Record scritto con la serializzazione Java (versioni precedenti)
+            byte[] bytes = new byte[payload.remaining()];
+            payload.duplicate().get(bytes);
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                return (Email) in.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Record non valido", e);
+            }
+        }
+        try {
+            return EmailCodec.decodifica(payload);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Record non valido", e);
+        }
+    }
+
+    private static void scriviTutto(FileChannel canale, ByteBuffer buffer, long posizione) throws IOException {
+        while (buffer.hasRemaining()) {
+            posizione += canale.write(buffer, posizione);
+        }
+    }
+
+    private static void leggiTutto(FileChannel canale, ByteBuffer buffer, long posizione) throws IOException {
+        while (buffer.hasRemaining()) {
+            int letti = canale.read(buffer, posizione);
+            if (letti < 0) break;
+            posizione += letti;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package server.model;
+
+import common.Email;
+import common.EmailCodec;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Strumento a riga di comando che converte le caselle nel formato binario di {@link EmailCodec}.
+ * <p>
+ * Converte sia i vecchi file {@code .dat} (lista serializzata) sia i log i cui record
+ * contengono ancora la serializzazione Java. I log vengono letti e riscritti un record
+ * alla volta, senza caricare la casella in memoria; l'indice viene eliminato e
+ * ricostruito dal server alla prima apertura.
+ * <p>
+ * Va eseguito a server spento:
+ * <pre>
+ * java -cp target/classes server.model.MigrazioneMailbox [cartella-dati]
+ * </pre>
+ * Al termine riporta lo spazio occupato prima e dopo e il tempo di decodifica
+ * dei due formati, come confronto tra serializzazione Java e formato binario.
+ */
+public class MigrazioneMailbox {
+
+    private long bytesPrima;
+    private long bytesDopo;
+    private long recordConvertiti;
+    private long nanosJava;
+    private long nanosBinario;
+    private long decodificheBinario;
+
+    public static void main(String[] args) throws IOException {
+        Path directory = Paths.get(args.length > 0 ? args[0] : "mail-data");
+        MigrazioneMailbox migrazione = new MigrazioneMailbox();
+
+        try (DirectoryStream<Path> dat = Files.newDirectoryStream(directory, "*.dat")) {
+            for (Path file : dat) {
+                migrazione.convertiLegacy(file);
+            }
+        }
+        try (DirectoryStream<Path> logs = Files.newDirectoryStream(directory, "*.log")) {
+            for (Path file : logs) {
+                migrazione.convertiLog(file);
+            }
+        }
+        migrazione.stampaRiepilogo();
+    }
+
+    /**
+     * Converte un file {@code .dat} nel formato log, se la casella non è già stata migrata.
+     */
+    private void convertiLegacy(Path dat) throws IOException {
+        String nome = dat.getFileName().toString();
+        Path log = dat.resolveSibling(nome.substring(0, nome.length() - ".dat".length()) + ".log");
+        if (Files.exists(log)) {
+            System.out.println("Salto " + nome + ": esiste già " + log.getFileName());
+            return;
+        }
+
+        List<Email> emails;
+        long inizio = System.nanoTime();
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(dat)))) {
+            @SuppressWarnings("unchecked")
+            List<Email> lette = (List<Email>) in.readObject();
+            emails = lette;
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Formato legacy non valido: " + dat, e);
+        }
+        nanosJava += System.nanoTime() - inizio;
+
+        MailboxLog.crea(log, emails);
+        Files.move(dat, dat.resolveSibling(nome + ".bak"), StandardCopyOption.REPLACE_EXISTING);
+
+        bytesPrima += Files.size(dat.resolveSibling(nome + ".bak"));
+        bytesDopo += Files.size(log);
+        recordConvertiti += emails.size();
+        System.out.println("Migrato " + nome + " (" + emails.size() + " messaggi)");
+    }
+
+    /**
+     * Riscrive un log convertendo in formato binario i record serializzati con Java.
+     */
+    private void convertiLog(Path log) throws IOException {
+        Path tmp = log.resolveSibling(log.getFileName() + ".tmp");
+        long convertiti = 0;
+        CRC32 crc = new CRC32();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(log)));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+
+            if (in.readInt() != MailboxLog.MAGIC || in.readInt() != MailboxLog.VERSIONE) {
+                System.out.println("Salto " + log.getFileName() + ": formato non riconosciuto");
+                Files.deleteIfExists(tmp);
+                return;
+            }
+            out.writeInt(MailboxLog.MAGIC);
+            out.writeInt(MailboxLog.VERSIONE);
+
+            while (true) {
+                int lunghezza, checksum;
+                byte[] record;
+                try {
+                    lunghezza = in.readInt();
+                    checksum = in.readInt();
+                    if (lunghezza < 1 || lunghezza > 16 * 1024 * 1024) {
+                        System.err.println(log.getFileName() + ": lunghezza non valida, conversione interrotta.");
+                        break;
+                    }
+                    record = new byte[lunghezza];
+                    in.readFully(record);
+                } catch (EOFException e) {
+                    break; // fine del file (o coda incompleta, che viene scartata)
+                }
+                crc.reset();
+                crc.update(record);
+                if ((int) crc.getValue() != checksum) {
+                    System.err.println(log.getFileName() + ": record corrotto, conversione interrotta.");
+                    break;
+                }
+
+                byte tipo = record[0];
+                ByteBuffer payload = ByteBuffer.wrap(record, 1, record.length - 1).slice();
+
+                if (record.length > 1 && record[1] == (byte) 0xAC) {
+                    long inizio = System.nanoTime();
+                    Email email = MailboxLog.deserializza(payload);
+                    nanosJava += System.nanoTime() - inizio;
+
+                    ByteBuffer frame = MailboxLog.frame(tipo, email, tipo == MailboxLog.TIPO_EMAIL);
+                    out.write(frame.array());
+
+                    inizio = System.nanoTime();
+                    frame.position(MailboxLog.FRAME_HEADER_SIZE);
+                    EmailCodec.decodifica(frame);
+                    nanosBinario += System.nanoTime() - inizio;
+                    decodificheBinario++;
+                    convertiti++;
+                } else {
+                    out.writeInt(lunghezza);
+                    out.writeInt(checksum);
+                    out.write(record);
+                }
+            }
+        }
+
+        if (convertiti == 0) {
+            Files.delete(tmp);
+            return;
+        }
+
+        bytesPrima += Files.size(log);
+        bytesDopo += Files.size(tmp);
+        recordConvertiti += convertiti;
+
+        Files.move(tmp, log, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        String nome = log.getFileName().toString();
+        Files.deleteIfExists(log.resolveSibling(nome.substring(0, nome.length() - ".log".length()) + ".idx"));
+        System.out.println("Convertito " + nome + " (" + convertiti + " record)");
+    }
+
+    private void stampaRiepilogo() {
+        System.out.println("Record convertiti: " + recordConvertiti);
+        if (recordConvertiti == 0) return;
+
+        System.out.printf("Spazio su disco: %d -> %d byte (%.1f%%)%n",
+                bytesPrima, bytesDopo, 100.0 * bytesDopo / Math.max(1, bytesPrima));
+        System.out.printf("Decodifica serializzazione Java: %.1f us/messaggio%n",
+                nanosJava / 1000.0 / recordConvertiti);
+        if (decodificheBinario > 0) {
+            System.out.printf("Decodifica formato binario: %.1f us/messaggio%n",
+                    nanosBinario / 1000.0 / decodificheBinario);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package server.model;
+
+import common.Email;
+import common.Protocollo;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Risultato di una sincronizzazione (comando SYNC): le modifiche della casella
+ * successive alla sequenza nota al client.
+ *
+ * @param epoca          Epoca della numerazione, da restituire alla prossima richiesta.
+ * @param sequenza       Sequenza dell'ultima modifica inclusa.
+ * @param tipo           {@link Protocollo#SYNC_DELTA}, {@link Protocollo#SYNC_PRESENTI} o
+ *                       {@link Protocollo#SYNC_RICARICA}.
+ * @param aggiunte       Buste dei messaggi arrivati, in ordine di arrivo.
+ * @param identificativi Con SYNC_DELTA i messaggi cancellati; con SYNC_PRESENTI tutti i
+ *                       messaggi presenti (le cancellazioni non sono più elencabili dopo
+ *                       una compattazione); vuoto con SYNC_RICARICA.
+ */
+public record Modifiche(long epoca, long sequenza, byte tipo, List<Email> aggiunte, List<UUID> identificativi) {
+}
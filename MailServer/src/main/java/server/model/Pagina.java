@@ -0,0 +1,13 @@
+package server.model;
+
+import common.Email;
+
+import java.util.List;
+
+/**
+ * Una pagina di buste restituita da PAGE, dalla più recente in ordine di arrivo.
+ *
+ * @param buste Le buste della pagina.
+ * @param altre true se la casella contiene altri messaggi, meno recenti, dopo questa pagina.
+ */
+public record Pagina(List<Email> buste, boolean altre) { }
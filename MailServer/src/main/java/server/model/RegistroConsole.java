@@ -0,0 +1,81 @@
+package server.model;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registro su {@code System.out} che non blocca chi scrive: i messaggi passano da una coda
+ * limitata ({@code mail.log.coda}, predefinita 4096) a un thread che li stampa a blocchi.
+ * Con la coda piena (console lenta o rediretta su un disco occupato) il messaggio viene
+ * scartato e contato in {@code log.scartati}.
+ */
+final class RegistroConsole implements RegistroServer {
+
+    private record Riga(long ora, String messaggio) { }
+
+    // Segnale di chiusura per il thread di stampa
+    private static final Riga FINE = new Riga(0, null);
+
+    private final BlockingQueue<Riga> coda;
+    private final Thread stampa;
+    private volatile boolean chiuso;
+
+    RegistroConsole(int capacita) {
+        this.coda = new ArrayBlockingQueue<>(Math.max(16, capacita));
+        this.stampa = new Thread(this::ciclo, "registro-console");
+        this.stampa.setDaemon(true);
+        this.stampa.start();
+    }
+
+    @Override
+    public void scrivi(String messaggio) {
+        if (chiuso || !coda.offer(new Riga(System.currentTimeMillis(), messaggio))) {
+            ServerMetrics.incrementa("log.scartati");
+        }
+    }
+
+    @Override
+    public void chiudi() {
+        if (chiuso) return;
+        chiuso = true;
+        try {
+            coda.put(FINE);
+            stampa.join(TimeUnit.SECONDS.toMillis(2));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void ciclo() {
+        List<Riga> blocco = new ArrayList<>();
+        StringBuilder testo = new StringBuilder();
+        ZoneId zona = ZoneId.systemDefault();
+        while (true) {
+            try {
+                blocco.add(coda.take());
+            } catch (InterruptedException e) {
+                continue;
+            }
+            coda.drainTo(blocco, 1023);
+            for (Riga riga : blocco) {
+                if (riga == FINE) {
+                    System.out.print(testo);
+                    System.out.flush();
+                    return;
+                }
+                testo.append('[').append(LocalDateTime.ofInstant(Instant.ofEpochMilli(riga.ora()), zona).withNano(0))
+                        .append("] ").append(riga.messaggio()).append(System.lineSeparator());
+            }
+            System.out.print(testo);
+            System.out.flush();
+            testo.setLength(0);
+            blocco.clear();
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package server.model;
+
+import server.ServerConfig;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registro degli eventi (audit): una riga JSON per ogni comando eseguito, con ora, comando,
+ * utente, esito, durata e indirizzo del client.
+ * <pre>
+ * {"ora":"2026-10-16T10:15:02.118Z","comando":"SEND","utente":"mario@test.it","esito":"OK","durataUs":412,"origine":"127.0.0.1"}
+ * </pre>
+ * Il thread che esegue il comando non fa I/O: mette l'evento in una coda limitata e un
+ * thread dedicato la svuota a blocchi, con una sola scrittura (e, se richiesto, un solo
+ * {@code force}) per blocco. Con la coda piena ({@code mail.audit.pieno}):
+ * <ul>
+ * <li>{@code scarta} (predefinito): l'evento viene scartato e contato in {@code audit.scartati};</li>
+ * <li>{@code attendi}: il thread attende che si liberi posto per al massimo
+ *     {@code mail.audit.attesaMs}, poi scarta.</li>
+ * </ul>
+ * Il file corrente è {@code audit.log} nella cartella {@code mail.audit.dir}
+ * (predefinita {@code <mail.dati>/audit}). Viene rinominato con data e ora e sostituito
+ * quando supera {@code mail.audit.maxBytes} o all'inizio di un nuovo periodo di
+ * {@code mail.audit.rotazioneOre} ore (allineato alla mezzanotte locale); si tengono gli
+ * ultimi {@code mail.audit.file} file ruotati. Dopo un riavvio il registro continua nel
+ * file esistente.
+ */
+public final class RegistroEventi {
+
+    private static final String CORRENTE = "audit.log";
+    private static final String PREFISSO = "audit-";
+    private static final DateTimeFormatter NOME_RUOTATO = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
+
+    // Eventi scritti con una sola operazione di I/O
+    private static final int MAX_BLOCCO = 1024;
+
+    /**
+     * Un comando eseguito. L'ora è presa da chi esegue il comando, il testo JSON viene
+     * composto dal thread di scrittura.
+     */
+    private record Evento(long ora, String comando, String utente, String esito, String messaggio,
+                          long durataNs, InetAddress origine) { }
+
+    // Segnale di chiusura per il thread di scrittura
+    private static final Evento FINE = new Evento(0, null, null, null, null, 0, null);
+
+    private final Path cartella;
+    private final boolean abilitato;
+    private final BlockingQueue<Evento> coda;
+    private final boolean attendi;
+    private final long attesaMs;
+    private final long maxBytes;
+    private final long periodoMs;
+    private final int maxFile;
+    private final boolean force;
+    private final Thread scrittore;
+    private final RegistroServer registro;
+
+    private volatile boolean chiuso;
+
+    // Usati solo dal thread di scrittura
+    private FileChannel canale;
+    private long dimensione;
+    private long periodo;
+
+    /**
+     * @param registro Riceve gli errori di scrittura del registro degli eventi.
+     */
+    RegistroEventi(Path dati, RegistroServer registro) {
+        this.registro = registro;
+        this.abilitato = Boolean.parseBoolean(ServerConfig.getString("mail.audit.abilitato", "true"));
+        this.cartella = Paths.get(ServerConfig.getString("mail.audit.dir", dati.resolve("audit").toString()));
+        this.coda = new ArrayBlockingQueue<>(Math.max(16, ServerConfig.getInt("mail.audit.coda", 8192)));
+        this.attendi = ServerConfig.getString("mail.audit.pieno", "scarta").equalsIgnoreCase("attendi");
+        this.attesaMs = Math.max(0, ServerConfig.getLong("mail.audit.attesaMs", 1000));
+        this.maxBytes = Math.max(1024, ServerConfig.getLong("mail.audit.maxBytes", 64L * 1024 * 1024));
+        this.periodoMs = ServerConfig.getLong("mail.audit.rotazioneOre", 24) * 3_600_000L;
+        this.maxFile = Math.max(1, ServerConfig.getInt("mail.audit.file", 30));
+        this.force = Boolean.parseBoolean(ServerConfig.getString("mail.audit.force", "true"));
+
+        ServerMetrics.registraIndicatore("audit.coda", coda::size);
+        this.scrittore = new Thread(this::ciclo, "registro-eventi");
+        // Lo svuota chiudi(), chiamato anche dall'hook di spegnimento
+        this.scrittore.setDaemon(true);
+        if (abilitato) {
+            scrittore.start();
+        }
+    }
+
+    /**
+     * Accoda un evento; non fa I/O.
+     *
+     * @param esito     OK, ERRORE, RIPROVA, ...
+     * @param messaggio Dettaglio dell'esito (es. il messaggio di errore), null se assente.
+     * @param durataNs  Durata dell'esecuzione del comando.
+     * @param origine   Indirizzo del client (null se sconosciuto).
+     */
+    void registra(String comando, String utente, String esito, String messaggio, long durataNs, InetAddress origine) {
+        if (!abilitato) return;
+        if (chiuso) {
+            ServerMetrics.incrementa("audit.scartati");
+            return;
+        }
+        Evento evento = new Evento(System.currentTimeMillis(), comando, utente, esito, messaggio, durataNs, origine);
+        boolean accodato;
+        if (attendi) {
+            try {
+                accodato = coda.offer(evento, attesaMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                accodato = false;
+            }
+        } else {
+            accodato = coda.offer(evento);
+        }
+        if (!accodato) {
+            ServerMetrics.incrementa("audit.scartati");
+        } else if (chiuso && coda.remove(evento)) {
+            // Accodato dopo l'ultima lettura del thread di scrittura, che non lo vedrà più:
+            // se non è ancora stato prelevato lo si ritira e lo si conta come scartato
+            ServerMetrics.incrementa("audit.scartati");
+        }
+    }
+
+    /**
+     * Scrive gli eventi ancora in coda e chiude il file. Gli eventi successivi vengono scartati.
+     */
+    void chiudi() {
+        if (!abilitato || chiuso) return;
+        chiuso = true;
+        try {
+            coda.put(FINE);
+            scrittore.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // --- THREAD DI SCRITTURA ---
+
+    /**
+     * Svuota la coda finché non arriva {@link #FINE}, poi scrive anche gli eventi accodati
+     * dietro di esso (da thread che non avevano ancora visto la chiusura) e termina.
+     */
+    private void ciclo() {
+        List<Evento> blocco = new ArrayList<>(MAX_BLOCCO);
+        StringBuilder testo = new StringBuilder(64 * 1024);
+        boolean fine = false;
+        while (true) {
+            Evento primo;
+            try {
+                // Dopo FINE non si attende: un evento ritirato da registra() lascerebbe la coda vuota
+                primo = fine ? coda.poll() : coda.take();
+            } catch (InterruptedException e) {
+                // Solo la chiusura ferma il thread
+                continue;
+            }
+            if (primo == null) break;
+            blocco.add(primo);
+            coda.drainTo(blocco, MAX_BLOCCO - 1);
+            int scritti = 0;
+            try {
+                for (Evento evento : blocco) {
+                    if (evento == FINE) {
+                        fine = true;
+                        continue;
+                    }
+                    scritti++;
+                    int inizioRiga = testo.length();
+                    componi(evento, testo);
+                    if (serveRotazione(evento.ora(), testo.length())) {
+                        // La riga appena composta va nel file nuovo
+                        String riga = testo.substring(inizioRiga);
+                        testo.setLength(inizioRiga);
+                        scriviTesto(testo);
+                        ruota(evento.ora());
+                        testo.append(riga);
+                    }
+                }
+                scriviTesto(testo);
+                ServerMetrics.aggiungi("audit.scritti", scritti);
+            } catch (IOException e) {
+                registro.scrivi("Errore scrittura del registro degli eventi (" + e + ")");
+                ServerMetrics.incrementa("audit.errori");
+                chiudiCanale();
+            }
+            testo.setLength(0);
+            blocco.clear();
+        }
+        chiudiCanale();
+    }
+
+    /**
+     * @param inAttesa Byte composti e non ancora scritti, inclusa l'ultima riga.
+     */
+    private boolean serveRotazione(long ora, long inAttesa) throws IOException {
+        apri(ora);
+        if (periodoMs > 0 && periodo(ora) != periodo) return true;
+        return dimensione > 0 && dimensione + inAttesa > maxBytes;
+    }
+
+    private void scriviTesto(StringBuilder testo) throws IOException {
+        if (testo.isEmpty()) return;
+        ByteBuffer buffer = ByteBuffer.wrap(testo.toString().getBytes(StandardCharsets.UTF_8));
+        dimensione += buffer.remaining();
+        while (buffer.hasRemaining()) {
+            canale.write(buffer);
+        }
+        if (force) {
+            canale.force(false);
+        }
+        testo.setLength(0);
+    }
+
+    /**
+     * Apre (o riprende dopo un riavvio) il file corrente, se non è già aperto.
+     */
+    private void apri(long ora) throws IOException {
+        if (canale != null) return;
+        Files.createDirectories(cartella);
+        Path file = cartella.resolve(CORRENTE);
+        boolean esistente = Files.exists(file);
+        canale = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        dimensione = canale.size();
+        periodo = periodo(esistente && dimensione > 0 ? Files.getLastModifiedTime(file).toMillis() : ora);
+    }
+
+    private void ruota(long ora) throws IOException {
+        chiudiCanale();
+        Path file = cartella.resolve(CORRENTE);
+        String marca = LocalDateTime.ofInstant(Instant.ofEpochMilli(ora), ZoneId.systemDefault()).format(NOME_RUOTATO);
+        Path ruotato = cartella.resolve(PREFISSO + marca + ".log");
+        for (int i = 1; Files.exists(ruotato); i++) {
+            ruotato = cartella.resolve(PREFISSO + marca + "-" + i + ".log");
+        }
+        Files.move(file, ruotato);
+        ServerMetrics.incrementa("audit.rotazioni");
+        eliminaVecchi();
+        apri(ora);
+    }
+
+    private void eliminaVecchi() throws IOException {
+        List<Path> ruotati = new ArrayList<>();
+        try (DirectoryStream<Path> elenco = Files.newDirectoryStream(cartella, PREFISSO + "*.log")) {
+            elenco.forEach(ruotati::add);
+        }
+        if (ruotati.size() <= maxFile) return;
+        // Il nome contiene data e ora: l'ordine alfabetico è quello cronologico
+        ruotati.sort(null);
+        for (Path vecchio : ruotati.subList(0, ruotati.size() - maxFile)) {
+            Files.deleteIfExists(vecchio);
+        }
+    }
+
+    private void chiudiCanale() {
+        if (canale == null) return;
+        try {
+            canale.close();
+        } catch (IOException e) {
+            registro.scrivi("Errore chiusura del registro degli eventi (" + e + ")");
+        }
+        canale = null;
+    }
+
+    private long periodo(long ora) {
+        if (periodoMs <= 0) return 0;
+        long locale = ora + ZoneId.systemDefault().getRules().getOffset(Instant.ofEpochMilli(ora)).getTotalSeconds() * 1000L;
+        return Math.floorDiv(locale, periodoMs);
+    }
+
+    // --- FORMATO ---
+
+    private static void componi(Evento e, StringBuilder sb) {
+        sb.append("{\"ora\":\"").append(Instant.ofEpochMilli(e.ora())).append('"');
+        campo(sb, "comando", e.comando());
+        campo(sb, "utente", e.utente());
+        campo(sb, "esito", e.esito());
+        sb.append(",\"durataUs\":").append(TimeUnit.NANOSECONDS.toMicros(e.durataNs()));
+        if (e.origine() != null) campo(sb, "origine", e.origine().getHostAddress());
+        if (e.messaggio() != null) campo(sb, "messaggio", e.messaggio());
+        sb.append("}\n");
+    }
+
+    private static void campo(StringBuilder sb, String nome, String valore) {
+        sb.append(",\"").append(nome).append("\":");
+        if (valore == null) {
+            sb.append("null");
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < valore.length(); i++) {
+            char c = valore.charAt(i);
+            switch (c) {
+                case '"' -> sb.append("\\\"");
+                case '\\' -> sb.append("\\\\");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                case '\t' -> sb.append("\\t");
+                default -> {
+                    if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+                    else sb.append(c);
+                }
+            }
+        }
+        sb.append('"');
+    }
+}
@@ -0,0 +1,53 @@
+package server.model;
+
+import server.ServerConfig;
+
+/**
+ * Destinazione dei messaggi di log del server (avvio, accessi, consegne, errori).
+ * <p>
+ * Il server non sa come vengono mostrati: senza interfaccia grafica finiscono sulla
+ * console, il pannello di amministrazione si collega al server con
+ * {@link ServerModel#collegaRegistro}. Il registro predefinito si sceglie con
+ * {@code mail.log.registro}:
+ * <ul>
+ * <li>{@code console} (predefinito): una riga con data e ora su {@code System.out},
+ *     stampata da un thread dedicato ({@link RegistroConsole});</li>
+ * <li>{@code nessuno}: i messaggi vengono scartati;</li>
+ * <li>il nome di una classe che implementa l'interfaccia, con un costruttore senza argomenti.</li>
+ * </ul>
+ * Il metodo {@link #scrivi} viene chiamato dai thread di rete: deve essere thread-safe
+ * e non deve bloccare a lungo. {@link #chiudi} viene chiamato allo spegnimento del server.
+ */
+@FunctionalInterface
+public interface RegistroServer {
+
+    void scrivi(String messaggio);
+
+    /**
+     * Scrive i messaggi ancora in sospeso (es. in coda); i successivi possono andare persi.
+     */
+    default void chiudi() { }
+
+    static RegistroServer console() {
+        return new RegistroConsole(ServerConfig.getInt("mail.log.coda", 4096));
+    }
+
+    static RegistroServer nessuno() {
+        return messaggio -> { };
+    }
+
+    /**
+     * @return Il registro indicato da {@code mail.log.registro}; la console se non valido.
+     */
+    static RegistroServer daConfigurazione() {
+        String nome = ServerConfig.getString("mail.log.registro", "console");
+        if (nome.equalsIgnoreCase("console")) return console();
+        if (nome.equalsIgnoreCase("nessuno")) return nessuno();
+        try {
+            return Class.forName(nome).asSubclass(RegistroServer.class).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            System.err.println("Registro non valido: " + nome + " (" + e + "), uso la console");
+            return console();
+        }
+    }
+}
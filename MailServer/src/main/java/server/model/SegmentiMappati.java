@@ -0,0 +1,102 @@
+package server.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Accesso in sola lettura a un file attraverso segmenti di dimensione fissa mappati
+ * in memoria ({@link FileChannel#map}).
+ * <p>
+ * I dati letti non vengono copiati nell'heap: {@link #leggi(long, int)} restituisce una
+ * vista sulla memoria mappata, e il sistema operativo carica solo le pagine realmente
+ * usate. Un segmento viene mappato alla prima lettura; l'ultimo segmento, che cresce
+ * con gli append, viene rimappato quando si legge oltre la parte già mappata.
+ * Un record a cavallo di due segmenti viene copiato in un buffer dedicato.
+ * <p>
+ * Le viste restituite restano valide anche dopo la chiusura del canale, ma i segmenti
+ * non ancora mappati non si possono più leggere: chi deve leggere dopo la chiusura
+ * (es. una vista sulla casella) chiama prima {@link #mappaFino(long)}.
+ * <p>
+ * La mappatura avviene con un ReentrantLock e non con {@code synchronized}: un
+ * virtual thread che esegue I/O dentro un blocco synchronized resterebbe
+ * bloccato sul suo carrier thread (pinning).
+ */
+class SegmentiMappati {
+
+    // Dimensione predefinita di un segmento (8 MB)
+    static final int DIMENSIONE_SEGMENTO = 8 * 1024 * 1024;
+
+    private final FileChannel canale;
+    private final int dimensioneSegmento;
+
+    private MappedByteBuffer[] segmenti = new MappedByteBuffer[4];
+    private final ReentrantLock lock = new ReentrantLock();
+
+    SegmentiMappati(FileChannel canale, int dimensioneSegmento) {
+        this.canale = canale;
+        this.dimensioneSegmento = dimensioneSegmento;
+    }
+
+    /**
+     * Restituisce una vista in sola lettura dei byte {@code [offset, offset + lunghezza)}.
+     */
+    ByteBuffer leggi(long offset, int lunghezza) throws IOException {
+        int primo = (int) (offset / dimensioneSegmento);
+        int inizio = (int) (offset % dimensioneSegmento);
+
+        if (inizio + lunghezza <= dimensioneSegmento) {
+            return segmento(primo, inizio + lunghezza).slice(inizio, lunghezza);
+        }
+
+        // Record a cavallo tra segmenti
+        ByteBuffer copia = ByteBuffer.allocate(lunghezza);
+        int k = primo;
+        while (copia.hasRemaining()) {
+            int quanti = Math.min(copia.remaining(), dimensioneSegmento - inizio);
+            copia.put(segmento(k, inizio + quanti).slice(inizio, quanti));
+            k++;
+            inizio = 0;
+        }
+        return copia.flip().asReadOnlyBuffer();
+    }
+
+    /**
+     * Mappa subito tutti i segmenti che contengono i byte {@code [0, fine)}: le letture
+     * successive in quell'intervallo non usano più il canale.
+     */
+    void mappaFino(long fine) throws IOException {
+        for (int k = 0; (long) k * dimensioneSegmento < fine; k++) {
+            segmento(k, (int) Math.min(dimensioneSegmento, fine - (long) k * dimensioneSegmento));
+        }
+    }
+
+    /**
+     * @param necessari Byte del segmento che devono essere mappati.
+     */
+    private MappedByteBuffer segmento(int k, int necessari) throws IOException {
+        lock.lock();
+        try {
+            if (k >= segmenti.length) {
+                segmenti = Arrays.copyOf(segmenti, Math.max(k + 1, segmenti.length * 2));
+            }
+            MappedByteBuffer segmento = segmenti[k];
+            if (segmento == null || segmento.capacity() < necessari) {
+                long inizio = (long) k * dimensioneSegmento;
+                long disponibili = Math.min(dimensioneSegmento, canale.size() - inizio);
+                if (disponibili < necessari) {
+                    throw new IOException("Lettura oltre la fine del file (segmento " + k + ")");
+                }
+                segmento = canale.map(FileChannel.MapMode.READ_ONLY, inizio, disponibili);
+                segmenti[k] = segmento;
+                ServerMetrics.incrementa("store.segmentiMappati");
+            }
+            return segmento;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
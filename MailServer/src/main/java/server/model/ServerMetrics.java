@@ -0,0 +1,50 @@
+package server.model;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Contatori di sistema consultabili dall'amministratore.
+ * <p>
+ * Ogni contatore è identificato da un nome gerarchico (es. {@code cache.hit}).
+ * I LongAdder permettono incrementi concorrenti senza contesa tra i thread.
+ * Oltre ai contatori si possono registrare indicatori, letti solo al momento
+ * della consultazione (es. occupazione della cache).
+ */
+public final class ServerMetrics {
+
+    private static final Map<String, LongAdder> CONTATORI = new ConcurrentHashMap<>();
+    private static final Map<String, LongSupplier> INDICATORI = new ConcurrentHashMap<>();
+
+    private ServerMetrics() { }
+
+    public static void incrementa(String nome) {
+        aggiungi(nome, 1);
+    }
+
+    public static void aggiungi(String nome, long delta) {
+        CONTATORI.computeIfAbsent(nome, n -> new LongAdder()).add(delta);
+    }
+
+    public static void registraIndicatore(String nome, LongSupplier lettura) {
+        INDICATORI.put(nome, lettura);
+    }
+
+    public static long valore(String nome) {
+        LongAdder contatore = CONTATORI.get(nome);
+        return contatore == null ? 0 : contatore.sum();
+    }
+
+    /**
+     * Restituisce una fotografia di tutti i contatori, ordinati per nome.
+     */
+    public static Map<String, Long> snapshot() {
+        Map<String, Long> copia = new TreeMap<>();
+        CONTATORI.forEach((nome, contatore) -> copia.put(nome, contatore.sum()));
+        INDICATORI.forEach((nome, lettura) -> copia.put(nome, lettura.getAsLong()));
+        return copia;
+    }
+}
@@ -1,15 +1,21 @@
 package server.model;
 
 import common.Email;
-import javafx.application.Platform;
-import javafx.collections.FXCollections;
-import javafx.collections.ObservableList;
+import common.Protocollo;
+import server.ServerConfig;
 import server.network.ConnectionHandler;
 
+import java.io.IOException;
+import java.net.InetAddress;
 import java.time.LocalDateTime;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Modello principale del Server.
@@ -21,6 +27,10 @@ import java.util.stream.Collectors;
  * <li>Gestisce la lista degli utenti autorizzati (White-list).</li>
  * <li>Interfaccia la rete (ConnectionHandler) con la persistenza (FileManager).</li>
  * </ul>
+ * Non dipende da JavaFX: i messaggi di log vanno ai {@link RegistroServer} collegati,
+ * e il server può girare senza interfaccia grafica ({@link server.ServerMain}).
+ * La porta si configura con {@code mail.porta} (predefinita 8189).
+ * I comandi eseguiti vengono riportati nel {@link RegistroEventi}.
  */
 public class ServerModel {
 
@@ -34,30 +44,87 @@ public class ServerModel {
             "spike@test.it"
     );
 
-    // Lista osservabile per i log
-    private final ObservableList<String> logs;
+    // Destinazioni dei messaggi di log (console, pannello di amministrazione, ...)
+    private final List<RegistroServer> registri = new CopyOnWriteArrayList<>();
 
     private final FileManager fileManager;
+    private final RegistroEventi eventi;
+    private final AttesePosta attese = new AttesePosta();
     private final ConnectionHandler connectionHandler;
+    private final int porta;
 
+    // Spegnimento: la prima chiamata lo esegue, le altre ne attendono la fine
+    private final AtomicBoolean arrestoAvviato = new AtomicBoolean();
+    private final CompletableFuture<Void> arrestato = new CompletableFuture<>();
+
+    /**
+     * Avvia il server con il registro di {@code mail.log.registro}.
+     */
     public ServerModel() {
-        this.logs = FXCollections.observableArrayList();
-        this.fileManager = new FileManager();
+        this(RegistroServer.daConfigurazione());
+    }
+
+    /**
+     * Avvia il server: apre l'archivio e si mette in ascolto.
+     *
+     * @param registri Ricevono i messaggi di log fin dall'avvio.
+     */
+    public ServerModel(RegistroServer... registri) {
+        this.registri.addAll(List.of(registri));
+        long inizio = System.nanoTime();
+        this.fileManager = new FileManager(this::addLog);
+        addLog("Archivio aperto in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - inizio) + " ms.");
+        this.eventi = new RegistroEventi(fileManager.getDati(), this::addLog);
 
-        // Avvio del servizio di rete sulla porta 8189
-        this.connectionHandler = new ConnectionHandler(8189, this);
+        // Avvio del servizio di rete (porta predefinita 8189)
+        this.porta = ServerConfig.getInt("mail.porta", 8189);
+        this.connectionHandler = new ConnectionHandler(porta, this);
         this.connectionHandler.startServer();
+
+        // Anche un arresto dall'esterno (es. SIGTERM durante un riavvio) deve essere ordinato
+        Runtime.getRuntime().addShutdownHook(new Thread(this::stopServer, "arresto-server"));
     }
 
-    public ObservableList<String> getLogs() { return logs; }
+    /**
+     * Collega un registro al server in esecuzione (es. il pannello di amministrazione):
+     * riceve i messaggi successivi.
+     */
+    public void collegaRegistro(RegistroServer registro) {
+        registri.add(registro);
+    }
+
+    public void scollegaRegistro(RegistroServer registro) {
+        registri.remove(registro);
+    }
 
     /**
-     * Aggiunge una voce al log di sistema.
-     * Utilizza  Platform.runLater per garantire che l'aggiornamento della UI
-     * avvenga nel Thread corretto di JavaFX.
+     * Aggiunge una voce al log di sistema, inviandola a tutti i registri collegati.
      */
     public void addLog(String text) {
-        Platform.runLater(() -> logs.add(text));
+        for (RegistroServer registro : registri) {
+            registro.scrivi(text);
+        }
+    }
+
+    /**
+     * Riporta un comando eseguito nel registro degli eventi, senza fare I/O.
+     *
+     * @see RegistroEventi#registra
+     */
+    public void registraEvento(String comando, String utente, String esito, String messaggio,
+                               long durataNs, InetAddress origine) {
+        eventi.registra(comando, utente, esito, messaggio, durataNs, origine);
+    }
+
+    public int getPorta() {
+        return porta;
+    }
+
+    /**
+     * Attende lo spegnimento del server (es. il thread principale senza interfaccia grafica).
+     */
+    public void attendiArresto() {
+        arrestato.join();
     }
 
     // --- LOGICA DI BUSINESS ---
@@ -79,9 +146,13 @@ public class ServerModel {
             }
         }
 
-        // Salvataggio nelle caselle dei destinatari
+        // Salvataggio nelle caselle dei destinatari (il testo viene scritto una sola volta).
+        // Al ritorno la consegna è registrata nel WAL: solo allora il client riceve la conferma
+        fileManager.salvaEmail(email.getDestinatari(), email);
+
+        // Risveglia i client in attesa (WATCH) sulle caselle dei destinatari
         for (String destinatario : email.getDestinatari()) {
-            fileManager.salvaEmail(destinatario, email);
+            attese.notifica(destinatario);
         }
 
         addLog("Ricevuta mail da " + email.getMittente() + " per " + email.getDestinatari().size() + " destinatari.");
@@ -94,40 +165,220 @@ public class ServerModel {
      * Exception Se l'utente non è autorizzato.
      */
     public List<Email> getEmailUtente(String utente) throws Exception {
-        // SICUREZZA: Controllo autenticazione
-        if (!UTENTI_AMMESSI.contains(utente)) {
-            addLog("Tentativo di accesso non autorizzato: " + utente);
-            throw new Exception("Utente sconosciuto! Accesso negato.");
-        }
+        verificaUtente(utente);
 
         addLog("L'utente " + utente + " ha richiesto la posta (Login completo).");
         return fileManager.caricaEmail(utente);
     }
 
+    /**
+     * Recupera le sole buste della casella (senza il testo dei messaggi).
+     * @param utente L'utente che richiede accesso.
+     * Exception Se l'utente non è autorizzato.
+     */
+    public List<Email> getBusteUtente(String utente) throws Exception {
+        verificaUtente(utente);
+
+        addLog("L'utente " + utente + " ha richiesto l'elenco dei messaggi.");
+        return fileManager.caricaBuste(utente);
+    }
+
+    /**
+     * Recupera una pagina di buste, dalla più recente in ordine di arrivo.
+     * @param prima Ultima busta della pagina precedente (null per la prima pagina).
+     * @param quante Dimensione massima della pagina.
+     * @return Le buste, e se la casella ne contiene altre dopo questa pagina.
+     * Exception Se l'utente non è autorizzato o il riferimento non è più valido.
+     */
+    public Pagina getPaginaUtente(String utente, UUID prima, int quante) throws Exception {
+        verificaUtente(utente);
+
+        if (prima == null) {
+            addLog("L'utente " + utente + " ha richiesto la prima pagina della posta.");
+        }
+        Pagina pagina = fileManager.caricaPagina(utente, prima, quante);
+        if (pagina == null) {
+            throw new Exception("Messaggio di riferimento non più presente, ricaricare la casella.");
+        }
+        return pagina;
+    }
+
+    /**
+     * Recupera il testo di un messaggio della casella.
+     * @return Il testo del messaggio.
+     * Exception Se l'utente non è autorizzato o il messaggio non è nella sua casella.
+     */
+    public String getCorpoEmail(String utente, UUID id) throws Exception {
+        verificaUtente(utente);
+
+        String testo = fileManager.caricaCorpo(utente, id);
+        if (testo == null) {
+            throw new Exception("Messaggio non trovato.");
+        }
+        return testo;
+    }
+
+    /**
+     * Come {@link #getBusteUtente}, ma le buste restano nel formato del log e vengono
+     * inviate al client senza decodificarle (protocollo binario).
+     * Exception Se l'utente non è autorizzato.
+     */
+    public Trasferimento getTrasferimentoBuste(String utente) throws Exception {
+        verificaUtente(utente);
+
+        addLog("L'utente " + utente + " ha richiesto l'elenco dei messaggi.");
+        return fileManager.trasferimentoBuste(utente);
+    }
+
+    /**
+     * Come {@link #getCorpoEmail}, ma il testo viene inviato al client senza decodificarlo.
+     * Exception Se l'utente non è autorizzato o il messaggio non è nella sua casella.
+     */
+    public Trasferimento getTrasferimentoCorpo(String utente, UUID id) throws Exception {
+        verificaUtente(utente);
+
+        Trasferimento trasferimento = fileManager.trasferimentoCorpo(utente, id);
+        if (trasferimento == null) {
+            throw new Exception("Messaggio non trovato.");
+        }
+        return trasferimento;
+    }
+
     /**
      * Recupera solo i messaggi successivi a una certa data.
      * @param utente L'utente richiedente.
      * @param lastUpdate Timestamp dell'ultimo aggiornamento noto al client.
-     * @return Lista filtrata dei nuovi messaggi.
+     * @return Lista dei soli messaggi nuovi (vuota se non ci sono novità).
      */
     public List<Email> getEmailUtenteAfter(String utente, LocalDateTime lastUpdate) throws Exception {
-        // Riutilizziamo la logica di autenticazione e caricamento base
-        List<Email> tutte = getEmailUtente(utente);
+        // Senza data di riferimento serve l'intera casella (Login completo)
+        if (lastUpdate == null) return getEmailUtente(utente);
+
+        verificaUtente(utente);
+
+        // L'indice della casella individua direttamente i messaggi con data > lastUpdate
+        return fileManager.caricaEmailDopo(utente, lastUpdate);
+    }
+
+    /**
+     * Attesa di nuova posta senza occupare un thread (comando WATCH).
+     * <p>
+     * Il segnale restituito si completa subito se ci sono già messaggi successivi a
+     * {@code lastUpdate}, altrimenti alla prossima consegna nella casella o allo
+     * scadere di {@code timeoutMs}. I messaggi vanno poi letti con
+     * {@link #getEmailUtenteAfter}.
+     *
+     * Exception Se l'utente non è autorizzato.
+     */
+    public CompletableFuture<Void> attendiEmailUtenteAfter(String utente, LocalDateTime lastUpdate, long timeoutMs)
+            throws Exception {
+        verificaUtente(utente);
+
+        // Prima si registra l'attesa, poi si controlla: una consegna nel mezzo non va persa
+        CompletableFuture<Void> segnale = attese.registra(utente);
+        if (lastUpdate == null || fileManager.ciSonoEmailDopo(utente, lastUpdate)) {
+            segnale.complete(null);
+        }
+        return segnale.completeOnTimeout(null, timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Recupera le modifiche della casella (messaggi arrivati e cancellati) successive
+     * alla sequenza nota al client (comando SYNC).
+     * @param epoca Epoca della sequenza (0 se il client non ne conosce una).
+     * @param seq Sequenza dell'ultima modifica ricevuta dal client.
+     * Exception Se l'utente non è autorizzato.
+     */
+    public Modifiche getModificheUtente(String utente, long epoca, long seq) throws Exception {
+        verificaUtente(utente);
+
+        Modifiche modifiche = fileManager.caricaModifiche(utente, epoca, seq);
+        if (modifiche.tipo() != Protocollo.SYNC_DELTA) {
+            addLog("L'utente " + utente + " ha sincronizzato la casella da una sequenza non più valida.");
+        }
+        return modifiche;
+    }
 
-        if (lastUpdate == null) return tutte;
+    /**
+     * Attesa di modifiche della casella senza occupare un thread (comando SYNC), come
+     * {@link #attendiEmailUtenteAfter}: il segnale si completa subito se la casella è
+     * già cambiata dopo {@code seq}, altrimenti alla prossima consegna o cancellazione.
+     *
+     * Exception Se l'utente non è autorizzato.
+     */
+    public CompletableFuture<Void> attendiModificheUtente(String utente, long epoca, long seq, long timeoutMs)
+            throws Exception {
+        verificaUtente(utente);
+
+        CompletableFuture<Void> segnale = attese.registra(utente);
+        if (fileManager.ciSonoModificheDopo(utente, epoca, seq)) {
+            segnale.complete(null);
+        }
+        return segnale.completeOnTimeout(null, timeoutMs, TimeUnit.MILLISECONDS);
+    }
 
-        // FILTRO STREAM: Manteniamo solo i messaggi con data > lastUpdate
-        return tutte.stream()
-                .filter(e -> e.getDataSpedizione().isAfter(lastUpdate))
-                .collect(Collectors.toList());
+    /**
+     * SICUREZZA: Controllo autenticazione.
+     * Exception Se l'utente non è nella white-list.
+     */
+    private void verificaUtente(String utente) throws Exception {
+        if (!UTENTI_AMMESSI.contains(utente)) {
+            addLog("Tentativo di accesso non autorizzato: " + utente);
+            throw new Exception("Utente sconosciuto! Accesso negato.");
+        }
     }
 
-    public void cancellaEmail(String utente, Email email) {
+    /**
+     * Cancella un messaggio dalla casella dell'utente.
+     * Exception Se l'utente non è autorizzato.
+     */
+    public void cancellaEmail(String utente, Email email) throws Exception {
+        verificaUtente(utente);
+
         fileManager.cancellaEmail(utente, email);
+
+        // Le altre sessioni dello stesso utente in attesa (SYNC) ricevono la cancellazione
+        attese.notifica(utente);
         addLog("L'utente " + utente + " ha cancellato una mail.");
     }
 
+    /**
+     * Restituisce i contatori di sistema (cache, I/O, rete) per il pannello di amministrazione.
+     */
+    public Map<String, Long> getMetriche() {
+        return ServerMetrics.snapshot();
+    }
+
+    /**
+     * Spegne il server senza perdere né troncare nulla:
+     * <ol>
+     * <li>i client in attesa di posta (WATCH, SYNC) ricevono subito la risposta;</li>
+     * <li>la rete smette di accettare connessioni e comandi, e attende la fine di quelli
+     *     in corso per al massimo {@code mail.arresto.scadenzaSec} secondi (predefinito 10);</li>
+     * <li>l'archivio rende persistente tutto e svuota il WAL ({@link FileManager#chiudi()});</li>
+     * <li>i registri scrivono i messaggi e gli eventi ancora in coda.</li>
+     * </ol>
+     * Può essere chiamato più volte e da più thread (finestra, hook di spegnimento della JVM):
+     * le chiamate successive attendono la fine della prima.
+     */
     public void stopServer() {
-        connectionHandler.stop();
+        if (!arrestoAvviato.compareAndSet(false, true)) {
+            arrestato.join();
+            return;
+        }
+        long inizio = System.nanoTime();
+        try {
+            attese.chiudi();
+            int forzate = connectionHandler.stop(ServerConfig.getLong("mail.arresto.scadenzaSec", 10) * 1000);
+            fileManager.chiudi();
+            addLog("Server arrestato in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - inizio) + " ms"
+                    + (forzate > 0 ? " (" + forzate + " connessioni chiuse allo scadere)." : "."));
+        } catch (IOException e) {
+            addLog("Errore critico durante la chiusura dell'archivio (" + e + ")");
+        } finally {
+            eventi.chiudi();
+            registri.forEach(RegistroServer::chiudi);
+            arrestato.complete(null);
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,194 @@
+package server.model;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Dati di una risposta da inviare al client così come sono memorizzati, senza
+ * decodificarli e ricodificarli.
+ * <p>
+ * I dati sono una sequenza di segmenti: porzioni di un file, inviate con
+ * {@link FileChannel#transferTo} (su Linux {@code sendfile}, senza passare dallo heap),
+ * oppure byte già in memoria (es. record in un formato che il client non conosce,
+ * ricodificati). Il file è aperto apposta per il trasferimento: resta leggibile anche
+ * se nel frattempo la compattazione sostituisce il log o il corpo viene eliminato.
+ * <p>
+ * Il trasferimento può procedere a più riprese ({@link #trasferisci}), come richiesto
+ * dai canali non bloccanti; va sempre chiuso, anche se interrotto.
+ */
+public final class Trasferimento implements Closeable {
+
+    // Byte copiati attraverso lo heap quando transferTo non avanza su un canale bloccante
+    private static final int BLOCCO_COPIA = 64 * 1024;
+
+    private final FileChannel canale;
+    private final boolean testo;
+    private final int elementi;
+
+    // Segmenti: porzione del file (inMemoria null) oppure byte in memoria
+    private final List<ByteBuffer> inMemoria = new ArrayList<>();
+    private final List<long[]> porzioni = new ArrayList<>();
+    private long lunghezza;
+
+    // Avanzamento: segmento corrente e byte già inviati della porzione corrente
+    private int corrente;
+    private long inviati;
+
+    private Trasferimento(FileChannel canale, boolean testo, int elementi) {
+        this.canale = canale;
+        this.testo = testo;
+        this.elementi = elementi;
+    }
+
+    /**
+     * Sequenza di record del log (LIST).
+     */
+    static Trasferimento record(FileChannel canale, int elementi) {
+        return new Trasferimento(canale, false, elementi);
+    }
+
+    /**
+     * Testo UTF-8 di un messaggio (FETCH_BODY); {@code canale} può essere null se il
+     * testo è solo in memoria.
+     */
+    static Trasferimento testo(FileChannel canale) {
+        return new Trasferimento(canale, true, 1);
+    }
+
+    /**
+     * Aggiunge una porzione del file, unendola alla precedente se contigua.
+     */
+    void aggiungi(long posizione, long quanti) {
+        int ultimo = porzioni.size() - 1;
+        if (ultimo >= 0 && inMemoria.get(ultimo) == null) {
+            long[] precedente = porzioni.get(ultimo);
+            if (precedente[0] + precedente[1] == posizione) {
+                precedente[1] += quanti;
+                lunghezza += quanti;
+                return;
+            }
+        }
+        porzioni.add(new long[] { posizione, quanti });
+        inMemoria.add(null);
+        lunghezza += quanti;
+    }
+
+    /**
+     * Aggiunge byte in memoria (dalla posizione al limite del buffer).
+     */
+    void aggiungi(ByteBuffer dati) {
+        porzioni.add(null);
+        inMemoria.add(dati);
+        lunghezza += dati.remaining();
+    }
+
+    /**
+     * @return true per il testo di un messaggio, false per una sequenza di record.
+     */
+    public boolean isTesto() {
+        return testo;
+    }
+
+    /**
+     * @return Il numero di record (1 per il testo).
+     */
+    public int elementi() {
+        return elementi;
+    }
+
+    /**
+     * @return I byte complessivi da inviare.
+     */
+    public long lunghezza() {
+        return lunghezza;
+    }
+
+    /**
+     * Invia i dati rimanenti. Su un canale non bloccante si ferma quando il buffer del
+     * socket è pieno: va richiamato quando il canale torna scrivibile.
+     *
+     * @return true se tutti i dati sono stati inviati.
+     */
+    public boolean trasferisci(WritableByteChannel destinazione) throws IOException {
+        return trasferisci(destinazione, Long.MAX_VALUE);
+    }
+
+    /**
+     * Come {@link #trasferisci(WritableByteChannel)}, ma si ferma dopo circa {@code massimo}
+     * byte: su un canale bloccante permette di controllare l'avanzamento dell'invio.
+     *
+     * @return true se tutti i dati sono stati inviati.
+     */
+    public boolean trasferisci(WritableByteChannel destinazione, long massimo) throws IOException {
+        long rimasti = massimo;
+        while (corrente < porzioni.size()) {
+            if (rimasti <= 0) return false;
+            ByteBuffer dati = inMemoria.get(corrente);
+            if (dati != null) {
+                int limite = dati.limit();
+                if (dati.remaining() > rimasti) dati.limit(dati.position() + (int) rimasti);
+                rimasti -= destinazione.write(dati);
+                dati.limit(limite);
+                if (dati.hasRemaining()) return false;
+            } else {
+                long[] porzione = porzioni.get(corrente);
+                while (inviati < porzione[1]) {
+                    if (rimasti <= 0) return false;
+                    long quanti = Math.min(rimasti, porzione[1] - inviati);
+                    long n = canale.transferTo(porzione[0] + inviati, quanti, destinazione);
+                    if (n <= 0) {
+                        if (porzione[0] + inviati >= canale.size()) {
+                            throw new IOException("File troncato durante il trasferimento");
+                        }
+                        if (!bloccante(destinazione)) {
+                            return false;
+                        }
+                        // Socket pieno con un virtual thread: transferTo non attende, la scrittura sì
+                        n = copia(porzione[0] + inviati, quanti, destinazione);
+                    } else if (destinazione instanceof SocketChannel) {
+                        ServerMetrics.aggiungi("rete.zeroCopy.bytes", n);
+                    }
+                    inviati += n;
+                    rimasti -= n;
+                }
+            }
+            corrente++;
+            inviati = 0;
+        }
+        return true;
+    }
+
+    private static boolean bloccante(WritableByteChannel destinazione) {
+        return !(destinazione instanceof SelectableChannel selezionabile) || selezionabile.isBlocking();
+    }
+
+    /**
+     * Copia una porzione del file attraverso lo heap, con una scrittura che attende lo
+     * spazio nel socket.
+     */
+    private long copia(long posizione, long quanti, WritableByteChannel destinazione) throws IOException {
+        ByteBuffer dati = ByteBuffer.allocate((int) Math.min(quanti, BLOCCO_COPIA));
+        while (dati.hasRemaining()) {
+            if (canale.read(dati, posizione + dati.position()) < 0) {
+                throw new IOException("File troncato durante il trasferimento");
+            }
+        }
+        dati.flip();
+        while (dati.hasRemaining()) {
+            destinazione.write(dati);
+        }
+        return dati.limit();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (canale != null) canale.close();
+    }
+}
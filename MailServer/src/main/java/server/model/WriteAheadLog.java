@@ -0,0 +1,399 @@
+package server.model;
+
+import common.Email;
+import common.EmailCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log condiviso delle consegne, con group commit.
+ * <p>
+ * Ogni consegna viene registrata qui (messaggio completo e destinatari) prima di
+ * essere applicata alle caselle; le caselle e i corpi vengono poi resi persistenti
+ * solo periodicamente, con un {@link FileManager#checkpoint() checkpoint}. Dopo un
+ * crash le consegne ancora presenti nel WAL vengono riapplicate all'avvio.
+ * <p>
+ * Modalità di durabilità ({@code mail.wal.durabilita}):
+ * <ul>
+ * <li>{@code none}: nessun fsync, la consegna sopravvive solo al crash del processo.</li>
+ * <li>{@code batch(ms)}: un thread esegue un fsync ogni {@code ms} millisecondi;
+ *     la consegna viene confermata dopo il primo fsync che la comprende.</li>
+ * <li>{@code always}: la consegna viene confermata solo dopo un fsync. Le consegne
+ *     arrivate mentre è in corso un fsync lo condividono con il successivo (group commit).</li>
+ * </ul>
+ * <p>
+ * Il WAL è diviso in segmenti {@code wal-<n>.log}: a ogni checkpoint si passa a un
+ * nuovo segmento e i precedenti vengono eliminati. Formato di un segmento:
+ * <pre>
+ * [MAGIC int][VERSIONE int]
+ * [lunghezza int][crc32 int][numero destinatari varint][destinatario str ...][email]   un record per consegna
+ * </pre>
+ * dove {@code email} è codificata con {@link EmailCodec}, testo compreso.
+ */
+class WriteAheadLog {
+
+    static final int MAGIC = 0x4D57414C; // "MWAL"
+    static final int VERSIONE = 1;
+    static final int HEADER_SIZE = 8;
+
+    // lunghezza (4) + crc (4)
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    // Limite di sicurezza: una lunghezza più grande indica un record corrotto,
+    // quindi una consegna più grande viene rifiutata prima di essere scritta
+    private static final int MAX_RECORD = 16 * 1024 * 1024;
+
+    enum Durabilita { NONE, BATCH, ALWAYS }
+
+    private final Path directory;
+    private final Durabilita durabilita;
+    private final long intervalloBatchMs;
+    private final RegistroServer registro;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition sincronizzato = lock.newCondition();
+
+    private FileChannel canale;
+    private long numeroSegmento;
+    private long fine;
+
+    // Numero dell'ultimo record scritto e dell'ultimo reso persistente
+    private long scritti;
+    private long sincronizzati;
+    private boolean sincronizzazioneInCorso;
+    // Numero dell'ultimo record compreso in un fsync fallito
+    private long falliti;
+
+    private ScheduledExecutorService flusher;
+
+    private WriteAheadLog(Path directory, Durabilita durabilita, long intervalloBatchMs, RegistroServer registro) {
+        this.directory = directory;
+        this.durabilita = durabilita;
+        this.intervalloBatchMs = intervalloBatchMs;
+        this.registro = registro;
+    }
+
+    /**
+     * Apre il WAL nella cartella indicata. I segmenti già presenti non vengono
+     * toccati: vanno letti con {@link #recupera()} ed eliminati dal checkpoint.
+     *
+     * @param modalita {@code none}, {@code always}, {@code batch} oppure {@code batch(ms)}.
+     * @param registro Riceve gli avvisi (configurazione non valida, errori di fsync, record scartati).
+     */
+    static WriteAheadLog apri(Path directory, String modalita, long intervalloBatchMs, RegistroServer registro)
+            throws IOException {
+        Files.createDirectories(directory);
+
+        String m = modalita.trim().toLowerCase();
+        Durabilita durabilita;
+        if (m.equals("none")) {
+            durabilita = Durabilita.NONE;
+        } else if (m.equals("always")) {
+            durabilita = Durabilita.ALWAYS;
+        } else if (m.startsWith("batch")) {
+            durabilita = Durabilita.BATCH;
+            if (m.startsWith("batch(") && m.endsWith(")")) {
+                try {
+                    intervalloBatchMs = Long.parseLong(m.substring(6, m.length() - 1).trim());
+                } catch (NumberFormatException e) {
+                    registro.scrivi("Intervallo non valido per il WAL: " + modalita + " (uso " + intervalloBatchMs + " ms)");
+                }
+            }
+        } else {
+            registro.scrivi("Modalità di durabilità sconosciuta: " + modalita + " (uso always)");
+            durabilita = Durabilita.ALWAYS;
+        }
+
+        WriteAheadLog wal = new WriteAheadLog(directory, durabilita, Math.max(1, intervalloBatchMs), registro);
+        List<Path> esistenti = wal.segmenti();
+        wal.numeroSegmento = esistenti.isEmpty() ? 0 : numero(esistenti.get(esistenti.size() - 1));
+        wal.apriSegmento(wal.numeroSegmento + 1);
+
+        if (durabilita == Durabilita.BATCH) {
+            wal.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "wal-flusher");
+                t.setDaemon(true);
+                return t;
+            });
+            wal.flusher.scheduleWithFixedDelay(wal::sincronizzaPeriodico,
+                    wal.intervalloBatchMs, wal.intervalloBatchMs, TimeUnit.MILLISECONDS);
+        }
+        return wal;
+    }
+
+    Durabilita durabilita() {
+        return durabilita;
+    }
+
+    // --- SCRITTURA ---
+
+    /**
+     * Registra una consegna e attende che sia persistente secondo la modalità configurata.
+     *
+     * @throws IOException Se la consegna supera la dimensione massima di un record, se la
+     *                     scrittura non riesce o se fallisce l'fsync che doveva comprenderla.
+     *                     In quest'ultimo caso il record resta nel segmento: la consegna non
+     *                     confermata potrebbe ricomparire se il server termina prima del checkpoint.
+     */
+    void registra(List<String> destinatari, Email email) throws IOException {
+        ByteBuffer record = record(destinatari, email);
+        if (record.remaining() - RECORD_HEADER_SIZE > MAX_RECORD) {
+            ServerMetrics.incrementa("wal.recordRifiutati");
+            throw new IOException("Messaggio troppo grande: " + (record.remaining() - RECORD_HEADER_SIZE)
+                    + " byte (massimo " + MAX_RECORD + ").");
+        }
+
+        long numero;
+        lock.lock();
+        try {
+            while (record.hasRemaining()) {
+                fine += canale.write(record, fine);
+            }
+            numero = ++scritti;
+        } finally {
+            lock.unlock();
+        }
+        ServerMetrics.incrementa("wal.record");
+
+        switch (durabilita) {
+            case NONE -> { }
+            case BATCH -> attendi(numero, false);
+            case ALWAYS -> attendi(numero, true);
+        }
+    }
+
+    /**
+     * Attende che il record {@code numero} sia persistente. Se fallisce l'fsync che lo
+     * comprendeva l'errore arriva anche a chi attende, invece di lasciarlo in attesa
+     * di un fsync che potrebbe non riuscire più.
+     *
+     * @param guida true se il thread può eseguire lui stesso l'fsync per tutto il gruppo.
+     */
+    private void attendi(long numero, boolean guida) throws IOException {
+        lock.lock();
+        try {
+            while (sincronizzati < numero) {
+                if (numero <= falliti) {
+                    throw new IOException("fsync del WAL non riuscito: consegna non confermata.");
+                }
+                if (guida && !sincronizzazioneInCorso) {
+                    eseguiFsync();
+                } else {
+                    sincronizzato.awaitUninterruptibly();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Esegue un fsync che rende persistenti tutti i record scritti finora.
+     * Va chiamato con il lock acquisito: il lock viene rilasciato durante l'fsync,
+     * così altri thread possono continuare a scrivere (e formare il gruppo successivo).
+     */
+    private void eseguiFsync() throws IOException {
+        long obiettivo = scritti;
+        FileChannel daSincronizzare = canale;
+        sincronizzazioneInCorso = true;
+        lock.unlock();
+        boolean riuscito = false;
+        try {
+            daSincronizzare.force(false);
+            riuscito = true;
+        } finally {
+            lock.lock();
+            sincronizzazioneInCorso = false;
+            if (!riuscito) falliti = Math.max(falliti, obiettivo);
+            sincronizzato.signalAll();
+        }
+        if (obiettivo > sincronizzati) {
+            ServerMetrics.incrementa("wal.fsync");
+            ServerMetrics.aggiungi("wal.recordSincronizzati", obiettivo - sincronizzati);
+            sincronizzati = obiettivo;
+        }
+    }
+
+    private void sincronizzaPeriodico() {
+        lock.lock();
+        try {
+            if (sincronizzati < scritti && !sincronizzazioneInCorso) {
+                eseguiFsync();
+            }
+        } catch (IOException e) {
+            registro.scrivi("Errore fsync del WAL (" + e + ")");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // --- CHECKPOINT E RECUPERO ---
+
+    /**
+     * Passa a un nuovo segmento. Il chiamante deve garantire che non ci siano
+     * consegne in corso.
+     *
+     * @return I segmenti precedenti, da eliminare quando le caselle sono persistenti.
+     */
+    List<Path> ruota() throws IOException {
+        lock.lock();
+        try {
+            while (sincronizzazioneInCorso) {
+                sincronizzato.awaitUninterruptibly();
+            }
+            canale.close();
+            // Le consegne del segmento chiuso verranno rese persistenti dal checkpoint
+            sincronizzati = scritti;
+            sincronizzato.signalAll();
+            List<Path> precedenti = segmenti();
+            apriSegmento(numeroSegmento + 1);
+            return precedenti;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void elimina(List<Path> segmenti) throws IOException {
+        for (Path segmento : segmenti) {
+            Files.deleteIfExists(segmento);
+        }
+    }
+
+    /**
+     * Una consegna letta da un segmento durante il recupero.
+     */
+    record Consegna(List<String> destinatari, Email email) { }
+
+    /**
+     * Legge le consegne presenti nei segmenti precedenti all'apertura, in ordine.
+     * Un record incompleto o corrotto termina la lettura del suo segmento.
+     */
+    List<Consegna> recupera() throws IOException {
+        List<Consegna> consegne = new ArrayList<>();
+        for (Path segmento : segmenti()) {
+            if (numero(segmento) == numeroSegmento) continue; // segmento corrente
+
+            ByteBuffer dati = ByteBuffer.wrap(Files.readAllBytes(segmento));
+            if (dati.remaining() < HEADER_SIZE || dati.getInt() != MAGIC || dati.getInt() != VERSIONE) {
+                registro.scrivi("Segmento WAL non valido ignorato: " + segmento.getFileName());
+                continue;
+            }
+
+            CRC32 crc = new CRC32();
+            while (dati.remaining() >= RECORD_HEADER_SIZE) {
+                int lunghezza = dati.getInt();
+                int checksum = dati.getInt();
+                if (lunghezza < 1 || lunghezza > MAX_RECORD || dati.remaining() < lunghezza) {
+                    break;
+                }
+                crc.reset();
+                crc.update(dati.array(), dati.position(), lunghezza);
+                if ((int) crc.getValue() != checksum) {
+                    registro.scrivi("Record corrotto nel WAL " + segmento.getFileName() + ": lettura interrotta.");
+                    break;
+                }
+
+                ByteBuffer payload = dati.slice(dati.position(), lunghezza);
+                dati.position(dati.position() + lunghezza);
+                try {
+                    int quanti = (int) EmailCodec.leggiVarLong(payload);
+                    List<String> destinatari = new ArrayList<>(quanti);
+                    for (int i = 0; i < quanti; i++) {
+                        destinatari.add(EmailCodec.leggiStringa(payload));
+                    }
+                    consegne.add(new Consegna(destinatari, EmailCodec.decodifica(payload)));
+                } catch (IllegalArgumentException | java.nio.BufferUnderflowException e) {
+                    registro.scrivi("Record non valido nel WAL " + segmento.getFileName() + ": lettura interrotta.");
+                    break;
+                }
+            }
+        }
+        return consegne;
+    }
+
+    void close() throws IOException {
+        if (flusher != null) {
+            flusher.shutdownNow();
+        }
+        lock.lock();
+        try {
+            while (sincronizzazioneInCorso) {
+                sincronizzato.awaitUninterruptibly();
+            }
+            canale.force(false);
+            canale.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // --- METODI DI SUPPORTO ---
+
+    private static ByteBuffer record(List<String> destinatari, Email email) {
+        int dimensione = EmailCodec.dimensioneVarLong(destinatari.size());
+        for (String destinatario : destinatari) {
+            dimensione += EmailCodec.dimensioneStringa(destinatario);
+        }
+        dimensione += EmailCodec.dimensione(email, true);
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + dimensione);
+        record.putInt(dimensione).putInt(0);
+        EmailCodec.scriviVarLong(record, destinatari.size());
+        for (String destinatario : destinatari) {
+            EmailCodec.scriviStringa(record, destinatario);
+        }
+        EmailCodec.codifica(email, true, record);
+
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_HEADER_SIZE, dimensione);
+        record.putInt(4, (int) crc.getValue());
+        return record.flip();
+    }
+
+    private void apriSegmento(long numero) throws IOException {
+        Path segmento = directory.resolve(String.format("wal-%016d.log", numero));
+        canale = FileChannel.open(segmento,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSIONE).flip();
+        fine = 0;
+        while (header.hasRemaining()) {
+            fine += canale.write(header, fine);
+        }
+        numeroSegmento = numero;
+    }
+
+    /**
+     * @return I segmenti presenti nella cartella, in ordine di creazione.
+     */
+    private List<Path> segmenti() throws IOException {
+        List<Path> segmenti = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "wal-*.log")) {
+            for (Path segmento : stream) {
+                segmenti.add(segmento);
+            }
+        }
+        // Il numero ha larghezza fissa: l'ordine alfabetico coincide con quello numerico
+        segmenti.sort(null);
+        return segmenti;
+    }
+
+    private static long numero(Path segmento) {
+        String nome = segmento.getFileName().toString();
+        return Long.parseLong(nome.substring("wal-".length(), nome.length() - ".log".length()));
+    }
+}
@@ -1,97 +1,448 @@
 package server.network;
 
-import common.Email;
+import common.Protocollo;
+import server.model.ServerMetrics;
 import server.model.ServerModel;
+import server.model.Trasferimento;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.net.Socket;
-import java.time.LocalDateTime;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Worker Thread dedicato alla gestione di una singola richiesta Client.
+ * Worker Thread dedicato alla gestione di una connessione Client.
  * <p>
  * Implementa l'interfaccia Runnable per essere eseguito in parallelo.
- * Gestisce il ciclo di vita di una connessione (apertura, comando, risposta, chiusura).
+ * Gestisce il ciclo di vita di una connessione (apertura, comando, risposta, chiusura);
+ * i comandi sono eseguiti da {@link GestoreComandi}.
+ * <p>
+ * Se il primo comando è {@code SESSION} la connessione resta aperta per i comandi
+ * successivi (vedi {@link LimiteSessioni}). Ogni risposta inizia con un reset dello
+ * stream, così il client non accumula riferimenti agli oggetti già ricevuti; lo stream
+ * in uscita è bufferizzato e ogni risposta parte con un solo flush.
+ * <p>
+ * Se la connessione inizia con la negoziazione del {@link Protocollo protocollo binario}
+ * e viene scelta la versione 2, i comandi arrivano come frame binari; i buffer di
+ * richiesta e risposta vengono riutilizzati per tutta la connessione. Le risposte che
+ * contengono un {@link Trasferimento} vengono inviate dal file direttamente al socket,
+ * a meno che il client abbia chiesto la {@link CompressioneRisposte compressione}.
+ * <p>
+ * Letture e scritture hanno le scadenze di {@link LimiteConnessioni}: un client fermo
+ * non occupa il thread per sempre. Tra un comando e l'altro di una sessione si attende
+ * fino all'inattività massima di {@link LimiteSessioni}; dal primo byte di una richiesta
+ * la richiesta intera deve arrivare entro la scadenza di lettura (vedi
+ * {@link IngressoRichiesta}). Come con {@link NioServer}, una richiesta serializzata
+ * oltre {@link NioServer#MAX_RICHIESTA} byte chiude la connessione.
+ * <p>
+ * Un WATCH o SYNC senza novità blocca il thread fino alla consegna o allo scadere
+ * dell'attesa. Con i thread di piattaforma le attese contemporanee sono limitate dai
+ * {@code postiAttesa}: senza un posto libero il client riceve subito una risposta
+ * "riprova più tardi".
  */
 public class ClientHandler implements Runnable {
 
+    // Dimensione massima di una singola scrittura sul socket, ciascuna con la sua scadenza
+    private static final int BLOCCO_SCRITTURA = 64 * 1024;
+
     private final Socket socket;
     private final ServerModel model;
+    private final GestoreComandi gestore;
+    private final LimiteSessioni sessioni;
+    private final LimiteConnessioni connessioni;
+    // Attese di posta consentite (null se illimitate, con i virtual thread)
+    private final Semaphore postiAttesa;
+    private OutputStream uscita;
 
-    public ClientHandler(Socket socket, ServerModel model) {
+    ClientHandler(Socket socket, ServerModel model, GestoreComandi gestore, LimiteSessioni sessioni,
+                  LimiteConnessioni connessioni, Semaphore postiAttesa) {
         this.socket = socket;
         this.model = model;
+        this.gestore = gestore;
+        this.sessioni = sessioni;
+        this.connessioni = connessioni;
+        this.postiAttesa = postiAttesa;
     }
 
     @Override
     public void run() {
+        try {
+            // Scadenze: la richiesta deve arrivare, e la risposta partire, senza lunghe pause
+            socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, connessioni.timeoutLetturaMs()));
+            uscita = new UscitaConScadenza(socket.getOutputStream());
+
+            // I primi due byte distinguono la negoziazione dall'intestazione della serializzazione Java
+            BufferedInputStream ingresso = new BufferedInputStream(socket.getInputStream());
+            ingresso.mark(2);
+            int primo = ingresso.read();
+            int secondo = ingresso.read();
+
+            if (((primo << 8) | secondo) == Protocollo.MAGIC) {
+                byte versione = negozia(ingresso.read());
+                if (versione != Protocollo.VERSIONE_SERIALIZZAZIONE) {
+                    if (versione >= Protocollo.VERSIONE_BINARIA) {
+                        binario(ingresso, versione);
+                    }
+                    return;
+                }
+            } else {
+                ingresso.reset();
+            }
+            serializzazione(ingresso);
+
+        } catch (SocketTimeoutException e) {
+            ServerMetrics.incrementa("rete.timeoutLettura");
+            model.addLog("Errore comunicazione client: richiesta incompleta entro il tempo massimo");
+        } catch (IOException | ClassNotFoundException e) {
+            model.addLog("Errore comunicazione client: " + e.getMessage());
+        } finally {
+            // Chiusura sicura del socket
+            try { socket.close(); } catch (IOException e) { }
+            connessioni.rilascia();
+        }
+    }
+
+    /**
+     * Risponde alla negoziazione della versione del protocollo.
+     * La versione binaria occupa una sessione: oltre il limite la connessione viene rifiutata.
+     */
+    private byte negozia(int richiesta) throws IOException {
+        byte versione = ProtocolloBinario.scegliVersione(richiesta);
+        if (versione >= Protocollo.VERSIONE_BINARIA && !sessioni.acquisisci()) {
+            versione = Protocollo.VERSIONE_RIFIUTATA;
+        }
+        uscita.write(ProtocolloBinario.rispostaNegoziazione(versione));
+        uscita.flush();
+        return versione;
+    }
+
+    /**
+     * Connessione con la serializzazione Java: un comando, oppure una sessione.
+     */
+    private void serializzazione(InputStream ingresso) throws IOException, ClassNotFoundException {
         // Try-with-resources assicura la chiusura degli stream
+        IngressoRichiesta richieste = new IngressoRichiesta(ingresso, NioServer.MAX_RICHIESTA);
         try (
-                ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-                ObjectInputStream in = new ObjectInputStream(socket.getInputStream())
+                ObjectOutputStream out = apriUscita();
+                ObjectInputStream in = new ObjectInputStream(richieste)
         ) {
-            //Lettura del comando
-            String command = (String) in.readObject();
-
-            switch (command) {
-                case "LOGIN":
-                    try {
-                        String userEmail = (String) in.readObject();
-
-                        List<Email> inbox = model.getEmailUtente(userEmail);
-
-                        // OK + Dati
-                        out.writeObject("OK");
-                        out.writeObject(inbox);
-                    } catch (Exception e) {
-                        // Messaggio di errore
-                        out.writeObject(e.getMessage());
-                    }
-                    break;
+            //Lettura del comando e dei parametri
+            GestoreComandi.Richiesta richiesta = GestoreComandi.leggi(in);
 
-                case "REFRESH":
-                    try {
-                        String userEmail = (String) in.readObject();
-                        LocalDateTime lastUpdate = (LocalDateTime) in.readObject();
+            if (LimiteSessioni.COMANDO_SESSIONE.equals(richiesta.comando())) {
+                sessione(in, richieste, out);
+                return;
+            }
 
-                        List<Email> inbox = model.getEmailUtenteAfter(userEmail, lastUpdate);
+            // Esecuzione e invio della risposta (WATCH attende qui la posta nuova)
+            for (Object risposta : GestoreComandi.perSerializzazione(richiesta.comando(), esegui(richiesta))) {
+                out.writeObject(risposta);
+            }
+            out.flush();
+        }
+    }
 
-                        out.writeObject("OK");
-                        out.writeObject(inbox);
-                    } catch (Exception e) {
-                        out.writeObject(e.getMessage());
+    /**
+     * Esegue i comandi binari finché il client non invia QUIT o resta inattivo.
+     * La sessione è stata acquisita dalla negoziazione.
+     */
+    private void binario(InputStream ingresso, byte versione) throws IOException {
+        CompressioneRisposte compressione = null;
+        try {
+            // I frame hanno già il loro limite (Protocollo.MAX_FRAME)
+            IngressoRichiesta richieste = new IngressoRichiesta(ingresso, Long.MAX_VALUE);
+            DataInputStream in = new DataInputStream(richieste);
+            OutputStream out = uscita;
+            // Con il canale del socket transferTo usa sendfile; senza, copia attraverso lo stream
+            WritableByteChannel canale = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(out);
+            ByteBuffer richiesta = null;
+            ByteBuffer risposta = null;
+
+            while (true) {
+                int lunghezza;
+                try {
+                    richieste.attendiRichiesta();
+                    lunghezza = Protocollo.verificaLunghezza(in.readInt());
+                } catch (SocketTimeoutException | EOFException e) {
+                    // Client inattivo o connessione chiusa senza QUIT (non a metà della lunghezza)
+                    if (richieste.iniziata()) throw e;
+                    return;
+                }
+                richiesta = Protocollo.spazio(Protocollo.conserva(richiesta), lunghezza);
+                in.readFully(richiesta.array(), 0, lunghezza);
+                richiesta.limit(lunghezza);
+
+                GestoreComandi.Richiesta comando = ProtocolloBinario.leggi(richiesta.get(), richiesta, versione);
+                if (LimiteSessioni.COMANDO_FINE.equals(comando.comando())) {
+                    return;
+                }
+                if (CompressioneRisposte.COMANDO_OPZIONI.equals(comando.comando())) {
+                    byte accettate = CompressioneRisposte.accetta((Byte) comando.parametri()[0]);
+                    if (compressione == null) {
+                        compressione = CompressioneRisposte.per(accettate);
+                    } else {
+                        // Il flusso compresso non si può interrompere
+                        accettate |= Protocollo.OPZIONE_COMPRESSIONE;
                     }
-                    break;
-
-                case "SEND":
-                    try {
-                        Email email = (Email) in.readObject();
-                        model.riceviEmail(email);
-                        out.writeObject("OK");
-                    } catch (Exception e) {
-                        out.writeObject(e.getMessage());
+                    risposta = ProtocolloBinario.rispostaOpzioni(accettate, risposta);
+                    out.write(risposta.array(), 0, risposta.limit());
+                    continue;
+                }
+                List<Object> esito = esegui(comando);
+                try (Trasferimento trasferimento = ProtocolloBinario.trasferimento(comando.comando(), esito)) {
+                    risposta = ProtocolloBinario.risposta(comando.comando(), esito, risposta);
+                    if (compressione != null && compressione.conviene(risposta, trasferimento)) {
+                        ByteBuffer compressa = compressione.comprimi(comando.comando(), risposta, trasferimento);
+                        out.write(compressa.array(), 0, compressa.limit());
+                        compressione.rilascia();
+                    } else {
+                        out.write(risposta.array(), 0, risposta.limit());
+                        if (trasferimento != null && risposta.get(4) == Protocollo.OK) {
+                            trasferisci(trasferimento, canale);
+                        }
                     }
-                    break;
+                }
+                risposta = Protocollo.conserva(risposta);
+            }
+        } catch (IllegalArgumentException e) {
+            model.addLog("Errore comunicazione client: " + e.getMessage());
+        } finally {
+            if (compressione != null) compressione.close();
+            sessioni.rilascia();
+        }
+    }
 
-                case "DELETE":
-                    String user = (String) in.readObject();
-                    Email emailDaCancellare = (Email) in.readObject();
-                    model.cancellaEmail(user, emailDaCancellare);
-                    out.writeObject("OK");
-                    break;
+    /**
+     * Esegue i comandi di una sessione finché il client non la chiude o resta inattivo.
+     */
+    private void sessione(ObjectInputStream in, IngressoRichiesta richieste, ObjectOutputStream out)
+            throws IOException, ClassNotFoundException {
+        if (!sessioni.acquisisci()) {
+            out.writeObject(sessioni.messaggioRifiuto());
+            out.flush();
+            return;
+        }
+        try {
+            rispondi(out, "OK");
 
-                default:
-                    System.out.println("Comando sconosciuto ricevuto: " + command);
+            while (true) {
+                GestoreComandi.Richiesta richiesta;
+                try {
+                    richieste.attendiRichiesta();
+                    richiesta = GestoreComandi.leggi(in);
+                } catch (SocketTimeoutException | EOFException e) {
+                    // Client inattivo o connessione chiusa senza QUIT (non a metà di una richiesta)
+                    if (richieste.iniziata()) throw e;
+                    return;
+                }
+                if (LimiteSessioni.COMANDO_FINE.equals(richiesta.comando())) {
+                    return;
+                }
+                rispondi(out, GestoreComandi.perSerializzazione(richiesta.comando(), esegui(richiesta)).toArray());
             }
-
-        } catch (IOException | ClassNotFoundException e) {
-            System.out.println("Errore comunicazione client: " + e.getMessage());
         } finally {
-            // Chiusura sicura del socket
-            try { socket.close(); } catch (IOException e) { }
+            sessioni.rilascia();
+        }
+    }
+
+    /**
+     * Attende, se serve, la posta nuova (WATCH, SYNC) ed esegue il comando.
+     */
+    private List<Object> esegui(GestoreComandi.Richiesta richiesta) {
+        CompletableFuture<Void> attesa = gestore.attesa(richiesta);
+        if (!attesa.isDone()) {
+            if (postiAttesa != null && !postiAttesa.tryAcquire()) {
+                return gestore.rifiutaAttesa(richiesta, socket.getInetAddress());
+            }
+            try {
+                attesa.join();
+            } finally {
+                if (postiAttesa != null) postiAttesa.release();
+            }
+        }
+        return gestore.esegui(richiesta, socket.getInetAddress());
+    }
+
+    /**
+     * Stream in uscita bufferizzato. L'intestazione viene inviata subito:
+     * il client la attende prima di inviare il comando.
+     */
+    private ObjectOutputStream apriUscita() throws IOException {
+        ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(uscita));
+        out.flush();
+        return out;
+    }
+
+    /**
+     * Invia i dati di un trasferimento a blocchi, ciascuno con la sua scadenza di scrittura.
+     */
+    private void trasferisci(Trasferimento trasferimento, WritableByteChannel canale) throws IOException {
+        boolean finito;
+        do {
+            Future<?> scadenza = connessioni.scadenzaScrittura(socket);
+            try {
+                finito = trasferimento.trasferisci(canale, BLOCCO_SCRITTURA);
+            } finally {
+                scadenza.cancel(false);
+            }
+        } while (!finito);
+    }
+
+    /**
+     * Stream verso il socket con la scadenza di scrittura di {@link LimiteConnessioni}.
+     * I dati vengono scritti a blocchi, ciascuno con la sua scadenza: un client lento ma
+     * che riceve viene servito, uno che ha smesso di leggere viene disconnesso.
+     */
+    private final class UscitaConScadenza extends OutputStream {
+
+        private final OutputStream out;
+
+        UscitaConScadenza(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int quanti = Math.min(len, BLOCCO_SCRITTURA);
+                Future<?> scadenza = connessioni.scadenzaScrittura(socket);
+                try {
+                    out.write(b, off, quanti);
+                } finally {
+                    scadenza.cancel(false);
+                }
+                off += quanti;
+                len -= quanti;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Stream dal socket che applica le scadenze a una richiesta alla volta e ne conta i byte.
+     * <p>
+     * In attesa di una richiesta ({@link #attendiRichiesta()}) il timeout del socket è
+     * l'inattività massima della sessione; dal primo byte ricevuto la richiesta intera deve
+     * arrivare entro la scadenza di lettura di {@link LimiteConnessioni}, e ogni lettura
+     * attende solo il tempo che resta. Un client non può quindi tenere occupato il thread
+     * inviando un byte ogni tanto. La prima richiesta della connessione è già iniziata.
+     * <p>
+     * Oltre {@code massimo} byte la lettura viene interrotta. Lo stream di oggetti legge in
+     * anticipo: il conteggio è approssimato per eccesso di quanto bufferizzato.
+     */
+    private final class IngressoRichiesta extends FilterInputStream {
+
+        private final long massimo;
+        private long letti;
+        // Istante (System.nanoTime) entro cui la richiesta in corso deve essere arrivata
+        private long scadenza;
+        private boolean iniziata;
+
+        IngressoRichiesta(InputStream in, long massimo) {
+            super(in);
+            this.massimo = massimo;
+            inizia();
+        }
+
+        /**
+         * La prossima lettura attende una nuova richiesta.
+         */
+        void attendiRichiesta() {
+            letti = 0;
+            iniziata = false;
+        }
+
+        /**
+         * @return true se è già arrivato almeno un byte della richiesta.
+         */
+        boolean iniziata() {
+            return iniziata;
+        }
+
+        @Override
+        public int read() throws IOException {
+            prepara();
+            int b = super.read();
+            if (b >= 0) conta(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            prepara();
+            int quanti = super.read(b, off, len);
+            if (quanti > 0) conta(quanti);
+            return quanti;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            prepara();
+            long quanti = super.skip(n);
+            conta(quanti);
+            return quanti;
+        }
+
+        private void inizia() {
+            iniziata = true;
+            scadenza = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(connessioni.timeoutLetturaMs());
+        }
+
+        private void prepara() throws IOException {
+            long attesaMs = sessioni.inattivitaMs();
+            if (iniziata) {
+                attesaMs = TimeUnit.NANOSECONDS.toMillis(scadenza - System.nanoTime());
+                if (attesaMs <= 0) {
+                    throw new SocketTimeoutException("richiesta incompleta entro il tempo massimo");
+                }
+            }
+            socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, attesaMs));
+        }
+
+        private void conta(long quanti) throws IOException {
+            if (!iniziata) inizia();
+            letti += quanti;
+            if (letti > massimo) {
+                throw new IOException("richiesta oltre " + massimo + " byte");
+            }
+        }
+    }
+
+    private static void rispondi(ObjectOutputStream out, Object... risposte) throws IOException {
+        out.reset();
+        for (Object risposta : risposte) {
+            out.writeObject(risposta);
         }
+        out.flush();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,164 @@
+package server.network;
+
+import common.EmailCodec;
+import common.Protocollo;
+import server.ServerConfig;
+import server.model.ServerMetrics;
+import server.model.Trasferimento;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.Deflater;
+
+/**
+ * Compressione delle risposte binarie di una connessione ({@link Protocollo#OPZIONE_COMPRESSIONE}).
+ * <p>
+ * Il client la richiede con il comando OPZIONI all'inizio della sessione. Da quel momento
+ * le risposte di almeno {@code mail.compressione.sogliaBytes} byte viaggiano in un frame
+ * {@link Protocollo#COMPRESSO}: le risposte brevi (es. "OK") restano in chiaro, perché
+ * non ci sarebbe nulla da guadagnare. Tutti i frame compressi della connessione formano
+ * un unico flusso Deflate, chiuso a ogni frame da un sync flush: ogni risposta si
+ * decomprime subito, ma sfrutta anche il contesto delle precedenti (es. le stesse buste
+ * inviate da LIST e poi da SYNC).
+ * <p>
+ * Una risposta con un {@link Trasferimento} viene letta dal file e compressa: il client
+ * che chiede la compressione preferisce meno byte sulla rete all'invio senza copie.
+ * <p>
+ * Per ogni comando vengono registrati nelle metriche i byte originali, i byte
+ * risparmiati e il tempo di compressione
+ * ({@code rete.compressione.<COMANDO>.byteOriginali|byteSalvati|nanos}).
+ * <p>
+ * Un'istanza appartiene a una sola connessione, che la usa per una risposta alla volta,
+ * e va chiusa con la connessione per liberare la memoria nativa del Deflater.
+ */
+final class CompressioneRisposte implements AutoCloseable {
+
+    static final String COMANDO_OPZIONI = "OPTIONS";
+
+    private static final boolean ABILITATA =
+            Boolean.parseBoolean(ServerConfig.getString("mail.compressione.abilitata", "true"));
+    private static final int SOGLIA = ServerConfig.getInt("mail.compressione.sogliaBytes", 512);
+    // Livello 1: sulle caselle di prova risparmia quasi quanto il 6, con un quarto della CPU
+    private static final int LIVELLO = ServerConfig.getInt("mail.compressione.livello", 1);
+
+    private final Deflater deflater = new Deflater(LIVELLO, true);
+    // Buffer del frame compresso, riutilizzato tra una risposta e l'altra
+    private ByteBuffer uscita;
+
+    private CompressioneRisposte() { }
+
+    /**
+     * Opzioni accettate tra quelle richieste dal client.
+     */
+    static byte accetta(int richieste) {
+        return (byte) (ABILITATA ? richieste & Protocollo.OPZIONE_COMPRESSIONE : 0);
+    }
+
+    /**
+     * @return La compressione per la connessione, oppure null se le opzioni non la comprendono.
+     */
+    static CompressioneRisposte per(byte opzioni) {
+        return (opzioni & Protocollo.OPZIONE_COMPRESSIONE) != 0 ? new CompressioneRisposte() : null;
+    }
+
+    /**
+     * @return true se la risposta (frame ed eventuale trasferimento) va compressa.
+     */
+    boolean conviene(ByteBuffer frame, Trasferimento trasferimento) {
+        long lunghezza = frame.remaining() + (trasferimento == null ? 0 : trasferimento.lunghezza());
+        return lunghezza >= SOGLIA && frame.get(4) == Protocollo.OK;
+    }
+
+    /**
+     * Comprime la risposta in un frame {@link Protocollo#COMPRESSO}. Il trasferimento
+     * viene letto per intero, ma non chiuso.
+     *
+     * @param comando Nome del comando, per le metriche.
+     * @return Il frame compresso, tra posizione e limite (valido fino alla risposta successiva).
+     * @throws IllegalArgumentException Se la risposta compressa supera {@link Protocollo#MAX_RISPOSTA}.
+     */
+    ByteBuffer comprimi(String comando, ByteBuffer frame, Trasferimento trasferimento) throws IOException {
+        long inizio = System.nanoTime();
+        // Il flusso compresso contiene il frame senza la lunghezza: [tipo][payload]
+        long originali = frame.limit() - 4 + (trasferimento == null ? 0 : trasferimento.lunghezza());
+
+        uscita = Protocollo.spazio(Protocollo.conserva(uscita),
+                (int) Math.min(Protocollo.MAX_RISPOSTA, Protocollo.INTESTAZIONE_FRAME + 10 + originali / 4));
+        Protocollo.apriFrame(uscita, Protocollo.COMPRESSO);
+        EmailCodec.scriviVarLong(uscita, originali);
+
+        comprimi(frame.slice(4, frame.limit() - 4));
+        if (trasferimento != null) {
+            WritableByteChannel canale = new WritableByteChannel() {
+                @Override
+                public int write(ByteBuffer dati) {
+                    int quanti = dati.remaining();
+                    comprimi(dati);
+                    return quanti;
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return true;
+                }
+
+                @Override
+                public void close() { }
+            };
+            while (!trasferimento.trasferisci(canale)) { }
+        }
+        deflater.setInput(ByteBuffer.allocate(0));
+        deflate(Deflater.SYNC_FLUSH);
+
+        ByteBuffer risultato = Protocollo.chiudiFrame(uscita);
+        registra(comando, originali + 4, risultato.limit(), System.nanoTime() - inizio);
+        return risultato;
+    }
+
+    private void comprimi(ByteBuffer dati) {
+        deflater.setInput(dati);
+        deflate(Deflater.NO_FLUSH);
+    }
+
+    /**
+     * Comprime l'input corrente, ingrandendo il buffer di uscita quando serve.
+     * Con NO_FLUSH si ferma quando l'input è esaurito, con SYNC_FLUSH quando il
+     * Deflater non riempie più lo spazio disponibile (flush completato).
+     */
+    private void deflate(int flush) {
+        while (true) {
+            if (!uscita.hasRemaining()) {
+                if (uscita.capacity() >= Protocollo.MAX_RISPOSTA) {
+                    throw new IllegalArgumentException("Risposta troppo grande");
+                }
+                ByteBuffer grande = Protocollo.spazio(null, (int) Math.min(Protocollo.MAX_RISPOSTA, uscita.capacity() * 2L));
+                uscita = grande.put(uscita.flip());
+            }
+            deflater.deflate(uscita, flush);
+            if (flush == Deflater.NO_FLUSH ? deflater.needsInput() : uscita.hasRemaining()) {
+                return;
+            }
+        }
+    }
+
+    private static void registra(String comando, long originali, long compressi, long nanos) {
+        String prefisso = "rete.compressione." + comando + ".";
+        ServerMetrics.incrementa(prefisso + "risposte");
+        ServerMetrics.aggiungi(prefisso + "byteOriginali", originali);
+        ServerMetrics.aggiungi(prefisso + "byteSalvati", originali - compressi);
+        ServerMetrics.aggiungi(prefisso + "nanos", nanos);
+    }
+
+    /**
+     * Libera il buffer se troppo grande per essere conservato fino alla risposta successiva.
+     */
+    void rilascia() {
+        uscita = Protocollo.conserva(uscita);
+    }
+
+    @Override
+    public void close() {
+        deflater.end();
+    }
+}
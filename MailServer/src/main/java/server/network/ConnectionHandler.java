@@ -1,25 +1,64 @@
 package server.network;
 
+import server.ServerConfig;
 import server.model.ServerModel;
 
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Gestore delle connessioni in ingresso.
  * <p>
- * Questa classe gira su un Thread separato e rimane in ascolto sulla porta.
- * Quando un client si connette:
- * 1. Accetta la connessione (Socket).
- * 2. Delega la gestione della richiesta a un nuovo thread (ClientHandler).
- * 3. Torna in ascolto.
+ * Il motore di rete si sceglie all'avvio con {@code mail.rete.modalita}:
+ * <ul>
+ * <li>{@code thread}: un Thread separato rimane in ascolto sulla porta.
+ *     Quando un client si connette accetta la connessione (Socket), delega la
+ *     gestione della richiesta a un nuovo thread (ClientHandler) e torna in ascolto.
+ *     Un client in attesa di posta (WATCH, SYNC) occupa il suo thread: oltre
+ *     {@code mail.watch.maxThread} attese (predefinito 64) il comando riceve una
+ *     risposta "riprova più tardi" invece di bloccare un altro thread.</li>
+ * <li>{@code virtual}: come {@code thread}, ma ogni ClientHandler gira su un virtual
+ *     thread: il codice resta bloccante, senza il costo di un thread di piattaforma
+ *     per client. Il percorso delle richieste usa solo lock di java.util.concurrent
+ *     (nessun {@code synchronized}), che non bloccano il carrier thread; eventuali
+ *     pinning residui si individuano con {@code -Djdk.tracePinnedThreads=full}.</li>
+ * <li>{@code nio} (predefinito): {@link NioServer}, pochi thread di I/O non bloccanti
+ *     ({@code mail.rete.threadIo}) e un pool limitato di worker per i comandi
+ *     ({@code mail.rete.worker}, coda {@code mail.rete.codaWorker}); i client in attesa
+ *     di posta non occupano alcun thread.</li>
+ * </ul>
+ * In tutte le modalità un client può aprire una sessione persistente con più comandi
+ * sulla stessa connessione ({@link LimiteSessioni}); il numero di connessioni e la loro
+ * durata sono limitati da {@link LimiteConnessioni}, la frequenza degli invii da
+ * {@link LimiteInvii}.
+ * <p>
+ * {@link #stop} spegne il server senza interrompere i comandi in corso: chiude la
+ * porta, chiude in lettura le connessioni (un client in attesa tra due comandi riceve
+ * la fine dello stream, una risposta in corso viene completata) e attende che si
+ * chiudano entro la scadenza, oltre la quale le chiude forzatamente.
  */
 public class ConnectionHandler {
 
     private final int port;
     private final ServerModel model;
-    private boolean running = true;
+    private volatile boolean running = true;
+    private volatile ServerSocketChannel ascolto;
+    private Thread threadAscolto;
+    // Socket aperti dai motori a thread, da chiudere allo spegnimento
+    private final Set<Socket> aperti = ConcurrentHashMap.newKeySet();
+    private NioServer nioServer;
+    private ExecutorService virtualThreads;
+    private LimiteSessioni sessioni;
+    private LimiteConnessioni connessioni;
+    private GestoreComandi gestore;
 
     public ConnectionHandler(int port, ServerModel model) {
         this.port = port;
@@ -31,32 +70,143 @@ public class ConnectionHandler {
      * per non bloccare l'interfaccia grafica del server.
      */
     public void startServer() {
-        new Thread(() -> {
-            try (ServerSocket serverSocket = new ServerSocket(port)) {
-                model.addLog("Server avviato e in ascolto sulla porta " + port);
+        sessioni = new LimiteSessioni();
+        connessioni = new LimiteConnessioni();
+        gestore = new GestoreComandi(model, new LimiteInvii());
+        String modalita = ServerConfig.getString("mail.rete.modalita", "nio");
+        if (modalita.equalsIgnoreCase("nio")) {
+            startNio();
+            return;
+        }
+
+        boolean virtuali = modalita.equalsIgnoreCase("virtual");
+        if (virtuali) {
+            virtualThreads = Executors.newVirtualThreadPerTaskExecutor();
+        }
+        // Un virtual thread in attesa non occupa un thread di piattaforma: nessun limite
+        Semaphore postiAttesa = virtuali ? null
+                : new Semaphore(Math.max(0, ServerConfig.getInt("mail.watch.maxThread", 64)));
+
+        threadAscolto = new Thread(() -> {
+            // Socket creati da un canale: le risposte possono essere inviate con FileChannel.transferTo
+            try (ServerSocketChannel serverSocket = ServerSocketChannel.open()
+                    .bind(new InetSocketAddress(port), connessioni.backlog())) {
+                ascolto = serverSocket;
+                model.addLog("Server avviato" + (virtuali ? " (virtual thread)" : "")
+                        + " e in ascolto sulla porta " + port);
 
                 while (running) {
+                    // Al limite delle connessioni si attende che una si chiuda: le nuove restano nel backlog
+                    connessioni.attendi();
+
                     // Il programma si ferma finché non arriva un Client
-                    Socket socket = serverSocket.accept();
+                    Socket socket;
+                    try {
+                        socket = serverSocket.accept().socket();
+                    } catch (IOException e) {
+                        connessioni.rilascia();
+                        throw e;
+                    }
 
                     // Appena arriva, creiamo l'operaio (ClientHandler) e lo facciamo partire
-                    // Ogni client ha il suo thread
-                    ClientHandler handler = new ClientHandler(socket, model);
-                    new Thread(handler).start();
+                    // Ogni client ha il suo thread (di piattaforma o virtuale)
+                    aperti.add(socket);
+                    ClientHandler client = new ClientHandler(socket, model, gestore, sessioni, connessioni, postiAttesa);
+                    Runnable handler = () -> {
+                        try {
+                            client.run();
+                        } finally {
+                            aperti.remove(socket);
+                        }
+                    };
+                    if (virtualThreads != null) {
+                        virtualThreads.execute(handler);
+                    } else {
+                        new Thread(handler).start();
+                    }
                 }
 
             } catch (IOException e) {
                 if (running) {
                     model.addLog("Errore ServerSocket: " + e.getMessage());
                 } else {
-                    System.out.println("Server spento correttamente.");
+                    model.addLog("Server spento correttamente.");
                 }
+            } catch (InterruptedException e) {
+                // stop() durante l'attesa di un posto libero
+                model.addLog("Server spento correttamente.");
             }
-        }).start();
+        }, "ascolto-" + port);
+        threadAscolto.start();
     }
 
-    public void stop() {
+    private void startNio() {
+        int processori = Runtime.getRuntime().availableProcessors();
+        nioServer = new NioServer(port, model, gestore, sessioni, connessioni,
+                ServerConfig.getInt("mail.rete.threadIo", Math.max(1, processori / 2)),
+                ServerConfig.getInt("mail.rete.worker", Math.max(4, processori * 2)),
+                ServerConfig.getInt("mail.rete.codaWorker", 1024));
+        try {
+            nioServer.avvia();
+        } catch (IOException e) {
+            model.addLog("Errore ServerSocket: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Spegne il server attendendo al massimo {@code scadenzaMs} la chiusura delle connessioni.
+     * La scadenza vale per l'intero arresto, compresa l'attesa del thread di ascolto.
+     *
+     * @return Il numero di connessioni chiuse forzatamente allo scadere.
+     */
+    public int stop(long scadenzaMs) {
+        long scadenza = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(scadenzaMs);
         running = false;
-        // Il ServerSocket bloccato su accept() lancerà un'eccezione alla chiusura
+        if (nioServer != null) {
+            nioServer.arresta();
+        } else {
+            // Il ServerSocket bloccato su accept() (o il thread in attesa di un posto) si sveglia
+            try {
+                if (ascolto != null) ascolto.close();
+            } catch (IOException e) {
+                // già chiuso
+            }
+            threadAscolto.interrupt();
+            try {
+                // join(0) attenderebbe senza limite
+                threadAscolto.join(Math.max(1, restanti(scadenza)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (Socket socket : aperti) {
+                try { socket.shutdownInput(); } catch (IOException e) { }
+            }
+        }
+
+        int forzate = 0;
+        try {
+            if (!connessioni.attendiChiusura(restanti(scadenza))) {
+                forzate = connessioni.aperte();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Socket socket : aperti) {
+            LimiteConnessioni.chiudiSubito(socket);
+        }
+        if (nioServer != null) {
+            nioServer.ferma();
+        }
+        if (virtualThreads != null) {
+            virtualThreads.shutdown();
+        }
+        return forzate;
+    }
+
+    /**
+     * @return I millisecondi che mancano alla scadenza (0 se già passata).
+     */
+    private static long restanti(long scadenza) {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(scadenza - System.nanoTime()));
     }
 }
\ No newline at end of file
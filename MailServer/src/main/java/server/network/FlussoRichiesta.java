@@ -0,0 +1,132 @@
+package server.network;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Byte ricevuti da una connessione NIO in serializzazione Java, letti da un
+ * ObjectInputStream fuori dal ciclo di I/O.
+ * <p>
+ * Il ciclo di I/O aggiunge i byte man mano che arrivano, senza mai bloccarsi; il lettore
+ * attende quando li ha consumati tutti. La richiesta viene così interpretata una sola
+ * volta, mentre arriva: una richiesta incompleta è semplicemente una lettura in attesa.
+ * Dopo {@link #close()} il lettore riceve la fine dello stream.
+ */
+final class FlussoRichiesta extends InputStream {
+
+    private static final int CAPACITA_INIZIALE = 512;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition arrivati = lock.newCondition();
+
+    private byte[] dati = new byte[CAPACITA_INIZIALE];
+    private int inizio;
+    private int fine;
+    private boolean chiuso;
+
+    /**
+     * Aggiunge byte ricevuti dal socket (chiamato dal ciclo di I/O, non blocca).
+     */
+    void aggiungi(byte[] bytes, int offset, int quanti) {
+        lock.lock();
+        try {
+            if (chiuso || quanti == 0) return;
+            int presenti = fine - inizio;
+            if (fine + quanti > dati.length) {
+                // Prima si recupera lo spazio già letto, poi, se non basta, si ingrandisce
+                byte[] nuovi = presenti + quanti > dati.length
+                        ? new byte[Math.max(dati.length * 2, presenti + quanti)] : dati;
+                System.arraycopy(dati, inizio, nuovi, 0, presenti);
+                dati = nuovi;
+                inizio = 0;
+                fine = presenti;
+            }
+            System.arraycopy(bytes, offset, dati, fine, quanti);
+            fine += quanti;
+            arrivati.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return I byte ricevuti e non ancora letti.
+     */
+    int disponibili() {
+        lock.lock();
+        try {
+            return fine - inizio;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        lock.lock();
+        try {
+            if (!attendiDati()) return -1;
+            int b = dati[inizio++] & 0xFF;
+            if (inizio == fine) inizio = fine = 0;
+            return b;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        lock.lock();
+        try {
+            if (!attendiDati()) return -1;
+            int quanti = Math.min(len, fine - inizio);
+            System.arraycopy(dati, inizio, b, off, quanti);
+            inizio += quanti;
+            if (inizio == fine) inizio = fine = 0;
+            return quanti;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int available() {
+        return disponibili();
+    }
+
+    /**
+     * Sveglia il lettore in attesa, che riceve la fine dello stream.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            chiuso = true;
+            arrivati.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Attende che ci sia almeno un byte da leggere. Va chiamato con il lock acquisito.
+     *
+     * @return false se lo stream è chiuso e vuoto.
+     */
+    private boolean attendiDati() throws InterruptedIOException {
+        while (inizio == fine) {
+            if (chiuso) return false;
+            try {
+                arrivati.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Lettura della richiesta interrotta");
+            }
+        }
+        return true;
+    }
+}
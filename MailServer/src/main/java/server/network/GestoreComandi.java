@@ -0,0 +1,336 @@
+package server.network;
+
+import common.Email;
+import server.ServerConfig;
+import server.model.Modifiche;
+import server.model.Pagina;
+import server.model.ServerModel;
+import server.model.Trasferimento;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.net.InetAddress;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Esecuzione dei comandi del protocollo, indipendente dal trasporto.
+ * <p>
+ * Un comando (LOGIN, REFRESH, SEND, DELETE) è seguito dai suoi parametri, tutti
+ * oggetti serializzati. Una connessione trasporta un solo comando, oppure, dopo
+ * {@code SESSION}, più comandi fino a {@code QUIT} (gestiti dai motori di rete).
+ * La lettura della richiesta ({@link #leggi}) è separata dalla sua esecuzione
+ * ({@link #esegui}): il motore a thread le esegue in sequenza sullo stesso stream,
+ * mentre il motore NIO legge la richiesta fuori dal thread di I/O (su un virtual thread,
+ * man mano che arriva) ed esegue il comando su un worker.
+ * <p>
+ * WATCH (utente, ultimo aggiornamento, attesa massima in ms) risponde come REFRESH,
+ * ma solo quando nella casella c'è posta nuova o scade l'attesa. Prima di eseguire un
+ * comando il motore attende il segnale restituito da {@link #attesa}: il motore NIO
+ * lo fa senza bloccare alcun thread, quelli a thread bloccano il thread del client
+ * (con i thread di piattaforma entro un limite, oltre il quale {@link #rifiutaAttesa}).
+ * <p>
+ * LIST (utente) restituisce le sole buste della casella, con la dimensione del testo;
+ * FETCH_BODY (utente, id) restituisce il testo di un messaggio. Il client scarica così
+ * i corpi solo quando vengono aperti.
+ * <p>
+ * LIST_RECORD e FETCH_BODY_FILE sono le varianti interne usate dal protocollo binario
+ * ({@link ProtocolloBinario}): restituiscono un {@link Trasferimento} che il motore di
+ * rete invia così come è memorizzato, senza decodificare i messaggi.
+ * <p>
+ * PAGE (utente, ultima busta ricevuta o null, numero di buste) restituisce le buste
+ * a pagine, dalla più recente: il client mostra la prima pagina senza attendere il
+ * resto della casella. La risposta dice anche se la casella contiene altre buste,
+ * così il client non deve dedurlo dalla dimensione della pagina (che il server
+ * riduce a {@code mail.pagina.max}).
+ * <p>
+ * SYNC (utente, epoca, sequenza, attesa massima in ms) restituisce epoca e sequenza
+ * correnti, il tipo di risposta, le buste arrivate e gli identificativi dei messaggi
+ * cancellati dopo la sequenza indicata; se non ce ne sono attende come WATCH.
+ * A differenza di REFRESH non dipende dalle date di spedizione e riporta anche le
+ * cancellazioni fatte da altri client.
+ * <p>
+ * SEND è soggetto a {@link LimiteInvii}: oltre il limite la risposta è una {@link Riprova}
+ * e il messaggio non viene recapitato.
+ * <p>
+ * Ogni comando eseguito viene riportato nel registro degli eventi
+ * ({@link server.model.RegistroEventi}) con utente, esito e durata dell'esecuzione
+ * (esclusa l'attesa di WATCH e SYNC).
+ */
+class GestoreComandi {
+
+    /**
+     * Un comando ricevuto, con i parametri non ancora interpretati.
+     */
+    record Richiesta(String comando, Object[] parametri) { }
+
+    /**
+     * Risposta che invita il client a ripetere il comando più tardi (es. troppi invii).
+     * Con la serializzazione Java arriva come un normale messaggio di errore
+     * ({@link #perSerializzazione}), con il protocollo binario come stato
+     * {@link common.Protocollo#RIPROVA}.
+     */
+    record Riprova(String messaggio, long attesaMs) { }
+
+    // Limite all'attesa richiesta con WATCH
+    private static final long ATTESA_MAX_MS = ServerConfig.getLong("mail.watch.maxSec", 120) * 1000;
+
+    // Limite alla dimensione di una pagina richiesta con PAGE
+    private static final int PAGINA_MAX = ServerConfig.getInt("mail.pagina.max", 500);
+
+    // Attesa suggerita a un WATCH o SYNC rifiutato per troppe attese in corso
+    private static final long ATTESA_RIFIUTATA_MS = 10_000;
+
+    private final ServerModel model;
+    private final LimiteInvii invii;
+
+    GestoreComandi(ServerModel model, LimiteInvii invii) {
+        this.model = model;
+        this.invii = invii;
+    }
+
+    /**
+     * Legge un comando e i suoi parametri.
+     *
+     * @throws java.io.EOFException Se lo stream termina prima della fine della richiesta.
+     */
+    static Richiesta leggi(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        String comando = (String) in.readObject();
+
+        int quanti = switch (comando) {
+            case "LOGIN", "SEND", "LIST" -> 1;
+            case "REFRESH", "DELETE", "FETCH_BODY" -> 2;
+            case "WATCH", "PAGE" -> 3;
+            case "SYNC" -> 4;
+            default -> 0;
+        };
+        Object[] parametri = new Object[quanti];
+        for (int i = 0; i < quanti; i++) {
+            parametri[i] = in.readObject();
+        }
+        return new Richiesta(comando, parametri);
+    }
+
+    /**
+     * Segnale da attendere prima di eseguire il comando: per WATCH si completa quando
+     * c'è posta nuova o scade l'attesa, per gli altri comandi è già completato.
+     * Non fallisce mai: gli errori vengono riportati da {@link #esegui}.
+     */
+    CompletableFuture<Void> attesa(Richiesta richiesta) {
+        Object[] p = richiesta.parametri();
+        try {
+            switch (richiesta.comando()) {
+                case "WATCH": {
+                    long attesaMs = Math.max(0, Math.min(ATTESA_MAX_MS, ((Number) p[2]).longValue()));
+                    return model.attendiEmailUtenteAfter((String) p[0], (LocalDateTime) p[1], attesaMs)
+                            .exceptionally(e -> null);
+                }
+                case "SYNC": {
+                    long attesaMs = Math.max(0, Math.min(ATTESA_MAX_MS, ((Number) p[3]).longValue()));
+                    return model.attendiModificheUtente((String) p[0], ((Number) p[1]).longValue(),
+                            ((Number) p[2]).longValue(), attesaMs).exceptionally(e -> null);
+                }
+                default:
+                    return CompletableFuture.completedFuture(null);
+            }
+        } catch (Exception e) {
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    /**
+     * Risposta a un WATCH o SYNC che dovrebbe attendere ma non può occupare un altro
+     * thread: il client deve ripetere il comando più tardi.
+     */
+    List<Object> rifiutaAttesa(Richiesta richiesta, InetAddress origine) {
+        Riprova riprova = new Riprova("Troppi client in attesa di posta, riprova tra "
+                + ATTESA_RIFIUTATA_MS / 1000 + " secondi.", ATTESA_RIFIUTATA_MS);
+        model.registraEvento(richiesta.comando(), utente(richiesta), "RIPROVA", riprova.messaggio(), 0, origine);
+        return List.of(riprova);
+    }
+
+    /**
+     * Esegue il comando e lo riporta nel registro degli eventi.
+     *
+     * @param origine Indirizzo del client, per i limiti agli invii (null se sconosciuto).
+     * @return Gli oggetti da inviare al client come risposta, nell'ordine.
+     */
+    List<Object> esegui(Richiesta richiesta, InetAddress origine) {
+        long inizio = System.nanoTime();
+        List<Object> risposta;
+        try {
+            risposta = eseguiComando(richiesta, origine);
+        } catch (RuntimeException e) {
+            model.registraEvento(richiesta.comando(), utente(richiesta), "ERRORE", String.valueOf(e),
+                    System.nanoTime() - inizio, origine);
+            throw e;
+        }
+        long durata = System.nanoTime() - inizio;
+
+        if (risposta.isEmpty()) {
+            model.registraEvento(richiesta.comando(), utente(richiesta), "SCONOSCIUTO", null, durata, origine);
+        } else if (risposta.get(0) instanceof Riprova riprova) {
+            model.registraEvento(richiesta.comando(), utente(richiesta), "RIPROVA", riprova.messaggio(), durata, origine);
+        } else if ("OK".equals(risposta.get(0))) {
+            model.registraEvento(richiesta.comando(), utente(richiesta), "OK", null, durata, origine);
+        } else {
+            model.registraEvento(richiesta.comando(), utente(richiesta), "ERRORE",
+                    String.valueOf(risposta.get(0)), durata, origine);
+        }
+        return risposta;
+    }
+
+    /**
+     * @return L'utente a cui si riferisce il comando (il mittente per SEND), null se non indicato.
+     */
+    private static String utente(Richiesta richiesta) {
+        Object[] p = richiesta.parametri();
+        if (p.length == 0) return null;
+        if (p[0] instanceof Email email) return email.getMittente();
+        return p[0] instanceof String utente ? utente : null;
+    }
+
+    private List<Object> eseguiComando(Richiesta richiesta, InetAddress origine) {
+        Object[] p = richiesta.parametri();
+
+        switch (richiesta.comando()) {
+            case "LOGIN":
+                try {
+                    String userEmail = (String) p[0];
+
+                    List<Email> inbox = model.getEmailUtente(userEmail);
+
+                    // OK + Dati
+                    return List.of("OK", inbox);
+                } catch (Exception e) {
+                    // Messaggio di errore
+                    return List.of(String.valueOf(e.getMessage()));
+                }
+
+            case "LIST":
+                try {
+                    String userEmail = (String) p[0];
+
+                    // OK + Buste
+                    return List.of("OK", model.getBusteUtente(userEmail));
+                } catch (Exception e) {
+                    return List.of(String.valueOf(e.getMessage()));
+                }
+
+            case "LIST_RECORD":
+                try {
+                    String userEmail = (String) p[0];
+
+                    // OK + Record delle buste
+                    return List.of("OK", model.getTrasferimentoBuste(userEmail));
+                } catch (Exception e) {
+                    return List.of(String.valueOf(e.getMessage()));
+                }
+
+            case "PAGE":
+                try {
+                    String userEmail = (String) p[0];
+                    UUID prima = (UUID) p[1];
+                    int quante = Math.max(1, Math.min(PAGINA_MAX, ((Number) p[2]).intValue()));
+
+                    Pagina pagina = model.getPaginaUtente(userEmail, prima, quante);
+                    return List.of("OK", pagina.buste(), pagina.altre());
+                } catch (Exception e) {
+                    return List.of(String.valueOf(e.getMessage()));
+                }
+
+            case "FETCH_BODY":
+                try {
+                    String userEmail = (String) p[0];
+                    UUID id = (UUID) p[1];
+
+                    return List.of("OK", model.getCorpoEmail(userEmail, id));
+                } catch (Exception e) {
+                    return List.of(String.valueOf(e.getMessage()));
+                }
+
+            case "FETCH_BODY_FILE":
+                try {
+                    String userEmail = (String) p[0];
+                    UUID id = (UUID) p[1];
+
+                    // OK + Testo
+                    return List.of("OK", model.getTrasferimentoCorpo(userEmail, id));
+                } catch (Exception e) {
+                    return List.of(String.valueOf(e.getMessage()));
+                }
+
+            case "SYNC":
+                try {
+                    String userEmail = (String) p[0];
+                    long epoca = ((Number) p[1]).longValue();
+                    long seq = ((Number) p[2]).longValue();
+
+                    Modifiche m = model.getModificheUtente(userEmail, epoca, seq);
+
+                    // OK + Epoca + Sequenza + Tipo + Buste arrivate + Identificativi
+                    return List.of("OK", m.epoca(), m.sequenza(), m.tipo(), m.aggiunte(), m.identificativi());
+                } catch (Exception e) {
+                    return List.of(String.valueOf(e.getMessage()));
+                }
+
+            case "REFRESH":
+            case "WATCH":
+                try {
+                    String userEmail = (String) p[0];
+                    LocalDateTime lastUpdate = (LocalDateTime) p[1];
+
+                    List<Email> inbox = model.getEmailUtenteAfter(userEmail, lastUpdate);
+
+                    return List.of("OK", inbox);
+                } catch (Exception e) {
+                    return List.of(String.valueOf(e.getMessage()));
+                }
+
+            case "SEND":
+                try {
+                    Email email = (Email) p[0];
+                    long attesa = invii.consenti(email.getMittente(), origine);
+                    if (attesa > 0) {
+                        return List.of(new Riprova("Troppi messaggi inviati, riprova tra "
+                                + (attesa + 999) / 1000 + " secondi.", attesa));
+                    }
+                    model.riceviEmail(email);
+                    return List.of("OK");
+                } catch (Exception e) {
+                    return List.of(String.valueOf(e.getMessage()));
+                }
+
+            case "DELETE":
+                try {
+                    String user = (String) p[0];
+                    Email emailDaCancellare = (Email) p[1];
+                    model.cancellaEmail(user, emailDaCancellare);
+                    return List.of("OK");
+                } catch (Exception e) {
+                    return List.of(String.valueOf(e.getMessage()));
+                }
+
+            default:
+                model.addLog("Comando sconosciuto ricevuto: " + richiesta.comando());
+                return List.of();
+        }
+    }
+
+    /**
+     * Adatta la risposta alla serializzazione Java: una {@link Riprova} diventa il suo
+     * messaggio, e PAGE risponde con le sole buste, come si aspettano i client che
+     * leggono due oggetti.
+     */
+    static List<Object> perSerializzazione(String comando, List<Object> risposta) {
+        if (!risposta.isEmpty() && risposta.get(0) instanceof Riprova riprova) {
+            return List.of(riprova.messaggio());
+        }
+        if ("PAGE".equals(comando) && risposta.size() > 2) {
+            return risposta.subList(0, 2);
+        }
+        return risposta;
+    }
+}
@@ -0,0 +1,130 @@
+package server.network;
+
+import server.ServerConfig;
+import server.model.ServerMetrics;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limiti delle connessioni, condivisi da tutti i motori di rete.
+ * <p>
+ * Le connessioni aperte contemporaneamente sono al massimo {@code mail.rete.maxConnessioni}:
+ * raggiunto il limite il server smette di accettarne di nuove, che restano nella coda
+ * del sistema operativo ({@code mail.rete.backlog}); oltre la coda vengono rifiutate dal
+ * sistema stesso. Un client non resta così bloccato in un thread del server, ma attende
+ * il suo turno.
+ * <p>
+ * Le scadenze impediscono a un client lento o fermo di occupare una connessione per
+ * sempre: una richiesta deve arrivare senza pause più lunghe di
+ * {@code mail.rete.timeoutLetturaSec} (tra i comandi di una sessione vale invece
+ * l'inattività di {@link LimiteSessioni}), e ogni scrittura deve progredire entro
+ * {@code mail.rete.timeoutScritturaSec}. I motori a thread usano il timeout del socket
+ * per le letture e {@link #scadenzaScrittura} per le scritture, che in Java non hanno
+ * un timeout; il motore NIO controlla le scadenze nel suo ciclo di I/O.
+ */
+final class LimiteConnessioni {
+
+    private final int massimo;
+    private final int backlog;
+    private final long timeoutLetturaMs;
+    private final long timeoutScritturaMs;
+    private final Semaphore permessi;
+
+    // Un solo thread chiude i socket la cui scrittura è scaduta
+    private final ScheduledThreadPoolExecutor scadenze;
+
+    LimiteConnessioni() {
+        this.massimo = Math.max(1, ServerConfig.getInt("mail.rete.maxConnessioni", 2000));
+        this.backlog = Math.max(1, ServerConfig.getInt("mail.rete.backlog", 128));
+        this.timeoutLetturaMs = Math.max(1, ServerConfig.getLong("mail.rete.timeoutLetturaSec", 30)) * 1000;
+        this.timeoutScritturaMs = Math.max(1, ServerConfig.getLong("mail.rete.timeoutScritturaSec", 30)) * 1000;
+        this.permessi = new Semaphore(massimo);
+
+        this.scadenze = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "scadenze-scrittura");
+            t.setDaemon(true);
+            return t;
+        });
+        this.scadenze.setRemoveOnCancelPolicy(true);
+        ServerMetrics.registraIndicatore("rete.connessioniAperte", this::aperte);
+    }
+
+    /**
+     * Attende che ci sia posto per una nuova connessione (motori a thread).
+     */
+    void attendi() throws InterruptedException {
+        if (!permessi.tryAcquire()) {
+            ServerMetrics.incrementa("rete.limiteConnessioni");
+            permessi.acquire();
+        }
+    }
+
+    /**
+     * @return true se c'è posto per una nuova connessione; false se il limite è raggiunto
+     * (motore NIO, che non può attendere).
+     */
+    boolean prova() {
+        if (permessi.tryAcquire()) return true;
+        ServerMetrics.incrementa("rete.limiteConnessioni");
+        return false;
+    }
+
+    /**
+     * Libera il posto di una connessione chiusa.
+     */
+    void rilascia() {
+        permessi.release();
+    }
+
+    /**
+     * Attende che tutte le connessioni siano chiuse (arresto del server). Al ritorno
+     * con true tutti i posti sono occupati: non ne verranno accettate altre.
+     *
+     * @return false se allo scadere restano connessioni aperte.
+     */
+    boolean attendiChiusura(long scadenzaMs) throws InterruptedException {
+        return permessi.tryAcquire(massimo, scadenzaMs, TimeUnit.MILLISECONDS);
+    }
+
+    int aperte() {
+        return massimo - permessi.availablePermits();
+    }
+
+    int backlog() {
+        return backlog;
+    }
+
+    long timeoutLetturaMs() {
+        return timeoutLetturaMs;
+    }
+
+    long timeoutScritturaMs() {
+        return timeoutScritturaMs;
+    }
+
+    /**
+     * Chiude il socket se la scrittura che sta per iniziare non termina entro la scadenza.
+     *
+     * @return Da annullare ({@code cancel}) a scrittura completata.
+     */
+    Future<?> scadenzaScrittura(Socket socket) {
+        return scadenze.schedule(() -> {
+            ServerMetrics.incrementa("rete.timeoutScrittura");
+            chiudiSubito(socket);
+        }, timeoutScritturaMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Chiude il socket svegliando anche un thread bloccato in un transferTo: il canale
+     * non lo conosce come scrittore, ma la chiusura in scrittura lo interrompe.
+     */
+    static void chiudiSubito(Socket socket) {
+        try { socket.shutdownOutput(); } catch (IOException e) { }
+        try { socket.close(); } catch (IOException e) { }
+    }
+}
@@ -0,0 +1,149 @@
+package server.network;
+
+import server.ServerConfig;
+import server.model.ServerMetrics;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limite alla frequenza degli invii (SEND), per mittente e per indirizzo di provenienza.
+ * <p>
+ * Ogni mittente e ogni indirizzo hanno un secchio di gettoni (token bucket): un invio
+ * consuma un gettone, e i gettoni si ricaricano a {@code perMinuto} al minuto fino a
+ * {@code raffica}. Un invio senza gettoni non viene messo in coda: il client riceve
+ * subito l'invito a riprovare dopo il tempo necessario alla ricarica.
+ * <pre>
+ * mail.invii.mittente.perMinuto / mail.invii.mittente.raffica   (predefiniti 120 / 30)
+ * mail.invii.indirizzo.perMinuto / mail.invii.indirizzo.raffica (predefiniti 1200 / 200)
+ * </pre>
+ * Un valore {@code perMinuto} non positivo disattiva il limite corrispondente.
+ */
+final class LimiteInvii {
+
+    // Oltre questo numero di secchi vengono eliminati quelli già ricaricati del tutto
+    private static final int MAX_SECCHI = 100_000;
+
+    private final Secchi perMittente;
+    private final Secchi perIndirizzo;
+
+    LimiteInvii() {
+        this.perMittente = new Secchi(ServerConfig.getInt("mail.invii.mittente.perMinuto", 120),
+                ServerConfig.getInt("mail.invii.mittente.raffica", 30));
+        this.perIndirizzo = new Secchi(ServerConfig.getInt("mail.invii.indirizzo.perMinuto", 1200),
+                ServerConfig.getInt("mail.invii.indirizzo.raffica", 200));
+    }
+
+    /**
+     * Consuma un gettone del mittente e uno dell'indirizzo. Se il mittente non ne ha,
+     * il gettone dell'indirizzo viene restituito: un invio rifiutato non consuma nulla.
+     *
+     * @param origine Indirizzo del client (null se sconosciuto).
+     * @return 0 se l'invio è consentito, altrimenti i millisecondi da attendere.
+     */
+    long consenti(String mittente, InetAddress origine) {
+        long ora = System.nanoTime();
+        if (origine != null) {
+            long attesa = perIndirizzo.preleva(origine.getHostAddress(), ora);
+            if (attesa > 0) {
+                ServerMetrics.incrementa("invii.rifiutati.indirizzo");
+                return attesa;
+            }
+        }
+        long attesa = perMittente.preleva(String.valueOf(mittente), ora);
+        if (attesa > 0) {
+            if (origine != null) perIndirizzo.restituisci(origine.getHostAddress(), ora);
+            ServerMetrics.incrementa("invii.rifiutati.mittente");
+        }
+        return attesa;
+    }
+
+    /**
+     * Secchi di gettoni con gli stessi parametri, uno per chiave.
+     */
+    private static final class Secchi {
+
+        private final double gettoniPerNano;
+        private final double raffica;
+        private final Map<String, Secchio> secchi = new ConcurrentHashMap<>();
+
+        Secchi(int perMinuto, int raffica) {
+            this.gettoniPerNano = perMinuto / (double) TimeUnit.MINUTES.toNanos(1);
+            this.raffica = Math.max(1, raffica);
+        }
+
+        long preleva(String chiave, long ora) {
+            if (gettoniPerNano <= 0) return 0;
+            if (secchi.size() > MAX_SECCHI) {
+                secchi.values().removeIf(s -> s.pieno(ora));
+            }
+            return secchi.computeIfAbsent(chiave, k -> new Secchio(raffica, ora)).preleva(ora);
+        }
+
+        /**
+         * Restituisce un gettone prelevato per un invio poi rifiutato.
+         */
+        void restituisci(String chiave, long ora) {
+            if (gettoniPerNano <= 0) return;
+            Secchio secchio = secchi.get(chiave);
+            if (secchio != null) secchio.restituisci(ora);
+        }
+
+        private final class Secchio {
+
+            private final ReentrantLock lock = new ReentrantLock();
+            private double gettoni;
+            private long ultimaRicarica;
+
+            Secchio(double gettoni, long ora) {
+                this.gettoni = gettoni;
+                this.ultimaRicarica = ora;
+            }
+
+            /**
+             * @return 0 se c'era un gettone, altrimenti i millisecondi alla ricarica del prossimo.
+             */
+            long preleva(long ora) {
+                lock.lock();
+                try {
+                    ricarica(ora);
+                    if (gettoni >= 1) {
+                        gettoni -= 1;
+                        return 0;
+                    }
+                    return Math.max(1, (long) Math.ceil((1 - gettoni) / gettoniPerNano / 1_000_000));
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            void restituisci(long ora) {
+                lock.lock();
+                try {
+                    ricarica(ora);
+                    gettoni = Math.min(raffica, gettoni + 1);
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            boolean pieno(long ora) {
+                lock.lock();
+                try {
+                    ricarica(ora);
+                    return gettoni >= raffica;
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            private void ricarica(long ora) {
+                gettoni = Math.min(raffica, gettoni + (ora - ultimaRicarica) * gettoniPerNano);
+                ultimaRicarica = ora;
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package server.network;
+
+import server.ServerConfig;
+import server.model.ServerMetrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limiti delle sessioni persistenti, condivisi da tutte le connessioni.
+ * <p>
+ * Una sessione inizia con il comando {@code SESSION}: la connessione resta aperta
+ * e trasporta più comandi, finché il client non invia {@code QUIT} o non resta
+ * inattivo per più di {@code mail.sessione.idleSec} secondi. Le sessioni aperte
+ * contemporaneamente sono al massimo {@code mail.sessione.max}; oltre il limite il
+ * client riceve un errore e può continuare con le connessioni singole.
+ */
+final class LimiteSessioni {
+
+    static final String COMANDO_SESSIONE = "SESSION";
+    static final String COMANDO_FINE = "QUIT";
+
+    private final int massimo;
+    private final long inattivitaMs;
+    private final AtomicInteger aperte = new AtomicInteger();
+
+    LimiteSessioni() {
+        this.massimo = ServerConfig.getInt("mail.sessione.max", 1000);
+        this.inattivitaMs = Math.max(1, ServerConfig.getLong("mail.sessione.idleSec", 60)) * 1000;
+        ServerMetrics.registraIndicatore("rete.sessioniAperte", aperte::get);
+    }
+
+    /**
+     * @return true se la sessione può essere aperta; va chiusa con {@link #rilascia()}.
+     */
+    boolean acquisisci() {
+        int attuali;
+        do {
+            attuali = aperte.get();
+            if (attuali >= massimo) {
+                ServerMetrics.incrementa("rete.sessioniRifiutate");
+                return false;
+            }
+        } while (!aperte.compareAndSet(attuali, attuali + 1));
+        ServerMetrics.incrementa("rete.sessioni");
+        return true;
+    }
+
+    void rilascia() {
+        aperte.decrementAndGet();
+    }
+
+    long inattivitaMs() {
+        return inattivitaMs;
+    }
+
+    String messaggioRifiuto() {
+        return "Troppe sessioni aperte (" + massimo + "), usa connessioni singole.";
+    }
+}
@@ -0,0 +1,848 @@
+package server.network;
+
+import common.Protocollo;
+import server.model.ServerMetrics;
+import server.model.ServerModel;
+import server.model.Trasferimento;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Motore di rete non bloccante basato su {@link Selector}.
+ * <p>
+ * Un piccolo numero fisso di thread di I/O gestisce tutte le connessioni: una
+ * connessione in attesa non occupa alcun thread, ma solo un buffer di pochi byte.
+ * Il primo ciclo accetta anche le nuove connessioni e le distribuisce a turno.
+ * <p>
+ * Il protocollo è lo stesso del motore a thread (oggetti serializzati, un comando
+ * per connessione). La serializzazione Java non indica dove finisce una richiesta:
+ * i byte ricevuti passano a un {@link FlussoRichiesta} e vengono interpretati da un
+ * virtual thread man mano che arrivano, una sola volta e mai nel ciclo di I/O; il
+ * lettore esiste solo mentre una richiesta è in arrivo. I lettori contemporanei sono al
+ * più quanti i posti nella coda dei worker: le altre richieste restano nel loro
+ * {@link FlussoRichiesta} finché un lettore non si libera. Il comando viene poi eseguito
+ * da un pool limitato di worker. Se la coda dei worker è piena il client riceve subito
+ * un errore, invece di far crescere senza limiti thread e memoria.
+ * <p>
+ * Dopo il comando {@code SESSION} la connessione resta aperta per i comandi
+ * successivi: ogni risposta inizia con un reset dello stream, e il client deve fare
+ * lo stesso prima di ogni comando, così ogni richiesta si può interpretare da sola.
+ * Le sessioni inattive vengono chiuse dal loro ciclo di I/O, come le connessioni che non
+ * completano la richiesta o non ricevono la risposta entro le scadenze di
+ * {@link LimiteConnessioni}. Raggiunto il limite delle connessioni il server smette di
+ * accettarne finché una non si chiude.
+ * <p>
+ * Un client in attesa di posta (WATCH) non occupa né un thread di I/O né un worker:
+ * il comando viene ripreso su un worker quando il segnale della casella si completa.
+ * <p>
+ * L'intestazione della serializzazione viene inviata solo dopo aver ricevuto i primi
+ * byte: se il client negozia il {@link Protocollo protocollo binario} la connessione
+ * usa frame binari, letti direttamente dal buffer di ricezione della connessione.
+ * Le risposte che contengono un {@link Trasferimento} vengono inviate dal file al socket
+ * a più riprese, ogni volta che il canale torna scrivibile. Se il client ha chiesto la
+ * {@link CompressioneRisposte compressione}, le risposte vengono compresse dal worker.
+ * <p>
+ * Allo spegnimento ({@link #arresta()}) il server smette di accettare connessioni e
+ * chiude quelle in attesa di un comando; le altre si chiudono dopo aver inviato la
+ * risposta al comando in corso.
+ */
+class NioServer {
+
+    // Intestazione scritta da ogni ObjectOutputStream: il client la attende prima di inviare il comando
+    private static final byte[] INTESTAZIONE_STREAM = intestazioneStream();
+
+    // Limite di sicurezza alla dimensione di una richiesta
+    static final int MAX_RICHIESTA = 16 * 1024 * 1024;
+    private static final int BUFFER_INIZIALE = 512;
+
+    // Ogni quanto un ciclo cerca le sessioni inattive e le scadenze superate
+    private static final long INTERVALLO_CONTROLLO_MS = 1000;
+
+    // Attesa suggerita al client quando la coda dei worker è piena
+    private static final long ATTESA_SOVRACCARICO_MS = 1000;
+
+    private final int port;
+    private final ServerModel model;
+    private final GestoreComandi gestore;
+    private final LimiteSessioni sessioni;
+    private final LimiteConnessioni connessioni;
+    private final ThreadPoolExecutor worker;
+    // Lettori delle richieste in serializzazione Java, uno per richiesta in arrivo
+    private final ExecutorService lettori = Executors.newVirtualThreadPerTaskExecutor();
+    private final Semaphore postiLettori;
+    // Connessioni con una richiesta in arrivo che attendono un lettore libero
+    private final Queue<Connessione> attendonoLettore = new ConcurrentLinkedQueue<>();
+    private final CicloIo[] cicli;
+
+    private ServerSocketChannel serverChannel;
+    private SelectionKey chiaveAccettazione;
+    // true se il limite delle connessioni ha sospeso l'accettazione
+    private volatile boolean accettazioneSospesa;
+    private volatile boolean running = true;
+    // Spegnimento in corso: nessun nuovo comando, le connessioni si chiudono dopo la risposta
+    private volatile boolean inArresto;
+    private int prossimoCiclo;
+
+    NioServer(int port, ServerModel model, GestoreComandi gestore, LimiteSessioni sessioni,
+              LimiteConnessioni connessioni, int threadIo, int threadWorker, int codaWorker) {
+        this.port = port;
+        this.model = model;
+        this.gestore = gestore;
+        this.sessioni = sessioni;
+        this.connessioni = connessioni;
+
+        AtomicInteger numero = new AtomicInteger();
+        this.worker = new ThreadPoolExecutor(threadWorker, threadWorker, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(codaWorker), r -> {
+                    Thread t = new Thread(r, "nio-worker-" + numero.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        this.postiLettori = new Semaphore(Math.max(1, codaWorker));
+
+        this.cicli = new CicloIo[Math.max(1, threadIo)];
+    }
+
+    /**
+     * Apre la porta e avvia i thread di I/O.
+     */
+    void avvia() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.bind(new InetSocketAddress(port), connessioni.backlog());
+
+        for (int i = 0; i < cicli.length; i++) {
+            cicli[i] = new CicloIo(Selector.open());
+        }
+        chiaveAccettazione = serverChannel.register(cicli[0].selector, SelectionKey.OP_ACCEPT);
+
+        for (int i = 0; i < cicli.length; i++) {
+            Thread t = new Thread(cicli[i], "nio-io-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        model.addLog("Server avviato (NIO, " + cicli.length + " thread di I/O, "
+                + worker.getMaximumPoolSize() + " worker) e in ascolto sulla porta " + port);
+    }
+
+    /**
+     * Inizia lo spegnimento: chiude la porta e le connessioni senza un comando in corso.
+     * Le connessioni rimaste si chiudono da sole dopo la risposta, oppure con {@link #ferma()}.
+     */
+    void arresta() {
+        inArresto = true;
+        try {
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException e) {
+            // già chiuso
+        }
+        for (CicloIo ciclo : cicli) {
+            if (ciclo != null) ciclo.esegui(ciclo::chiudiInattive);
+        }
+    }
+
+    /**
+     * Chiude subito tutte le connessioni e ferma i thread di I/O.
+     */
+    void ferma() {
+        running = false;
+        try {
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException e) {
+            // già chiuso
+        }
+        for (CicloIo ciclo : cicli) {
+            if (ciclo != null) ciclo.selector.wakeup();
+        }
+        worker.shutdown();
+        lettori.shutdown();
+    }
+
+    // --- LETTORI ---
+
+    /**
+     * Avvia il lettore della richiesta di una connessione, oppure la mette in coda se
+     * tutti i posti sono occupati.
+     */
+    private void avviaLettore(Connessione connessione) {
+        attendonoLettore.add(connessione);
+        avviaInAttesa();
+    }
+
+    /**
+     * Avvia i lettori in coda finché ci sono posti liberi. Viene chiamato sia da chi
+     * accoda sia da chi libera un posto: una connessione accodata mentre un posto si
+     * libera viene vista da almeno uno dei due.
+     */
+    private void avviaInAttesa() {
+        while (!attendonoLettore.isEmpty() && postiLettori.tryAcquire()) {
+            Connessione connessione = attendonoLettore.poll();
+            if (connessione == null) {
+                postiLettori.release();
+                continue;
+            }
+            try {
+                lettori.execute(() -> {
+                    try {
+                        connessione.leggiRichiesta();
+                    } finally {
+                        postiLettori.release();
+                        avviaInAttesa();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                postiLettori.release();
+                connessione.ciclo.esegui(connessione::chiudi); // server in arresto
+            }
+        }
+    }
+
+    // --- CICLO DI I/O ---
+
+    /**
+     * Un thread con il suo Selector. Le operazioni richieste da altri thread
+     * (nuove connessioni, risposte pronte) passano dalla coda {@code compiti}.
+     */
+    private final class CicloIo implements Runnable {
+
+        private final Selector selector;
+        private final Queue<Runnable> compiti = new ConcurrentLinkedQueue<>();
+        private long ultimoControllo = System.currentTimeMillis();
+
+        private CicloIo(Selector selector) {
+            this.selector = selector;
+        }
+
+        void esegui(Runnable compito) {
+            compiti.add(compito);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select(INTERVALLO_CONTROLLO_MS);
+
+                    Runnable compito;
+                    while ((compito = compiti.poll()) != null) {
+                        compito.run();
+                    }
+
+                    Iterator<SelectionKey> chiavi = selector.selectedKeys().iterator();
+                    while (chiavi.hasNext()) {
+                        SelectionKey chiave = chiavi.next();
+                        chiavi.remove();
+                        gestisci(chiave);
+                    }
+
+                    long ora = System.currentTimeMillis();
+                    if (ora - ultimoControllo >= INTERVALLO_CONTROLLO_MS) {
+                        ultimoControllo = ora;
+                        controllaScadenze(ora);
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (running) model.addLog("Errore nel ciclo NIO: " + e.getMessage());
+            } finally {
+                for (SelectionKey chiave : selector.keys()) {
+                    if (chiave.attachment() instanceof Connessione c) c.chiudi();
+                }
+                try { selector.close(); } catch (IOException e) { }
+            }
+        }
+
+        /**
+         * Chiude le connessioni ferme: risposta che non avanza, richiesta incompleta,
+         * sessione inattiva tra un comando e l'altro.
+         */
+        private void controllaScadenze(long ora) {
+            for (SelectionKey chiave : selector.keys()) {
+                if (!(chiave.attachment() instanceof Connessione c)) continue;
+                if (c.scritturaBloccata) {
+                    if (ora - c.ultimaScrittura > connessioni.timeoutScritturaMs()) {
+                        ServerMetrics.incrementa("rete.timeoutScrittura");
+                        c.chiudi();
+                    }
+                } else if (!c.richiestaRicevuta) {
+                    if (c.sessione) {
+                        if (ora - c.ultimaAttivita > sessioni.inattivitaMs()) c.chiudi();
+                    } else if (ora - c.ultimaAttivita > connessioni.timeoutLetturaMs()) {
+                        ServerMetrics.incrementa("rete.timeoutLettura");
+                        c.chiudi();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Chiude le connessioni che non hanno un comando in corso né una risposta da inviare.
+         */
+        private void chiudiInattive() {
+            for (SelectionKey chiave : selector.keys()) {
+                if (chiave.attachment() instanceof Connessione c && !c.richiestaRicevuta
+                        && c.daScrivere.isEmpty() && c.trasferimento == null) {
+                    c.chiudi();
+                }
+            }
+        }
+
+        private void gestisci(SelectionKey chiave) {
+            if (!chiave.isValid()) return;
+            try {
+                if (chiave.isAcceptable()) {
+                    accetta();
+                    return;
+                }
+                Connessione connessione = (Connessione) chiave.attachment();
+                if (chiave.isReadable()) connessione.leggi();
+                if (chiave.isValid() && chiave.isWritable()) connessione.scrivi();
+            } catch (IOException e) {
+                if (chiave.attachment() instanceof Connessione c) c.chiudi();
+            }
+        }
+
+        private void accetta() throws IOException {
+            while (true) {
+                if (!connessioni.prova()) {
+                    // Le nuove connessioni restano nel backlog finché una non si chiude
+                    accettazioneSospesa = true;
+                    chiaveAccettazione.interestOps(0);
+                    // Una connessione chiusa prima che il flag fosse visibile non riprende
+                    // l'accettazione: il posto che ha liberato si prende qui
+                    if (!connessioni.prova()) return;
+                    accettazioneSospesa = false;
+                    chiaveAccettazione.interestOps(SelectionKey.OP_ACCEPT);
+                }
+                SocketChannel canale;
+                try {
+                    canale = serverChannel.accept();
+                } catch (IOException e) {
+                    connessioni.rilascia();
+                    throw e;
+                }
+                if (canale == null) {
+                    connessioni.rilascia();
+                    return;
+                }
+                canale.configureBlocking(false);
+                canale.socket().setTcpNoDelay(true);
+                ServerMetrics.incrementa("rete.accettate");
+
+                CicloIo ciclo = cicli[prossimoCiclo];
+                prossimoCiclo = (prossimoCiclo + 1) % cicli.length;
+                SocketChannel nuovo = canale;
+                if (ciclo == this) {
+                    ciclo.registra(nuovo);
+                } else {
+                    ciclo.esegui(() -> ciclo.registra(nuovo));
+                }
+            }
+        }
+
+        /**
+         * Riprende ad accettare connessioni dopo la chiusura di una (nel primo ciclo).
+         */
+        private void riprendiAccettazione() {
+            if (accettazioneSospesa && chiaveAccettazione.isValid()) {
+                accettazioneSospesa = false;
+                chiaveAccettazione.interestOps(SelectionKey.OP_ACCEPT);
+            }
+        }
+
+        private void registra(SocketChannel canale) {
+            Connessione connessione = new Connessione(this, canale);
+            try {
+                connessione.chiave = canale.register(selector, SelectionKey.OP_READ, connessione);
+            } catch (IOException e) {
+                connessione.chiudi();
+            }
+        }
+    }
+
+    // --- CONNESSIONE ---
+
+    /**
+     * Stato di una connessione. Tutti i metodi vengono chiamati dal thread del suo ciclo.
+     */
+    private final class Connessione {
+
+        private final CicloIo ciclo;
+        private final SocketChannel canale;
+        private final InetAddress origine;
+        private SelectionKey chiave;
+
+        private byte[] ricevuti = new byte[BUFFER_INIZIALE];
+        private int quantiRicevuti;
+
+        // Serializzazione Java: byte passati al lettore e stream che li interpreta. Lo stream
+        // resta lo stesso per tutta la sessione (il client invia l'intestazione una sola volta)
+        private FlussoRichiesta flusso;
+        private ObjectInputStream oggetti;
+        private boolean letturaInCorso;
+        private long byteRichiesta;
+
+        // Protocollo negoziato (-1 finché non sono arrivati i primi byte)
+        private byte protocollo = -1;
+        // Buffer delle risposte binarie, riutilizzato: la richiesta successiva si legge solo a risposta inviata
+        private ByteBuffer bufferRisposta;
+
+        private final ArrayDeque<ByteBuffer> daScrivere = new ArrayDeque<>();
+        // Dati dal file da inviare dopo daScrivere (risposta binaria a LIST o FETCH_BODY)
+        private Trasferimento trasferimento;
+        // Compressione delle risposte binarie, se richiesta dal client con OPZIONI
+        private CompressioneRisposte compressione;
+        private boolean richiestaRicevuta;
+        private boolean chiudiDopoScrittura;
+        private boolean riprendiDopoScrittura;
+        private boolean chiusa;
+        private boolean sessione;
+        private long ultimaAttivita = System.currentTimeMillis();
+        // Risposta in attesa che il socket torni scrivibile, e ultimo tentativo di scrittura
+        private boolean scritturaBloccata;
+        private long ultimaScrittura;
+
+        private Connessione(CicloIo ciclo, SocketChannel canale) {
+            this.ciclo = ciclo;
+            this.canale = canale;
+            this.origine = canale.socket().getInetAddress();
+        }
+
+        void leggi() throws IOException {
+            if (quantiRicevuti == ricevuti.length) {
+                if (ricevuti.length >= MAX_RICHIESTA) {
+                    chiudi();
+                    return;
+                }
+                ricevuti = Arrays.copyOf(ricevuti, Math.min(MAX_RICHIESTA, ricevuti.length * 2));
+            }
+            int letti = canale.read(ByteBuffer.wrap(ricevuti, quantiRicevuti, ricevuti.length - quantiRicevuti));
+            if (letti < 0) {
+                chiudi();
+                return;
+            }
+            quantiRicevuti += letti;
+            ultimaAttivita = System.currentTimeMillis();
+            if (!richiestaRicevuta) {
+                provaRichiesta();
+            }
+        }
+
+        /**
+         * Prova a interpretare i byte ricevuti: se la richiesta è incompleta si attendono altri dati.
+         */
+        private void provaRichiesta() {
+            if (protocollo < 0 && !riconosciProtocollo()) return;
+            if (protocollo == Protocollo.VERSIONE_RIFIUTATA) return;
+
+            if (protocollo == Protocollo.VERSIONE_SERIALIZZAZIONE) {
+                leggiOggetti();
+                return;
+            }
+            GestoreComandi.Richiesta richiesta = leggiFrame();
+            if (richiesta != null) { // null: incompleta, oppure connessione chiusa
+                ricevuta(richiesta);
+            }
+        }
+
+        /**
+         * Avvia il comando appena ricevuto.
+         */
+        private void ricevuta(GestoreComandi.Richiesta richiesta) {
+            richiestaRicevuta = true;
+            chiave.interestOps(0);
+            ServerMetrics.incrementa("rete.richieste");
+
+            if (sessione && LimiteSessioni.COMANDO_FINE.equals(richiesta.comando())) {
+                chiudi();
+                return;
+            }
+            if (CompressioneRisposte.COMANDO_OPZIONI.equals(richiesta.comando())) {
+                byte accettate = CompressioneRisposte.accetta((Byte) richiesta.parametri()[0]);
+                if (compressione == null) {
+                    compressione = CompressioneRisposte.per(accettate);
+                } else {
+                    // Il flusso compresso non si può interrompere
+                    accettate |= Protocollo.OPZIONE_COMPRESSIONE;
+                }
+                bufferRisposta = ProtocolloBinario.rispostaOpzioni(accettate, bufferRisposta);
+                rispondi(bufferRisposta);
+                return;
+            }
+            if (!sessione && LimiteSessioni.COMANDO_SESSIONE.equals(richiesta.comando())) {
+                try {
+                    if (sessioni.acquisisci()) {
+                        sessione = true;
+                        rispondi(ByteBuffer.wrap(serializza(List.of("OK"), true)));
+                    } else {
+                        rispondi(ByteBuffer.wrap(serializza(List.of(sessioni.messaggioRifiuto()), false)));
+                    }
+                } catch (IOException e) {
+                    chiudi();
+                }
+                return;
+            }
+
+            try {
+                worker.execute(() -> {
+                    CompletableFuture<Void> attesa = gestore.attesa(richiesta);
+                    if (attesa.isDone()) {
+                        esegui(richiesta);
+                        return;
+                    }
+                    // WATCH: nessun thread resta in attesa, alla consegna il comando torna su un worker
+                    attesa.thenRun(() -> {
+                        try {
+                            worker.execute(() -> esegui(richiesta));
+                        } catch (RejectedExecutionException e) {
+                            ciclo.esegui(() -> rifiuta(richiesta));
+                        }
+                    });
+                });
+            } catch (RejectedExecutionException e) {
+                rifiuta(richiesta);
+            }
+        }
+
+        /**
+         * Riconosce il protocollo dai primi byte: negoziazione oppure intestazione della
+         * serializzazione Java, a cui si risponde con la nostra.
+         *
+         * @return false se servono altri byte o la connessione è stata rifiutata.
+         */
+        private boolean riconosciProtocollo() {
+            if (quantiRicevuti < 2) return false;
+            if ((((ricevuti[0] & 0xFF) << 8) | (ricevuti[1] & 0xFF)) != Protocollo.MAGIC) {
+                protocollo = Protocollo.VERSIONE_SERIALIZZAZIONE;
+                flusso = new FlussoRichiesta();
+                accoda(ByteBuffer.wrap(INTESTAZIONE_STREAM));
+                return true;
+            }
+            if (quantiRicevuti < 3) return false;
+
+            byte versione = ProtocolloBinario.scegliVersione(ricevuti[2]);
+            if (versione >= Protocollo.VERSIONE_BINARIA) {
+                if (sessioni.acquisisci()) {
+                    sessione = true;
+                } else {
+                    versione = Protocollo.VERSIONE_RIFIUTATA;
+                }
+            }
+            consuma(3);
+            protocollo = versione;
+
+            if (versione == Protocollo.VERSIONE_RIFIUTATA) {
+                chiave.interestOps(0);
+                chiudiDopoScrittura = true;
+            }
+            accoda(ByteBuffer.wrap(ProtocolloBinario.rispostaNegoziazione(versione)));
+            if (versione == Protocollo.VERSIONE_SERIALIZZAZIONE) {
+                flusso = new FlussoRichiesta();
+                accoda(ByteBuffer.wrap(INTESTAZIONE_STREAM));
+            }
+            return versione != Protocollo.VERSIONE_RIFIUTATA;
+        }
+
+        /**
+         * Estrae un frame binario completo dal buffer di ricezione.
+         *
+         * @return null se il frame è incompleto o non valido (in tal caso la connessione viene chiusa).
+         */
+        private GestoreComandi.Richiesta leggiFrame() {
+            if (quantiRicevuti < 4) return null;
+            int fine;
+            GestoreComandi.Richiesta richiesta;
+            try {
+                int lunghezza = Protocollo.verificaLunghezza(ByteBuffer.wrap(ricevuti).getInt(0));
+                fine = 4 + lunghezza;
+                if (quantiRicevuti < fine) return null;
+
+                ByteBuffer frame = ByteBuffer.wrap(ricevuti, 4, lunghezza);
+                richiesta = ProtocolloBinario.leggi(frame.get(), frame, protocollo);
+            } catch (IllegalArgumentException e) {
+                model.addLog("Errore comunicazione client: " + e.getMessage());
+                chiudi();
+                return null;
+            }
+            consuma(fine);
+            return richiesta;
+        }
+
+        /**
+         * Toglie dal buffer di ricezione i primi {@code quanti} byte.
+         */
+        private void consuma(int quanti) {
+            System.arraycopy(ricevuti, quanti, ricevuti, 0, quantiRicevuti - quanti);
+            quantiRicevuti -= quanti;
+        }
+
+        /**
+         * Passa i byte ricevuti al lettore della richiesta in serializzazione Java,
+         * avviandolo (o accodandolo) se non è già in attesa di altri dati.
+         */
+        private void leggiOggetti() {
+            if (quantiRicevuti > 0) {
+                byteRichiesta += quantiRicevuti;
+                if (byteRichiesta > MAX_RICHIESTA) {
+                    chiudi();
+                    return;
+                }
+                flusso.aggiungi(ricevuti, 0, quantiRicevuti);
+                quantiRicevuti = 0;
+            }
+            if (letturaInCorso) return;
+
+            letturaInCorso = true;
+            avviaLettore(this);
+        }
+
+        /**
+         * Legge una richiesta dallo stream (su un virtual thread): la lettura attende
+         * finché la richiesta non è arrivata per intero, poi la passa al ciclo di I/O.
+         */
+        private void leggiRichiesta() {
+            GestoreComandi.Richiesta richiesta;
+            try {
+                if (oggetti == null) {
+                    oggetti = new ObjectInputStream(flusso);
+                }
+                richiesta = GestoreComandi.leggi(oggetti);
+            } catch (EOFException e) {
+                ciclo.esegui(this::chiudi); // connessione chiusa prima della fine della richiesta
+                return;
+            } catch (IOException | ClassNotFoundException | ClassCastException e) {
+                ciclo.esegui(() -> {
+                    if (!chiusa) model.addLog("Errore comunicazione client: " + e.getMessage());
+                    chiudi();
+                });
+                return;
+            }
+            ciclo.esegui(() -> {
+                letturaInCorso = false;
+                if (!chiusa) ricevuta(richiesta);
+            });
+        }
+
+        /**
+         * Esegue il comando su un worker e passa la risposta al ciclo di I/O.
+         */
+        private void esegui(GestoreComandi.Richiesta richiesta) {
+            ByteBuffer risposta;
+            Trasferimento daFile = null;
+            try {
+                List<Object> esito = gestore.esegui(richiesta, origine);
+                if (protocollo >= Protocollo.VERSIONE_BINARIA) {
+                    daFile = ProtocolloBinario.trasferimento(richiesta.comando(), esito);
+                }
+                risposta = codifica(richiesta.comando(), esito);
+                if (compressione != null && compressione.conviene(risposta, daFile)) {
+                    risposta = compressione.comprimi(richiesta.comando(), risposta, daFile);
+                    chiudiTrasferimento(daFile);
+                    daFile = null;
+                }
+                if (daFile != null && risposta.get(4) != Protocollo.OK) {
+                    // Risposta troppo grande: al client arriva solo l'errore
+                    chiudiTrasferimento(daFile);
+                    daFile = null;
+                }
+            } catch (IOException | RuntimeException e) {
+                model.addLog("Errore comunicazione client: " + e.getMessage());
+                chiudiTrasferimento(daFile);
+                ciclo.esegui(this::chiudi);
+                return;
+            }
+            Trasferimento dati = daFile;
+            ByteBuffer frame = risposta;
+            ciclo.esegui(() -> {
+                if (chiusa) {
+                    chiudiTrasferimento(dati);
+                    return;
+                }
+                trasferimento = dati;
+                rispondi(frame);
+            });
+        }
+
+        private void rifiuta(GestoreComandi.Richiesta richiesta) {
+            ServerMetrics.incrementa("rete.rifiutate");
+            try {
+                rispondi(codifica(richiesta.comando(), List.of(new GestoreComandi.Riprova("Server sovraccarico, riprova più tardi.",
+                        ATTESA_SOVRACCARICO_MS))));
+            } catch (IOException ex) {
+                chiudi();
+            }
+        }
+
+        /**
+         * Codifica la risposta nel formato della connessione.
+         */
+        private ByteBuffer codifica(String comando, List<Object> risposta) throws IOException {
+            if (protocollo >= Protocollo.VERSIONE_BINARIA) {
+                bufferRisposta = ProtocolloBinario.risposta(comando, risposta, bufferRisposta);
+                return bufferRisposta;
+            }
+            return ByteBuffer.wrap(serializza(GestoreComandi.perSerializzazione(comando, risposta), sessione));
+        }
+
+        private void rispondi(ByteBuffer risposta) {
+            chiudiDopoScrittura = !sessione;
+            riprendiDopoScrittura = sessione;
+            accoda(risposta);
+        }
+
+        /**
+         * Prepara la sessione al comando successivo, dopo l'invio della risposta.
+         * Con la serializzazione i byte già ricevuti dopo la richiesta precedente sono
+         * nello stream del lettore, e contano per il limite della richiesta successiva.
+         */
+        private void attendiRichiesta() {
+            boolean datiInAttesa;
+            if (protocollo >= Protocollo.VERSIONE_BINARIA) {
+                datiInAttesa = quantiRicevuti > 0;
+            } else {
+                byteRichiesta = flusso.disponibili();
+                datiInAttesa = byteRichiesta > 0;
+            }
+            richiestaRicevuta = false;
+            ultimaAttivita = System.currentTimeMillis();
+
+            chiave.interestOps(chiave.interestOps() | SelectionKey.OP_READ);
+            if (datiInAttesa) {
+                provaRichiesta();
+            }
+        }
+
+        void accoda(ByteBuffer dati) {
+            if (chiusa) return;
+            daScrivere.add(dati);
+            try {
+                scrivi();
+            } catch (IOException e) {
+                chiudi();
+            }
+        }
+
+        void scrivi() throws IOException {
+            // Chiamato quando il socket ha spazio: ogni chiamata fa avanzare la risposta
+            ultimaScrittura = System.currentTimeMillis();
+            while (!daScrivere.isEmpty()) {
+                ByteBuffer dati = daScrivere.peek();
+                canale.write(dati);
+                if (dati.hasRemaining()) {
+                    // Buffer del socket pieno: si riprende quando il canale torna scrivibile
+                    attendiScrittura();
+                    return;
+                }
+                daScrivere.poll();
+            }
+            if (trasferimento != null) {
+                if (!trasferimento.trasferisci(canale)) {
+                    attendiScrittura();
+                    return;
+                }
+                chiudiTrasferimento(trasferimento);
+                trasferimento = null;
+            }
+            scritturaBloccata = false;
+            if (chiudiDopoScrittura || inArresto) {
+                chiudi();
+                return;
+            }
+            if (chiave.isValid()) {
+                chiave.interestOps(chiave.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+            if (riprendiDopoScrittura) {
+                riprendiDopoScrittura = false;
+                bufferRisposta = Protocollo.conserva(bufferRisposta);
+                if (compressione != null) compressione.rilascia();
+                attendiRichiesta();
+            }
+        }
+
+        private void attendiScrittura() {
+            scritturaBloccata = true;
+            chiave.interestOps(chiave.interestOps() | SelectionKey.OP_WRITE);
+        }
+
+        void chiudi() {
+            if (chiusa) return;
+            chiusa = true;
+            connessioni.rilascia();
+            if (accettazioneSospesa) cicli[0].esegui(cicli[0]::riprendiAccettazione);
+            if (sessione) sessioni.rilascia();
+            if (flusso != null) flusso.close();
+            if (chiave != null) chiave.cancel();
+            try { canale.close(); } catch (IOException e) { }
+            chiudiTrasferimento(trasferimento);
+            trasferimento = null;
+            if (compressione != null) compressione.close();
+        }
+
+        private void chiudiTrasferimento(Trasferimento dati) {
+            if (dati == null) return;
+            try { dati.close(); } catch (IOException e) { }
+        }
+    }
+
+    // --- SERIALIZZAZIONE ---
+
+    /**
+     * Serializza la risposta come farebbe un ObjectOutputStream appena aperto,
+     * senza l'intestazione (già inviata all'apertura della connessione).
+     *
+     * @param reset true per far precedere la risposta da un reset dello stream (sessione).
+     */
+    private static byte[] serializza(List<Object> oggetti, boolean reset) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            for (Object oggetto : oggetti) {
+                out.writeObject(oggetto);
+            }
+        }
+        byte[] tutto = bytes.toByteArray();
+        if (reset) {
+            // Il reset prende il posto dell'ultimo byte dell'intestazione
+            tutto[INTESTAZIONE_STREAM.length - 1] = ObjectStreamConstants.TC_RESET;
+            return Arrays.copyOfRange(tutto, INTESTAZIONE_STREAM.length - 1, tutto.length);
+        }
+        return Arrays.copyOfRange(tutto, INTESTAZIONE_STREAM.length, tutto.length);
+    }
+
+    private static byte[] intestazioneStream() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+}
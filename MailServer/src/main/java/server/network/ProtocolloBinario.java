@@ -0,0 +1,208 @@
+package server.network;
+
+import common.Email;
+import common.EmailCodec;
+import common.Protocollo;
+import server.ServerConfig;
+import server.model.Trasferimento;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Adattatore tra i frame del {@link Protocollo protocollo binario} e {@link GestoreComandi}.
+ * <p>
+ * Le richieste binarie vengono tradotte nella stessa {@link GestoreComandi.Richiesta}
+ * prodotta dalla serializzazione Java, e le risposte di {@link GestoreComandi#esegui}
+ * vengono codificate in un frame: i comandi restano indipendenti dal formato.
+ * <p>
+ * LIST (dalla versione 6) e FETCH_BODY diventano i comandi interni LIST_RECORD e
+ * FETCH_BODY_FILE, la cui risposta è un {@link Trasferimento}: {@link #risposta} ne
+ * codifica solo l'inizio del frame, e il motore di rete invia il resto dal file con
+ * {@link Trasferimento#trasferisci}.
+ */
+final class ProtocolloBinario {
+
+    // Versione più alta accettata dal server (1 per disattivare il protocollo binario)
+    private static final int VERSIONE_MAX = ServerConfig.getInt("mail.protocollo.versioneMax",
+            Protocollo.VERSIONE_OPZIONI);
+
+    private ProtocolloBinario() { }
+
+    /**
+     * Sceglie la versione da usare con un client che supporta al massimo {@code richiesta}.
+     */
+    static byte scegliVersione(int richiesta) {
+        return (byte) Math.max(Protocollo.VERSIONE_SERIALIZZAZIONE, Math.min(richiesta, VERSIONE_MAX));
+    }
+
+    /**
+     * Risposta alla negoziazione.
+     */
+    static byte[] rispostaNegoziazione(byte versione) {
+        return new byte[] { (byte) (Protocollo.MAGIC >> 8), (byte) Protocollo.MAGIC, versione };
+    }
+
+    /**
+     * Interpreta il payload di un frame di richiesta.
+     *
+     * @param versione Versione negoziata con il client.
+     * @throws IllegalArgumentException Se il codice operativo è sconosciuto o i dati sono corrotti.
+     */
+    static GestoreComandi.Richiesta leggi(byte tipo, ByteBuffer payload, byte versione) {
+        try {
+            return switch (tipo) {
+                case Protocollo.LOGIN -> richiesta("LOGIN", EmailCodec.leggiStringa(payload));
+                case Protocollo.REFRESH -> richiesta("REFRESH", EmailCodec.leggiStringa(payload),
+                        Protocollo.leggiData(payload));
+                case Protocollo.WATCH -> richiesta("WATCH", EmailCodec.leggiStringa(payload),
+                        Protocollo.leggiData(payload), EmailCodec.leggiVarLong(payload));
+                case Protocollo.SEND -> richiesta("SEND", EmailCodec.decodifica(payload));
+                case Protocollo.DELETE -> {
+                    String utente = EmailCodec.leggiStringa(payload);
+                    // Per la cancellazione basta l'identificativo
+                    UUID id = new UUID(payload.getLong(), payload.getLong());
+                    yield richiesta("DELETE", utente, new Email(id, null, null, null, null, null));
+                }
+                case Protocollo.LIST -> richiesta(versione >= Protocollo.VERSIONE_RECORD ? "LIST_RECORD" : "LIST",
+                        EmailCodec.leggiStringa(payload));
+                case Protocollo.FETCH_BODY -> richiesta("FETCH_BODY_FILE", EmailCodec.leggiStringa(payload),
+                        new UUID(payload.getLong(), payload.getLong()));
+                case Protocollo.PAGE -> {
+                    String utente = EmailCodec.leggiStringa(payload);
+                    UUID prima = payload.get() == 0 ? null : new UUID(payload.getLong(), payload.getLong());
+                    yield richiesta("PAGE", utente, prima, EmailCodec.leggiVarLong(payload));
+                }
+                case Protocollo.SYNC -> richiesta("SYNC", EmailCodec.leggiStringa(payload), payload.getLong(),
+                        EmailCodec.leggiVarLong(payload), EmailCodec.leggiVarLong(payload));
+                case Protocollo.QUIT -> richiesta(LimiteSessioni.COMANDO_FINE);
+                case Protocollo.OPZIONI -> {
+                    if (versione < Protocollo.VERSIONE_OPZIONI) {
+                        throw new IllegalArgumentException("Codice operativo sconosciuto: " + tipo);
+                    }
+                    yield richiesta(CompressioneRisposte.COMANDO_OPZIONI, payload.get());
+                }
+                default -> throw new IllegalArgumentException("Codice operativo sconosciuto: " + tipo);
+            };
+        } catch (java.nio.BufferUnderflowException e) {
+            throw new IllegalArgumentException("Frame troncato", e);
+        }
+    }
+
+    /**
+     * Codifica la risposta di {@link GestoreComandi#esegui} in un frame pronto da inviare.
+     * Il formato dei dati dipende dal comando eseguito, non dal tipo degli oggetti della risposta.
+     *
+     * @param comando Nome del comando a cui si risponde.
+     * @param buffer  Buffer da riutilizzare, se abbastanza grande (può essere null).
+     * @return Il buffer con il frame, tra posizione e limite.
+     */
+    @SuppressWarnings("unchecked")
+    static ByteBuffer risposta(String comando, List<Object> risposta, ByteBuffer buffer) {
+        if (!risposta.isEmpty() && risposta.get(0) instanceof GestoreComandi.Riprova riprova) {
+            // Il messaggio viene per primo: un client che non conosce lo stato lo legge come un errore
+            buffer = Protocollo.spazio(buffer, Protocollo.INTESTAZIONE_FRAME
+                    + EmailCodec.dimensioneStringa(riprova.messaggio()) + EmailCodec.dimensioneVarLong(riprova.attesaMs()));
+            Protocollo.apriFrame(buffer, Protocollo.RIPROVA);
+            EmailCodec.scriviStringa(buffer, riprova.messaggio());
+            EmailCodec.scriviVarLong(buffer, riprova.attesaMs());
+            return Protocollo.chiudiFrame(buffer);
+        }
+        if (risposta.isEmpty() || !"OK".equals(risposta.get(0))) {
+            String messaggio = risposta.isEmpty() ? "Comando sconosciuto" : String.valueOf(risposta.get(0));
+            return errore(messaggio, buffer);
+        }
+
+        switch (comando) {
+            case "LIST_RECORD", "FETCH_BODY_FILE" -> {
+                // Numero di record (o lunghezza del testo + 1, come nella codifica delle
+                // stringhe), seguito dai dati del trasferimento
+                Trasferimento trasferimento = (Trasferimento) risposta.get(1);
+                long numero = trasferimento.isTesto() ? trasferimento.lunghezza() + 1 : trasferimento.elementi();
+                long lunghezza = 1 + EmailCodec.dimensioneVarLong(numero) + trasferimento.lunghezza();
+                if (lunghezza > Protocollo.MAX_RISPOSTA) {
+                    return errore("Risposta troppo grande", buffer);
+                }
+                buffer = Protocollo.spazio(buffer, Protocollo.INTESTAZIONE_FRAME + 10);
+                Protocollo.apriFrame(buffer, Protocollo.OK);
+                EmailCodec.scriviVarLong(buffer, numero);
+                buffer.putInt(0, (int) lunghezza);
+                return buffer.flip();
+            }
+            case "FETCH_BODY" -> {
+                String testo = (String) risposta.get(1);
+                buffer = Protocollo.spazio(buffer, Protocollo.INTESTAZIONE_FRAME + EmailCodec.dimensioneStringa(testo));
+                Protocollo.apriFrame(buffer, Protocollo.OK);
+                EmailCodec.scriviStringa(buffer, testo);
+                return Protocollo.chiudiFrame(buffer);
+            }
+            case "SYNC" -> {
+                long epoca = (Long) risposta.get(1);
+                long sequenza = (Long) risposta.get(2);
+                List<Email> aggiunte = (List<Email>) risposta.get(4);
+                List<UUID> ids = (List<UUID>) risposta.get(5);
+
+                buffer = Protocollo.spazio(buffer, Protocollo.INTESTAZIONE_FRAME + 8 + EmailCodec.dimensioneVarLong(sequenza)
+                        + 1 + Protocollo.dimensioneEmails(aggiunte) + Protocollo.dimensioneIdentificativi(ids));
+                Protocollo.apriFrame(buffer, Protocollo.OK);
+                buffer.putLong(epoca);
+                EmailCodec.scriviVarLong(buffer, sequenza);
+                buffer.put((Byte) risposta.get(3));
+                Protocollo.scriviEmails(buffer, aggiunte);
+                Protocollo.scriviIdentificativi(buffer, ids);
+                return Protocollo.chiudiFrame(buffer);
+            }
+            case "PAGE" -> {
+                // Le buste sono seguite dal flag delle pagine successive
+                List<Email> buste = (List<Email>) risposta.get(1);
+                buffer = Protocollo.spazio(buffer, Protocollo.INTESTAZIONE_FRAME + Protocollo.dimensioneEmails(buste) + 1);
+                Protocollo.apriFrame(buffer, Protocollo.OK);
+                Protocollo.scriviEmails(buffer, buste);
+                buffer.put((byte) ((Boolean) risposta.get(2) ? 1 : 0));
+                return Protocollo.chiudiFrame(buffer);
+            }
+            default -> {
+                // OK, seguito dalle email se il comando ne restituisce (LOGIN, REFRESH, WATCH, LIST)
+                List<Email> emails = risposta.size() > 1 ? (List<Email>) risposta.get(1) : null;
+                buffer = Protocollo.spazio(buffer, Protocollo.INTESTAZIONE_FRAME
+                        + (emails == null ? 0 : Protocollo.dimensioneEmails(emails)));
+                Protocollo.apriFrame(buffer, Protocollo.OK);
+                if (emails != null) {
+                    Protocollo.scriviEmails(buffer, emails);
+                }
+                return Protocollo.chiudiFrame(buffer);
+            }
+        }
+    }
+
+    /**
+     * @return Il trasferimento da inviare dopo il frame di {@link #risposta}, o null se
+     * il comando non ne prevede (o è fallito).
+     */
+    static Trasferimento trasferimento(String comando, List<Object> risposta) {
+        boolean daFile = "LIST_RECORD".equals(comando) || "FETCH_BODY_FILE".equals(comando);
+        return daFile && risposta.size() > 1 && "OK".equals(risposta.get(0)) ? (Trasferimento) risposta.get(1) : null;
+    }
+
+    /**
+     * Risposta a OPZIONI, gestito dal motore di rete (riguarda la connessione, non la casella).
+     */
+    static ByteBuffer rispostaOpzioni(byte accettate, ByteBuffer buffer) {
+        buffer = Protocollo.spazio(buffer, Protocollo.INTESTAZIONE_FRAME + 1);
+        Protocollo.apriFrame(buffer, Protocollo.OK);
+        buffer.put(accettate);
+        return Protocollo.chiudiFrame(buffer);
+    }
+
+    static ByteBuffer errore(String messaggio, ByteBuffer buffer) {
+        buffer = Protocollo.spazio(buffer, Protocollo.INTESTAZIONE_FRAME + EmailCodec.dimensioneStringa(messaggio));
+        Protocollo.apriFrame(buffer, Protocollo.ERRORE);
+        EmailCodec.scriviStringa(buffer, messaggio);
+        return Protocollo.chiudiFrame(buffer);
+    }
+
+    private static GestoreComandi.Richiesta richiesta(String comando, Object... parametri) {
+        return new GestoreComandi.Richiesta(comando, parametri);
+    }
+}
@@ -0,0 +1,130 @@
+package common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Confronta {@link EmailCodec} con la serializzazione Java, usata in precedenza per le
+ * caselle su disco: byte per messaggio e tempo di codifica e decodifica.
+ * <p>
+ * Come nel vecchio formato, la serializzazione scrive la casella intera come
+ * {@code ArrayList<Email>}; il codec scrive i messaggi uno dopo l'altro nello stesso buffer.
+ * <pre>
+ * java -cp target/classes:target/test-classes common.BenchmarkCodec [messaggi] [ripetizioni]
+ * </pre>
+ */
+public class BenchmarkCodec {
+
+    public static void main(String[] args) throws Exception {
+        int messaggi = args.length > 0 ? Integer.parseInt(args[0]) : 1_000;
+        int ripetizioni = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        System.out.printf("%d messaggi, %d ripetizioni%n", messaggi, ripetizioni);
+        System.out.printf("%-26s %10s %18s %18s%n", "formato", "byte/msg", "codifica ns/msg", "decodifica ns/msg");
+        for (int lunghezza : new int[] { 0, 200, 4_000 }) {
+            List<Email> casella = casella(messaggi, lunghezza);
+            String descrizione = lunghezza == 0 ? "buste" : "testo " + lunghezza;
+
+            // Riscaldamento di entrambi i formati prima delle misure
+            misuraSerializzazione(casella, Math.max(1, ripetizioni / 4));
+            misuraCodec(casella, lunghezza > 0, Math.max(1, ripetizioni / 4));
+
+            stampa("serializzazione " + descrizione, messaggi, misuraSerializzazione(casella, ripetizioni));
+            stampa("codec " + descrizione, messaggi, misuraCodec(casella, lunghezza > 0, ripetizioni));
+        }
+    }
+
+    /**
+     * Byte prodotti e nanosecondi medi per una codifica e una decodifica della casella.
+     */
+    private record Risultato(long bytes, long codificaNs, long decodificaNs) { }
+
+    private static Risultato misuraSerializzazione(List<Email> casella, int ripetizioni)
+            throws IOException, ClassNotFoundException {
+        byte[] dati = null;
+        long inizio = System.nanoTime();
+        for (int r = 0; r < ripetizioni; r++) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(casella);
+            }
+            dati = bytes.toByteArray();
+        }
+        long codifica = (System.nanoTime() - inizio) / ripetizioni;
+
+        int letti = 0;
+        inizio = System.nanoTime();
+        for (int r = 0; r < ripetizioni; r++) {
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(dati))) {
+                letti += ((List<?>) in.readObject()).size();
+            }
+        }
+        long decodifica = (System.nanoTime() - inizio) / ripetizioni;
+        verifica(letti, casella.size() * ripetizioni);
+        return new Risultato(dati.length, codifica, decodifica);
+    }
+
+    private static Risultato misuraCodec(List<Email> casella, boolean conTesto, int ripetizioni) {
+        int dimensione = 0;
+        for (Email email : casella) {
+            dimensione += EmailCodec.dimensione(email, conTesto);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(dimensione);
+
+        long inizio = System.nanoTime();
+        for (int r = 0; r < ripetizioni; r++) {
+            buffer.clear();
+            for (Email email : casella) {
+                EmailCodec.codifica(email, conTesto, buffer);
+            }
+        }
+        long codifica = (System.nanoTime() - inizio) / ripetizioni;
+
+        int letti = 0;
+        inizio = System.nanoTime();
+        for (int r = 0; r < ripetizioni; r++) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                EmailCodec.decodifica(buffer);
+                letti++;
+            }
+        }
+        long decodifica = (System.nanoTime() - inizio) / ripetizioni;
+        verifica(letti, casella.size() * ripetizioni);
+        return new Risultato(dimensione, codifica, decodifica);
+    }
+
+    private static void stampa(String formato, int messaggi, Risultato risultato) {
+        System.out.printf("%-26s %10d %18d %18d%n", formato, risultato.bytes() / messaggi,
+                risultato.codificaNs() / messaggi, risultato.decodificaNs() / messaggi);
+    }
+
+    private static void verifica(int letti, int attesi) {
+        if (letti != attesi) {
+            throw new IllegalStateException("Messaggi letti: " + letti + " invece di " + attesi);
+        }
+    }
+
+    /**
+     * Casella di prova; con {@code lunghezza} 0 contiene solo le buste.
+     * Ogni testo è un oggetto distinto: la serializzazione scriverebbe una sola volta
+     * una stringa ripetuta, cosa che non accade in una casella reale.
+     */
+    private static List<Email> casella(int messaggi, int lunghezza) {
+        List<Email> casella = new ArrayList<>(messaggi);
+        String base = "Lorem ipsum dolor sit amet, àèìòù. ".repeat(lunghezza / 35 + 1).substring(0, lunghezza);
+        for (int i = 0; i < messaggi; i++) {
+            String testo = i + base.substring(Math.min(base.length(), String.valueOf(i).length()));
+            Email email = EmailCodec.normalizza(new Email("mittente" + (i % 10) + "@test.it",
+                    List.of("mario@test.it", "luigi@test.it"), "Oggetto del messaggio " + i, testo));
+            casella.add(lunghezza == 0 ? email.busta() : email);
+        }
+        return casella;
+    }
+}
@@ -0,0 +1,83 @@
+package common;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Andata e ritorno del formato binario di {@link Email}.
+ */
+class EmailCodecTest {
+
+    @Test
+    void messaggioCompletoIdentico() {
+        Email originale = EmailCodec.normalizza(new Email("anna@mail.it", List.of("bruno@mail.it", "carla@mail.it"),
+                "Oggetto àèìòù €", "Testo con caratteri non ASCII: 日本語 😀"));
+
+        byte[] dati = EmailCodec.codifica(originale, true);
+        assertEquals(EmailCodec.dimensione(originale, true), dati.length);
+
+        Email letta = EmailCodec.decodifica(ByteBuffer.wrap(dati));
+        assertEquals(originale.getId(), letta.getId());
+        assertEquals(originale.getMittente(), letta.getMittente());
+        assertEquals(originale.getDestinatari(), letta.getDestinatari());
+        assertEquals(originale.getOggetto(), letta.getOggetto());
+        assertEquals(originale.getTesto(), letta.getTesto());
+        assertEquals(originale.getDataSpedizione(), letta.getDataSpedizione());
+    }
+
+    @Test
+    void bustaConDimensioneSenzaTesto() {
+        Email originale = EmailCodec.normalizza(new Email("anna@mail.it", List.of("bruno@mail.it"), "Ciao", "12345"));
+
+        ByteBuffer buffer = ByteBuffer.allocate(EmailCodec.dimensione(originale, false));
+        EmailCodec.codifica(originale, false, buffer);
+        assertFalse(buffer.hasRemaining());
+
+        Email busta = EmailCodec.decodifica(buffer.flip());
+        assertNull(busta.getTesto());
+        assertEquals(5, busta.getDimensione());
+        assertEquals(originale.getId(), busta.getId());
+    }
+
+    @Test
+    void campiNulli() {
+        Email originale = new Email(UUID.randomUUID(), null, null, null, null, LocalDateTime.of(2024, 1, 1, 0, 0));
+
+        Email letta = EmailCodec.decodifica(ByteBuffer.wrap(EmailCodec.codifica(originale, true)));
+        assertNull(letta.getMittente());
+        assertNull(letta.getOggetto());
+        assertNull(letta.getTesto());
+        assertTrue(letta.getDestinatari() == null || letta.getDestinatari().isEmpty());
+    }
+
+    @Test
+    void varLongAiConfini() {
+        long[] valori = { 0, 1, 127, 128, 16_383, 16_384, Integer.MAX_VALUE, Long.MAX_VALUE };
+        for (long valore : valori) {
+            ByteBuffer buffer = ByteBuffer.allocate(EmailCodec.dimensioneVarLong(valore));
+            EmailCodec.scriviVarLong(buffer, valore);
+            assertFalse(buffer.hasRemaining(), "dimensione errata per " + valore);
+            assertEquals(valore, EmailCodec.leggiVarLong(buffer.flip()));
+        }
+    }
+
+    @Test
+    void versioneSconosciutaRifiutata() {
+        byte[] dati = EmailCodec.codifica(new Email("a", List.of("b"), "o", "t"), true);
+        dati[0] = (byte) (EmailCodec.VERSIONE + 1);
+        assertThrows(IllegalArgumentException.class, () -> EmailCodec.decodifica(ByteBuffer.wrap(dati)));
+    }
+
+    @Test
+    void datoTroncatoRifiutato() {
+        byte[] dati = EmailCodec.codifica(new Email("a", List.of("b"), "oggetto", "testo"), true);
+        ByteBuffer troncato = ByteBuffer.wrap(dati, 0, dati.length - 3);
+        assertThrows(IllegalArgumentException.class, () -> EmailCodec.decodifica(troncato));
+    }
+}
@@ -0,0 +1,99 @@
+package server.model;
+
+import common.Email;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Misura la contesa sui lock del {@link FileManager} al crescere dei thread.
+ * <p>
+ * Ogni thread alterna consegne (WriteLock) e letture (ReadLock) per un intervallo fisso:
+ * <ul>
+ * <li>{@code caselle diverse}: ogni thread usa la propria casella, i lock a strisce
+ *     devono lasciarli procedere in parallelo (il throughput cresce con i core);</li>
+ * <li>{@code stessa casella}: tutti i thread usano la stessa casella, come riferimento
+ *     per il caso serializzato.</li>
+ * </ul>
+ * Il WAL è in modalità {@code none}, così si misura il lock e non l'fsync.
+ * <pre>
+ * java -cp target/classes:target/test-classes server.model.BenchmarkContesa [secondi per misura] [thread massimi]
+ * </pre>
+ */
+public class BenchmarkContesa {
+
+    // Letture per ogni consegna
+    private static final int LETTURE_PER_SCRITTURA = 4;
+
+    public static void main(String[] args) throws Exception {
+        long secondi = args.length > 0 ? Long.parseLong(args[0]) : 3;
+        int processori = Runtime.getRuntime().availableProcessors();
+        int massimo = args.length > 1 ? Integer.parseInt(args[1]) : processori * 2;
+
+        Path dati = Files.createTempDirectory("benchmark-contesa");
+        System.setProperty("mail.dati", dati.toString());
+        System.setProperty("mail.wal.durabilita", "none");
+        FileManager fileManager = new FileManager(RegistroServer.nessuno());
+
+        System.out.println("Processori: " + processori + ", " + secondi + " s per misura, "
+                + LETTURE_PER_SCRITTURA + " letture per consegna");
+        System.out.printf("%8s %20s %20s%n", "thread", "caselle diverse op/s", "stessa casella op/s");
+        try {
+            // Riscaldamento (compilazione JIT e apertura dei log)
+            misura(fileManager, Math.min(4, massimo), 1, false);
+
+            for (int thread = 1; thread <= massimo; thread *= 2) {
+                long diverse = misura(fileManager, thread, secondi, false);
+                long stessa = misura(fileManager, thread, secondi, true);
+                System.out.printf("%8d %20d %20d%n", thread, diverse, stessa);
+            }
+        } finally {
+            fileManager.chiudi();
+        }
+    }
+
+    /**
+     * @return Operazioni al secondo di tutti i thread insieme.
+     */
+    private static long misura(FileManager fileManager, int thread, long secondi, boolean stessaCasella)
+            throws InterruptedException {
+        LongAdder operazioni = new LongAdder();
+        CountDownLatch partenza = new CountDownLatch(1);
+        long fine = System.nanoTime() + TimeUnit.SECONDS.toNanos(secondi);
+
+        List<Thread> lavoratori = new ArrayList<>();
+        for (int t = 0; t < thread; t++) {
+            String utente = stessaCasella ? "condivisa@test.it" : "utente" + t + "@test.it";
+            Thread lavoratore = new Thread(() -> {
+                try {
+                    partenza.await();
+                    while (System.nanoTime() < fine) {
+                        fileManager.salvaEmail(utente, new Email("mittente@test.it", List.of(utente),
+                                "Misura", "Testo del messaggio di prova"));
+                        for (int i = 0; i < LETTURE_PER_SCRITTURA; i++) {
+                            fileManager.caricaPagina(utente, null, 20);
+                        }
+                        operazioni.add(1 + LETTURE_PER_SCRITTURA);
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }, "contesa-" + t);
+            lavoratori.add(lavoratore);
+            lavoratore.start();
+        }
+
+        long inizio = System.nanoTime();
+        partenza.countDown();
+        for (Thread lavoratore : lavoratori) {
+            lavoratore.join();
+        }
+        long durata = System.nanoTime() - inizio;
+        return operazioni.sum() * TimeUnit.SECONDS.toNanos(1) / Math.max(1, durata);
+    }
+}
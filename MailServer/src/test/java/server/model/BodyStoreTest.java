@@ -0,0 +1,65 @@
+package server.model;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Path;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Corpi condivisi del {@link BodyStore}: compressione, riferimenti e identificativi ripetuti.
+ */
+class BodyStoreTest {
+
+    @TempDir
+    Path cartella;
+
+    @Test
+    void testoCompressoRiletto() throws IOException {
+        BodyStore corpi = new BodyStore(cartella, new CompressoreCorpi(true, 6, 64));
+        UUID id = UUID.randomUUID();
+        String testo = "Testo ripetuto molte volte. ".repeat(200);
+
+        int salvati = corpi.salva(id, testo, 1);
+        assertTrue(salvati < testo.length(), "il testo ripetitivo va compresso");
+        assertEquals(testo, corpi.leggi(id));
+    }
+
+    @Test
+    void identificativoRipetutoRifiutato() throws IOException {
+        BodyStore corpi = new BodyStore(cartella, new CompressoreCorpi(false, 6, 64));
+        UUID id = UUID.randomUUID();
+        corpi.salva(id, "originale", 1);
+
+        assertThrows(FileAlreadyExistsException.class, () -> corpi.salva(id, "altro messaggio", 1));
+        assertEquals("originale", corpi.leggi(id));
+    }
+
+    @Test
+    void corpoEliminatoConLUltimoRiferimento() throws IOException {
+        BodyStore corpi = new BodyStore(cartella, new CompressoreCorpi(true, 6, 64));
+        UUID id = UUID.randomUUID();
+        corpi.salva(id, "condiviso da due caselle", 2);
+
+        corpi.rilascia(id);
+        assertEquals("condiviso da due caselle", corpi.leggi(id));
+        corpi.rilascia(id);
+        assertNull(corpi.leggi(id));
+    }
+
+    @Test
+    void ripristinoSostituisceIlCorpo() throws IOException {
+        BodyStore corpi = new BodyStore(cartella, new CompressoreCorpi(false, 6, 64));
+        UUID id = UUID.randomUUID();
+        corpi.salva(id, "incomp", 3);
+
+        corpi.ripristina(id, "completo dal WAL", 1);
+        assertEquals("completo dal WAL", corpi.leggi(id));
+        corpi.rilascia(id);
+        assertNull(corpi.leggi(id));
+    }
+}
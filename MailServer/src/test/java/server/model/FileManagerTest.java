@@ -0,0 +1,298 @@
+package server.model;
+
+import common.Email;
+import common.Protocollo;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Archivio della posta: log delle caselle, recupero dal WAL, compattazione, SYNC e pagine.
+ * <p>
+ * Ogni test usa una cartella {@code mail.dati} temporanea; la compattazione periodica
+ * non interviene (l'intervallo predefinito supera la durata dei test).
+ */
+class FileManagerTest {
+
+    private static final String UTENTE = "bruno@mail.it";
+
+    @TempDir
+    Path dati;
+
+    private FileManager fileManager;
+
+    @BeforeEach
+    void impostaCartella() {
+        System.setProperty("mail.dati", dati.toString());
+        System.setProperty("mail.wal.durabilita", "none");
+    }
+
+    @AfterEach
+    void chiudi() throws IOException {
+        if (fileManager != null) fileManager.chiudi();
+        System.clearProperty("mail.dati");
+        System.clearProperty("mail.wal.durabilita");
+    }
+
+    // --- LOG DELLE CASELLE ---
+
+    @Test
+    void consegneInCodaAlLog() throws IOException {
+        fileManager = new FileManager(RegistroServer.nessuno());
+        fileManager.salvaEmail(UTENTE, email("primo"));
+        fileManager.salvaEmail(UTENTE, email("secondo"));
+        fileManager.chiudi();
+
+        fileManager = new FileManager(RegistroServer.nessuno());
+        assertEquals(List.of("primo", "secondo"), testi(UTENTE));
+    }
+
+    @Test
+    void lettureECancellazioniNonCreanoCaselle() throws IOException {
+        fileManager = new FileManager(RegistroServer.nessuno());
+
+        assertTrue(fileManager.caricaEmail("nessuno@mail.it").isEmpty());
+        assertTrue(fileManager.caricaBuste("nessuno@mail.it").isEmpty());
+        assertTrue(fileManager.caricaPagina("nessuno@mail.it", null, 10).buste().isEmpty());
+        assertNull(fileManager.caricaCorpo("nessuno@mail.it", UUID.randomUUID()));
+        assertFalse(fileManager.ciSonoModificheDopo("nessuno@mail.it", 0, 0));
+        fileManager.cancellaEmail("nessuno@mail.it", email("mai consegnato"));
+
+        assertFalse(Files.exists(dati.resolve("nessuno@mail.it.log")));
+        assertFalse(Files.exists(dati.resolve("nessuno@mail.it.idx")));
+        assertTrue(fileManager.caselleAperte().isEmpty());
+    }
+
+    @Test
+    void nomeFuoriDallaCartellaRifiutato() throws IOException {
+        fileManager = new FileManager(RegistroServer.nessuno());
+
+        fileManager.cancellaEmail("../fuori", email("mai consegnato"));
+        assertTrue(fileManager.caricaEmail("../fuori").isEmpty());
+        assertNull(fileManager.caricaCorpo("../fuori", UUID.randomUUID()));
+
+        assertFalse(Files.exists(dati.resolveSibling("fuori.log")));
+        assertFalse(Files.exists(dati.resolveSibling("fuori.idx")));
+    }
+
+    // --- RECUPERO DAL WAL ---
+
+    @Test
+    void consegneDelWalRiapplicateAllAvvio() throws IOException {
+        // Consegne confermate dal WAL ma mai applicate alle caselle (crash subito dopo)
+        Email prima = email("primo");
+        Email seconda = email("secondo");
+        WriteAheadLog wal = WriteAheadLog.apri(dati.resolve("wal"), "always", 5, RegistroServer.nessuno());
+        wal.registra(List.of(UTENTE), prima);
+        wal.registra(List.of(UTENTE, "carla@mail.it"), seconda);
+        wal.close();
+
+        fileManager = new FileManager(RegistroServer.nessuno());
+
+        List<Email> casella = fileManager.caricaEmail(UTENTE);
+        assertEquals(2, casella.size());
+        assertEquals("primo", fileManager.caricaCorpo(UTENTE, prima.getId()));
+        assertEquals("secondo", fileManager.caricaCorpo("carla@mail.it", seconda.getId()));
+        assertTrue(segmentiWal().size() <= 1, "il checkpoint del recupero svuota il WAL");
+    }
+
+    @Test
+    void recuperoIdempotente() throws IOException {
+        fileManager = new FileManager(RegistroServer.nessuno());
+        fileManager.salvaEmail(List.of(UTENTE, "carla@mail.it"), email("già applicato"));
+
+        // Crash dopo la scrittura delle caselle ma prima del checkpoint: il segmento resta
+        Path copia = Files.createDirectories(dati.resolve("copia-wal"));
+        long copiati = 0;
+        for (Path segmento : segmentiWal()) {
+            Files.copy(segmento, copia.resolve(segmento.getFileName()));
+            copiati += Files.size(segmento) - WriteAheadLog.HEADER_SIZE;
+        }
+        assertTrue(copiati > 0, "il WAL deve contenere la consegna");
+        fileManager.chiudi();
+        fileManager = null;
+        for (Path segmento : elenco(copia)) {
+            Files.move(segmento, dati.resolve("wal").resolve(segmento.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        fileManager = new FileManager(RegistroServer.nessuno());
+        List<Email> casella = fileManager.caricaEmail(UTENTE);
+        assertEquals(1, casella.size(), "la consegna non va duplicata");
+        UUID id = casella.get(0).getId();
+
+        // Il contatore del corpo corrisponde alle caselle: sopravvive alla prima cancellazione
+        fileManager.cancellaEmail(UTENTE, casella.get(0));
+        assertEquals("già applicato", fileManager.caricaCorpo("carla@mail.it", id));
+    }
+
+
+    // --- COMPATTAZIONE ---
+
+    @Test
+    void compattazioneConservaIMessaggiPresenti() throws IOException {
+        fileManager = new FileManager(RegistroServer.nessuno());
+        for (int i = 0; i < 10; i++) {
+            fileManager.salvaEmail(UTENTE, email("messaggio " + i));
+        }
+        List<Email> casella = new ArrayList<>(fileManager.caricaEmail(UTENTE));
+        for (int i = 0; i < 10; i += 2) {
+            fileManager.cancellaEmail(UTENTE, casella.get(i));
+        }
+
+        assertTrue(fileManager.compatta(UTENTE, 0.1, 0, () -> false) > 0);
+        assertEquals(List.of("messaggio 1", "messaggio 3", "messaggio 5", "messaggio 7", "messaggio 9"), testi(UTENTE));
+
+        // Dopo la riapertura la casella compattata è identica
+        fileManager.chiudi();
+        fileManager = new FileManager(RegistroServer.nessuno());
+        assertEquals(5, fileManager.caricaEmail(UTENTE).size());
+        assertEquals(0, fileManager.compatta(UTENTE, 0.1, 0, () -> false));
+    }
+
+    @Test
+    void compattazioneInterrottaNonModificaLaCasella() throws IOException {
+        fileManager = new FileManager(RegistroServer.nessuno());
+        for (int i = 0; i < 4; i++) {
+            fileManager.salvaEmail(UTENTE, email("messaggio " + i));
+        }
+        fileManager.cancellaEmail(UTENTE, fileManager.caricaEmail(UTENTE).get(0));
+
+        assertEquals(0, fileManager.compatta(UTENTE, 0.1, 0, () -> true));
+        assertEquals(3, fileManager.caricaEmail(UTENTE).size());
+    }
+
+    @Test
+    void vistaLeggibileDopoCompattazioneEChiusura() throws IOException {
+        System.setProperty("mail.mmap.sogliaBytes", "0");
+        try {
+            fileManager = new FileManager(RegistroServer.nessuno());
+            for (int i = 0; i < 300; i++) {
+                fileManager.salvaEmail(UTENTE, email("messaggio " + i));
+            }
+            // La lettura mappa il log fino al trecentesimo messaggio
+            List<Email> primi = new ArrayList<>(fileManager.caricaEmail(UTENTE));
+            for (int i = 300; i < 400; i++) {
+                fileManager.salvaEmail(UTENTE, email("messaggio " + i));
+            }
+            List<Email> vista = fileManager.caricaEmail(UTENTE);
+            List<Email> buste = fileManager.caricaBuste(UTENTE);
+            for (Email email : primi) {
+                fileManager.cancellaEmail(UTENTE, email);
+            }
+            assertTrue(fileManager.compatta(UTENTE, 0.1, 0, () -> false) > 0);
+
+            // La vista è una fotografia della casella prima delle cancellazioni
+            assertEquals("messaggio 399", vista.get(399).getTesto());
+            fileManager.chiudi();
+            fileManager = null;
+            int letti = 0;
+            for (Email busta : buste) {
+                assertEquals("Oggetto messaggio " + letti++, busta.getOggetto());
+            }
+            assertEquals(400, letti);
+        } finally {
+            System.clearProperty("mail.mmap.sogliaBytes");
+        }
+    }
+
+    // --- SYNC ---
+
+    @Test
+    void sincronizzazioneConDeltaEDopoLaCompattazione() throws IOException {
+        fileManager = new FileManager(RegistroServer.nessuno());
+        fileManager.salvaEmail(UTENTE, email("uno"));
+        fileManager.salvaEmail(UTENTE, email("due"));
+
+        // Client senza stato: va ricaricata tutta la casella
+        Modifiche iniziale = fileManager.caricaModifiche(UTENTE, 0, 0);
+        assertEquals(Protocollo.SYNC_RICARICA, iniziale.tipo());
+        long epoca = iniziale.epoca();
+        long seq = iniziale.sequenza();
+
+        fileManager.salvaEmail(UTENTE, email("tre"));
+        Email daCancellare = fileManager.caricaEmail(UTENTE).get(0);
+        fileManager.cancellaEmail(UTENTE, daCancellare);
+        assertTrue(fileManager.ciSonoModificheDopo(UTENTE, epoca, seq));
+
+        Modifiche delta = fileManager.caricaModifiche(UTENTE, epoca, seq);
+        assertEquals(Protocollo.SYNC_DELTA, delta.tipo());
+        assertEquals(1, delta.aggiunte().size());
+        assertNull(delta.aggiunte().get(0).getTesto(), "il delta contiene solo buste");
+        assertEquals(List.of(daCancellare.getId()), delta.identificativi());
+        assertFalse(fileManager.ciSonoModificheDopo(UTENTE, delta.epoca(), delta.sequenza()));
+
+        // La compattazione scarta le cancellazioni ma prosegue la numerazione
+        fileManager.compatta(UTENTE, 0.01, 0, () -> false);
+        Modifiche dopo = fileManager.caricaModifiche(UTENTE, delta.epoca(), delta.sequenza());
+        assertNotEquals(Protocollo.SYNC_RICARICA, dopo.tipo());
+        assertTrue(dopo.aggiunte().isEmpty());
+
+        Modifiche vecchio = fileManager.caricaModifiche(UTENTE, epoca, seq);
+        assertEquals(Protocollo.SYNC_PRESENTI, vecchio.tipo());
+        assertEquals(2, vecchio.identificativi().size());
+    }
+
+
+    // --- PAGINE ---
+
+    @Test
+    void pagineDallaPiuRecente() throws IOException {
+        fileManager = new FileManager(RegistroServer.nessuno());
+        for (int i = 0; i < 5; i++) {
+            fileManager.salvaEmail(UTENTE, email("messaggio " + i));
+        }
+        // L'ultimo messaggio rimasto nella pagina finale è cancellato: non ci sono altre pagine
+        fileManager.cancellaEmail(UTENTE, fileManager.caricaEmail(UTENTE).get(0));
+
+        Pagina prima = fileManager.caricaPagina(UTENTE, null, 2);
+        assertEquals(2, prima.buste().size());
+        assertTrue(prima.altre());
+        assertEquals("Oggetto messaggio 4", prima.buste().get(0).getOggetto());
+
+        Pagina seconda = fileManager.caricaPagina(UTENTE, prima.buste().get(1).getId(), 2);
+        assertEquals(2, seconda.buste().size());
+        assertFalse(seconda.altre());
+        assertEquals("Oggetto messaggio 1", seconda.buste().get(1).getOggetto());
+
+        assertNull(fileManager.caricaPagina(UTENTE, UUID.randomUUID(), 2), "riferimento non valido");
+    }
+
+    // --- METODI DI SUPPORTO ---
+
+    private List<Path> segmentiWal() throws IOException {
+        return elenco(dati.resolve("wal"));
+    }
+
+    private static List<Path> elenco(Path cartella) throws IOException {
+        List<Path> file = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(cartella, "wal-*.log")) {
+            stream.forEach(file::add);
+        }
+        file.sort(null);
+        return file;
+    }
+
+    private List<String> testi(String utente) {
+        List<String> testi = new ArrayList<>();
+        for (Email email : fileManager.caricaEmail(utente)) {
+            testi.add(fileManager.caricaCorpo(utente, email.getId()));
+        }
+        return testi;
+    }
+
+    private static Email email(String testo) {
+        return new Email("anna@mail.it", List.of(UTENTE), "Oggetto " + testo, testo);
+    }
+}
@@ -0,0 +1,138 @@
+package server.model;
+
+import common.Email;
+import common.EmailCodec;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Scrittura e recupero dei segmenti del {@link WriteAheadLog}.
+ */
+class WriteAheadLogTest {
+
+    @TempDir
+    Path cartella;
+
+    @Test
+    void consegneRecuperateDopoLaRiapertura() throws IOException {
+        Email prima = email("primo");
+        Email seconda = email("secondo");
+
+        WriteAheadLog wal = WriteAheadLog.apri(cartella, "always", 5, RegistroServer.nessuno());
+        wal.registra(List.of("bruno@mail.it"), prima);
+        wal.registra(List.of("bruno@mail.it", "carla@mail.it"), seconda);
+        wal.close();
+
+        WriteAheadLog riaperto = WriteAheadLog.apri(cartella, "always", 5, RegistroServer.nessuno());
+        List<WriteAheadLog.Consegna> consegne = riaperto.recupera();
+        riaperto.close();
+
+        assertEquals(2, consegne.size());
+        assertEquals(List.of("bruno@mail.it"), consegne.get(0).destinatari());
+        assertEquals(prima.getId(), consegne.get(0).email().getId());
+        assertEquals("primo", consegne.get(0).email().getTesto());
+        assertEquals(List.of("bruno@mail.it", "carla@mail.it"), consegne.get(1).destinatari());
+        assertEquals("secondo", consegne.get(1).email().getTesto());
+    }
+
+    @Test
+    void segmentiRuotatiEliminati() throws IOException {
+        WriteAheadLog wal = WriteAheadLog.apri(cartella, "none", 5, RegistroServer.nessuno());
+        wal.registra(List.of("bruno@mail.it"), email("prima del checkpoint"));
+        List<Path> precedenti = wal.ruota();
+        wal.elimina(precedenti);
+        wal.registra(List.of("bruno@mail.it"), email("dopo il checkpoint"));
+        wal.close();
+
+        WriteAheadLog riaperto = WriteAheadLog.apri(cartella, "none", 5, RegistroServer.nessuno());
+        List<WriteAheadLog.Consegna> consegne = riaperto.recupera();
+        riaperto.close();
+
+        assertEquals(1, consegne.size());
+        assertEquals("dopo il checkpoint", consegne.get(0).email().getTesto());
+    }
+
+    @Test
+    void codaTroncataIgnorata() throws IOException {
+        WriteAheadLog wal = WriteAheadLog.apri(cartella, "batch(1)", 5, RegistroServer.nessuno());
+        wal.registra(List.of("bruno@mail.it"), email("completo"));
+        wal.registra(List.of("bruno@mail.it"), email("troncato dal crash"));
+        wal.close();
+
+        // Crash a metà dell'ultimo record
+        Path segmento;
+        try (var elenco = Files.list(cartella)) {
+            segmento = elenco.findFirst().orElseThrow();
+        }
+        try (FileChannel canale = FileChannel.open(segmento, StandardOpenOption.WRITE)) {
+            canale.truncate(canale.size() - 4);
+        }
+
+        WriteAheadLog riaperto = WriteAheadLog.apri(cartella, "none", 5, RegistroServer.nessuno());
+        List<WriteAheadLog.Consegna> consegne = riaperto.recupera();
+        riaperto.close();
+
+        assertEquals(1, consegne.size());
+        assertEquals("completo", consegne.get(0).email().getTesto());
+    }
+
+    @Test
+    void recordCorrottoInterrompeLaLettura() throws IOException {
+        WriteAheadLog wal = WriteAheadLog.apri(cartella, "none", 5, RegistroServer.nessuno());
+        wal.registra(List.of("bruno@mail.it"), email("integro"));
+        wal.registra(List.of("bruno@mail.it"), email("corrotto"));
+        wal.registra(List.of("bruno@mail.it"), email("dopo il record corrotto"));
+        wal.close();
+
+        Path segmento;
+        try (var elenco = Files.list(cartella)) {
+            segmento = elenco.findFirst().orElseThrow();
+        }
+        byte[] dati = Files.readAllBytes(segmento);
+        // Un byte del testo del secondo record (il CRC non corrisponde più)
+        int inizioSecondo = WriteAheadLog.HEADER_SIZE + 8 + lunghezzaPrimo(dati);
+        dati[inizioSecondo + 20] ^= 0x55;
+        Files.write(segmento, dati);
+
+        WriteAheadLog riaperto = WriteAheadLog.apri(cartella, "none", 5, RegistroServer.nessuno());
+        List<WriteAheadLog.Consegna> consegne = riaperto.recupera();
+        riaperto.close();
+
+        assertEquals(1, consegne.size());
+        assertEquals("integro", consegne.get(0).email().getTesto());
+    }
+
+    @Test
+    void messaggioTroppoGrandeRifiutato() throws IOException {
+        WriteAheadLog wal = WriteAheadLog.apri(cartella, "none", 5, RegistroServer.nessuno());
+        assertThrows(IOException.class,
+                () -> wal.registra(List.of("bruno@mail.it"), email("x".repeat(17 * 1024 * 1024))));
+        wal.registra(List.of("bruno@mail.it"), email("dopo il rifiuto"));
+        wal.close();
+
+        // Nessun record illeggibile nel segmento: la consegna successiva viene recuperata
+        WriteAheadLog riaperto = WriteAheadLog.apri(cartella, "none", 5, RegistroServer.nessuno());
+        List<WriteAheadLog.Consegna> consegne = riaperto.recupera();
+        riaperto.close();
+
+        assertEquals(1, consegne.size());
+        assertEquals("dopo il rifiuto", consegne.get(0).email().getTesto());
+    }
+
+    private static int lunghezzaPrimo(byte[] dati) {
+        return java.nio.ByteBuffer.wrap(dati).getInt(WriteAheadLog.HEADER_SIZE);
+    }
+
+    private static Email email(String testo) {
+        return EmailCodec.normalizza(new Email("anna@mail.it", List.of("bruno@mail.it"), "Oggetto", testo));
+    }
+}
@@ -0,0 +1,198 @@
+package server.network;
+
+import common.Email;
+import server.model.RegistroServer;
+import server.model.ServerMetrics;
+import server.model.ServerModel;
+
+import java.io.BufferedOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prova di carico dei motori di rete con molti client in attesa (WATCH).
+ * <p>
+ * Avvia un server nello stesso processo con il motore indicato ({@code thread},
+ * {@code virtual} o {@code nio}) e apre {@code client} connessioni, ognuna con un WATCH
+ * in serializzazione Java sulle caselle ammesse. Quando tutte le attese sono registrate
+ * (o rifiutate) riporta thread e memoria del processo; poi una sola consegna sveglia
+ * tutti i client, e si misura la latenza tra la consegna e ogni risposta.
+ * <p>
+ * Con {@code thread} le attese oltre {@code mail.watch.maxThread} vengono rifiutate
+ * (il client riceve l'invito a riprovare): il confronto mostra quante attese ogni
+ * motore regge e a che costo. Con {@code nio} i client svegliati insieme passano dalla
+ * coda dei worker ({@code mail.rete.codaWorker}): quelli oltre la coda ricevono a loro
+ * volta l'invito a riprovare, riportato a parte. Le proprietà {@code mail.*} passate
+ * con {@code -D} prevalgono su quelle impostate qui.
+ * <pre>
+ * java -Xss256k -cp target/classes:target/test-classes server.network.CaricoWatch [modalita] [client] [attesa ms]
+ * </pre>
+ * Client e server sono nello stesso processo: servono circa {@code 2 * client} descrittori
+ * di file ({@code ulimit -n}).
+ */
+public class CaricoWatch {
+
+    private static final String[] UTENTI = { "mario@test.it", "luigi@test.it", "peach@test.it", "spike@test.it" };
+
+    // Connessioni aperte contemporaneamente, per non superare la coda di accettazione
+    private static final int CONNESSIONI_IN_CORSO = 256;
+
+    // Controlli consecutivi senza variazioni prima di considerare stabili le attese
+    private static final int CONTROLLI_STABILI = 10;
+
+    public static void main(String[] args) throws Exception {
+        String modalita = args.length > 0 ? args[0] : "virtual";
+        int client = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        long attesaMs = args.length > 2 ? Long.parseLong(args[2]) : 60_000;
+
+        predefinita("mail.rete.modalita", modalita);
+        predefinita("mail.dati", Files.createTempDirectory("carico-watch").toString());
+        predefinita("mail.porta", String.valueOf(portaLibera()));
+        predefinita("mail.rete.maxConnessioni", String.valueOf(client + 100));
+        predefinita("mail.rete.backlog", "1024");
+        predefinita("mail.rete.timeoutLetturaSec", String.valueOf(TimeUnit.MILLISECONDS.toSeconds(attesaMs) + 60));
+        predefinita("mail.watch.maxSec", String.valueOf(TimeUnit.MILLISECONDS.toSeconds(attesaMs) + 1));
+        predefinita("mail.wal.durabilita", "none");
+
+        int threadIniziali = ManagementFactory.getThreadMXBean().getThreadCount();
+        long memoriaIniziale = memoriaUsata();
+        ServerModel server = new ServerModel(RegistroServer.nessuno());
+        int porta = server.getPorta();
+
+        AtomicLong sveglia = new AtomicLong();
+        AtomicInteger inviati = new AtomicInteger();
+        AtomicInteger rifiutati = new AtomicInteger();
+        AtomicInteger riprova = new AtomicInteger();
+        AtomicInteger errori = new AtomicInteger();
+        long[] latenze = new long[client];
+        Arrays.fill(latenze, -1);
+        CountDownLatch risposte = new CountDownLatch(client);
+        Semaphore inCorso = new Semaphore(CONNESSIONI_IN_CORSO);
+
+        long inizio = System.nanoTime();
+        for (int i = 0; i < client; i++) {
+            int numero = i;
+            Thread.ofVirtual().name("client-" + i).start(() -> {
+                try {
+                    inCorso.acquireUninterruptibly();
+                    Socket socket;
+                    try {
+                        socket = new Socket();
+                        socket.connect(new InetSocketAddress("localhost", porta), 30_000);
+                    } finally {
+                        inCorso.release();
+                    }
+                    try (socket) {
+                        ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                        out.writeObject("WATCH");
+                        out.writeObject(UTENTI[numero % UTENTI.length]);
+                        out.writeObject(LocalDateTime.now());
+                        out.writeObject(attesaMs);
+                        out.flush();
+                        inviati.incrementAndGet();
+
+                        ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+                        Object stato = in.readObject();
+                        long svegliaNs = sveglia.get();
+                        if (svegliaNs == 0) {
+                            // Attesa rifiutata (o scaduta) prima della consegna
+                            rifiutati.incrementAndGet();
+                        } else if ("OK".equals(stato)) {
+                            latenze[numero] = System.nanoTime() - svegliaNs;
+                        } else {
+                            riprova.incrementAndGet();
+                        }
+                    }
+                } catch (Exception e) {
+                    errori.incrementAndGet();
+                } finally {
+                    risposte.countDown();
+                }
+            });
+        }
+
+        // Si attende che ogni client abbia inviato il WATCH e che il server li abbia tutti
+        // messi in attesa o rifiutati: una consegna anticipata risponderebbe subito ai ritardatari
+        long limite = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(attesaMs / 2);
+        long inAttesa = -1;
+        int stabili = 0;
+        while (System.nanoTime() < limite && stabili < CONTROLLI_STABILI) {
+            Thread.sleep(100);
+            long ora = ServerMetrics.snapshot().getOrDefault("watch.inAttesa", 0L) + rifiutati.get();
+            boolean tuttiInviati = inviati.get() + errori.get() >= client;
+            stabili = tuttiInviati && ora == inAttesa ? stabili + 1 : 0;
+            inAttesa = ora;
+        }
+        inAttesa -= rifiutati.get();
+        long registrazione = System.nanoTime() - inizio;
+        System.gc();
+
+        System.out.println("Motore: " + modalita + ", client: " + client);
+        // Con i thread di piattaforma anche le attese rifiutate restano registrate fino alla scadenza:
+        // i client in attesa sono quelli senza risposta
+        System.out.printf("Client in attesa: %d in %d ms (segnali registrati %d, rifiutati %d, errori %d)%n",
+                risposte.getCount(), TimeUnit.NANOSECONDS.toMillis(registrazione), inAttesa,
+                rifiutati.get(), errori.get());
+        System.out.printf("Thread di piattaforma: %d (prima dell'avvio %d)%n",
+                ManagementFactory.getThreadMXBean().getThreadCount(), threadIniziali);
+        System.out.printf("Heap usato: %d MB (prima dell'avvio %d MB)%n",
+                memoriaUsata() >> 20, memoriaIniziale >> 20);
+
+        // Una consegna a tutte le caselle sveglia tutti i client
+        sveglia.set(System.nanoTime());
+        server.riceviEmail(new Email("carico@test.it", List.of(UTENTI), "Sveglia", "Posta nuova"));
+        boolean completate = risposte.await(attesaMs, TimeUnit.MILLISECONDS);
+
+        List<Long> svegliati = new ArrayList<>();
+        for (long latenza : latenze) {
+            if (latenza >= 0) svegliati.add(latenza);
+        }
+        svegliati.sort(null);
+        System.out.printf("Svegliati: %d%s, invitati a riprovare alla consegna: %d, errori: %d%n", svegliati.size(),
+                completate ? "" : " (altri ancora in attesa allo scadere)", riprova.get(), errori.get());
+        if (!svegliati.isEmpty()) {
+            System.out.printf("Latenza dalla consegna: p50 %d ms, p99 %d ms, max %d ms%n",
+                    millis(svegliati, 0.50), millis(svegliati, 0.99), millis(svegliati, 1.0));
+        }
+
+        server.stopServer();
+        System.exit(0);
+    }
+
+    /**
+     * Imposta una proprietà solo se non è già stata indicata con {@code -D}.
+     */
+    private static void predefinita(String chiave, String valore) {
+        if (System.getProperty(chiave) == null) System.setProperty(chiave, valore);
+    }
+
+    private static int portaLibera() throws java.io.IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static long memoriaUsata() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long millis(List<Long> ordinate, double percentile) {
+        int indice = (int) Math.min(ordinate.size() - 1, Math.ceil(percentile * ordinate.size()) - 1);
+        return TimeUnit.NANOSECONDS.toMillis(ordinate.get(Math.max(0, indice)));
+    }
+}
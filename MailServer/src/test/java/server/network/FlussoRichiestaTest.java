@@ -0,0 +1,89 @@
+package server.network;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Lettura di richieste serializzate che arrivano a frammenti dal ciclo di I/O.
+ */
+class FlussoRichiestaTest {
+
+    @Test
+    void richiestaAFrammenti() throws Exception {
+        LocalDateTime istante = LocalDateTime.of(2024, 5, 1, 12, 30);
+        byte[] dati = serializza("WATCH", "bruno@mail.it", istante, 30_000L);
+
+        FlussoRichiesta flusso = new FlussoRichiesta();
+        // Il ciclo di I/O consegna pochi byte alla volta mentre il lettore è in attesa
+        Thread rete = Thread.ofVirtual().start(() -> {
+            for (int i = 0; i < dati.length; i += 3) {
+                flusso.aggiungi(dati, i, Math.min(3, dati.length - i));
+                Thread.yield();
+            }
+        });
+
+        ObjectInputStream in = new ObjectInputStream(flusso);
+        assertEquals("WATCH", in.readObject());
+        assertEquals("bruno@mail.it", in.readObject());
+        assertEquals(istante, in.readObject());
+        assertEquals(30_000L, in.readObject());
+        rete.join();
+        assertEquals(0, flusso.disponibili());
+    }
+
+    @Test
+    void richiestaPiuGrandeDelBuffer() throws Exception {
+        String testo = "x".repeat(100_000);
+        byte[] dati = serializza("SEND", testo);
+
+        FlussoRichiesta flusso = new FlussoRichiesta();
+        flusso.aggiungi(dati, 0, dati.length);
+        assertEquals(dati.length, flusso.disponibili());
+
+        ObjectInputStream in = new ObjectInputStream(flusso);
+        assertEquals("SEND", in.readObject());
+        assertEquals(testo, in.readObject());
+    }
+
+    @Test
+    void chiusuraSvegliaIlLettore() throws Exception {
+        byte[] dati = serializza("LOGIN");
+        FlussoRichiesta flusso = new FlussoRichiesta();
+        flusso.aggiungi(dati, 0, dati.length);
+        ObjectInputStream in = new ObjectInputStream(flusso);
+        assertEquals("LOGIN", in.readObject());
+
+        Thread chiusura = Thread.ofVirtual().start(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            flusso.close();
+        });
+        assertThrows(EOFException.class, in::readObject);
+        chiusura.join();
+
+        // Dopo la chiusura i byte ricevuti vengono ignorati
+        flusso.aggiungi(dati, 0, dati.length);
+        assertEquals(0, flusso.disponibili());
+    }
+
+    private static byte[] serializza(Object... oggetti) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            for (Object oggetto : oggetti) {
+                out.writeObject(oggetto);
+            }
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,88 @@
+package server.network;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Secchi di gettoni di {@link LimiteInvii}, per mittente e per indirizzo.
+ * <p>
+ * La ricarica è di un gettone al minuto: durante il test è trascurabile.
+ */
+class LimiteInviiTest {
+
+    private static final String[] CHIAVI = {
+            "mail.invii.mittente.perMinuto", "mail.invii.mittente.raffica",
+            "mail.invii.indirizzo.perMinuto", "mail.invii.indirizzo.raffica" };
+
+    @AfterEach
+    void ripristina() {
+        for (String chiave : CHIAVI) {
+            System.clearProperty(chiave);
+        }
+    }
+
+    @Test
+    void rafficaPerMittente() throws Exception {
+        LimiteInvii limite = limite(2, 0);
+        InetAddress origine = InetAddress.getByName("10.0.0.1");
+
+        assertEquals(0, limite.consenti("anna@mail.it", origine));
+        assertEquals(0, limite.consenti("anna@mail.it", origine));
+        long attesa = limite.consenti("anna@mail.it", origine);
+        assertTrue(attesa > 0 && attesa <= 60_000, "attesa fino al prossimo gettone: " + attesa);
+
+        // Gli altri mittenti hanno il proprio secchio
+        assertEquals(0, limite.consenti("bruno@mail.it", origine));
+    }
+
+    @Test
+    void rafficaPerIndirizzo() throws Exception {
+        LimiteInvii limite = limite(0, 2);
+        InetAddress origine = InetAddress.getByName("10.0.0.1");
+
+        assertEquals(0, limite.consenti("anna@mail.it", origine));
+        assertEquals(0, limite.consenti("bruno@mail.it", origine));
+        assertTrue(limite.consenti("carla@mail.it", origine) > 0);
+        assertEquals(0, limite.consenti("carla@mail.it", InetAddress.getByName("10.0.0.2")));
+    }
+
+    @Test
+    void invioRifiutatoNonConsumaLIndirizzo() throws Exception {
+        LimiteInvii limite = limite(1, 3);
+        InetAddress origine = InetAddress.getByName("10.0.0.1");
+
+        assertEquals(0, limite.consenti("anna@mail.it", origine));
+        // Rifiutati per il mittente: il gettone dell'indirizzo viene restituito
+        for (int i = 0; i < 5; i++) {
+            assertTrue(limite.consenti("anna@mail.it", origine) > 0);
+        }
+        assertEquals(0, limite.consenti("bruno@mail.it", origine));
+        assertEquals(0, limite.consenti("carla@mail.it", origine));
+        assertTrue(limite.consenti("dario@mail.it", origine) > 0);
+    }
+
+    @Test
+    void origineSconosciutaLimitataSoloPerMittente() {
+        LimiteInvii limite = limite(1, 1);
+
+        assertEquals(0, limite.consenti("anna@mail.it", null));
+        assertTrue(limite.consenti("anna@mail.it", null) > 0);
+        assertEquals(0, limite.consenti("bruno@mail.it", null));
+    }
+
+    /**
+     * @param mittente  Raffica per mittente (0 disattiva il limite).
+     * @param indirizzo Raffica per indirizzo (0 disattiva il limite).
+     */
+    private static LimiteInvii limite(int mittente, int indirizzo) {
+        System.setProperty("mail.invii.mittente.perMinuto", mittente > 0 ? "1" : "0");
+        System.setProperty("mail.invii.mittente.raffica", String.valueOf(Math.max(1, mittente)));
+        System.setProperty("mail.invii.indirizzo.perMinuto", indirizzo > 0 ? "1" : "0");
+        System.setProperty("mail.invii.indirizzo.raffica", String.valueOf(Math.max(1, indirizzo)));
+        return new LimiteInvii();
+    }
+}
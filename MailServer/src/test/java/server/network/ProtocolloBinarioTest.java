@@ -0,0 +1,156 @@
+package server.network;
+
+import common.Email;
+import common.EmailCodec;
+import common.Protocollo;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Traduzione tra frame binari, richieste e risposte di {@link GestoreComandi}.
+ */
+class ProtocolloBinarioTest {
+
+    private static final String UTENTE = "bruno@mail.it";
+
+    // --- RICHIESTE ---
+
+    @Test
+    void richiestaPage() {
+        UUID prima = UUID.randomUUID();
+        ByteBuffer payload = ByteBuffer.allocate(64);
+        EmailCodec.scriviStringa(payload, UTENTE);
+        payload.put((byte) 1).putLong(prima.getMostSignificantBits()).putLong(prima.getLeastSignificantBits());
+        EmailCodec.scriviVarLong(payload, 20);
+
+        GestoreComandi.Richiesta richiesta = ProtocolloBinario.leggi(Protocollo.PAGE, payload.flip(),
+                Protocollo.VERSIONE_PAGINE);
+        assertEquals("PAGE", richiesta.comando());
+        assertEquals(UTENTE, richiesta.parametri()[0]);
+        assertEquals(prima, richiesta.parametri()[1]);
+        assertEquals(20L, richiesta.parametri()[2]);
+    }
+
+    @Test
+    void richiestaSync() {
+        ByteBuffer payload = ByteBuffer.allocate(64);
+        EmailCodec.scriviStringa(payload, UTENTE);
+        payload.putLong(42L);
+        EmailCodec.scriviVarLong(payload, 7);
+        EmailCodec.scriviVarLong(payload, 30_000);
+
+        GestoreComandi.Richiesta richiesta = ProtocolloBinario.leggi(Protocollo.SYNC, payload.flip(),
+                Protocollo.VERSIONE_SYNC);
+        assertEquals("SYNC", richiesta.comando());
+        assertEquals(42L, richiesta.parametri()[1]);
+        assertEquals(7L, richiesta.parametri()[2]);
+        assertEquals(30_000L, richiesta.parametri()[3]);
+    }
+
+    @Test
+    void listSecondoLaVersione() {
+        assertEquals("LIST", ProtocolloBinario.leggi(Protocollo.LIST, stringa(UTENTE),
+                Protocollo.VERSIONE_SYNC).comando());
+        assertEquals("LIST_RECORD", ProtocolloBinario.leggi(Protocollo.LIST, stringa(UTENTE),
+                Protocollo.VERSIONE_RECORD).comando());
+    }
+
+    @Test
+    void frameTroncatoOSconosciutoRifiutato() {
+        ByteBuffer troncato = ByteBuffer.allocate(4).put((byte) 3).flip();
+        assertThrows(IllegalArgumentException.class,
+                () -> ProtocolloBinario.leggi(Protocollo.LOGIN, troncato, Protocollo.VERSIONE_BINARIA));
+        assertThrows(IllegalArgumentException.class,
+                () -> ProtocolloBinario.leggi((byte) 99, stringa(UTENTE), Protocollo.VERSIONE_BINARIA));
+        assertThrows(IllegalArgumentException.class,
+                () -> ProtocolloBinario.leggi(Protocollo.OPZIONI, ByteBuffer.wrap(new byte[] { 1 }),
+                        Protocollo.VERSIONE_RECORD));
+    }
+
+    // --- RISPOSTE ---
+
+    @Test
+    void rispostaPageConFlag() {
+        List<Email> buste = List.of(busta("uno"), busta("due"));
+
+        ByteBuffer frame = ProtocolloBinario.risposta("PAGE", List.of("OK", buste, true), null);
+        assertEquals(Protocollo.OK, apri(frame));
+        List<Email> lette = Protocollo.leggiEmails(frame);
+        assertEquals(2, lette.size());
+        assertEquals(buste.get(1).getId(), lette.get(1).getId());
+        assertNull(lette.get(0).getTesto());
+        assertEquals(1, frame.get());
+        assertFalse(frame.hasRemaining());
+
+        ByteBuffer ultima = ProtocolloBinario.risposta("PAGE", List.of("OK", List.of(), false), frame);
+        assertEquals(Protocollo.OK, apri(ultima));
+        assertTrue(Protocollo.leggiEmails(ultima).isEmpty());
+        assertEquals(0, ultima.get());
+        assertNull(ProtocolloBinario.trasferimento("PAGE", List.of("OK", List.of(), false)));
+    }
+
+    @Test
+    void rispostaSync() {
+        List<Email> aggiunte = List.of(busta("nuovo"));
+        List<UUID> cancellati = List.of(UUID.randomUUID(), UUID.randomUUID());
+
+        ByteBuffer frame = ProtocolloBinario.risposta("SYNC",
+                List.of("OK", 5L, 12L, Protocollo.SYNC_DELTA, aggiunte, cancellati), null);
+        assertEquals(Protocollo.OK, apri(frame));
+        assertEquals(5L, frame.getLong());
+        assertEquals(12L, EmailCodec.leggiVarLong(frame));
+        assertEquals(Protocollo.SYNC_DELTA, frame.get());
+        assertEquals(aggiunte.get(0).getId(), Protocollo.leggiEmails(frame).get(0).getId());
+        assertEquals(cancellati, Protocollo.leggiIdentificativi(frame));
+        assertFalse(frame.hasRemaining());
+    }
+
+    @Test
+    void rispostaFetchBody() {
+        ByteBuffer frame = ProtocolloBinario.risposta("FETCH_BODY", List.of("OK", "testo àè"), null);
+        assertEquals(Protocollo.OK, apri(frame));
+        assertEquals("testo àè", EmailCodec.leggiStringa(frame));
+    }
+
+    @Test
+    void rispostaDiErrore() {
+        ByteBuffer errore = ProtocolloBinario.risposta("REFRESH", List.of("Casella inesistente"), null);
+        assertEquals(Protocollo.ERRORE, apri(errore));
+        assertEquals("Casella inesistente", EmailCodec.leggiStringa(errore));
+        assertFalse(errore.hasRemaining());
+    }
+
+    @Test
+    void rispostaRiprova() {
+        ByteBuffer riprova = ProtocolloBinario.risposta("SEND",
+                List.of(new GestoreComandi.Riprova("Troppi invii", 1500)), null);
+        assertEquals(Protocollo.RIPROVA, apri(riprova));
+        assertEquals("Troppi invii", EmailCodec.leggiStringa(riprova));
+        assertEquals(1500, EmailCodec.leggiVarLong(riprova));
+    }
+
+    // --- METODI DI SUPPORTO ---
+
+    /**
+     * Verifica la lunghezza del frame e ne restituisce il tipo, lasciando il buffer sui dati.
+     */
+    private static byte apri(ByteBuffer frame) {
+        assertEquals(frame.remaining() - 4, frame.getInt());
+        return frame.get();
+    }
+
+    private static ByteBuffer stringa(String s) {
+        ByteBuffer buffer = ByteBuffer.allocate(EmailCodec.dimensioneStringa(s));
+        EmailCodec.scriviStringa(buffer, s);
+        return buffer.flip();
+    }
+
+    private static Email busta(String oggetto) {
+        return EmailCodec.normalizza(new Email("anna@mail.it", List.of(UTENTE), oggetto, "testo " + oggetto)).busta();
+    }
+}